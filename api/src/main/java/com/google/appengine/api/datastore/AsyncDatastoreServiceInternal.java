@@ -26,4 +26,12 @@ interface AsyncDatastoreServiceInternal extends AsyncDatastoreService {
 
   /** See {@link DatastoreService#allocateIdRange(KeyRange)}. */
   Future<DatastoreService.KeyRangeState> allocateIdRange(final KeyRange range);
+
+  /**
+   * Makes operations keep at most {@link DatastoreServiceConfig#getMaxConcurrentBatchRpcs()} batch
+   * rpcs outstanding, waiting for the oldest one to complete before sending the next. Only for the
+   * service behind a {@link DatastoreService}, whose callers wait for the result anyway: otherwise
+   * all batches are sent at once, so that asynchronous operations do not block.
+   */
+  void limitOutstandingBatchRpcs();
 }
@@ -28,7 +28,6 @@ import com.google.common.collect.Sets;
 import com.google.protobuf.Message;
 import com.google.protobuf.MessageLite;
 import com.google.protobuf.MessageLiteOrBuilder;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
@@ -65,6 +64,9 @@ abstract class BaseAsyncDatastoreServiceImpl
 
   private final QueryRunner queryRunner;
 
+  /** Whether operations wait for outstanding batch rpcs, see {@link #limitOutstandingBatchRpcs}. */
+  private volatile boolean outstandingBatchRpcsLimited;
+
   /**
    * A base batcher for operations executed in the context of a {@link DatastoreService}.
    *
@@ -88,12 +90,18 @@ abstract class BaseAsyncDatastoreServiceImpl
       return datastoreServiceConfig.maxEntityGroupsPerRpc;
     }
 
+    @Override
+    final int getMaxConcurrency() {
+      return datastoreServiceConfig.maxConcurrentBatchRpcs;
+    }
+
+    @Override
+    final boolean limitsOutstandingBatches() {
+      return outstandingBatchRpcsLimited;
+    }
+
     final List<Future<S>> makeCalls(Iterator<R> batches) {
-      List<Future<S>> futures = new ArrayList<Future<S>>();
-      while (batches.hasNext()) {
-        futures.add(makeCall(batches.next()));
-      }
-      return futures;
+      return sendBatches(batches, this::makeCall);
     }
   }
 
@@ -108,6 +116,11 @@ abstract class BaseAsyncDatastoreServiceImpl
     this.queryRunner = queryRunner;
   }
 
+  @Override
+  public void limitOutstandingBatchRpcs() {
+    outstandingBatchRpcsLimited = true;
+  }
+
   protected abstract TransactionImpl.InternalTransaction doBeginTransaction(
       TransactionOptions options);
 
@@ -17,6 +17,7 @@
 package com.google.appengine.api.datastore;
 
 import com.google.common.collect.Sets;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Set;
@@ -64,6 +65,9 @@ abstract class BaseQueryResultsSource<InitialResultT, NextRequestT, NextResultT>
     /** The number of results skipped over due to an offset. */
     int numSkippedResults();
 
+    /** The number of results included, without converting them to entities. */
+    int numResults();
+
     /**
      * Parses information about the indexes used in the query.
      *
@@ -224,7 +228,12 @@ abstract class BaseQueryResultsSource<InitialResultT, NextRequestT, NextResultT>
       queryResultFuture = null;
     }
 
-    int fetchedSoFar = processQueryResult(res, buffer, cursorBuffer);
+    // The results are only processed once the next call has been started, below, so that the call
+    // overlaps converting the results to entities and running their callbacks.
+    List<WrappedQueryResult> results = new ArrayList<>();
+    results.add(res);
+    int skippedSoFar = skippedResults + res.numSkippedResults();
+    int fetchedSoFar = res.numResults();
 
     Integer fetchCountOrNull = null;
     Integer offsetOrNull = null;
@@ -242,10 +251,10 @@ abstract class BaseQueryResultsSource<InitialResultT, NextRequestT, NextResultT>
 
       // Synchronously grab any extra needed
       while (res.hasMoreResults() // While there are more results
-          && (skippedResults < offset // and we either have more offset to satisfy
+          && (skippedSoFar < offset // and we either have more offset to satisfy
               || fetchedSoFar < numberToLoad)) { // or have more results to fetch
-        if (skippedResults < offset) {
-          offsetOrNull = offset - skippedResults;
+        if (skippedSoFar < offset) {
+          offsetOrNull = offset - skippedSoFar;
         } else {
           offsetOrNull = null;
         }
@@ -260,7 +269,9 @@ abstract class BaseQueryResultsSource<InitialResultT, NextRequestT, NextResultT>
           throw new DatastoreTimeoutException("The query was not able to make any progress.");
         }
         res = nextRes;
-        fetchedSoFar += processQueryResult(res, buffer, cursorBuffer);
+        results.add(res);
+        skippedSoFar += res.numSkippedResults();
+        fetchedSoFar += res.numResults();
       }
     }
 
@@ -270,6 +281,9 @@ abstract class BaseQueryResultsSource<InitialResultT, NextRequestT, NextResultT>
       offsetOrNull = null; // At this point the offset must have been met.
       queryResultFuture = makeNextCall(nextQueryPrototype, res, fetchCountOrNull, offsetOrNull);
     }
+    for (WrappedQueryResult result : results) {
+      processQueryResult(result, buffer, cursorBuffer);
+    }
     return res.getEndCursor();
   }
 
@@ -20,11 +20,17 @@ import com.google.appengine.api.datastore.FutureHelper.MultiFuture;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.math.IntMath;
+import com.google.common.math.LongMath;
+import com.google.common.util.concurrent.ForwardingFuture;
 import com.google.io.protocol.Protocol;
 import com.google.protobuf.MessageLite;
 import com.google.protobuf.MessageLiteOrBuilder;
+import java.math.RoundingMode;
+import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -33,6 +39,7 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
 
 /**
  * A class that splits groups of values into multiple batches based on size, count and group
@@ -40,6 +47,12 @@ import java.util.concurrent.TimeoutException;
  *
  * <p>This class purposefully delays conversion to protocol message format to reduce memory usage.
  *
+ * <p>The values are spread evenly over the batches that the limits require, so that no batch is
+ * much larger, and thus slower, than the others. Once enough batches have completed to tell how
+ * the latency of a batch grows with its size, an operation is also split into more batches when
+ * sending them in parallel is expected to finish sooner, up to {@link #getMaxConcurrency()}
+ * batches.
+ *
  * @param <R> the batch message type, usually the request
  * @param <F> the java native value type to batch
  * @param <T> the proto value type to batch
@@ -68,9 +81,22 @@ abstract class Batcher<R extends MessageLiteOrBuilder, F, T extends MessageLite>
   /** @return the maximum number of groups to include in a single batch (if grouping is enabled) */
   abstract int getMaxGroups();
 
+  /** @return the maximum number of batches of a single operation to have outstanding at a time */
+  abstract int getMaxConcurrency();
+
+  /**
+   * @return whether sending a batch waits for an outstanding one to complete once {@link
+   *     #getMaxConcurrency()} batches are outstanding. Otherwise all batches are sent at once, so
+   *     that an asynchronous operation never blocks its caller.
+   */
+  abstract boolean limitsOutstandingBatches();
+
   /** @return the protocol message version of the value */
   abstract T toPb(F value);
 
+  /** The latency of the batches of this batcher, which the number of batches is adapted to. */
+  final LatencyModel latencyModel = new LatencyModel();
+
   /**
    * Models an item and its associated index in some ordered collection.
    *
@@ -146,12 +172,196 @@ abstract class Batcher<R extends MessageLiteOrBuilder, F, T extends MessageLite>
     }
   }
 
+  /**
+   * A model of how the latency of a batch grows with its size, fitted to the batches that have
+   * completed as {@code latency = fixedLatency + latencyPerByte * size}. Older samples weigh less
+   * than newer ones, so that the model follows changes in the latency of the datastore.
+   *
+   * <p>This class is thread safe.
+   */
+  static final class LatencyModel {
+    /** The number of samples needed before the model is used. */
+    static final int MIN_SAMPLES = 8;
+
+    /** No batch is made smaller than this many bytes to send more batches in parallel. */
+    static final int MIN_TARGET_SIZE = 16 * 1024;
+
+    /** The weight that each sample keeps when a new sample is added. */
+    private static final double DECAY = 0.95;
+
+    private int samples;
+    private double weight;
+    private double sumSize;
+    private double sumLatency;
+    private double sumSizeSquared;
+    private double sumSizeLatency;
+    private double sumValues;
+
+    /**
+     * Adds a completed batch to the model.
+     *
+     * @param size the size of the batch in bytes
+     * @param values the number of values in the batch
+     * @param latencyNanos the time from sending the batch to receiving its result
+     */
+    synchronized void record(int size, int values, long latencyNanos) {
+      samples++;
+      weight = weight * DECAY + 1;
+      sumSize = sumSize * DECAY + size;
+      sumLatency = sumLatency * DECAY + latencyNanos;
+      sumSizeSquared = sumSizeSquared * DECAY + (double) size * size;
+      sumSizeLatency = sumSizeLatency * DECAY + (double) size * latencyNanos;
+      sumValues = sumValues * DECAY + values;
+    }
+
+    /**
+     * Returns the size of batch at which the part of its latency that grows with its size is as
+     * large as the part that does not, or 0 if the latency is not known to grow with the size.
+     * Splitting batches below that size mostly adds calls without making any of them faster.
+     */
+    synchronized int getTargetSize(int maxSize) {
+      if (samples < MIN_SAMPLES) {
+        return 0;
+      }
+      double meanSize = sumSize / weight;
+      double sizeVariance = sumSizeSquared / weight - meanSize * meanSize;
+      if (sizeVariance <= 0.01 * meanSize * meanSize) {
+        // The batches were all about the same size, so they say nothing about the effect of size.
+        return 0;
+      }
+      double latencyPerByte =
+          (sumSizeLatency / weight - meanSize * sumLatency / weight) / sizeVariance;
+      if (latencyPerByte <= 0) {
+        return 0;
+      }
+      double fixedLatency = sumLatency / weight - latencyPerByte * meanSize;
+      double targetSize = Math.max(fixedLatency / latencyPerByte, MIN_TARGET_SIZE);
+      return (int) Math.round(Math.min(targetSize, maxSize));
+    }
+
+    /** Returns the mean size in bytes of a value, or 0 if it is not known yet. */
+    synchronized double getMeanValueSize() {
+      return sumValues > 0 ? sumSize / sumValues : 0;
+    }
+  }
+
+  /**
+   * Returns the maximum number of values to put in each batch of an operation, which spreads the
+   * values evenly over the batches that are needed.
+   *
+   * @param valueCount the number of values of the operation
+   * @param baseBatchSize the size of an empty batch
+   */
+  private int getBatchMaxCount(int valueCount, int baseBatchSize) {
+    int maxCount = getMaxCount();
+    int batchCount = IntMath.divide(valueCount, maxCount, RoundingMode.CEILING);
+    int maxSize = getMaxSize();
+    int targetSize = latencyModel.getTargetSize(maxSize);
+    if (targetSize > baseBatchSize) {
+      long estimatedSize = (long) (valueCount * latencyModel.getMeanValueSize());
+      long adaptiveBatchCount =
+          LongMath.divide(estimatedSize, targetSize - baseBatchSize, RoundingMode.CEILING);
+      int parallelBatchCount =
+          (int) Math.min(Math.min(adaptiveBatchCount, getMaxConcurrency()), valueCount);
+      batchCount = Math.max(batchCount, parallelBatchCount);
+    }
+    return IntMath.divide(valueCount, batchCount, RoundingMode.CEILING);
+  }
+
+  /**
+   * A future for the result of a batch, which adds the latency of the batch to the {@link
+   * LatencyModel} of the batcher. The latency is only known when a call to {@code get} is made
+   * before the batch completes and waits for it, so batches whose result is only asked for later
+   * are left out.
+   *
+   * @param <V> the result type
+   */
+  final class TimedFuture<V> extends ForwardingFuture.SimpleForwardingFuture<V> {
+    private final long startNanos = System.nanoTime();
+    private final int size;
+    private final int values;
+
+    TimedFuture(Future<V> delegate, int size, int values) {
+      super(delegate);
+      this.size = size;
+      this.values = values;
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+      boolean wasDone = isDone();
+      V result = super.get();
+      if (!wasDone) {
+        latencyModel.record(size, values, System.nanoTime() - startNanos);
+      }
+      return result;
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      boolean wasDone = isDone();
+      V result = super.get(timeout, unit);
+      if (!wasDone) {
+        latencyModel.record(size, values, System.nanoTime() - startNanos);
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Sends batches. If the batcher {@link #limitsOutstandingBatches() limits outstanding batches},
+   * keeps at most {@link #getMaxConcurrency()} of them outstanding: when that many are
+   * outstanding, waits for the oldest one to complete before sending the next batch.
+   *
+   * @param batches the batches to send, as returned by {@code getBatches}
+   * @param sender sends a batch
+   * @return the futures of the results of the batches, in the order of the batches
+   */
+  <S> List<Future<S>> sendBatches(Iterator<R> batches, Function<R, Future<S>> sender) {
+    int maxConcurrency = limitsOutstandingBatches() ? getMaxConcurrency() : Integer.MAX_VALUE;
+    List<Future<S>> futures = Lists.newArrayList();
+    Deque<Future<S>> outstanding = new ArrayDeque<>();
+    while (batches.hasNext()) {
+      R batch = batches.next();
+      outstanding.removeIf(Future::isDone);
+      while (outstanding.size() >= maxConcurrency) {
+        awaitQuietly(outstanding.removeFirst());
+      }
+      Future<S> future = sender.apply(batch);
+      if (batches instanceof Batcher.BatchIterator) {
+        Batcher<?, ?, ?>.BatchIterator<?> batchIterator =
+            (Batcher<?, ?, ?>.BatchIterator<?>) batches;
+        future =
+            new TimedFuture<>(future, batchIterator.lastBatchSize, batchIterator.lastBatchCount);
+      }
+      futures.add(future);
+      outstanding.addLast(future);
+    }
+    return futures;
+  }
+
+  /**
+   * Waits for a future to complete. Its failure is left for the caller of the operation to see
+   * when it gets the result.
+   */
+  private static void awaitQuietly(Future<?> future) {
+    try {
+      future.get();
+    } catch (ExecutionException | RuntimeException e) {
+      // Reported when the result of the operation is read.
+    } catch (InterruptedException e) {
+      // Send the remaining batches without waiting, rather than dropping them.
+      Thread.currentThread().interrupt();
+    }
+  }
+
   /**
    * An iterator that builds batches lazily.
    *
    * @param <V> the intermediate value type
    */
-  private abstract class BatchIterator<V> implements Iterator<R> {
+  abstract class BatchIterator<V> implements Iterator<R> {
     /**
      * Must be called only once per value and in the order in which the values are added to batches.
      *
@@ -163,20 +373,30 @@ abstract class Batcher<R extends MessageLiteOrBuilder, F, T extends MessageLite>
     // TODO: See if we can make these values immutable and store them on the batcher.
     final int baseSize;
     final int maxSize = getMaxSize();
-    final int maxCount = getMaxCount();
+    final int maxCount;
     final int maxGroups;
     final Iterator<? extends Iterable<V>> groupItr;
     Iterator<V> valueItr;
     T nextValue;
+    /** The size in bytes of the batch last returned by {@link #next()}. */
+    int lastBatchSize;
+    /** The number of values in the batch last returned by {@link #next()}. */
+    int lastBatchCount;
 
     /**
      * @param baseBatch the base batch template
+     * @param valueCount the number of values in all the groups
      * @param groupedValues an iterator the returns groups of values, must not be empty or contain
      *     any empty group.
      */
-    BatchIterator(R baseBatch, int baseBatchSize, Iterator<? extends Iterable<V>> groupedValues) {
+    BatchIterator(
+        R baseBatch,
+        int baseBatchSize,
+        int valueCount,
+        Iterator<? extends Iterable<V>> groupedValues) {
       this.baseBatch = baseBatch;
       this.baseSize = baseBatchSize;
+      this.maxCount = getBatchMaxCount(valueCount, baseBatchSize);
       this.groupItr = groupedValues;
       this.valueItr = groupItr.next().iterator();
       this.nextValue = toPb(getValue(valueItr.next()));
@@ -196,6 +416,7 @@ abstract class Batcher<R extends MessageLiteOrBuilder, F, T extends MessageLite>
       R batch = newBatch(baseBatch);
       int size = baseSize;
       int numGroups = 1;
+      int count = 0;
       for (int i = 0; i < maxCount && numGroups <= maxGroups; ++i) {
         // See if adding the next value will overflow our size limit.
         int valueSize = getEmbeddedSize(nextValue);
@@ -207,6 +428,7 @@ abstract class Batcher<R extends MessageLiteOrBuilder, F, T extends MessageLite>
         // Add the value to the batch.
         size += valueSize;
         addToBatch(nextValue, batch);
+        ++count;
 
         // Find the next value.
         if (!valueItr.hasNext()) {
@@ -221,6 +443,8 @@ abstract class Batcher<R extends MessageLiteOrBuilder, F, T extends MessageLite>
         // Populate the next value.
         nextValue = toPb(getValue(valueItr.next()));
       }
+      lastBatchSize = size;
+      lastBatchCount = count;
       return batch;
     }
 
@@ -283,7 +507,7 @@ abstract class Batcher<R extends MessageLiteOrBuilder, F, T extends MessageLite>
       groupItr = Iterators.singletonIterator(values);
     }
 
-    return new BatchIterator<F>(baseBatch, baseBatchSize, groupItr) {
+    return new BatchIterator<F>(baseBatch, baseBatchSize, values.size(), groupItr) {
       @Override
       protected F getValue(F value) {
         return value;
@@ -334,7 +558,7 @@ abstract class Batcher<R extends MessageLiteOrBuilder, F, T extends MessageLite>
       groupItr = Iterators.<Iterable<IndexedItem<F>>>singletonIterator(indexedValue);
     }
 
-    return new BatchIterator<IndexedItem<F>>(baseBatch, baseBatchSize, groupItr) {
+    return new BatchIterator<IndexedItem<F>>(baseBatch, baseBatchSize, values.size(), groupItr) {
       @Override
       protected F getValue(IndexedItem<F> value) {
         order.add(value.index); // Add the index to the order list.
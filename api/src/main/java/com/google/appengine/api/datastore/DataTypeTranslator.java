@@ -60,6 +60,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import org.jspecify.annotations.Nullable;
 
@@ -606,8 +607,14 @@ public final class DataTypeTranslator {
     }
   }
 
+  /**
+   * The values of {@link #TYPE_MAP}, in its iteration order, so that finding the type of a value
+   * does not iterate the map.
+   */
+  private static final Type<?>[] TYPES = TYPE_MAP.values().toArray(new Type<?>[0]);
+
   private static @Nullable Object getValue(Value value) {
-    for (Type<?> type : TYPE_MAP.values()) {
+    for (Type<?> type : TYPES) {
       if (type.isType(value)) {
         return type.getValue(value);
       }
@@ -800,13 +807,26 @@ public final class DataTypeTranslator {
    */
   @SuppressWarnings("unchecked")
   private static <T> Type<T> getType(Class<T> clazz) {
-    if (TYPE_MAP.containsKey(clazz)) {
-      return (Type<T>) TYPE_MAP.get(clazz);
+    Optional<Type<?>> type = TYPE_BY_CLASS.get(clazz);
+    if (type.isPresent()) {
+      return (Type<T>) type.get();
     } else {
       throw new UnsupportedOperationException("Unsupported data type: " + clazz.getName());
     }
   }
 
+  /**
+   * The {@link Type} of each class, looked up in {@link #TYPE_MAP} the first time and cached with
+   * the class from then on. This avoids hashing the class of every value that is translated.
+   */
+  private static final ClassValue<Optional<Type<?>>> TYPE_BY_CLASS =
+      new ClassValue<Optional<Type<?>>>() {
+        @Override
+        protected Optional<Type<?>> computeValue(Class<?> clazz) {
+          return Optional.ofNullable(TYPE_MAP.get(clazz));
+        }
+      };
+
   /**
    * {@code Type} is an abstract class that knows how to convert Java objects of one or more types
    * into datastore representations.
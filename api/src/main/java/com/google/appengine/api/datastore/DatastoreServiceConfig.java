@@ -139,6 +139,9 @@ public final class DatastoreServiceConfig {
   /** The default number of max entity groups per rpc. */
   static final int DEFAULT_MAX_ENTITY_GROUPS_PER_RPC = getDefaultMaxEntityGroupsPerRpc();
 
+  /** The default maximum number of rpcs that a single operation has outstanding at a time. */
+  static final int DEFAULT_MAX_CONCURRENT_BATCH_RPCS = 32;
+
   static final String CALLBACKS_CONFIG_SYS_PROP = "appengine.datastore.callbacksConfig";
 
   // Not final to make it easy for tests to reset it.
@@ -195,6 +198,7 @@ public final class DatastoreServiceConfig {
   int maxBatchReadEntities = DEFAULT_MAX_BATCH_GET_KEYS;
   int maxBatchAllocateIdKeys = DEFAULT_MAX_BATCH_WRITE_ENTITIES;
   int maxEntityGroupsPerRpc = DEFAULT_MAX_ENTITY_GROUPS_PER_RPC;
+  int maxConcurrentBatchRpcs = DEFAULT_MAX_CONCURRENT_BATCH_RPCS;
 
   /**
    * Cannot be directly instantiated, use {@link Builder} instead.
@@ -216,6 +220,7 @@ public final class DatastoreServiceConfig {
     maxBatchWriteEntities = config.maxBatchWriteEntities;
     maxBatchReadEntities = config.maxBatchReadEntities;
     maxEntityGroupsPerRpc = config.maxEntityGroupsPerRpc;
+    maxConcurrentBatchRpcs = config.maxConcurrentBatchRpcs;
     instanceDatastoreCallbacks = config.instanceDatastoreCallbacks;
     appIdNamespace = config.appIdNamespace;
   }
@@ -346,6 +351,30 @@ public final class DatastoreServiceConfig {
     return this;
   }
 
+  /**
+   * Sets the maximum number of rpcs that a single get, put or delete keeps outstanding at a time.
+   *
+   * <p>An operation on more values than fit in one rpc is split into batches that are sent as
+   * multiple, asynchronous rpcs. For a {@link DatastoreService}, once the maximum number of them is
+   * outstanding, the next batch is only sent after the oldest outstanding one completes. An {@link
+   * AsyncDatastoreService} never blocks its caller, so it sends all the batches of an operation at
+   * once. For both, the batches of an operation may also be made smaller than the limits on their
+   * size require, so that up to this many of them are sent in parallel, when the latencies
+   * observed for earlier batches show that this will finish sooner.
+   *
+   * @param maxConcurrentBatchRpcs the maximum number of outstanding rpcs per operation
+   * @throws IllegalArgumentException if maxConcurrentBatchRpcs is not greater than zero
+   * @return {@code this} (for chaining)
+   */
+  public DatastoreServiceConfig maxConcurrentBatchRpcs(int maxConcurrentBatchRpcs) {
+    if (maxConcurrentBatchRpcs <= 0) {
+      throw new IllegalArgumentException(
+          "maxConcurrentBatchRpcs must be > 0, got " + maxConcurrentBatchRpcs);
+    }
+    this.maxConcurrentBatchRpcs = maxConcurrentBatchRpcs;
+    return this;
+  }
+
   /** Returns the {@code ImplicitTransactionManagementPolicy} to use. */
   public ImplicitTransactionManagementPolicy getImplicitTransactionManagementPolicy() {
     return implicitTransactionManagementPolicy;
@@ -370,6 +399,11 @@ public final class DatastoreServiceConfig {
     return maxEntityGroupsPerRpc;
   }
 
+  /** Returns the maximum number of rpcs that a single operation keeps outstanding at a time. */
+  public int getMaxConcurrentBatchRpcs() {
+    return maxConcurrentBatchRpcs;
+  }
+
   /** Returns the deadline, in seconds, to use. Can be {@code null}. */
   public Double getDeadline() {
     return deadline;
@@ -452,6 +486,18 @@ public final class DatastoreServiceConfig {
       return withDefaults().maxEntityGroupsPerRpc(maxEntityGroupsPerRpc);
     }
 
+    /**
+     * Create a {@link DatastoreServiceConfig} with the given maximum number of outstanding rpcs
+     * per operation.
+     *
+     * @param maxConcurrentBatchRpcs the maximum number of outstanding rpcs per operation to set.
+     * @return The newly created DatastoreServiceConfig instance.
+     * @see DatastoreServiceConfig#maxConcurrentBatchRpcs(int)
+     */
+    public static DatastoreServiceConfig withMaxConcurrentBatchRpcs(int maxConcurrentBatchRpcs) {
+      return withDefaults().maxConcurrentBatchRpcs(maxConcurrentBatchRpcs);
+    }
+
     /**
      * Helper method for creating a {@link DatastoreServiceConfig} instance with the specified
      * {@code datastoreCallbacks}. The callbacks defined for the application are bypassed and the
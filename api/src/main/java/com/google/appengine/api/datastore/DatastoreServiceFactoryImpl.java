@@ -24,7 +24,9 @@ final class DatastoreServiceFactoryImpl implements IDatastoreServiceFactory {
 
   @Override
   public DatastoreService getDatastoreService(DatastoreServiceConfig config) {
-    return new DatastoreServiceImpl(getAsyncDatastoreService(config));
+    AsyncDatastoreServiceInternal async = getAsyncDatastoreService(config);
+    async.limitOutstandingBatchRpcs();
+    return new DatastoreServiceImpl(async);
   }
 
   @Override
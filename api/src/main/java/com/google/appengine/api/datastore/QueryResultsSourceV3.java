@@ -128,6 +128,11 @@ class QueryResultsSourceV3 extends BaseQueryResultsSource<QueryResult, NextReque
       return res.getSkippedResults();
     }
 
+    @Override
+    public int numResults() {
+      return res.resultSize();
+    }
+
     @Override
     public Cursor getSkippedResultsCursor() {
       return res.hasSkippedResultsCompiledCursor()
@@ -80,6 +80,11 @@ class WrappedQueryResultCloudDatastoreV1 implements WrappedQueryResult {
     return batch.getSkippedResults();
   }
 
+  @Override
+  public int numResults() {
+    return batch.getEntityResultsCount();
+  }
+
   @Override
   public List<Index> getIndexInfo(Collection<Index> monitoredIndexBuffer) {
     // Not part of the v1 spec.
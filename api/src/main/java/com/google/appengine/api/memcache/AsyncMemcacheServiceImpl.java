@@ -17,6 +17,7 @@
 package com.google.appengine.api.memcache;
 
 import static com.google.appengine.api.memcache.MemcacheServiceApiHelper.makeAsyncCall;
+import static com.google.appengine.api.memcache.MemcacheServiceApiHelper.wrapAsyncResponse;
 
 import com.google.appengine.api.NamespaceManager;
 import com.google.appengine.api.memcache.MemcacheSerialization.ValueAndFlags;
@@ -52,6 +53,7 @@ import com.google.apphosting.api.ApiProxy;
 import com.google.common.base.Ascii;
 import com.google.common.base.Joiner;
 import com.google.common.primitives.Bytes;
+import com.google.common.util.concurrent.Futures;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.Message;
 import java.io.IOException;
@@ -67,14 +69,20 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Java bindings for the AsyncMemcache service.
  *
  */
 class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncMemcacheService {
+  private static final Logger logger = Logger.getLogger(AsyncMemcacheServiceImpl.class.getName());
+
   private static final ErrorHandler DO_NOTHING_ERROR_HANDLER =
       new ErrorHandler() {
         @Override
@@ -99,6 +107,9 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
     private final long items;
     private final long bytesStored;
     private final int maxCachedTime;
+    private final long nearCacheHits;
+    private final long nearCacheMisses;
+    private final long nearCacheEvictions;
 
     StatsImpl(MergedNamespaceStats stats) {
       if (stats != null) {
@@ -112,6 +123,14 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
         hits = misses = bytesFetched = items = bytesStored = 0;
         maxCachedTime = 0;
       }
+      MemcacheNearCache nearCache = MemcacheNearCache.getInstance();
+      if (nearCache != null) {
+        nearCacheHits = nearCache.getHitCount();
+        nearCacheMisses = nearCache.getMissCount();
+        nearCacheEvictions = nearCache.getEvictionCount();
+      } else {
+        nearCacheHits = nearCacheMisses = nearCacheEvictions = 0;
+      }
     }
 
     @Override
@@ -144,6 +163,21 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
       return maxCachedTime;
     }
 
+    @Override
+    public long getNearCacheHitCount() {
+      return nearCacheHits;
+    }
+
+    @Override
+    public long getNearCacheMissCount() {
+      return nearCacheMisses;
+    }
+
+    @Override
+    public long getNearCacheEvictionCount() {
+      return nearCacheEvictions;
+    }
+
     @Override
     public String toString() {
       StringBuilder builder = new StringBuilder();
@@ -153,6 +187,11 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
       builder.append("Bytes Stored: ").append(bytesStored).append('\n');
       builder.append("Items: ").append(items).append('\n');
       builder.append("Max Cached Time: ").append(maxCachedTime).append('\n');
+      if (MemcacheNearCache.getInstance() != null) {
+        builder.append("Near Cache Hits: ").append(nearCacheHits).append('\n');
+        builder.append("Near Cache Misses: ").append(nearCacheMisses).append('\n');
+        builder.append("Near Cache Evictions: ").append(nearCacheEvictions).append('\n');
+      }
       return builder.toString();
     }
   }
@@ -515,9 +554,45 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
     if (forPeek) {
       requestBuilder.setForPeek(true);
     }
-    return makeAsyncCall("Get", requestBuilder.build(),
+    MemcacheGetRequest request = requestBuilder.build();
+    Transformer<MemcacheGetResponse, T> transformer = responseTransfomer;
+    MemcacheNearCache nearCache = (forCas || forPeek) ? null : MemcacheNearCache.getInstance();
+    if (nearCache != null) {
+      String namespace = request.getNameSpace();
+      ByteString pbKey = request.getKey(0);
+      MemcacheGetResponse.Item cached = nearCache.lookup(namespace, pbKey);
+      if (cached != null) {
+        // Going through the usual response handling means that a hit is deserialized and
+        // reported to the ErrorHandler exactly as if it had come from the service.
+        byte[] cachedResponse = MemcacheGetResponse.newBuilder().addItem(cached).build()
+            .toByteArray();
+        return wrapAsyncResponse(
+            Futures.immediateFuture(cachedResponse),
+            createRpcResponseHandler(MemcacheGetResponse.getDefaultInstance(), errorText,
+                responseTransfomer),
+            defaultValue);
+      }
+      long version = nearCache.version(namespace, pbKey);
+      transformer = response -> {
+        if (response.getItemCount() > 0) {
+          MemcacheGetResponse.Item item = response.getItem(0);
+          nearCache.fill(namespace, pbKey, item.getValue(), item.getFlags(), version);
+        }
+        return responseTransfomer.transform(response);
+      };
+    }
+    RpcResponseHandler<MemcacheGetResponse, T> responseHandler =
         createRpcResponseHandler(MemcacheGetResponse.getDefaultInstance(), errorText,
-            responseTransfomer), defaultValue);
+            transformer);
+    if (!forCas && !forPeek && MemcacheGetCoalescer.isEnabled()) {
+      Future<byte[]> asyncResp = MemcacheGetCoalescer.getInstance().get(
+          request.getNameSpace(),
+          request.getKey(0),
+          () -> ApiProxy.makeAsyncCall(
+              MemcacheServiceApiHelper.PACKAGE, "Get", request.toByteArray()));
+      return wrapAsyncResponse(asyncResp, responseHandler, defaultValue);
+    }
+    return makeAsyncCall("Get", request, responseHandler, defaultValue);
   }
 
   @Override
@@ -674,12 +749,21 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
       Transformer<KeyValuePair<K, MemcacheGetResponse.Item>, V> responseTransformer,
       Provider<Map<K, V>> defaultValue) {
     MemcacheGetRequest.Builder requestBuilder = MemcacheGetRequest.newBuilder();
-    requestBuilder.setNameSpace(getEffectiveNamespace());
+    String namespace = getEffectiveNamespace();
+    requestBuilder.setNameSpace(namespace);
+    boolean coalesce = !forCas && !forPeek && MemcacheGetCoalescer.isEnabled();
+    List<Future<byte[]>> sharedResponses = new ArrayList<>();
     final Map<ByteString, K> byteStringToKey = new HashMap<ByteString, K>(keys.size(), 1);
     for (K key : keys) {
       ByteString pbKey = makePbKey(key);
       byteStringToKey.put(pbKey, key);
-      requestBuilder.addKey(pbKey);
+      Future<byte[]> shared =
+          coalesce ? MemcacheGetCoalescer.getInstance().getInFlight(namespace, pbKey) : null;
+      if (shared != null) {
+        sharedResponses.add(shared);
+      } else {
+        requestBuilder.addKey(pbKey);
+      }
     }
     if (forCas) {
       requestBuilder.setForCas(forCas);
@@ -689,12 +773,62 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
     }
     Transformer<MemcacheGetResponse, Map<K, V>> rpcResponseTransformer =
         new GetAllRpcResponseTransformer<>(byteStringToKey, responseTransformer);
-    return makeAsyncCall(
-        "Get",
-        requestBuilder.build(),
+    RpcResponseHandler<MemcacheGetResponse, Map<K, V>> responseHandler =
         createRpcResponseHandler(
-            MemcacheGetResponse.getDefaultInstance(), errorText, rpcResponseTransformer),
-        defaultValue);
+            MemcacheGetResponse.getDefaultInstance(), errorText, rpcResponseTransformer);
+    if (sharedResponses.isEmpty()) {
+      return makeAsyncCall("Get", requestBuilder.build(), responseHandler, defaultValue);
+    }
+    Future<byte[]> asyncResp;
+    if (requestBuilder.getKeyCount() == 0) {
+      // Every key is shared: the failure of one shared get must only make its key a miss.
+      asyncResp = Futures.immediateFuture(new byte[0]);
+    } else {
+      asyncResp = ApiProxy.makeAsyncCall(
+          MemcacheServiceApiHelper.PACKAGE, "Get", requestBuilder.build().toByteArray());
+    }
+    return wrapAsyncResponse(
+        new MergedGetResponses(asyncResp, sharedResponses), responseHandler, defaultValue);
+  }
+
+  /**
+   * Combines the response of a {@code Get} RPC with the responses of in-flight single-key gets
+   * that were joined instead of being asked for again. Serialized {@link MemcacheGetResponse}
+   * messages can simply be concatenated, which appends their items.
+   */
+  private static class MergedGetResponses extends FutureWrapper<byte[], byte[]> {
+    private final List<Future<byte[]>> sharedResponses;
+
+    MergedGetResponses(Future<byte[]> parent, List<Future<byte[]>> sharedResponses) {
+      super(parent);
+      this.sharedResponses = sharedResponses;
+    }
+
+    @Override
+    protected byte[] wrap(byte[] bytes) throws Exception {
+      List<byte[]> parts = new ArrayList<>(sharedResponses.size() + 1);
+      parts.add(bytes == null ? new byte[0] : bytes);
+      for (Future<byte[]> shared : sharedResponses) {
+        try {
+          byte[] sharedBytes = shared.get();
+          if (sharedBytes != null) {
+            parts.add(sharedBytes);
+          }
+        } catch (ExecutionException ex) {
+          // The other caller will report the error; for us the key is just a cache miss.
+          logger.log(Level.INFO, "Shared memcache get failed, treating as a miss", ex.getCause());
+        } catch (CancellationException ex) {
+          // The request that made the RPC reached its deadline; for us the key is a cache miss.
+          logger.log(Level.INFO, "Shared memcache get was cancelled, treating as a miss", ex);
+        }
+      }
+      return Bytes.concat(parts.toArray(new byte[0][]));
+    }
+
+    @Override
+    protected Throwable convertException(Throwable cause) {
+      return cause;
+    }
   }
 
   private static class GetAllRpcResponseTransformer<K, V>
@@ -770,7 +904,13 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
     // When creating string for logging truncate with ellipsis if necessary.
     String valueAsString =
         Ascii.truncate(String.valueOf(value), MAX_LOGGED_VALUE_SIZE, "...");
-    return makeAsyncCall(
+    MemcacheNearCache nearCache = MemcacheNearCache.getInstance();
+    String namespace = requestBuilder.getNameSpace();
+    ByteString pbKey = itemBuilder.getKey();
+    if (nearCache != null) {
+      nearCache.invalidate(namespace, Arrays.asList(pbKey));
+    }
+    Future<Boolean> result = makeAsyncCall(
         "Set",
         requestBuilder.build(),
         createRpcResponseHandlerForPut(
@@ -780,6 +920,64 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
             String.format("Memcache put: exception setting 1 key (%s) to '%s'", key, valueAsString),
             new PutResponseTransformer(key, itemSize)),
         DefaultValueProviders.falseValue());
+    if (nearCache == null) {
+      return result;
+    }
+    ByteString storedValue = itemBuilder.getValue();
+    int flags = itemBuilder.getFlags();
+    return new FutureWrapper<Boolean, Boolean>(result) {
+      @Override
+      protected Boolean wrap(Boolean stored) {
+        if (Boolean.TRUE.equals(stored)) {
+          nearCache.store(namespace, pbKey, storedValue, flags, expires);
+        } else {
+          nearCache.invalidate(namespace, Arrays.asList(pbKey));
+        }
+        return stored;
+      }
+
+      @Override
+      protected Boolean absorbParentException(Throwable cause) throws Throwable {
+        nearCache.invalidate(namespace, Arrays.asList(pbKey));
+        throw cause;
+      }
+
+      @Override
+      protected Throwable convertException(Throwable cause) {
+        return cause;
+      }
+    };
+  }
+
+  /**
+   * Invalidates the given keys in the near cache, if there is one, and arranges for them to be
+   * invalidated again when the result of the write that is modifying them is read.
+   */
+  private static <T> Future<T> invalidateNearCache(
+      Future<T> result, String namespace, List<ByteString> pbKeys) {
+    MemcacheNearCache nearCache = MemcacheNearCache.getInstance();
+    if (nearCache == null) {
+      return result;
+    }
+    nearCache.invalidate(namespace, pbKeys);
+    return new FutureWrapper<T, T>(result) {
+      @Override
+      protected T wrap(T value) {
+        nearCache.invalidate(namespace, pbKeys);
+        return value;
+      }
+
+      @Override
+      protected T absorbParentException(Throwable cause) throws Throwable {
+        nearCache.invalidate(namespace, pbKeys);
+        throw cause;
+      }
+
+      @Override
+      protected Throwable convertException(Throwable cause) {
+        return cause;
+      }
+    };
   }
 
   private static class PutResponseTransformer implements Transformer<MemcacheSetResponse, Boolean> {
@@ -908,16 +1106,23 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
       itemIndex++;
     }
 
-    return makeAsyncCall(
-        "Set",
-        requestBuilder.build(),
-        createRpcResponseHandlerForPut(
-            requestBuilder.getItemBuilderList(),
-            requestBuilder.getNameSpace(),
-            MemcacheSetResponse.getDefaultInstance(),
-            "Memcache " + operation + ": Unknown exception setting " + values.size() + " keys",
-            new PutAllResponseTransformer<>(requestedKeys, oversized)),
-        DefaultValueProviders.<T>emptySet());
+    List<ByteString> pbKeys = new ArrayList<>(requestBuilder.getItemCount());
+    for (MemcacheSetRequest.Item.Builder item : requestBuilder.getItemBuilderList()) {
+      pbKeys.add(item.getKey());
+    }
+    return invalidateNearCache(
+        makeAsyncCall(
+            "Set",
+            requestBuilder.build(),
+            createRpcResponseHandlerForPut(
+                requestBuilder.getItemBuilderList(),
+                requestBuilder.getNameSpace(),
+                MemcacheSetResponse.getDefaultInstance(),
+                "Memcache " + operation + ": Unknown exception setting " + values.size() + " keys",
+                new PutAllResponseTransformer<>(requestedKeys, oversized)),
+            DefaultValueProviders.<T>emptySet()),
+        requestBuilder.getNameSpace(),
+        pbKeys);
   }
 
   private static class PutAllResponseTransformer<T>
@@ -1008,19 +1213,22 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
             .setKey(makePbKey(key))
             .setDeleteTime((int) TimeUnit.SECONDS.convert(millisNoReAdd, TimeUnit.MILLISECONDS)))
         .build();
-    return makeAsyncCall(
-        "Delete",
-        request,
-        createRpcResponseHandler(
-            MemcacheDeleteResponse.getDefaultInstance(),
-            "Memcache delete: Unknown exception deleting key: " + key,
-            new Transformer<MemcacheDeleteResponse, Boolean>() {
-              @Override
-              public Boolean transform(MemcacheDeleteResponse response) {
-                return response.getDeleteStatus(0) == DeleteStatusCode.DELETED;
-              }
-            }),
-        DefaultValueProviders.falseValue());
+    return invalidateNearCache(
+        makeAsyncCall(
+            "Delete",
+            request,
+            createRpcResponseHandler(
+                MemcacheDeleteResponse.getDefaultInstance(),
+                "Memcache delete: Unknown exception deleting key: " + key,
+                new Transformer<MemcacheDeleteResponse, Boolean>() {
+                  @Override
+                  public Boolean transform(MemcacheDeleteResponse response) {
+                    return response.getDeleteStatus(0) == DeleteStatusCode.DELETED;
+                  }
+                }),
+            DefaultValueProviders.falseValue()),
+        request.getNameSpace(),
+        Arrays.asList(request.getItem(0).getKey()));
   }
 
   @Override
@@ -1033,20 +1241,26 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
     MemcacheDeleteRequest.Builder requestBuilder =
         MemcacheDeleteRequest.newBuilder().setNameSpace(getEffectiveNamespace());
     List<T> requestedKeys = new ArrayList<T>(keys.size());
+    List<ByteString> pbKeys = new ArrayList<>(keys.size());
     for (T key : keys) {
       requestedKeys.add(key);
+      ByteString pbKey = makePbKey(key);
+      pbKeys.add(pbKey);
       requestBuilder.addItem(MemcacheDeleteRequest.Item.newBuilder()
                                  .setDeleteTime((int) (millisNoReAdd / 1000))
-                                 .setKey(makePbKey(key)));
-    }
-    return makeAsyncCall(
-        "Delete",
-        requestBuilder.build(),
-        createRpcResponseHandler(
-            MemcacheDeleteResponse.getDefaultInstance(),
-            "Memcache deleteAll: Unknown exception deleting multiple keys",
-            new MemcacheDeleteResponseTransformer<>(requestedKeys)),
-        DefaultValueProviders.<T>emptySet());
+                                 .setKey(pbKey));
+    }
+    return invalidateNearCache(
+        makeAsyncCall(
+            "Delete",
+            requestBuilder.build(),
+            createRpcResponseHandler(
+                MemcacheDeleteResponse.getDefaultInstance(),
+                "Memcache deleteAll: Unknown exception deleting multiple keys",
+                new MemcacheDeleteResponseTransformer<>(requestedKeys)),
+            DefaultValueProviders.<T>emptySet()),
+        requestBuilder.getNameSpace(),
+        pbKeys);
   }
 
   private static class MemcacheDeleteResponseTransformer<T>
@@ -1099,11 +1313,14 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
     MemcacheIncrementRequest request = newIncrementRequestBuilder(key, delta, initialValue)
         .setNameSpace(getEffectiveNamespace())
         .build();
-    return makeAsyncCall(
-        "Increment",
-        request,
-        new RpcResponseHandlerForIncrement(key, getErrorHandler()),
-        DefaultValueProviders.<Long>nullValue());
+    return invalidateNearCache(
+        makeAsyncCall(
+            "Increment",
+            request,
+            new RpcResponseHandlerForIncrement(key, getErrorHandler()),
+            DefaultValueProviders.<Long>nullValue()),
+        request.getNameSpace(),
+        Arrays.asList(request.getKey()));
   }
 
   private static class RpcResponseHandlerForIncrement
@@ -1173,10 +1390,13 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
     MemcacheBatchIncrementRequest.Builder requestBuilder =
         MemcacheBatchIncrementRequest.newBuilder().setNameSpace(getEffectiveNamespace());
     final List<T> requestedKeys = new ArrayList<T>(offsets.size());
+    List<ByteString> pbKeys = new ArrayList<>(offsets.size());
     for (Map.Entry<T, Long> entry : offsets.entrySet()) {
       requestedKeys.add(entry.getKey());
-      requestBuilder.addItem(
-          newIncrementRequestBuilder(entry.getKey(), entry.getValue(), initialValue));
+      MemcacheIncrementRequest.Builder itemBuilder =
+          newIncrementRequestBuilder(entry.getKey(), entry.getValue(), initialValue);
+      pbKeys.add(itemBuilder.getKey());
+      requestBuilder.addItem(itemBuilder);
     }
     Provider<Map<T, Long>> defaultValue = new Provider<Map<T, Long>>() {
       @Override
@@ -1184,14 +1404,17 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
         return makeMap(requestedKeys, null);
       }
     };
-    return makeAsyncCall(
-        "BatchIncrement",
-        requestBuilder.build(),
-        createRpcResponseHandler(
-            MemcacheBatchIncrementResponse.getDefaultInstance(),
-            "Memcache incrementAll: exception incrementing multiple keys",
-            new MemcacheBatchIncrementResponseTransformer<>(requestedKeys)),
-        defaultValue);
+    return invalidateNearCache(
+        makeAsyncCall(
+            "BatchIncrement",
+            requestBuilder.build(),
+            createRpcResponseHandler(
+                MemcacheBatchIncrementResponse.getDefaultInstance(),
+                "Memcache incrementAll: exception incrementing multiple keys",
+                new MemcacheBatchIncrementResponseTransformer<>(requestedKeys)),
+            defaultValue),
+        requestBuilder.getNameSpace(),
+        pbKeys);
   }
 
   private static class MemcacheBatchIncrementResponseTransformer<T>
@@ -1220,6 +1443,10 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
 
   @Override
   public Future<Void> clearAll() {
+    MemcacheNearCache nearCache = MemcacheNearCache.getInstance();
+    if (nearCache != null) {
+      nearCache.invalidateAll();
+    }
     return makeAsyncCall(
         "FlushAll",
         MemcacheFlushRequest.getDefaultInstance(),
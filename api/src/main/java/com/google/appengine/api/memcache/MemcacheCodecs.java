@@ -0,0 +1,627 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.memcache;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.ShortBlob;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.memcache.MemcacheSerialization.Codec;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The registry of {@link Codec}s and the framing of {@link MemcacheSerialization.Flag#CODEC}
+ * values.
+ *
+ * <p>A {@code CODEC} value starts with a header byte whose low seven bits are the id of the codec
+ * that encoded the value and whose high bit says whether the rest of the value is compressed. A
+ * compressed value continues with the four-byte length of the uncompressed payload followed by the
+ * payload compressed with {@link Deflater}; an uncompressed value continues with the payload
+ * itself.
+ *
+ * <p>Codec ids below {@link #FIRST_APPLICATION_CODEC_ID} are reserved for the codecs defined here,
+ * including {@link #JAVA_SERIALIZATION_ID}, which is used for plain Java serialization when a value
+ * is only framed so that it can be compressed.
+ *
+ */
+final class MemcacheCodecs {
+  /** The id of Java serialization, which has no {@link Codec} object. */
+  static final int JAVA_SERIALIZATION_ID = 0;
+
+  static final int FIRST_APPLICATION_CODEC_ID = 16;
+  static final int MAX_CODEC_ID = 0x7f;
+
+  private static final int COMPRESSED = 0x80;
+
+  /**
+   * We refuse to inflate values that claim to be larger than this, so that a corrupt length cannot
+   * make us allocate an arbitrary amount of memory.
+   */
+  private static final int MAX_UNCOMPRESSED_LENGTH = 64 * 1024 * 1024;
+
+  private static final AtomicReferenceArray<Codec> codecsById =
+      new AtomicReferenceArray<>(MAX_CODEC_ID + 1);
+
+  /** Application codecs, in registration order, followed by the built-in codecs. */
+  private static final List<Codec> encoders = new CopyOnWriteArrayList<>();
+
+  static {
+    for (Codec codec : ImmutableList.of(
+        new ProtocolMessageCodec(), new EntityCodec(), new CollectionCodec())) {
+      codecsById.set(codec.id(), codec);
+      encoders.add(codec);
+    }
+  }
+
+  private MemcacheCodecs() {
+    // non-instantiable
+  }
+
+  static void register(Codec codec) {
+    int id = codec.id();
+    if (id < FIRST_APPLICATION_CODEC_ID || id > MAX_CODEC_ID) {
+      throw new IllegalArgumentException(
+          "Codec id must be between " + FIRST_APPLICATION_CODEC_ID + " and " + MAX_CODEC_ID
+              + ", got " + id);
+    }
+    if (!codecsById.compareAndSet(id, null, codec)) {
+      throw new IllegalStateException(
+          "Codec id " + id + " is already registered to " + codecsById.get(id));
+    }
+    // Application codecs are tried before the built-in ones, in the order they were registered.
+    synchronized (encoders) {
+      int firstBuiltIn = 0;
+      while (encoders.get(firstBuiltIn).id() >= FIRST_APPLICATION_CODEC_ID) {
+        firstBuiltIn++;
+      }
+      encoders.add(firstBuiltIn, codec);
+    }
+  }
+
+  /** The codecs to try, in order, when serializing a value. */
+  static List<Codec> encoders() {
+    return encoders;
+  }
+
+  /**
+   * Frames a payload produced by the codec with the given id, compressing it if it is larger
+   * than {@code compressionThreshold} bytes and compression makes it smaller.
+   */
+  static byte[] frame(int codecId, byte[] payload, int compressionThreshold) {
+    if (compressionThreshold > 0 && payload.length > compressionThreshold) {
+      byte[] compressed = deflate(payload);
+      if (compressed.length + 4 < payload.length) {
+        byte[] framed = new byte[compressed.length + 5];
+        framed[0] = (byte) (codecId | COMPRESSED);
+        framed[1] = (byte) (payload.length >>> 24);
+        framed[2] = (byte) (payload.length >>> 16);
+        framed[3] = (byte) (payload.length >>> 8);
+        framed[4] = (byte) payload.length;
+        System.arraycopy(compressed, 0, framed, 5, compressed.length);
+        return framed;
+      }
+    }
+    byte[] framed = new byte[payload.length + 1];
+    framed[0] = (byte) codecId;
+    System.arraycopy(payload, 0, framed, 1, payload.length);
+    return framed;
+  }
+
+  /** Returns the id of the codec that produced a framed value. */
+  static int codecId(byte[] framed) throws IOException {
+    if (framed.length == 0) {
+      throw new IOException("Empty codec value");
+    }
+    return framed[0] & MAX_CODEC_ID;
+  }
+
+  /** Returns the payload of a framed value, inflating it if necessary. */
+  static byte[] payload(byte[] framed) throws IOException {
+    if ((framed[0] & COMPRESSED) == 0) {
+      byte[] payload = new byte[framed.length - 1];
+      System.arraycopy(framed, 1, payload, 0, payload.length);
+      return payload;
+    }
+    if (framed.length < 5) {
+      throw new IOException("Truncated compressed codec value");
+    }
+    int length = ((framed[1] & 0xff) << 24) | ((framed[2] & 0xff) << 16)
+        | ((framed[3] & 0xff) << 8) | (framed[4] & 0xff);
+    if (length < 0 || length > MAX_UNCOMPRESSED_LENGTH) {
+      throw new IOException("Bad uncompressed length " + length);
+    }
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(framed, 5, framed.length - 5);
+      byte[] payload = new byte[length];
+      int n = 0;
+      while (n < length && !inflater.finished()) {
+        int inflated = inflater.inflate(payload, n, length - n);
+        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        n += inflated;
+      }
+      if (n == length && !inflater.finished()) {
+        // The output was exactly filled before the end of the stream was seen; check that there is
+        // nothing more to come.
+        n += inflater.inflate(new byte[1]);
+      }
+      if (n != length || !inflater.finished()) {
+        throw new IOException("Compressed codec value does not match its length");
+      }
+      return payload;
+    } catch (DataFormatException ex) {
+      throw new IOException("Corrupt compressed codec value", ex);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /** Returns the codec with the given id, which must not be {@link #JAVA_SERIALIZATION_ID}. */
+  static Codec codecFor(int codecId) throws IOException {
+    Codec codec = codecsById.get(codecId);
+    if (codec == null) {
+      throw new IOException("No memcache codec registered with id " + codecId);
+    }
+    return codec;
+  }
+
+  private static byte[] deflate(byte[] bytes) {
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(bytes);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2);
+      byte[] buffer = new byte[8192];
+      while (!deflater.finished()) {
+        out.write(buffer, 0, deflater.deflate(buffer));
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Loads a class named in a serialized value without initializing it, preferring the thread
+   * context class loader since that is normally the one that can see application classes.
+   */
+  private static Class<?> loadClass(String name) throws ClassNotFoundException {
+    ClassLoader threadClassLoader = Thread.currentThread().getContextClassLoader();
+    if (threadClassLoader != null) {
+      try {
+        return Class.forName(name, false, threadClassLoader);
+      } catch (ClassNotFoundException ex) {
+        // Fall through to our own class loader.
+      }
+    }
+    return Class.forName(name, false, MemcacheCodecs.class.getClassLoader());
+  }
+
+  /**
+   * Returns whether a string has no unpaired surrogates. Other strings do not survive UTF-8, so
+   * values containing them are left to Java serialization, which keeps them intact.
+   */
+  static boolean isWellFormed(String string) {
+    for (int i = 0; i < string.length(); i++) {
+      char c = string.charAt(i);
+      if (Character.isHighSurrogate(c)) {
+        if (i + 1 == string.length() || !Character.isLowSurrogate(string.charAt(i + 1))) {
+          return false;
+        }
+        i++;
+      } else if (Character.isLowSurrogate(c)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Encodes protocol buffer messages as the name of their class followed by their wire format.
+   *
+   * <p>Since decoding a value loads the class that it names, values are only decoded when the
+   * {@value MemcacheSerialization#FAST_SERIALIZATION_PROPERTY} system property is true, and the
+   * class is only initialized once it is known to be a protocol message class.
+   */
+  static final class ProtocolMessageCodec implements Codec {
+    private static final ClassValue<Parser<?>> parsers =
+        new ClassValue<Parser<?>>() {
+          @Override
+          protected Parser<?> computeValue(Class<?> type) {
+            try {
+              return ((MessageLite) type.getMethod("getDefaultInstance").invoke(null))
+                  .getParserForType();
+            } catch (ReflectiveOperationException | ClassCastException ex) {
+              throw new IllegalArgumentException("Not a protocol message class: " + type, ex);
+            }
+          }
+        };
+
+    @Override
+    public int id() {
+      return 1;
+    }
+
+    @Override
+    public byte[] encode(Object value) throws IOException {
+      if (!(value instanceof MessageLite)) {
+        return null;
+      }
+      MessageLite message = (MessageLite) value;
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(message.getSerializedSize() + 64);
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeUTF(value.getClass().getName());
+      message.writeTo(out);
+      out.flush();
+      return bytes.toByteArray();
+    }
+
+    @Override
+    public Object decode(byte[] bytes) throws IOException, ClassNotFoundException {
+      if (!Boolean.getBoolean(MemcacheSerialization.FAST_SERIALIZATION_PROPERTY)) {
+        throw new IOException(
+            "Protocol message values are only read when "
+                + MemcacheSerialization.FAST_SERIALIZATION_PROPERTY
+                + " is true");
+      }
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+      Class<?> type = loadClass(in.readUTF());
+      if (!MessageLite.class.isAssignableFrom(type)) {
+        throw new IOException("Not a protocol message class: " + type.getName());
+      }
+      try {
+        return parsers.get(type).parseFrom(in);
+      } catch (IllegalArgumentException ex) {
+        throw new IOException(ex);
+      }
+    }
+  }
+
+  /**
+   * Encodes datastore entities as their {@code EntityProto}. Only entities whose property values
+   * come back from an {@code EntityProto} with the class they were set with are encoded, so that
+   * for example an {@code Integer} or {@code Float} value does not come back as a {@code Long} or
+   * {@code Double}, and whose strings are {@linkplain MemcacheCodecs#isWellFormed well-formed};
+   * other entities use Java serialization.
+   */
+  static final class EntityCodec implements Codec {
+    private static final ImmutableSet<Class<?>> PROTO_VALUE_CLASSES =
+        ImmutableSet.of(
+            String.class,
+            Long.class,
+            Double.class,
+            Boolean.class,
+            Date.class,
+            Key.class,
+            Blob.class,
+            ShortBlob.class,
+            Text.class,
+            GeoPt.class,
+            BlobKey.class);
+
+    @Override
+    public int id() {
+      return 2;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+      if (value == null || value.getClass() != Entity.class) {
+        return null;
+      }
+      Entity entity = (Entity) value;
+      for (Object property : entity.getProperties().values()) {
+        if (!isProtoValue(property)) {
+          return null;
+        }
+      }
+      return EntityTranslator.convertToPb(entity).toByteArray();
+    }
+
+    /**
+     * Whether a property value comes back from an {@code EntityProto} with the same class. Multiple
+     * values come back as an {@code ArrayList}, and empty ones may not come back at all.
+     */
+    private static boolean isProtoValue(Object value) {
+      if (value == null) {
+        return true;
+      }
+      if (value.getClass() == ArrayList.class) {
+        List<?> values = (List<?>) value;
+        if (values.isEmpty()) {
+          return false;
+        }
+        for (Object element : values) {
+          if (element == null || !isProtoElement(element)) {
+            return false;
+          }
+        }
+        return true;
+      }
+      return isProtoElement(value);
+    }
+
+    private static boolean isProtoElement(Object value) {
+      if (value instanceof String) {
+        return isWellFormed((String) value);
+      } else if (value instanceof Text) {
+        String text = ((Text) value).getValue();
+        return text == null || isWellFormed(text);
+      }
+      return PROTO_VALUE_CLASSES.contains(value.getClass());
+    }
+
+    @Override
+    public Object decode(byte[] bytes) throws IOException {
+      try {
+        return EntityTranslator.createFromPbBytes(bytes);
+      } catch (IllegalArgumentException ex) {
+        throw new IOException(ex);
+      }
+    }
+  }
+
+  /**
+   * A compact encoding for lists, sets and maps of strings, numbers, booleans and byte arrays,
+   * possibly nested. Only the common concrete collection classes and well-formed strings are
+   * handled, so that a value always comes back equal to and with the same class as the value that
+   * was stored.
+   */
+  static final class CollectionCodec implements Codec {
+    private static final int MAX_DEPTH = 32;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte BOOLEAN = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte FLOAT = 6;
+    private static final byte SHORT = 7;
+    private static final byte BYTE = 8;
+    private static final byte BYTES = 9;
+    private static final byte ARRAY_LIST = 10;
+    private static final byte HASH_SET = 11;
+    private static final byte LINKED_HASH_SET = 12;
+    private static final byte HASH_MAP = 13;
+    private static final byte LINKED_HASH_MAP = 14;
+
+    @Override
+    public int id() {
+      return 3;
+    }
+
+    @Override
+    public byte[] encode(Object value) throws IOException {
+      if (containerTag(value) < 0 || !isEncodable(value, 0)) {
+        return null;
+      }
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      write(out, value);
+      out.flush();
+      return bytes.toByteArray();
+    }
+
+    @Override
+    public Object decode(byte[] bytes) throws IOException {
+      return read(new DataInputStream(new ByteArrayInputStream(bytes)), 0);
+    }
+
+    private static int containerTag(Object value) {
+      if (value == null) {
+        return -1;
+      }
+      Class<?> type = value.getClass();
+      if (type == ArrayList.class) {
+        return ARRAY_LIST;
+      } else if (type == HashSet.class) {
+        return HASH_SET;
+      } else if (type == LinkedHashSet.class) {
+        return LINKED_HASH_SET;
+      } else if (type == HashMap.class) {
+        return HASH_MAP;
+      } else if (type == LinkedHashMap.class) {
+        return LINKED_HASH_MAP;
+      }
+      return -1;
+    }
+
+    private static boolean isEncodable(Object value, int depth) {
+      if (value instanceof String) {
+        return isWellFormed((String) value);
+      }
+      if (value == null || value instanceof Integer
+          || value instanceof Long || value instanceof Boolean || value instanceof Double
+          || value instanceof Float || value instanceof Short || value instanceof Byte
+          || value instanceof byte[]) {
+        return true;
+      }
+      if (containerTag(value) < 0 || depth >= MAX_DEPTH) {
+        return false;
+      }
+      if (value instanceof Map) {
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+          if (!isEncodable(entry.getKey(), depth + 1)
+              || !isEncodable(entry.getValue(), depth + 1)) {
+            return false;
+          }
+        }
+        return true;
+      }
+      for (Object element : (Collection<?>) value) {
+        if (!isEncodable(element, depth + 1)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private static void write(DataOutputStream out, Object value) throws IOException {
+      if (value == null) {
+        out.writeByte(NULL);
+      } else if (value instanceof String) {
+        out.writeByte(STRING);
+        writeBytes(out, ((String) value).getBytes(UTF_8));
+      } else if (value instanceof Integer) {
+        out.writeByte(INTEGER);
+        out.writeInt((Integer) value);
+      } else if (value instanceof Long) {
+        out.writeByte(LONG);
+        out.writeLong((Long) value);
+      } else if (value instanceof Boolean) {
+        out.writeByte(BOOLEAN);
+        out.writeBoolean((Boolean) value);
+      } else if (value instanceof Double) {
+        out.writeByte(DOUBLE);
+        out.writeDouble((Double) value);
+      } else if (value instanceof Float) {
+        out.writeByte(FLOAT);
+        out.writeFloat((Float) value);
+      } else if (value instanceof Short) {
+        out.writeByte(SHORT);
+        out.writeShort((Short) value);
+      } else if (value instanceof Byte) {
+        out.writeByte(BYTE);
+        out.writeByte((Byte) value);
+      } else if (value instanceof byte[]) {
+        out.writeByte(BYTES);
+        writeBytes(out, (byte[]) value);
+      } else if (value instanceof Map) {
+        Map<?, ?> map = (Map<?, ?>) value;
+        out.writeByte(containerTag(value));
+        out.writeInt(map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+          write(out, entry.getKey());
+          write(out, entry.getValue());
+        }
+      } else {
+        Collection<?> collection = (Collection<?>) value;
+        out.writeByte(containerTag(value));
+        out.writeInt(collection.size());
+        for (Object element : collection) {
+          write(out, element);
+        }
+      }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+      byte[] bytes = new byte[checkedSize(in.readInt(), in)];
+      in.readFully(bytes);
+      return bytes;
+    }
+
+    /** Rejects sizes that cannot be right, since each element takes at least one byte. */
+    private static int checkedSize(int size, DataInputStream in) throws IOException {
+      if (size < 0 || size > in.available()) {
+        throw new IOException("Bad collection value size " + size);
+      }
+      return size;
+    }
+
+    private static Object read(DataInputStream in, int depth) throws IOException {
+      if (depth > MAX_DEPTH) {
+        throw new IOException("Collection value nested too deeply");
+      }
+      byte tag = in.readByte();
+      switch (tag) {
+        case NULL:
+          return null;
+        case STRING:
+          return new String(readBytes(in), UTF_8);
+        case INTEGER:
+          return in.readInt();
+        case LONG:
+          return in.readLong();
+        case BOOLEAN:
+          return in.readBoolean();
+        case DOUBLE:
+          return in.readDouble();
+        case FLOAT:
+          return in.readFloat();
+        case SHORT:
+          return in.readShort();
+        case BYTE:
+          return in.readByte();
+        case BYTES:
+          return readBytes(in);
+        case ARRAY_LIST:
+        case HASH_SET:
+        case LINKED_HASH_SET:
+          {
+            int size = checkedSize(in.readInt(), in);
+            Collection<Object> collection =
+                (tag == ARRAY_LIST)
+                    ? new ArrayList<>(size)
+                    : (tag == HASH_SET) ? new HashSet<>() : new LinkedHashSet<>();
+            for (int i = 0; i < size; i++) {
+              collection.add(read(in, depth + 1));
+            }
+            return collection;
+          }
+        case HASH_MAP:
+        case LINKED_HASH_MAP:
+          {
+            int size = checkedSize(in.readInt(), in);
+            Map<Object, Object> map = (tag == HASH_MAP) ? new HashMap<>() : new LinkedHashMap<>();
+            for (int i = 0; i < size; i++) {
+              Object key = read(in, depth + 1);
+              map.put(key, read(in, depth + 1));
+            }
+            return map;
+          }
+        default:
+          throw new IOException("Unknown collection value tag " + tag);
+      }
+    }
+  }
+}
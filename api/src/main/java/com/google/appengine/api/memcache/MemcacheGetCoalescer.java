@@ -0,0 +1,221 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.memcache;
+
+import com.google.appengine.api.utils.FutureWrapper;
+import com.google.protobuf.ByteString;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Shares in-flight single-key memcache {@code Get} RPCs between threads of the same instance, so
+ * that concurrent reads of the same hot key result in a single RPC.
+ *
+ * <p>Only plain gets (not for CAS and not for peek) are shared. The shared value is the raw RPC
+ * response, so every caller deserializes its own copy of the cached value and applies its own
+ * {@link ErrorHandler}. An RPC is only shared while it is in flight: once it has completed, the
+ * next get for the same key makes a new RPC, so callers never see a value older than one that was
+ * being fetched when they asked for it.
+ *
+ * <p>The RPC belongs to the request that started it, and is cancelled if that request reaches its
+ * deadline. The other callers then see a cache miss rather than the cancellation.
+ *
+ * <p>Coalescing is enabled by setting the system property {@value #COALESCE_GETS_PROPERTY} to
+ * {@code true}.
+ *
+ */
+final class MemcacheGetCoalescer {
+  /** The name of the system property that enables sharing of in-flight get RPCs. */
+  static final String COALESCE_GETS_PROPERTY = "appengine.api.memcache.coalesceGets";
+
+  /**
+   * Above this many entries we sweep out completed RPCs whose responses have not been picked up,
+   * so that abandoned futures cannot accumulate.
+   */
+  private static final int SWEEP_THRESHOLD = 1000;
+
+  private static final MemcacheGetCoalescer INSTANCE = new MemcacheGetCoalescer();
+
+  private final ConcurrentMap<InFlightKey, Future<byte[]>> inFlight = new ConcurrentHashMap<>();
+  private final AtomicLong sharedGets = new AtomicLong();
+
+  static MemcacheGetCoalescer getInstance() {
+    return INSTANCE;
+  }
+
+  static boolean isEnabled() {
+    return Boolean.getBoolean(COALESCE_GETS_PROPERTY);
+  }
+
+  private static final class InFlightKey {
+    private final String namespace;
+    private final ByteString pbKey;
+
+    InFlightKey(String namespace, ByteString pbKey) {
+      this.namespace = namespace;
+      this.pbKey = pbKey;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof InFlightKey)) {
+        return false;
+      }
+      InFlightKey that = (InFlightKey) o;
+      return namespace.equals(that.namespace) && pbKey.equals(that.pbKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(namespace, pbKey);
+    }
+  }
+
+  /**
+   * Returns the response of a single-key {@code Get} RPC for the given key, joining an RPC that
+   * is already in flight if there is one and otherwise starting a new one with {@code rpc}.
+   */
+  Future<byte[]> get(String namespace, ByteString pbKey, Supplier<Future<byte[]>> rpc) {
+    InFlightKey key = new InFlightKey(namespace, pbKey);
+    Future<byte[]> existing = inFlight.get(key);
+    if (existing != null && !existing.isDone()) {
+      sharedGets.incrementAndGet();
+      return new SharedResponse(key, existing, true);
+    }
+    Future<byte[]> started = rpc.get();
+    // If another thread raced us here, both RPCs go ahead; we just do not share this one.
+    boolean registered =
+        (existing == null)
+            ? inFlight.putIfAbsent(key, started) == null
+            : inFlight.replace(key, existing, started);
+    if (registered && inFlight.size() > SWEEP_THRESHOLD) {
+      inFlight.values().removeIf(Future::isDone);
+    }
+    return registered ? new SharedResponse(key, started, false) : started;
+  }
+
+  /**
+   * Returns the in-flight single-key {@code Get} RPC for the given key, or null if there is none.
+   */
+  Future<byte[]> getInFlight(String namespace, ByteString pbKey) {
+    InFlightKey key = new InFlightKey(namespace, pbKey);
+    Future<byte[]> existing = inFlight.get(key);
+    if (existing == null || existing.isDone()) {
+      return null;
+    }
+    sharedGets.incrementAndGet();
+    return new SharedResponse(key, existing, true);
+  }
+
+  /** The number of gets that were served by joining an RPC made by another caller. */
+  long getSharedGetCount() {
+    return sharedGets.get();
+  }
+
+  /**
+   * One caller's view of a shared RPC. It removes the RPC from the in-flight table once the
+   * response has been seen, and it cannot cancel the RPC on behalf of the other callers. A caller
+   * that joined the RPC sees a miss if the request that started it cancelled it.
+   */
+  private final class SharedResponse extends FutureWrapper<byte[], byte[]> {
+    private final InFlightKey key;
+    private final Future<byte[]> shared;
+
+    SharedResponse(InFlightKey key, Future<byte[]> shared, boolean joined) {
+      super(joined ? new MissIfCancelled(shared) : shared);
+      this.key = key;
+      this.shared = shared;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    @Override
+    protected byte[] wrap(byte[] bytes) {
+      inFlight.remove(key, shared);
+      return bytes;
+    }
+
+    @Override
+    protected byte[] absorbParentException(Throwable cause) throws Throwable {
+      inFlight.remove(key, shared);
+      throw cause;
+    }
+
+    @Override
+    protected Throwable convertException(Throwable cause) {
+      inFlight.remove(key, shared);
+      return cause;
+    }
+  }
+
+  /**
+   * A view of an RPC that returns an empty response, which has no items, if the RPC was cancelled,
+   * and that cannot itself be cancelled.
+   */
+  private static final class MissIfCancelled implements Future<byte[]> {
+    private final Future<byte[]> rpc;
+
+    MissIfCancelled(Future<byte[]> rpc) {
+      this.rpc = rpc;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public boolean isDone() {
+      return rpc.isDone();
+    }
+
+    @Override
+    public byte[] get() throws InterruptedException, ExecutionException {
+      try {
+        return rpc.get();
+      } catch (CancellationException ex) {
+        return new byte[0];
+      }
+    }
+
+    @Override
+    public byte[] get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      try {
+        return rpc.get(timeout, unit);
+      } catch (CancellationException ex) {
+        return new byte[0];
+      }
+    }
+  }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.memcache;
+
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheGetResponse;
+import com.google.protobuf.ByteString;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An optional in-process cache of memcache values, consulted before making a {@code Get} RPC.
+ *
+ * <p>Values are kept in their serialized form, so every hit deserializes a fresh copy just like a
+ * value read from the service. Entries live for at most {@value #TTL_MILLIS_PROPERTY}
+ * milliseconds (one second by default), or less if the {@link Expiration} of the put that
+ * populated them is sooner, and the cache holds at most {@value #MAX_BYTES_PROPERTY} bytes of
+ * keys and values, evicting the least recently used entries first.
+ *
+ * <p>Writes made through this instance ({@code put}, {@code putIfUntouched}, {@code increment},
+ * {@code delete} and {@code clearAll}) invalidate the affected entries when they are issued and
+ * again when their results are read, and a {@code Get} response only populates the cache if no
+ * write to the same stripe of keys has been issued since the {@code Get} was. A successful single
+ * {@code put} caches the value that was stored. Writes from other instances are only reflected
+ * once the entries expire, so the lifetime should be kept short.
+ *
+ * <p>The cache is enabled by setting the system property {@value #MAX_BYTES_PROPERTY} to a
+ * positive number of bytes.
+ *
+ */
+final class MemcacheNearCache {
+  /** The name of the system property that gives the size of the cache in bytes. */
+  static final String MAX_BYTES_PROPERTY = "appengine.api.memcache.nearCacheBytes";
+
+  /** The name of the system property that gives the maximum lifetime of entries. */
+  static final String TTL_MILLIS_PROPERTY = "appengine.api.memcache.nearCacheTtlMillis";
+
+  private static final long DEFAULT_TTL_MILLIS = 1000;
+
+  /** Number of independently versioned stripes of keys. Must be a power of two. */
+  private static final int STRIPES = 64;
+
+  private static volatile MemcacheNearCache instance;
+
+  private final long maxBytes;
+  private final long ttlNanos;
+
+  // Guarded by this.
+  private final LinkedHashMap<CacheKey, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  // Guarded by this.
+  private long bytes;
+
+  private final AtomicLongArray stripeVersions = new AtomicLongArray(STRIPES);
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  MemcacheNearCache(long maxBytes, long ttlMillis) {
+    this.maxBytes = maxBytes;
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+  }
+
+  /**
+   * Returns the near cache configured by the system properties, or null if it is not enabled.
+   * The cache is created when first needed and then shared by all memcache service instances.
+   */
+  static MemcacheNearCache getInstance() {
+    MemcacheNearCache cache = instance;
+    if (cache == null) {
+      long maxBytes = Long.getLong(MAX_BYTES_PROPERTY, 0L);
+      if (maxBytes <= 0) {
+        return null;
+      }
+      synchronized (MemcacheNearCache.class) {
+        cache = instance;
+        if (cache == null) {
+          cache = new MemcacheNearCache(
+              maxBytes, Long.getLong(TTL_MILLIS_PROPERTY, DEFAULT_TTL_MILLIS));
+          instance = cache;
+        }
+      }
+    }
+    return cache;
+  }
+
+  //@VisibleForTesting
+  static synchronized void resetInstance() {
+    instance = null;
+  }
+
+  private static final class CacheKey {
+    private final String namespace;
+    private final ByteString pbKey;
+
+    CacheKey(String namespace, ByteString pbKey) {
+      this.namespace = namespace;
+      this.pbKey = pbKey;
+    }
+
+    int stripe() {
+      return hashCode() & (STRIPES - 1);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof CacheKey)) {
+        return false;
+      }
+      CacheKey that = (CacheKey) o;
+      return namespace.equals(that.namespace) && pbKey.equals(that.pbKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(namespace, pbKey);
+    }
+  }
+
+  private static final class Entry {
+    final MemcacheGetResponse.Item item;
+    final long expiresAtNanos;
+    final int size;
+
+    Entry(MemcacheGetResponse.Item item, long expiresAtNanos) {
+      this.item = item;
+      this.expiresAtNanos = expiresAtNanos;
+      this.size = item.getKey().size() + item.getValue().size();
+    }
+  }
+
+  /**
+   * Returns a version stamp to be passed to {@link #fill} for a value that is about to be fetched
+   * for {@code pbKey}.
+   */
+  long version(String namespace, ByteString pbKey) {
+    return stripeVersions.get(new CacheKey(namespace, pbKey).stripe());
+  }
+
+  /** Returns the cached item for the key, or null if it is not cached or has expired. */
+  MemcacheGetResponse.Item lookup(String namespace, ByteString pbKey) {
+    CacheKey key = new CacheKey(namespace, pbKey);
+    synchronized (this) {
+      Entry entry = entries.get(key);
+      if (entry != null) {
+        if (System.nanoTime() - entry.expiresAtNanos < 0) {
+          hits.incrementAndGet();
+          return entry.item;
+        }
+        removeEntry(key);
+      }
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Caches a value read from the service for at most the configured lifetime, unless the key has
+   * been written to since {@code version} was obtained.
+   */
+  void fill(String namespace, ByteString pbKey, ByteString value, int flags, long version) {
+    CacheKey key = new CacheKey(namespace, pbKey);
+    Entry entry = newEntry(pbKey, value, flags, ttlNanos);
+    if (entry == null) {
+      return;
+    }
+    synchronized (this) {
+      // Checked under the lock so that an invalidation cannot slip in between check and insert.
+      if (stripeVersions.get(key.stripe()) == version) {
+        insert(key, entry);
+      }
+    }
+  }
+
+  /**
+   * Caches a value that has just been stored by this instance, for at most the configured
+   * lifetime or until {@code expires} if that is sooner. Reads that were in flight when the value
+   * was stored can no longer populate the cache.
+   */
+  void store(String namespace, ByteString pbKey, ByteString value, int flags, Expiration expires) {
+    CacheKey key = new CacheKey(namespace, pbKey);
+    long lifetimeNanos = ttlNanos;
+    if (expires != null) {
+      long untilExpiry = expires.getMillisecondsValue() - System.currentTimeMillis();
+      lifetimeNanos = Math.min(lifetimeNanos, TimeUnit.MILLISECONDS.toNanos(untilExpiry));
+    }
+    Entry entry = newEntry(pbKey, value, flags, lifetimeNanos);
+    synchronized (this) {
+      stripeVersions.incrementAndGet(key.stripe());
+      if (entry == null) {
+        removeEntry(key);
+      } else {
+        insert(key, entry);
+      }
+    }
+  }
+
+  private Entry newEntry(ByteString pbKey, ByteString value, int flags, long lifetimeNanos) {
+    if (lifetimeNanos <= 0) {
+      return null;
+    }
+    MemcacheGetResponse.Item item =
+        MemcacheGetResponse.Item.newBuilder().setKey(pbKey).setValue(value).setFlags(flags).build();
+    Entry entry = new Entry(item, System.nanoTime() + lifetimeNanos);
+    return (entry.size > maxBytes) ? null : entry;
+  }
+
+  // Guarded by this.
+  private void insert(CacheKey key, Entry entry) {
+    Entry old = entries.put(key, entry);
+    if (old != null) {
+      bytes -= old.size;
+    }
+    bytes += entry.size;
+    Iterator<Map.Entry<CacheKey, Entry>> it = entries.entrySet().iterator();
+    while (bytes > maxBytes && it.hasNext()) {
+      Map.Entry<CacheKey, Entry> eldest = it.next();
+      bytes -= eldest.getValue().size;
+      it.remove();
+      evictions.incrementAndGet();
+    }
+  }
+
+  /** Removes the keys from the cache and prevents in-flight reads from repopulating them. */
+  void invalidate(String namespace, Iterable<ByteString> pbKeys) {
+    synchronized (this) {
+      for (ByteString pbKey : pbKeys) {
+        CacheKey key = new CacheKey(namespace, pbKey);
+        stripeVersions.incrementAndGet(key.stripe());
+        removeEntry(key);
+      }
+    }
+  }
+
+  /** Empties the cache and prevents in-flight reads from repopulating it. */
+  synchronized void invalidateAll() {
+    for (int i = 0; i < STRIPES; i++) {
+      stripeVersions.incrementAndGet(i);
+    }
+    entries.clear();
+    bytes = 0;
+  }
+
+  // Guarded by this.
+  private void removeEntry(CacheKey key) {
+    Entry removed = entries.remove(key);
+    if (removed != null) {
+      bytes -= removed.size;
+    }
+  }
+
+  long getHitCount() {
+    return hits.get();
+  }
+
+  long getMissCount() {
+    return misses.get();
+  }
+
+  long getEvictionCount() {
+    return evictions.get();
+  }
+
+  synchronized long getItemCount() {
+    return entries.size();
+  }
+
+  synchronized long getTotalItemBytes() {
+    return bytes;
+  }
+}
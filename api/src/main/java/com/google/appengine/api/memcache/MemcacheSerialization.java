@@ -56,7 +56,8 @@ public class MemcacheSerialization {
     LONG,    // python TYPE_LONG
     BOOLEAN,  // python TYPE_BOOL
     BYTE,
-    SHORT;
+    SHORT,
+    CODEC;   // encoded by a MemcacheSerialization.Codec, possibly compressed
 
     private static final Flag[] VALUES = Flag.values();
 
@@ -86,6 +87,53 @@ public class MemcacheSerialization {
     }
   }
 
+  /**
+   * A fast encoding for some kinds of values that would otherwise be stored with Java
+   * serialization. Codecs are only used for serializing values when the system property {@value
+   * #FAST_SERIALIZATION_PROPERTY} is {@code true}, but values written by a codec can always be
+   * read back as long as the same codec is registered, except protocol buffer messages: reading one
+   * loads the class named in the cached value, so they are only read while the property is {@code
+   * true}. Values written with a codec are stored with {@link Flag#CODEC}, so they cannot be read
+   * by older versions of this API.
+   *
+   * <p>Implementations must be thread-safe.
+   */
+  public interface Codec {
+    /**
+     * A number between 16 and 127 that identifies this codec in stored values. Numbers below 16
+     * are reserved for the codecs that are built into the API. The id of a codec must not change
+     * while there may still be values in memcache that it wrote.
+     */
+    int id();
+
+    /**
+     * Encodes the value, or returns null if this codec does not handle values like it.
+     */
+    byte[] encode(Object value) throws IOException;
+
+    /** Decodes a value that was encoded by {@link #encode}. */
+    Object decode(byte[] bytes) throws IOException, ClassNotFoundException;
+  }
+
+  /**
+   * The name of the system property that enables the use of codecs, rather than Java
+   * serialization, for the values that they handle. Besides any registered with {@link
+   * #registerCodec}, there are built-in codecs for protocol buffer messages, datastore {@code
+   * Entity} objects, and {@code ArrayList}, {@code HashSet}, {@code LinkedHashSet}, {@code HashMap}
+   * and {@code LinkedHashMap} objects containing strings, numbers, booleans, byte arrays and
+   * other such collections.
+   */
+  public static final String FAST_SERIALIZATION_PROPERTY =
+      "appengine.api.memcache.fastSerialization";
+
+  /**
+   * The name of the system property that gives the size in bytes above which object values are
+   * compressed. Values of the basic types (strings, byte arrays, numbers and booleans) are never
+   * compressed. Compressed values are stored with {@link Flag#CODEC}.
+   */
+  public static final String COMPRESSION_THRESHOLD_PROPERTY =
+      "appengine.api.memcache.compressionThreshold";
+
   /** Limit determined by memcache backend. */
   static final int MAX_KEY_BYTE_COUNT = 250;
 
@@ -124,6 +172,18 @@ public class MemcacheSerialization {
     // non-instantiable
   }
 
+  /**
+   * Registers a codec to be used for the values it handles. Codecs registered by the application
+   * are tried in registration order, before the built-in codecs.
+   *
+   * @throws IllegalArgumentException if the codec's id is outside the range allowed for
+   *     application codecs
+   * @throws IllegalStateException if a codec with the same id is already registered
+   */
+  public static void registerCodec(Codec codec) {
+    MemcacheCodecs.register(codec);
+  }
+
   /**
    * Deserialize the object, according to its flags.  This would have private
    * visibility, but is also used by LocalMemcacheService for the increment
@@ -179,45 +239,15 @@ public class MemcacheSerialization {
         return new String(value, UTF_8);
 
       case OBJECT:
-        if (value.length == 0) {
-          return null;
-        }
-        ByteArrayInputStream baos = new ByteArrayInputStream(value);
-
-        ObjectInputStream objIn = null;
-        if (UseThreadContextClassLoaderHolder.INSTANCE) {
-          objIn = new ObjectInputStream(baos) {
-            // If there are more user-defined class loaders, the default class loader by
-            // ObjectInputStream might not be enough. For example, in Jetty, there are two
-            // user-defined class loaders, i.e. startJarLoader (the parent) and WebAppClassLoader
-            // (the child). startJarLoader normally loads this class, and WebAppClassLoader
-            // normally loads application classes. When an application object is serialized,
-            // startJarLoader will load this class and WebAppClassLoader will the application
-            // class. However, when the application object is deserialized, startJarLoader will
-            // be unfortunately used according to the logic of ObjectInputStream. This will cause
-            // ClassNotFoundException because startJarLoader could not find the application class.
-            @Override
-            protected Class<?> resolveClass(ObjectStreamClass objectStreamClass)
-                throws ClassNotFoundException, IOException {
-              ClassLoader threadClassLoader = Thread.currentThread().getContextClassLoader();
-              if (threadClassLoader == null) {
-                return super.resolveClass(objectStreamClass);
-              }
-
-              try {
-                return Class.forName(objectStreamClass.getName(), false, threadClassLoader);
-              } catch (ClassNotFoundException ex) {
-                return super.resolveClass(objectStreamClass);
-              }
-            }
-          };
-        } else {
-          objIn = new ObjectInputStream(baos);
-        }
+        return deserializeObject(value);
 
-        Object response = objIn.readObject();
-        objIn.close();
-        return response;
+      case CODEC:
+        int codecId = MemcacheCodecs.codecId(value);
+        byte[] payload = MemcacheCodecs.payload(value);
+        if (codecId == MemcacheCodecs.JAVA_SERIALIZATION_ID) {
+          return deserializeObject(payload);
+        }
+        return MemcacheCodecs.codecFor(codecId).decode(payload);
 
       default:
         assert false;
@@ -225,6 +255,49 @@ public class MemcacheSerialization {
     return null;
   }
 
+  private static Object deserializeObject(byte[] value)
+      throws ClassNotFoundException, IOException {
+    if (value.length == 0) {
+      return null;
+    }
+    ByteArrayInputStream baos = new ByteArrayInputStream(value);
+
+    ObjectInputStream objIn = null;
+    if (UseThreadContextClassLoaderHolder.INSTANCE) {
+      objIn = new ObjectInputStream(baos) {
+        // If there are more user-defined class loaders, the default class loader by
+        // ObjectInputStream might not be enough. For example, in Jetty, there are two
+        // user-defined class loaders, i.e. startJarLoader (the parent) and WebAppClassLoader
+        // (the child). startJarLoader normally loads this class, and WebAppClassLoader
+        // normally loads application classes. When an application object is serialized,
+        // startJarLoader will load this class and WebAppClassLoader will the application
+        // class. However, when the application object is deserialized, startJarLoader will
+        // be unfortunately used according to the logic of ObjectInputStream. This will cause
+        // ClassNotFoundException because startJarLoader could not find the application class.
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass objectStreamClass)
+            throws ClassNotFoundException, IOException {
+          ClassLoader threadClassLoader = Thread.currentThread().getContextClassLoader();
+          if (threadClassLoader == null) {
+            return super.resolveClass(objectStreamClass);
+          }
+
+          try {
+            return Class.forName(objectStreamClass.getName(), false, threadClassLoader);
+          } catch (ClassNotFoundException ex) {
+            return super.resolveClass(objectStreamClass);
+          }
+        }
+      };
+    } else {
+      objIn = new ObjectInputStream(baos);
+    }
+
+    Object response = objIn.readObject();
+    objIn.close();
+    return response;
+  }
+
   private static boolean noEmbeddedNulls(byte[] key) {
     return !Bytes.contains(key, (byte) 0);
   }
@@ -284,7 +357,9 @@ public class MemcacheSerialization {
   }
 
   private static final byte[] hash(Object key) throws IOException {
-    ValueAndFlags vaf = serialize(key);
+    // Keys are always hashed from their Java serialization, so that they do not depend on which
+    // codecs are enabled.
+    ValueAndFlags vaf = serialize(key, /* useCodecs= */ false);
     MessageDigest md;
     try {
       md = (MessageDigest) sha1Prototype.clone();
@@ -307,6 +382,11 @@ public class MemcacheSerialization {
    */
   public static ValueAndFlags serialize(Object value)
       throws IOException {
+    return serialize(value, /* useCodecs= */ true);
+  }
+
+  private static ValueAndFlags serialize(Object value, boolean useCodecs)
+      throws IOException {
     Flag flags;
     byte[] bytes;
 
@@ -342,13 +422,12 @@ public class MemcacheSerialization {
       flags = Flag.UTF8;
       bytes = ((String) value).getBytes(UTF_8);
 
+    } else if (useCodecs) {
+      return serializeObject(value);
+
     } else if (value instanceof Serializable) {
       flags = Flag.OBJECT;
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      ObjectOutputStream objOut = new ObjectOutputStream(baos);
-      objOut.writeObject(value);
-      objOut.close();
-      bytes = baos.toByteArray();
+      bytes = javaSerialize(value);
 
     } else {
       throw new IllegalArgumentException("can't accept " + value.getClass()
@@ -356,4 +435,45 @@ public class MemcacheSerialization {
     }
     return new ValueAndFlags(bytes, flags);
   }
+
+  /**
+   * Serializes a value that is not of one of the basic types, with a codec if codecs are enabled
+   * and one handles the value, and otherwise with Java serialization. The result is compressed if
+   * it is above the compression threshold.
+   */
+  private static ValueAndFlags serializeObject(Object value) throws IOException {
+    int codecId = MemcacheCodecs.JAVA_SERIALIZATION_ID;
+    byte[] bytes = null;
+    if (Boolean.getBoolean(FAST_SERIALIZATION_PROPERTY)) {
+      for (Codec codec : MemcacheCodecs.encoders()) {
+        bytes = codec.encode(value);
+        if (bytes != null) {
+          codecId = codec.id();
+          break;
+        }
+      }
+    }
+    if (bytes == null) {
+      if (!(value instanceof Serializable)) {
+        throw new IllegalArgumentException("can't accept " + value.getClass()
+            + " as a memcache entity");
+      }
+      bytes = javaSerialize(value);
+    }
+    int compressionThreshold = Integer.getInteger(COMPRESSION_THRESHOLD_PROPERTY, 0);
+    if (codecId == MemcacheCodecs.JAVA_SERIALIZATION_ID
+        && (compressionThreshold <= 0 || bytes.length <= compressionThreshold)) {
+      return new ValueAndFlags(bytes, Flag.OBJECT);
+    }
+    return new ValueAndFlags(
+        MemcacheCodecs.frame(codecId, bytes, compressionThreshold), Flag.CODEC);
+  }
+
+  private static byte[] javaSerialize(Object value) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ObjectOutputStream objOut = new ObjectOutputStream(baos);
+    objOut.writeObject(value);
+    objOut.close();
+    return baos.toByteArray();
+  }
 }
@@ -125,6 +125,15 @@ class MemcacheServiceApiHelper {
   static <M extends Message, T> Future<T> makeAsyncCall(String methodName, Message request,
       final RpcResponseHandler<M, T> responseHandler, final Provider<T> defaultValue) {
     Future<byte[]> asyncResp = ApiProxy.makeAsyncCall(PACKAGE, methodName, request.toByteArray());
+    return wrapAsyncResponse(asyncResp, responseHandler, defaultValue);
+  }
+
+  /**
+   * Apply standard exception handling and response conversion to the response of an rpc
+   * against the memcache package that has already been issued.
+   */
+  static <M extends Message, T> Future<T> wrapAsyncResponse(Future<byte[]> asyncResp,
+      final RpcResponseHandler<M, T> responseHandler, final Provider<T> defaultValue) {
     return new FutureWrapper<byte[], T>(asyncResp) {
 
       @Override
@@ -52,4 +52,30 @@ public interface Stats {
    * Milliseconds since last access of least-recently-used live entry.
    */
   int getMaxTimeWithoutAccess();
+
+  /**
+   * The counter of {@link MemcacheService#get(Object)} or {@link MemcacheService#contains(Object)}
+   * operations that were answered by this instance's in-process near cache without calling the
+   * service. Always 0 unless the near cache is enabled with the system property {@code
+   * appengine.api.memcache.nearCacheBytes}.
+   */
+  default long getNearCacheHitCount() {
+    return 0;
+  }
+
+  /**
+   * The counter of {@link MemcacheService#get(Object)} or {@link MemcacheService#contains(Object)}
+   * operations that were looked up in this instance's near cache and had to call the service.
+   */
+  default long getNearCacheMissCount() {
+    return 0;
+  }
+
+  /**
+   * The number of entries that were removed from this instance's near cache to keep it within its
+   * size limit.
+   */
+  default long getNearCacheEvictionCount() {
+    return 0;
+  }
 }
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.datastore;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Builds the keys and entities that the benchmarks work on. The entities are modeled on what
+ * applications commonly store, and are the same from one run to the next so that runs can be
+ * compared.
+ *
+ * <p>The keys are created with an explicit app ID, so that no {@code ApiProxy} environment is
+ * needed to run the benchmarks.
+ */
+public final class BenchmarkEntities {
+
+  /** The shapes of entity that the benchmarks are run with. */
+  public enum Shape {
+    /** A handful of short indexed properties, like a user profile. About 200 bytes. */
+    SMALL,
+    /**
+     * A typical business record: about 25 properties of mixed types, with a list, a 1KB text, a
+     * reference to another entity and an embedded entity. About 2KB.
+     */
+    MEDIUM,
+    /**
+     * An entity at the large end of what is commonly stored: a MEDIUM entity with 80 more string
+     * properties, a 500 element list, a 64KB text and a 16KB blob. About 90KB.
+     */
+    LARGE
+  }
+
+  static final AppIdNamespace APP_ID_NAMESPACE = new AppIdNamespace("s~benchmark-app", "");
+
+  private static final long CREATED_MILLIS = 1_700_000_000_000L;
+
+  private BenchmarkEntities() {}
+
+  /** Returns a root key with a numeric ID. */
+  public static Key rootKey(String kind, long id) {
+    return new Key(kind, null, id, APP_ID_NAMESPACE);
+  }
+
+  /** Returns a key three levels deep, mixing numeric IDs and names, in the given namespace. */
+  public static Key nestedKey(String namespace, long id) {
+    AppIdNamespace appIdNamespace = new AppIdNamespace(APP_ID_NAMESPACE.getAppId(), namespace);
+    Key customer = new Key("Customer", null, 4_815_162_342L, appIdNamespace);
+    Key order = new Key("Order", customer, "order-2024-06-30-" + id, appIdNamespace);
+    return new Key("LineItem", order, id, appIdNamespace);
+  }
+
+  /** Returns an entity of the given shape. Entities with different IDs have different values. */
+  public static Entity entity(Shape shape, long id) {
+    Random random = new Random(id);
+    switch (shape) {
+      case SMALL:
+        return smallEntity(random, id);
+      case MEDIUM:
+        return mediumEntity(random, id);
+      case LARGE:
+        return largeEntity(random, id);
+    }
+    throw new AssertionError(shape);
+  }
+
+  private static Entity smallEntity(Random random, long id) {
+    Entity entity = new Entity(rootKey("User", id));
+    entity.setProperty("name", randomString(random, 12));
+    entity.setProperty("email", new Email(randomString(random, 10) + "@example.com"));
+    entity.setProperty("created", new Date(CREATED_MILLIS + id));
+    entity.setProperty("active", random.nextBoolean());
+    entity.setProperty("loginCount", (long) random.nextInt(1000));
+    entity.setProperty("score", random.nextDouble());
+    return entity;
+  }
+
+  private static Entity mediumEntity(Random random, long id) {
+    Key customer = rootKey("Customer", id / 10 + 1);
+    Entity entity = new Entity(new Key("Order", customer, id, APP_ID_NAMESPACE));
+    entity.setPropertiesFrom(smallEntity(random, id));
+    entity.setProperty("status", "SHIPPED");
+    entity.setProperty("customer", customer);
+    entity.setProperty("location", new GeoPt(random.nextFloat() * 90, random.nextFloat() * 180));
+    entity.setProperty("website", new Link("https://example.com/" + randomString(random, 20)));
+    List<String> tags = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      tags.add(randomString(random, 8));
+    }
+    entity.setProperty("tags", tags);
+    for (int i = 0; i < 10; i++) {
+      entity.setProperty("amount" + i, random.nextLong());
+    }
+    entity.setProperty("description", new Text(randomString(random, 1024)));
+    entity.setUnindexedProperty("thumbnail", new ShortBlob(randomBytes(random, 200)));
+
+    EmbeddedEntity address = new EmbeddedEntity();
+    address.setProperty("street", randomString(random, 24));
+    address.setProperty("city", randomString(random, 12));
+    address.setProperty("region", randomString(random, 2));
+    address.setProperty("postalCode", randomString(random, 5));
+    address.setProperty("country", "US");
+    entity.setProperty("shippingAddress", address);
+    return entity;
+  }
+
+  private static Entity largeEntity(Random random, long id) {
+    Entity entity = mediumEntity(random, id);
+    for (int i = 0; i < 80; i++) {
+      entity.setProperty("attribute" + i, randomString(random, 20));
+    }
+    List<Long> history = new ArrayList<>();
+    for (int i = 0; i < 500; i++) {
+      history.add(CREATED_MILLIS + random.nextInt());
+    }
+    entity.setProperty("history", history);
+    entity.setProperty("body", new Text(randomString(random, 64 * 1024)));
+    entity.setProperty("attachment", new Blob(randomBytes(random, 16 * 1024)));
+    return entity;
+  }
+
+  /** Returns a string of lowercase letters and digits. */
+  public static String randomString(Random random, int length) {
+    char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      int c = random.nextInt(36);
+      chars[i] = (char) (c < 26 ? 'a' + c : '0' + c - 26);
+    }
+    return new String(chars);
+  }
+
+  /** Returns random bytes. */
+  public static byte[] randomBytes(Random random, int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+}
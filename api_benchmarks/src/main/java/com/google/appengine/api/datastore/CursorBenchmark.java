@@ -0,0 +1,88 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.datastore;
+
+import com.google.appengine.api.datastore.BenchmarkEntities.Shape;
+import com.google.apphosting.datastore.DatastoreV3Pb.CompiledCursor;
+import com.google.storage.onestore.v3.OnestoreEntity.EntityProto;
+import com.google.storage.onestore.v3.OnestoreEntity.IndexPostfix;
+import com.google.storage.onestore.v3.OnestoreEntity.Property;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the web safe encoding of query cursors, which applications do to page through query
+ * results across requests.
+ *
+ * <p>The cursors hold the position after an entity in the results of a query, like the cursors
+ * the datastore returns: the key of the entity and its values of the properties the query is
+ * sorted by.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CursorBenchmark {
+
+  private static final List<String> SORT_PROPERTIES = Arrays.asList("created", "status", "score");
+
+  /** The number of properties the query is sorted by. */
+  @Param({"0", "1", "3"})
+  public int sortProperties;
+
+  private Cursor cursor;
+  private String encodedCursor;
+
+  @Setup
+  public void setUp() {
+    EntityProto entity = EntityTranslator.convertToPb(BenchmarkEntities.entity(Shape.MEDIUM, 42));
+    IndexPostfix position = new IndexPostfix().setKey(entity.getKey()).setBefore(false);
+    for (String name : SORT_PROPERTIES.subList(0, sortProperties)) {
+      for (Property property : entity.propertys()) {
+        if (property.getName().equals(name)) {
+          position.addIndexValue().setPropertyName(name).setValue(property.getValue());
+        }
+      }
+    }
+    cursor = new Cursor(new CompiledCursor().setPostfixPosition(position).toByteString());
+    encodedCursor = cursor.toWebSafeString();
+  }
+
+  @Benchmark
+  public String toWebSafeString() {
+    return cursor.toWebSafeString();
+  }
+
+  @Benchmark
+  public Cursor fromWebSafeString() {
+    return Cursor.fromWebSafeString(encodedCursor);
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.datastore;
+
+import com.google.appengine.api.datastore.BenchmarkEntities.Shape;
+import com.google.storage.onestore.v3.OnestoreEntity.EntityProto;
+import com.google.storage.onestore.v3.OnestoreEntity.Property;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks the conversion of property values to and from their protocol buffer form, without
+ * the cost of the key and of creating the entity that {@link EntityTranslatorBenchmark} includes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DataTypeTranslatorBenchmark {
+
+  @Param({"SMALL", "MEDIUM", "LARGE"})
+  public Shape shape;
+
+  private Map<String, ?> properties;
+  private EntityProto proto;
+  private List<Property> indexedProperties;
+
+  @Setup
+  public void setUp() {
+    Entity entity = BenchmarkEntities.entity(shape, 42);
+    properties = entity.getPropertyMap();
+    proto = EntityTranslator.convertToPb(entity);
+    indexedProperties = proto.propertys();
+  }
+
+  /** Adds the properties of an entity to a protocol buffer. */
+  @Benchmark
+  public EntityProto addPropertiesToPb() {
+    EntityProto result = new EntityProto();
+    DataTypeTranslator.addPropertiesToPb(properties, result);
+    return result;
+  }
+
+  /** Reads the properties of a protocol buffer into a map. */
+  @Benchmark
+  public Map<String, Object> extractPropertiesFromPb() {
+    Map<String, Object> result = new HashMap<>();
+    DataTypeTranslator.extractPropertiesFromPb(proto, result);
+    return result;
+  }
+
+  /** Finds the comparable value of each indexed property, as done to filter and sort entities. */
+  @Benchmark
+  public void getComparablePropertyValue(Blackhole blackhole) {
+    for (Property property : indexedProperties) {
+      blackhole.consume(DataTypeTranslator.getComparablePropertyValue(property));
+    }
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.datastore;
+
+import com.google.appengine.api.datastore.BenchmarkEntities.Shape;
+import com.google.storage.onestore.v3.OnestoreEntity.EntityProto;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the conversion of whole entities to and from the protocol buffers that are sent to
+ * the datastore, as done for every put and for every entity a get or a query returns.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EntityTranslatorBenchmark {
+
+  @Param({"SMALL", "MEDIUM", "LARGE"})
+  public Shape shape;
+
+  private Entity entity;
+  private EntityProto proto;
+  private byte[] protoBytes;
+
+  @Setup
+  public void setUp() {
+    entity = BenchmarkEntities.entity(shape, 42);
+    proto = EntityTranslator.convertToPb(entity);
+    protoBytes = proto.toByteArray();
+  }
+
+  /** Converts an entity to the protocol buffer that a put sends. */
+  @Benchmark
+  public EntityProto convertToPb() {
+    return EntityTranslator.convertToPb(entity);
+  }
+
+  /** Converts an entity and serializes it, which is the full cost of an entity in a put. */
+  @Benchmark
+  public byte[] convertToPbBytes() {
+    return EntityTranslator.convertToPb(entity).toByteArray();
+  }
+
+  /** Converts a parsed protocol buffer, as returned by a get, to an entity. */
+  @Benchmark
+  public Entity createFromPb() {
+    return EntityTranslator.createFromPb(proto);
+  }
+
+  /** Parses and converts a serialized entity, which is the full cost of an entity in a get. */
+  @Benchmark
+  public Entity createFromPbBytes() {
+    return EntityTranslator.createFromPbBytes(protoBytes);
+  }
+}
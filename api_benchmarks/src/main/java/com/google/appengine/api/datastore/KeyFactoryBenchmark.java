@@ -0,0 +1,69 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.datastore;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the web safe encoding of keys, which applications commonly do for every key they put
+ * in a URL or a page.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KeyFactoryBenchmark {
+
+  /** A root key, or a key three levels deep in a namespace. */
+  @Param({"ROOT", "NESTED"})
+  public String keyShape;
+
+  private Key key;
+  private String encodedKey;
+
+  @Setup
+  public void setUp() {
+    key =
+        keyShape.equals("ROOT")
+            ? BenchmarkEntities.rootKey("User", 5_629_499_534_213_120L)
+            : BenchmarkEntities.nestedKey("tenant-17", 7);
+    encodedKey = KeyFactory.keyToString(key);
+  }
+
+  @Benchmark
+  public String keyToString() {
+    return KeyFactory.keyToString(key);
+  }
+
+  @Benchmark
+  public Key stringToKey() {
+    return KeyFactory.stringToKey(encodedKey);
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.memcache;
+
+import com.google.appengine.api.datastore.BenchmarkEntities;
+import com.google.appengine.api.datastore.BenchmarkEntities.Shape;
+import com.google.appengine.api.memcache.MemcacheSerialization.ValueAndFlags;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the serialization of keys and values that every memcache call does, for the kinds of
+ * value that applications commonly cache.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MemcacheSerializationBenchmark {
+
+  /**
+   * The value cached: a 100 character string, a 10KB byte array, a long, a map of 20 mixed values
+   * such as a cached page model, or a medium sized datastore entity.
+   */
+  @Param({"STRING", "BYTES", "LONG", "MAP", "ENTITY"})
+  public String valueType;
+
+  /** Whether values that are not of a basic type are written with the fast codecs. */
+  @Param({"false", "true"})
+  public boolean fastSerialization;
+
+  private Object value;
+  private ValueAndFlags serialized;
+  private String key;
+
+  @Setup
+  public void setUp() throws IOException {
+    System.setProperty(
+        MemcacheSerialization.FAST_SERIALIZATION_PROPERTY, String.valueOf(fastSerialization));
+    Random random = new Random(42);
+    switch (valueType) {
+      case "STRING":
+        value = BenchmarkEntities.randomString(random, 100);
+        break;
+      case "BYTES":
+        value = BenchmarkEntities.randomBytes(random, 10 * 1024);
+        break;
+      case "LONG":
+        value = random.nextLong();
+        break;
+      case "MAP":
+        value = pageModel(random);
+        break;
+      case "ENTITY":
+        value = BenchmarkEntities.entity(Shape.MEDIUM, 42);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown value type " + valueType);
+    }
+    serialized = MemcacheSerialization.serialize(value);
+    key = "page-model:/catalog/" + BenchmarkEntities.randomString(random, 24);
+  }
+
+  @TearDown
+  public void tearDown() {
+    System.clearProperty(MemcacheSerialization.FAST_SERIALIZATION_PROPERTY);
+  }
+
+  @Benchmark
+  public ValueAndFlags serialize() throws IOException {
+    return MemcacheSerialization.serialize(value);
+  }
+
+  @Benchmark
+  public Object deserialize() throws IOException, ClassNotFoundException {
+    return MemcacheSerialization.deserialize(serialized.value, serialized.flags.ordinal());
+  }
+
+  /** Converts a typical string key to the form sent to memcache. */
+  @Benchmark
+  public byte[] makePbKey() throws IOException {
+    return MemcacheSerialization.makePbKey(key);
+  }
+
+  private static Map<String, Object> pageModel(Random random) {
+    Map<String, Object> model = new HashMap<>();
+    for (int i = 0; i < 10; i++) {
+      model.put("title" + i, BenchmarkEntities.randomString(random, 40));
+    }
+    for (int i = 0; i < 5; i++) {
+      model.put("count" + i, (long) random.nextInt(100_000));
+    }
+    List<String> items = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      items.add(BenchmarkEntities.randomString(random, 16));
+    }
+    model.put("items", items);
+    model.put("published", true);
+    model.put("rating", random.nextDouble());
+    model.put("etag", BenchmarkEntities.randomBytes(random, 16));
+    model.put("author", BenchmarkEntities.randomString(random, 12));
+    return model;
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.taskqueue;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.appengine.api.datastore.BenchmarkEntities;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks building the payload of a task, in the ways applications commonly do: from form
+ * parameters, from a JSON document, and from a {@link DeferredTask}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TaskOptionsBenchmark {
+
+  /** A deferred task that carries the IDs of a batch of entities to process. */
+  private static final class ProcessBatch implements DeferredTask {
+    private static final long serialVersionUID = 1L;
+
+    private final String kind;
+    private final List<Long> ids;
+
+    ProcessBatch(String kind, List<Long> ids) {
+      this.kind = kind;
+      this.ids = ids;
+    }
+
+    @Override
+    public void run() {}
+  }
+
+  private final QueueImpl queue = new QueueImpl("default", new QueueApiHelper());
+  private final List<String> paramValues = new ArrayList<>();
+  private byte[] jsonPayload;
+  private ProcessBatch deferredTask;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    for (int i = 0; i < 10; i++) {
+      // Some characters that need to be escaped, as in free text submitted in a form.
+      paramValues.add(BenchmarkEntities.randomString(random, 30) + " & \u00e9/?=");
+    }
+    StringBuilder json = new StringBuilder("{\"items\":[");
+    while (json.length() < 4096) {
+      json.append("{\"id\":").append(random.nextInt()).append(",\"name\":\"");
+      json.append(BenchmarkEntities.randomString(random, 20)).append("\"},");
+    }
+    json.setCharAt(json.length() - 1, ']');
+    jsonPayload = json.append('}').toString().getBytes(UTF_8);
+    List<Long> ids = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      ids.add(random.nextLong());
+    }
+    deferredTask = new ProcessBatch("Order", ids);
+  }
+
+  /** Builds a POST task with ten form parameters, and encodes them into its body. */
+  @Benchmark
+  public byte[] formParams() {
+    TaskOptions options = TaskOptions.Builder.withUrl("/tasks/process").taskName("process-42");
+    for (int i = 0; i < paramValues.size(); i++) {
+      options.param("field" + i, paramValues.get(i));
+    }
+    return queue.encodeParamsPost(options.getParams());
+  }
+
+  /** Builds a task with a 4KB JSON payload. */
+  @Benchmark
+  public TaskOptions jsonPayload() {
+    return TaskOptions.Builder.withUrl("/tasks/import")
+        .payload(jsonPayload, "application/json")
+        .header("X-Request-Id", "0123456789abcdef")
+        .countdownMillis(5_000);
+  }
+
+  /** Builds a task whose payload is a serialized {@link DeferredTask}. */
+  @Benchmark
+  public TaskOptions deferredTaskPayload() {
+    return TaskOptions.Builder.withPayload(deferredTask);
+  }
+}
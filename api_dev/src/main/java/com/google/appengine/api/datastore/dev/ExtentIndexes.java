@@ -0,0 +1,257 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.datastore.dev;
+
+import com.google.appengine.api.datastore.DataTypeTranslator;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityProtoComparators;
+import com.google.apphosting.datastore.DatastoreV3Pb.Query.Filter;
+import com.google.storage.onestore.v3.OnestoreEntity.EntityProto;
+import com.google.storage.onestore.v3.OnestoreEntity.Path.Element;
+import com.google.storage.onestore.v3.OnestoreEntity.Property;
+import com.google.storage.onestore.v3.OnestoreEntity.Reference;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * In-memory indexes over the entities of a single kind, which {@link LocalDatastoreService} uses
+ * to find the entities that a query may return without scanning every entity of the kind.
+ *
+ * <p>There is an index of the entities in each entity group, and an index of the values of each
+ * property that a query has filtered on. A property index is built the first time a query filters
+ * on that property and is kept up to date from then on, so properties that are never filtered on
+ * cost nothing. Index values are compared exactly like the query filters compare them.
+ *
+ * <p>The candidates found through the indexes are a superset of the query results, and the query
+ * is still filtered and sorted as before, so the indexes only change how fast a query runs.
+ *
+ * <p>This class is not thread safe. Like the rest of the extent, it is guarded by the lock of the
+ * profile that owns it.
+ */
+final class ExtentIndexes {
+
+  /** The entities of the extent, which a new property index is built from. */
+  private final Map<Reference, EntityProto> entities;
+
+  /** The keys of the entities in each entity group, keyed by the root of the entity group. */
+  private final Map<Element, Set<Reference>> entityGroups = new HashMap<>();
+
+  /** The keys of the entities with each indexed value of a property, keyed by property name. */
+  private final Map<String, NavigableMap<Comparable<Object>, Set<Reference>>> properties =
+      new HashMap<>();
+
+  ExtentIndexes(Map<Reference, EntityProto> entities) {
+    this.entities = entities;
+    for (EntityProto entity : entities.values()) {
+      addToEntityGroup(entity.getKey());
+    }
+  }
+
+  /** Indexes an entity that has been added to the extent. */
+  void add(EntityProto entity) {
+    Reference key = entity.getKey();
+    addToEntityGroup(key);
+    for (Map.Entry<String, NavigableMap<Comparable<Object>, Set<Reference>>> entry :
+        properties.entrySet()) {
+      addToPropertyIndex(entry.getValue(), entry.getKey(), entity);
+    }
+  }
+
+  /** Removes an entity that has been removed from the extent, or is about to be replaced. */
+  void remove(EntityProto entity) {
+    Reference key = entity.getKey();
+    Element root = key.getPath().getElement(0);
+    Set<Reference> group = entityGroups.get(root);
+    if (group != null) {
+      group.remove(key);
+      if (group.isEmpty()) {
+        entityGroups.remove(root);
+      }
+    }
+    for (Map.Entry<String, NavigableMap<Comparable<Object>, Set<Reference>>> entry :
+        properties.entrySet()) {
+      NavigableMap<Comparable<Object>, Set<Reference>> index = entry.getValue();
+      for (Comparable<Object> value : indexedValues(entity, entry.getKey())) {
+        Set<Reference> keys = index.get(value);
+        if (keys != null) {
+          keys.remove(key);
+          if (keys.isEmpty()) {
+            index.remove(value);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the keys of the entities that may match a query with the given ancestor and filters,
+   * or null if no index narrows them down and every entity of the extent must be considered.
+   *
+   * <p>The index used is the one with the fewest candidates among the entity group of the
+   * ancestor, each equality filter and the inequality filters on each property.
+   */
+  @Nullable
+  Set<Reference> findCandidates(@Nullable Reference ancestor, List<Filter> filters) {
+    Set<Reference> best = null;
+    if (ancestor != null && ancestor.getPath().elementSize() > 0) {
+      best = entityGroups.getOrDefault(ancestor.getPath().getElement(0), Collections.emptySet());
+    }
+
+    Map<String, ValueRange> ranges = new LinkedHashMap<>();
+    for (Filter filter : filters) {
+      if (filter.propertySize() != 1) {
+        continue;
+      }
+      String name = filter.getProperty(0).getName();
+      if (name.equals(Entity.KEY_RESERVED_PROPERTY)) {
+        continue;
+      }
+      Comparable<Object> value =
+          DataTypeTranslator.getComparablePropertyValue(filter.getProperty(0));
+      switch (filter.getOpEnum()) {
+        case EQUAL:
+          Set<Reference> keys =
+              getPropertyIndex(name).getOrDefault(value, Collections.<Reference>emptySet());
+          if (best == null || keys.size() < best.size()) {
+            best = keys;
+          }
+          break;
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQUAL:
+        case LESS_THAN:
+        case LESS_THAN_OR_EQUAL:
+          ranges.computeIfAbsent(name, unused -> new ValueRange()).add(filter, value);
+          break;
+        default:
+          // Other filters cannot use an index.
+          break;
+      }
+    }
+
+    for (Map.Entry<String, ValueRange> entry : ranges.entrySet()) {
+      Set<Reference> keys = entry.getValue().findKeys(getPropertyIndex(entry.getKey()));
+      if (best == null || keys.size() < best.size()) {
+        best = keys;
+      }
+    }
+    return best;
+  }
+
+  private void addToEntityGroup(Reference key) {
+    entityGroups
+        .computeIfAbsent(key.getPath().getElement(0), unused -> new LinkedHashSet<>())
+        .add(key);
+  }
+
+  private NavigableMap<Comparable<Object>, Set<Reference>> getPropertyIndex(String name) {
+    NavigableMap<Comparable<Object>, Set<Reference>> index = properties.get(name);
+    if (index == null) {
+      index = new TreeMap<>(EntityProtoComparators.MULTI_TYPE_COMPARATOR);
+      for (EntityProto entity : entities.values()) {
+        addToPropertyIndex(index, name, entity);
+      }
+      properties.put(name, index);
+    }
+    return index;
+  }
+
+  private static void addToPropertyIndex(
+      NavigableMap<Comparable<Object>, Set<Reference>> index, String name, EntityProto entity) {
+    for (Comparable<Object> value : indexedValues(entity, name)) {
+      index.computeIfAbsent(value, unused -> new LinkedHashSet<>()).add(entity.getKey());
+    }
+  }
+
+  private static Collection<Comparable<Object>> indexedValues(EntityProto entity, String name) {
+    Collection<Property> indexed = DataTypeTranslator.findIndexedPropertiesOnPb(entity, name);
+    if (indexed.isEmpty()) {
+      return Collections.emptyList();
+    }
+    Set<Comparable<Object>> values = new LinkedHashSet<>();
+    for (Property property : indexed) {
+      values.add(DataTypeTranslator.getComparablePropertyValue(property));
+    }
+    return values;
+  }
+
+  /** The bounds that the inequality filters on one property set, combined like the filters do. */
+  private static final class ValueRange {
+    @Nullable private Comparable<Object> min;
+    private boolean minInclusive;
+    @Nullable private Comparable<Object> max;
+    private boolean maxInclusive;
+    private boolean hasMin;
+    private boolean hasMax;
+
+    void add(Filter filter, Comparable<Object> value) {
+      boolean inclusive;
+      switch (filter.getOpEnum()) {
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQUAL:
+          inclusive = filter.getOpEnum() == Filter.Operator.GREATER_THAN_OR_EQUAL;
+          int minComparison = hasMin ? compare(value, min) : 1;
+          if (minComparison > 0 || (minComparison == 0 && !inclusive)) {
+            min = value;
+            minInclusive = inclusive;
+            hasMin = true;
+          }
+          break;
+        default:
+          inclusive = filter.getOpEnum() == Filter.Operator.LESS_THAN_OR_EQUAL;
+          int maxComparison = hasMax ? compare(value, max) : -1;
+          if (maxComparison < 0 || (maxComparison == 0 && !inclusive)) {
+            max = value;
+            maxInclusive = inclusive;
+            hasMax = true;
+          }
+          break;
+      }
+    }
+
+    Set<Reference> findKeys(NavigableMap<Comparable<Object>, Set<Reference>> index) {
+      NavigableMap<Comparable<Object>, Set<Reference>> range = index;
+      if (hasMin && hasMax) {
+        if (compare(min, max) > 0) {
+          return Collections.emptySet();
+        }
+        range = index.subMap(min, minInclusive, max, maxInclusive);
+      } else if (hasMin) {
+        range = index.tailMap(min, minInclusive);
+      } else if (hasMax) {
+        range = index.headMap(max, maxInclusive);
+      }
+      Set<Reference> keys = new LinkedHashSet<>();
+      for (Set<Reference> valueKeys : range.values()) {
+        keys.addAll(valueKeys);
+      }
+      return keys;
+    }
+
+    private static int compare(Comparable<Object> a, Comparable<Object> b) {
+      return EntityProtoComparators.MULTI_TYPE_COMPARATOR.compare(a, b);
+    }
+  }
+}
@@ -59,6 +59,8 @@ import com.google.appengine.api.datastore.Key;
  * once. Without this guarantee we would have jobs that failed to apply but whose failure was
  * invisible, which defeats the purpose of what we're trying to simulate.
  *
+ * <p>Jobs of different entity groups may be applied concurrently, so implementations must be
+ * thread-safe.
  */
 // It's a little wonky to be using a low-level API object in the local
 // datastore, but it's not unheard of.  Here's the reason we do it: This
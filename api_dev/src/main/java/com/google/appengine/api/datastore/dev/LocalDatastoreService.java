@@ -65,6 +65,7 @@ import com.google.apphosting.datastore.DatastoreV3Pb.NextRequest;
 import com.google.apphosting.datastore.DatastoreV3Pb.PutRequest;
 import com.google.apphosting.datastore.DatastoreV3Pb.PutResponse;
 import com.google.apphosting.datastore.DatastoreV3Pb.Query;
+import com.google.apphosting.datastore.DatastoreV3Pb.Query.Filter;
 import com.google.apphosting.datastore.DatastoreV3Pb.Query.Order;
 import com.google.apphosting.datastore.DatastoreV3Pb.QueryResult;
 import com.google.apphosting.datastore.DatastoreV3Pb.Transaction;
@@ -83,6 +84,7 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.MultimapBuilder;
 import com.google.common.collect.SetMultimap;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Striped;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
@@ -101,8 +103,6 @@ import com.google.storage.onestore.v3.OnestoreEntity.PropertyValue;
 import com.google.storage.onestore.v3.OnestoreEntity.Reference;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -114,6 +114,9 @@ import java.io.Serializable;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -128,13 +131,16 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
@@ -222,6 +228,20 @@ public abstract class LocalDatastoreService {
   /** True to put the datastore into "memory-only" mode. */
   public static final String NO_STORAGE_PROPERTY = "datastore.no_storage";
 
+  /**
+   * True (the default) to append each write to a log next to the backing store as it is applied,
+   * and only rewrite the backing store once the log has grown large. False to rewrite the whole
+   * backing store after every store delay in which something was written.
+   */
+  public static final String WRITE_AHEAD_LOG_PROPERTY = "datastore.write_ahead_log";
+
+  /**
+   * True to keep entities serialized outside of the Java heap, in memory-mapped temporary files,
+   * and only parse them when they are read. This lets large data sets fit in a small heap, at the
+   * cost of parsing entities on every read. False by default.
+   */
+  public static final String OFF_HEAP_STORAGE_PROPERTY = "datastore.off_heap_storage";
+
   /**
    * The fully-qualifed name of a class that implements {@link HighRepJobPolicy} and has a no-arg
    * constructor. If not provided we use a {@link DefaultHighRepJobPolicy}. See the javadoc for this
@@ -341,9 +361,11 @@ public abstract class LocalDatastoreService {
   /** The location this database is persisted to and loaded from. */
   private String backingStore;
 
-  /** The set of Profiles for this datastore, categorized by name. */
-  private final Map<String, Profile> profiles =
-      Collections.synchronizedMap(new HashMap<String, Profile>());
+  /**
+   * The set of Profiles for this datastore, categorized by name. Looking up a profile takes no
+   * lock, so requests for different apps, and reads of the profile of an app, do not contend.
+   */
+  private final Map<String, Profile> profiles = new ConcurrentHashMap<>();
 
   private final Map<String, SpecialProperty> specialPropertyMap = Maps.newHashMap();
 
@@ -366,11 +388,20 @@ public abstract class LocalDatastoreService {
   protected abstract void addActionImpl(TaskQueueAddRequest action);
 
   /**
-   * Clear out the in-memory datastore. Note that this does not clear out any data that has been
-   * persisted on disk.
+   * Clear out the in-memory datastore. Note that data that has been persisted on disk is only
+   * cleared out once the datastore is persisted again.
    */
   public void clearProfiles() {
     profiles.clear();
+    WriteAheadLog log = writeAheadLog;
+    if (log != null) {
+      try {
+        log.appendClear();
+        dirty = true;
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, "Unable to append to the datastore log", e);
+      }
+    }
   }
 
   /** Clear out the query history that we use for generating indexes. */
@@ -430,6 +461,25 @@ public abstract class LocalDatastoreService {
   /** Is the datastore dirty, requiring a write? */
   private volatile boolean dirty;
 
+  /** How often the write-ahead log is forced to disk. */
+  private static final long LOG_SYNC_DELAY_MS = 1000;
+
+  /**
+   * The size the write-ahead log must reach before it is compacted into the backing store, unless
+   * the backing store is larger, in which case the log must reach the size of the backing store.
+   */
+  private static final long MIN_LOG_COMPACTION_BYTES = 16 * 1024 * 1024;
+
+  private boolean useWriteAheadLog = true;
+
+  private boolean offHeapStorage;
+
+  /** The log that writes are appended to, or null if the whole backing store is persisted. */
+  private volatile @Nullable WriteAheadLog writeAheadLog;
+
+  /** Held while the write-ahead log is compacted into the backing store. */
+  private final Object compactionLock = new Object();
+
   /**
    * A lock around the database that is used to prevent background persisting from interfering with
    * real time updates.
@@ -475,6 +525,16 @@ public abstract class LocalDatastoreService {
     }
     setBackingStore(storeFile);
 
+    String writeAheadLogProp = properties.get(WRITE_AHEAD_LOG_PROPERTY);
+    if (writeAheadLogProp != null) {
+      useWriteAheadLog = Boolean.parseBoolean(writeAheadLogProp);
+    }
+
+    String offHeapStorageProp = properties.get(OFF_HEAP_STORAGE_PROPERTY);
+    if (offHeapStorageProp != null) {
+      offHeapStorage = Boolean.parseBoolean(offHeapStorageProp);
+    }
+
     String storeDelayTime = properties.get(STORE_DELAY_PROPERTY);
     storeDelayMs = parseInt(storeDelayTime, storeDelayMs, STORE_DELAY_PROPERTY);
 
@@ -669,6 +729,20 @@ public abstract class LocalDatastoreService {
               storeDelayMs,
               TimeUnit.MILLISECONDS));
     }
+
+    if (writeAheadLog != null) {
+      scheduledTasks.add(
+          scheduler.scheduleWithFixedDelay(
+              new Runnable() {
+                @Override
+                public void run() {
+                  syncWriteAheadLog();
+                }
+              },
+              LOG_SYNC_DELAY_MS,
+              LOG_SYNC_DELAY_MS,
+              TimeUnit.MILLISECONDS));
+    }
   }
 
   public synchronized void stop() {
@@ -681,7 +755,12 @@ public abstract class LocalDatastoreService {
       // All information about unapplied jobs is transient, so roll everything
       // forward before we shut down.
       rollForwardAllUnappliedJobs();
-      persist();
+      if (writeAheadLog != null) {
+        compactWriteAheadLog();
+        closeWriteAheadLog();
+      } else {
+        persist();
+      }
     }
 
     clearProfiles();
@@ -699,9 +778,16 @@ public abstract class LocalDatastoreService {
     // information if we wanted, but it doesn't seem worth the effort (we'd
     // need to make all the Runnables implement Serializable).
     for (Profile profile : profiles.values()) {
-      if (profile.getGroups() != null) {
-        for (Profile.EntityGroup eg : profile.getGroups().values()) {
+      List<Profile.EntityGroup> groups;
+      synchronized (profile) {
+        groups = new ArrayList<>(profile.getGroups().values());
+      }
+      for (Profile.EntityGroup eg : groups) {
+        Lock groupLock = profile.lockGroup(eg.path);
+        try {
           eg.rollForwardUnappliedJobs();
+        } finally {
+          groupLock.unlock();
         }
       }
     }
@@ -749,7 +835,9 @@ public abstract class LocalDatastoreService {
       Path groupPath = getGroup(key);
       GetResponse.Entity responseEntity = response.addEntity();
       Profile profile = getOrCreateProfile(app);
-      synchronized (profile) {
+      EntityProto entity;
+      Lock groupLock = profile.lockGroup(groupPath);
+      try {
         Profile.EntityGroup eg = profile.getGroup(groupPath);
         if (request.hasTransaction()) {
           if (liveTxn == null) {
@@ -760,7 +848,7 @@ public abstract class LocalDatastoreService {
           eg.addTransaction(liveTxn);
         }
         boolean eventualConsistency = request.hasFailoverMs() && liveTxn == null;
-        EntityProto entity = pseudoKinds.get(liveTxn, eg, key, eventualConsistency);
+        entity = pseudoKinds.get(liveTxn, eg, key, eventualConsistency);
         if (entity == PseudoKinds.NOT_A_PSEUDO_KIND) {
           VersionedEntity versionedEntity = eg.get(liveTxn, key, eventualConsistency);
           if (versionedEntity == null) {
@@ -773,15 +861,18 @@ public abstract class LocalDatastoreService {
             responseEntity.setVersion(versionedEntity.version());
           }
         }
-        if (entity != null) {
-          responseEntity.getMutableEntity().copyFrom(entity);
-          postprocessEntity(responseEntity.getMutableEntity());
-        } else {
-          responseEntity.getMutableKey().copyFrom(key);
-        }
-        // Give all entity groups with unapplied jobs the opportunity to catch
-        // up.  Note that this will not impact the result we're about to return.
-        profile.groom();
+      } finally {
+        groupLock.unlock();
+      }
+      // Give all entity groups with unapplied jobs the opportunity to catch
+      // up.  Note that this will not impact the result we're about to return.
+      profile.groom();
+      // Stored entities are never modified, so the copy is made without holding the lock.
+      if (entity != null) {
+        responseEntity.getMutableEntity().copyFrom(entity);
+        postprocessEntity(responseEntity.getMutableEntity());
+      } else {
+        responseEntity.getMutableKey().copyFrom(key);
       }
     }
 
@@ -884,32 +975,40 @@ public abstract class LocalDatastoreService {
     Map<Path, List<EntityProto>> entitiesByEntityGroup = new LinkedHashMap<>();
     Map<Reference, Long> writtenVersions = new HashMap<>();
     final Profile profile = getOrCreateProfile(app);
-    synchronized (profile) {
-      LiveTxn liveTxn = null;
-      for (EntityProto clone : clones) {
+    LiveTxn liveTxn = null;
+    for (EntityProto clone : clones) {
+      if (request.hasTransaction()) {
+        // If there's a transaction we delay the put until
+        // the transaction is committed.
+        if (liveTxn == null) {
+          liveTxn = profile.getTxn(request.getTransaction().getHandle());
+        }
+        checkRequest(!liveTxn.isReadOnly(), "Cannot modify entities in a read-only transaction.");
         Profile.EntityGroup eg = profile.getGroup(clone.getEntityGroup());
-        if (request.hasTransaction()) {
-          // If there's a transaction we delay the put until
-          // the transaction is committed.
-          if (liveTxn == null) {
-            liveTxn = profile.getTxn(request.getTransaction().getHandle());
-          }
-          checkRequest(!liveTxn.isReadOnly(), "Cannot modify entities in a read-only transaction.");
+        Lock groupLock = profile.lockGroup(clone.getEntityGroup());
+        try {
           // this will throw an exception if we attempt to
           // modify the wrong entity group
           eg.addTransaction(liveTxn).addWrittenEntity(clone);
-        } else {
-          List<EntityProto> entities = entitiesByEntityGroup.get(clone.getEntityGroup());
-          if (entities == null) {
-            entities = new ArrayList<>();
-            entitiesByEntityGroup.put(clone.getEntityGroup(), entities);
-          }
-          entities.add(clone);
+        } finally {
+          groupLock.unlock();
+        }
+      } else {
+        List<EntityProto> entities = entitiesByEntityGroup.get(clone.getEntityGroup());
+        if (entities == null) {
+          entities = new ArrayList<>();
+          entitiesByEntityGroup.put(clone.getEntityGroup(), entities);
         }
-        response.mutableKeys().add(clone.getKey());
+        entities.add(clone);
       }
-      for (final Map.Entry<Path, List<EntityProto>> entry : entitiesByEntityGroup.entrySet()) {
-        Profile.EntityGroup eg = profile.getGroup(entry.getKey());
+      response.mutableKeys().add(clone.getKey());
+    }
+    // Only the entity group being written is locked, so puts to other entity groups of the app
+    // run concurrently.
+    for (final Map.Entry<Path, List<EntityProto>> entry : entitiesByEntityGroup.entrySet()) {
+      Profile.EntityGroup eg = profile.getGroup(entry.getKey());
+      Lock groupLock = profile.lockGroup(entry.getKey());
+      try {
         eg.incrementVersion();
         LocalDatastoreJob job =
             new WriteJob(
@@ -924,6 +1023,8 @@ public abstract class LocalDatastoreService {
         for (EntityProto entity : entry.getValue()) {
           writtenVersions.put(entity.getKey(), job.getMutationTimestamp(entity.getKey()));
         }
+      } finally {
+        groupLock.unlock();
       }
     }
 
@@ -1092,32 +1193,38 @@ public abstract class LocalDatastoreService {
     // per entity group.
     Map<Path, List<Reference>> keysByEntityGroup = new LinkedHashMap<>();
     Map<Reference, Long> writtenVersions = new HashMap<>();
-    synchronized (profile) {
-      for (final Reference key : request.keys()) {
-        validatePathComplete(key);
-        Path group = getGroup(key);
-        if (request.hasTransaction()) {
-          if (liveTxn == null) {
-            liveTxn = profile.getTxn(request.getTransaction().getHandle());
-          }
-          checkRequest(!liveTxn.isReadOnly(), "Cannot modify entities in a read-only transaction.");
-          Profile.EntityGroup eg = profile.getGroup(group);
+    for (final Reference key : request.keys()) {
+      validatePathComplete(key);
+      Path group = getGroup(key);
+      if (request.hasTransaction()) {
+        if (liveTxn == null) {
+          liveTxn = profile.getTxn(request.getTransaction().getHandle());
+        }
+        checkRequest(!liveTxn.isReadOnly(), "Cannot modify entities in a read-only transaction.");
+        Profile.EntityGroup eg = profile.getGroup(group);
+        Lock groupLock = profile.lockGroup(group);
+        try {
           // this will throw an exception if we attempt to modify
           // the wrong entity group
           eg.addTransaction(liveTxn).addDeletedEntity(key);
-        } else {
-          List<Reference> keysToDelete = keysByEntityGroup.get(group);
-          if (keysToDelete == null) {
-            keysToDelete = new ArrayList<>();
-            keysByEntityGroup.put(group, keysToDelete);
-          }
-          keysToDelete.add(key);
+        } finally {
+          groupLock.unlock();
         }
+      } else {
+        List<Reference> keysToDelete = keysByEntityGroup.get(group);
+        if (keysToDelete == null) {
+          keysToDelete = new ArrayList<>();
+          keysByEntityGroup.put(group, keysToDelete);
+        }
+        keysToDelete.add(key);
       }
-      // Now loop over the entity groups.  We will attempt to apply one job that
-      // does all the work for each entity group.
-      for (final Map.Entry<Path, List<Reference>> entry : keysByEntityGroup.entrySet()) {
-        Profile.EntityGroup eg = profile.getGroup(entry.getKey());
+    }
+    // Now loop over the entity groups.  We will attempt to apply one job that
+    // does all the work for each entity group, holding only the lock of that group.
+    for (final Map.Entry<Path, List<Reference>> entry : keysByEntityGroup.entrySet()) {
+      Profile.EntityGroup eg = profile.getGroup(entry.getKey());
+      Lock groupLock = profile.lockGroup(entry.getKey());
+      try {
         eg.incrementVersion();
         LocalDatastoreJob job =
             new WriteJob(
@@ -1132,6 +1239,8 @@ public abstract class LocalDatastoreService {
         for (Reference deletedKey : entry.getValue()) {
           writtenVersions.put(deletedKey, job.getMutationTimestamp(deletedKey));
         }
+      } finally {
+        groupLock.unlock();
       }
     }
 
@@ -1208,8 +1317,13 @@ public abstract class LocalDatastoreService {
     String app = query.getApp();
     Profile profile = getOrCreateProfile(app);
 
-    synchronized (profile) {
-
+    List<EntityProto> queryEntities;
+    Map<Reference, Long> versions = null;
+    // Only the entity group of an ancestor query is locked, and only while the candidate entities
+    // are gathered. Stored entities are never modified, so filtering and sorting them does not
+    // hold up writes.
+    Lock groupLock = query.hasAncestor() ? profile.lockGroup(getGroup(query.getAncestor())) : null;
+    try {
       if (query.hasTransaction()) {
         if (!app.equals(query.getTransaction().getApp())) {
           throw newError(
@@ -1221,16 +1335,18 @@ public abstract class LocalDatastoreService {
         }
       }
 
+      // The entity group whose snapshot a transactional query reads from.
+      Profile.EntityGroup snapshotGroup = null;
+      LiveTxn liveTxn = null;
       if (query.hasAncestor()) {
         Path groupPath = getGroup(query.getAncestor());
         Profile.EntityGroup eg = profile.getGroup(groupPath);
         if (query.hasTransaction()) {
-          LiveTxn liveTxn = profile.getTxn(query.getTransaction().getHandle());
+          liveTxn = profile.getTxn(query.getTransaction().getHandle());
           // this will throw an exception if we attempt to read from
           // the wrong entity group
           eg.addTransaction(liveTxn);
-          // Use snapshot profile.
-          profile = eg.getSnapshot(liveTxn);
+          snapshotGroup = eg;
         }
 
         if (query.hasTransaction() || !query.hasFailoverMs()) {
@@ -1245,8 +1361,7 @@ public abstract class LocalDatastoreService {
       }
 
       // Run as a PseudoKind query if necessary, otherwise check the actual local datastore
-      List<EntityProto> queryEntities = pseudoKinds.runQuery(query);
-      Map<Reference, Long> versions = null;
+      queryEntities = pseudoKinds.runQuery(query);
 
       if (queryEntities == null) {
         Collection<VersionedEntity> versionedEntities = null;
@@ -1254,8 +1369,11 @@ public abstract class LocalDatastoreService {
         Extent extent = extents.get(query.getKind());
 
         if (extent != null) {
-          // Make a copy of the list of all the entities in the extent
-          versionedEntities = extent.getAllEntities();
+          // Make a copy of the list of the entities in the extent that may match
+          versionedEntities =
+              extent.getCandidateEntities(
+                  query.hasAncestor() ? query.getAncestor() : null,
+                  validatedQuery.getQuery().filters());
         } else if (!query.hasKind()) {
           // Kind-less query, so we need a list containing all entities of
           // all kinds.
@@ -1271,6 +1389,16 @@ public abstract class LocalDatastoreService {
           // no extent - we're querying for a kind without any entities
         }
 
+        if (snapshotGroup != null) {
+          // The ancestor filter below keeps only entities of this entity group, so reading them
+          // from its snapshot gives a consistent view.
+          versionedEntities =
+              snapshotGroup.getSnapshotEntities(
+                  liveTxn,
+                  versionedEntities == null ? ImmutableList.of() : versionedEntities,
+                  query.hasKind() ? query.getKind() : null);
+        }
+
         if (versionedEntities != null) {
           queryEntities = new ArrayList<>();
           versions = new HashMap<>();
@@ -1280,126 +1408,165 @@ public abstract class LocalDatastoreService {
           }
         }
       }
-      // Give all entity groups with unapplied jobs the opportunity to catch
-      // up.  Note that this will not impact the result of the query we're
-      // currently fulfilling since we already have the (unfiltered) result
-      // set.
-      profile.groom();
-
-      if (queryEntities == null) {
-        // so we don't need to check for null anywhere else down below
-        queryEntities = Collections.emptyList();
-      }
-
-      // Building filter predicate
-      List<Predicate<EntityProto>> predicates = new ArrayList<>();
-      // apply ancestor restriction
-      if (query.hasAncestor()) {
-        final List<Element> ancestorPath = query.getAncestor().getPath().elements();
-        predicates.add(
-            new Predicate<EntityProto>() {
-              @Override
-              public boolean apply(EntityProto entity) {
-                List<Element> path = entity.getKey().getPath().elements();
-                return path.size() >= ancestorPath.size()
-                    && path.subList(0, ancestorPath.size()).equals(ancestorPath);
-              }
-            });
+    } finally {
+      if (groupLock != null) {
+        groupLock.unlock();
       }
+    }
+    // Give all entity groups with unapplied jobs the opportunity to catch
+    // up.  Note that this will not impact the result of the query we're
+    // currently fulfilling since we already have the (unfiltered) result
+    // set.
+    profile.groom();
 
-      if (query.isShallow()) {
-        final long keyPathLength =
-            query.hasAncestor() ? query.getAncestor().getPath().elementSize() + 1 : 1;
-        predicates.add(
-            new Predicate<EntityProto>() {
-              @Override
-              public boolean apply(EntityProto entity) {
-                return entity.getKey().getPath().elementSize() == keyPathLength;
-              }
-            });
-      }
+    if (queryEntities == null) {
+      // so we don't need to check for null anywhere else down below
+      queryEntities = Collections.emptyList();
+    }
 
-      // apply namespace restriction
-      final boolean hasNamespace = query.hasNameSpace();
-      final String namespace = query.getNameSpace();
+    // Building filter predicate
+    List<Predicate<EntityProto>> predicates = new ArrayList<>();
+    // apply ancestor restriction
+    if (query.hasAncestor()) {
+      final List<Element> ancestorPath = query.getAncestor().getPath().elements();
       predicates.add(
           new Predicate<EntityProto>() {
             @Override
             public boolean apply(EntityProto entity) {
-              Reference ref = entity.getKey();
-              // Filter all elements not in the query's namespace.
-              if (hasNamespace) {
-                if (!ref.hasNameSpace() || !namespace.equals(ref.getNameSpace())) {
-                  return false;
-                }
-              } else {
-                if (ref.hasNameSpace()) {
-                  return false;
-                }
-              }
-              return true;
+              List<Element> path = entity.getKey().getPath().elements();
+              return path.size() >= ancestorPath.size()
+                  && path.subList(0, ancestorPath.size()).equals(ancestorPath);
             }
           });
+    }
 
-      // Get entityComparator with filter matching capability
-      final EntityProtoComparator entityComparator =
-          new EntityProtoComparator(
-              validatedQuery.getQuery().orders(), validatedQuery.getQuery().filters());
-
-      // applying filter restrictions
+    if (query.isShallow()) {
+      final long keyPathLength =
+          query.hasAncestor() ? query.getAncestor().getPath().elementSize() + 1 : 1;
       predicates.add(
           new Predicate<EntityProto>() {
             @Override
             public boolean apply(EntityProto entity) {
-              return entityComparator.matches(entity);
+              return entity.getKey().getPath().elementSize() == keyPathLength;
             }
           });
+    }
 
-      Predicate<EntityProto> queryPredicate =
-          Predicates.<EntityProto>not(Predicates.<EntityProto>and(predicates));
+    // apply namespace restriction
+    final boolean hasNamespace = query.hasNameSpace();
+    final String namespace = query.getNameSpace();
+    predicates.add(
+        new Predicate<EntityProto>() {
+          @Override
+          public boolean apply(EntityProto entity) {
+            Reference ref = entity.getKey();
+            // Filter all elements not in the query's namespace.
+            if (hasNamespace) {
+              if (!ref.hasNameSpace() || !namespace.equals(ref.getNameSpace())) {
+                return false;
+              }
+            } else {
+              if (ref.hasNameSpace()) {
+                return false;
+              }
+            }
+            return true;
+          }
+        });
+
+    // Get entityComparator with filter matching capability
+    final EntityProtoComparator entityComparator =
+        new EntityProtoComparator(
+            validatedQuery.getQuery().orders(), validatedQuery.getQuery().filters());
+
+    // applying filter restrictions
+    predicates.add(
+        new Predicate<EntityProto>() {
+          @Override
+          public boolean apply(EntityProto entity) {
+            return entityComparator.matches(entity);
+          }
+        });
 
-      // The ordering of the following operations is important to maintain correct
-      // query functionality.
+    Predicate<EntityProto> queryPredicate =
+        Predicates.<EntityProto>not(Predicates.<EntityProto>and(predicates));
 
-      // Filtering entities
-      Iterables.removeIf(queryEntities, queryPredicate);
+    // The ordering of the following operations is important to maintain correct
+    // query functionality.
 
-      // Expanding projections
-      if (query.propertyNameSize() > 0) {
-        queryEntities = createIndexOnlyQueryResults(queryEntities, entityComparator);
-      }
-      // Sorting entities
-      Collections.sort(queryEntities, entityComparator);
+    // Filtering entities
+    Iterables.removeIf(queryEntities, queryPredicate);
 
-      // Apply group by. This must happen after sorting to select the correct first entity.
-      queryEntities = applyGroupByProperties(queryEntities, query);
-
-      // store the query and return the results
-      LiveQuery liveQuery = new LiveQuery(queryEntities, versions, query, entityComparator, clock);
-
-      // CompositeIndexManager does some filesystem reads/writes
-      LocalCompositeIndexManager.getInstance().processQuery(validatedQuery.getV3Query());
-
-      // Using next function to prefetch results and return them from runQuery
-      QueryResult result =
-          liveQuery.nextResult(
-              query.hasOffset() ? query.getOffset() : null,
-              query.hasCount() ? query.getCount() : null,
-              query.isCompile());
-      if (query.isCompile()) {
-        result.setCompiledQuery(liveQuery.compileQuery());
-      }
-      if (result.isMoreResults()) {
-        long cursor = queryId.getAndIncrement();
-        profile.addQuery(cursor, liveQuery);
-        result.getMutableCursor().setApp(query.getApp()).setCursor(cursor);
-      }
-      // Copy the index list for the query into the result.
-      for (Index index : LocalCompositeIndexManager.getInstance().queryIndexList(query)) {
-        result.addIndex(wrapIndexInCompositeIndex(app, index));
-      } // for
-      return result;
+    // Expanding projections
+    if (query.propertyNameSize() > 0) {
+      queryEntities = createIndexOnlyQueryResults(queryEntities, entityComparator);
     }
+    // Sorting entities
+    queryEntities = sortQueryEntities(queryEntities, query, entityComparator);
+
+    // Apply group by. This must happen after sorting to select the correct first entity.
+    queryEntities = applyGroupByProperties(queryEntities, query);
+
+    // store the query and return the results
+    LiveQuery liveQuery = new LiveQuery(queryEntities, versions, query, entityComparator, clock);
+
+    // CompositeIndexManager does some filesystem reads/writes
+    LocalCompositeIndexManager.getInstance().processQuery(validatedQuery.getV3Query());
+
+    // Using next function to prefetch results and return them from runQuery
+    QueryResult result =
+        liveQuery.nextResult(
+            query.hasOffset() ? query.getOffset() : null,
+            query.hasCount() ? query.getCount() : null,
+            query.isCompile());
+    if (query.isCompile()) {
+      result.setCompiledQuery(liveQuery.compileQuery());
+    }
+    if (result.isMoreResults()) {
+      long cursor = queryId.getAndIncrement();
+      profile.addQuery(cursor, liveQuery);
+      result.getMutableCursor().setApp(query.getApp()).setCursor(cursor);
+    }
+    // Copy the index list for the query into the result.
+    for (Index index : LocalCompositeIndexManager.getInstance().queryIndexList(query)) {
+      result.addIndex(wrapIndexInCompositeIndex(app, index));
+    } // for
+    return result;
+  }
+
+  /**
+   * Sorts the entities that matched a query. A query with a limit can only return the first offset
+   * + limit entities, so if it has no start cursor only those are selected, using a heap bounded to
+   * that size, and sorted. Queries with group by properties need every entity to pick the first of
+   * each group, so they are always fully sorted.
+   */
+  private static List<EntityProto> sortQueryEntities(
+      List<EntityProto> queryEntities, Query query, EntityProtoComparator entityComparator) {
+    long needed = query.hasLimit() ? (long) query.getLimit() + query.getOffset() : Long.MAX_VALUE;
+    if (needed >= queryEntities.size()
+        || query.hasCompiledCursor()
+        || !query.groupByPropertyNames().isEmpty()) {
+      Collections.sort(queryEntities, entityComparator);
+      return queryEntities;
+    }
+    int size = (int) needed;
+    if (size == 0) {
+      return new ArrayList<>();
+    }
+    // The heap's head is the last of the entities selected so far.
+    PriorityQueue<EntityProto> selected =
+        new PriorityQueue<>(size, Collections.reverseOrder(entityComparator));
+    for (EntityProto entity : queryEntities) {
+      if (selected.size() < size) {
+        selected.add(entity);
+      } else if (entityComparator.compare(entity, selected.peek()) < 0) {
+        selected.poll();
+        selected.add(entity);
+      }
+    }
+    List<EntityProto> results = new ArrayList<>(selected);
+    Collections.sort(results, entityComparator);
+    return results;
   }
 
   @AutoValue
@@ -1591,9 +1758,10 @@ public abstract class LocalDatastoreService {
         throw newError(ErrorCode.BAD_REQUEST, TRANSACTION_RETRY_ON_READ_ONLY);
       }
 
+      LiveTxn previousTransaction;
       // synchronize to prevent check-remove race on previous transaction
       synchronized (profile) {
-        LiveTxn previousTransaction =
+        previousTransaction =
             profile.getTxnQuietly(req.getPreviousTransaction().getHandle());
 
         if (previousTransaction != null) {
@@ -1608,6 +1776,9 @@ public abstract class LocalDatastoreService {
           profile.removeTxn(req.getPreviousTransaction().getHandle());
         }
       }
+      if (previousTransaction != null) {
+        previousTransaction.close();
+      }
     }
 
     Transaction txn =
@@ -1627,51 +1798,65 @@ public abstract class LocalDatastoreService {
 
     globalLock.readLock().lock();
 
-    // Synchronized so we can't commit and rollback at the same time.
-    synchronized (profile) {
-      LiveTxn liveTxn;
+    LiveTxn liveTxn;
+    try {
+      // Removing the transaction is atomic, so we can't commit and rollback at the same time.
+      liveTxn = profile.removeTxn(req.getHandle());
+      liveTxn.close();
 
       try {
-        liveTxn = profile.removeTxn(req.getHandle());
-
-        try {
-          if (liveTxn.isDirty()) {
-            response = commitImpl(liveTxn, profile);
-          } else {
-            // cost of a read-only txn is 0
-            response.setCost(new Cost().setEntityWrites(0).setIndexWrites(0));
-          }
-        } catch (ApplicationException e) {
-          // commit failed, re-add transaction so that it can be rolled back or reset.
-          profile.addTxn(
-              req.getHandle(),
-              new LiveTxn(clock, liveTxn.allowMultipleEg, liveTxn.originalTransactionMode, true));
-          throw e;
+        if (liveTxn.isDirty()) {
+          response = commitImpl(liveTxn, profile);
+        } else {
+          // cost of a read-only txn is 0
+          response.setCost(new Cost().setEntityWrites(0).setIndexWrites(0));
         }
-      } finally {
-        globalLock.readLock().unlock();
+      } catch (ApplicationException e) {
+        // commit failed, re-add transaction so that it can be rolled back or reset.
+        profile.addTxn(
+            req.getHandle(),
+            new LiveTxn(clock, liveTxn.allowMultipleEg, liveTxn.originalTransactionMode, true));
+        throw e;
       }
+    } finally {
+      globalLock.readLock().unlock();
+    }
 
-      // Sends all pending actions.
-      // Note: this is an approximation of the true Datastore behavior.
-      // Currently, dev_server holds taskqueue tasks in memory, so they are lost
-      // on a dev_server restart.
-      // TODO: persist actions as a part of the transactions when
-      // taskqueue tasks become durable.
-      for (TaskQueueAddRequest action : liveTxn.getActions()) {
-        try {
-          addActionImpl(action);
-        } catch (ApplicationException e) {
-          logger.log(Level.WARNING, "Transactional task: " + action + " has been dropped.", e);
-        }
+    // Sends all pending actions.
+    // Note: this is an approximation of the true Datastore behavior.
+    // Currently, dev_server holds taskqueue tasks in memory, so they are lost
+    // on a dev_server restart.
+    // TODO: persist actions as a part of the transactions when
+    // taskqueue tasks become durable.
+    for (TaskQueueAddRequest action : liveTxn.getActions()) {
+      try {
+        addActionImpl(action);
+      } catch (ApplicationException e) {
+        logger.log(Level.WARNING, "Transactional task: " + action + " has been dropped.", e);
       }
     }
     return response;
   }
 
-  /** Requires a lock on the provided profile. */
+  /**
+   * Applies the writes of a transaction. Only the entity groups that the transaction used are
+   * locked, so commits to other entity groups of the profile run concurrently.
+   */
   private CommitResponse commitImpl(LiveTxn liveTxn, final Profile profile) {
-    // assumes we already have a lock on the profile
+    List<Path> groupPaths = new ArrayList<>();
+    for (EntityGroupTracker tracker : liveTxn.getAllTrackers()) {
+      groupPaths.add(tracker.getEntityGroup().path);
+    }
+    List<Lock> groupLocks = profile.lockGroups(groupPaths);
+    try {
+      return commitLocked(liveTxn, profile);
+    } finally {
+      Profile.unlockGroups(groupLocks);
+    }
+  }
+
+  /** Requires the locks of the entity groups of the transaction. */
+  private CommitResponse commitLocked(LiveTxn liveTxn, final Profile profile) {
     CommitResponse response = new CommitResponse();
 
     for (EntityGroupTracker tracker : liveTxn.getAllTrackers()) {
@@ -1728,7 +1913,7 @@ public abstract class LocalDatastoreService {
 
   @SuppressWarnings("unused") // status
   public VoidProto rollback(Status status, Transaction req) {
-    profiles.get(req.getApp()).removeTxn(req.getHandle());
+    profiles.get(req.getApp()).removeTxn(req.getHandle()).close();
     return VoidProto.getDefaultInstance();
   }
 
@@ -1817,15 +2002,8 @@ public abstract class LocalDatastoreService {
   }
 
   Profile getOrCreateProfile(String app) {
-    synchronized (profiles) {
-      checkArgument(app != null && app.length() > 0, "appId not set");
-      Profile profile = profiles.get(app);
-      if (profile == null) {
-        profile = new Profile();
-        profiles.put(app, profile);
-      }
-      return profile;
-    }
+    checkArgument(app != null && app.length() > 0, "appId not set");
+    return profiles.computeIfAbsent(app, unused -> new Profile());
   }
 
   Extent getOrCreateExtent(Profile profile, String kind) {
@@ -1834,6 +2012,9 @@ public abstract class LocalDatastoreService {
       Extent e = extents.get(kind);
       if (e == null) {
         e = new Extent();
+        if (offHeapStorage) {
+          e.moveOffHeap();
+        }
         extents.put(kind, e);
       }
       return e;
@@ -1847,13 +2028,26 @@ public abstract class LocalDatastoreService {
     }
     File backingStoreFile = new File(backingStore);
     String path = backingStoreFile.getAbsolutePath();
-    if (!backingStoreFile.exists()) {
+    if (backingStoreFile.exists()) {
+      loadBackingStore(path);
+      if (offHeapStorage) {
+        for (Profile profile : profiles.values()) {
+          for (Extent extent : profile.getExtents().values()) {
+            extent.moveOffHeap();
+          }
+        }
+      }
+    } else {
       logger.log(
           Level.INFO, "The backing store, " + path + ", does not exist. " + "It will be created.");
       backingStoreFile.getParentFile().mkdirs();
-      return;
     }
+    if (useWriteAheadLog) {
+      loadWriteAheadLog(backingStoreFile);
+    }
+  }
 
+  private void loadBackingStore(String path) {
     long start = clock.getCurrentTime();
     try (ObjectInputStream objectIn =
         new ObjectInputStream(new BufferedInputStream(new FileInputStream(backingStore)))) {
@@ -1884,6 +2078,67 @@ public abstract class LocalDatastoreService {
     }
   }
 
+  /**
+   * Replays the write-ahead log over the data loaded from the backing store, then opens the log
+   * for appending. If the log cannot be opened, the whole backing store is persisted instead.
+   */
+  private void loadWriteAheadLog(File backingStoreFile) {
+    long start = clock.getCurrentTime();
+    try {
+      int records = WriteAheadLog.replay(backingStoreFile, new LogReplayer());
+      if (records > 0) {
+        // The backing store is out of date, so make sure the log is compacted into it.
+        dirty = true;
+        long end = clock.getCurrentTime();
+        logger.log(
+            Level.INFO,
+            "Time to replay " + records + " datastore log records: " + (end - start) + " ms");
+      }
+      writeAheadLog = new WriteAheadLog(backingStoreFile);
+    } catch (IOException e) {
+      logger.log(
+          Level.SEVERE,
+          "Failed to load the log of the backing store, " + backingStoreFile.getAbsolutePath(),
+          e);
+    }
+  }
+
+  /** Applies the records of the write-ahead log to the profiles as the log is replayed. */
+  private class LogReplayer implements WriteAheadLog.Replayer {
+    @Override
+    public void idCounters(long sequential, long scattered) {
+      entityIdSequential.accumulateAndGet(sequential, Math::max);
+      entityIdScattered.accumulateAndGet(scattered, Math::max);
+    }
+
+    @Override
+    public void delete(byte[] serializedKey) throws IOException {
+      Reference key = new Reference();
+      if (!key.parseFrom(serializedKey)) {
+        throw new IOException("Corrupt or incomplete Reference");
+      }
+      Profile profile = profiles.get(key.getApp());
+      Extent extent = (profile == null) ? null : profile.getExtents().get(getKind(key));
+      if (extent != null) {
+        extent.removeEntity(key);
+      }
+    }
+
+    @Override
+    public void put(byte[] serializedEntity) throws IOException {
+      VersionedEntity entity = Extent.deserializeEntity(serializedEntity);
+      Reference key = entity.entityProto().getKey();
+      Profile profile = getOrCreateProfile(key.getApp());
+      getOrCreateExtent(profile, getKind(key)).putEntity(entity);
+      profile.lastCommitTimestamp = Math.max(profile.lastCommitTimestamp, entity.version());
+    }
+
+    @Override
+    public void clear() {
+      profiles.clear();
+    }
+  }
+
   /** A profile for an application. Contains all the Extents owned by the application. */
   static class Profile implements Serializable {
 
@@ -1893,13 +2148,14 @@ public abstract class LocalDatastoreService {
     private static final long serialVersionUID = -4667954926644227154L;
 
     /**
-     * An EntityGroup maintains a consistent view of a profile during a transaction. All access to
-     * an entity group should be synchronized on the enclosing profile.
+     * An EntityGroup maintains a consistent view of its entities during a transaction. All access
+     * to an entity group should hold its lock, see {@link Profile#lockGroup(Path)}.
      */
     class EntityGroup {
       private final Path path;
       private final AtomicLong version = new AtomicLong();
-      private final WeakHashMap<LiveTxn, Profile> snapshots = new WeakHashMap<LiveTxn, Profile>();
+      private final WeakHashMap<LiveTxn, Snapshot> snapshots =
+          new WeakHashMap<LiveTxn, Snapshot>();
       // Using a LinkedList because we insert at the end and remove from the front.
       private final LinkedList<LocalDatastoreJob> unappliedJobs =
           new LinkedList<LocalDatastoreJob>();
@@ -1914,18 +2170,18 @@ public abstract class LocalDatastoreService {
 
       /**
        * Mark an entity group as modified. If there are open transactions for the current version of
-       * the entity group, this will take a snapshot of the profile which the transactions will
+       * the entity group, this will take a snapshot of the entity group which the transactions will
        * continue to read from. You must call this before actually modifying the entities, or the
        * snapshot will be incorrect.
        */
       public void incrementVersion() {
         long oldVersion = version.getAndIncrement();
-        Profile snapshot = null;
-        for (Map.Entry<LiveTxn, Profile> entry : snapshots.entrySet()) {
+        Snapshot snapshot = null;
+        for (Map.Entry<LiveTxn, Snapshot> entry : snapshots.entrySet()) {
           LiveTxn txn = entry.getKey();
           if (txn.trackEntityGroup(this).getEntityGroupVersion() == oldVersion) {
             if (snapshot == null) {
-              snapshot = takeSnapshot();
+              snapshot = new Snapshot();
             }
             entry.setValue(snapshot);
           }
@@ -1944,13 +2200,73 @@ public abstract class LocalDatastoreService {
           // User wants strongly consistent results so we must roll forward.
           rollForwardUnappliedJobs();
         }
-        Profile profile = getSnapshot(liveTxn);
-        Map<String, Extent> extents = profile.getExtents();
-        Extent extent = extents.get(getKind(key));
-        if (extent != null) {
-          return extent.getEntityByKey(key);
+        Snapshot snapshot = getSnapshot(liveTxn);
+        if (snapshot != null && snapshot.previousEntities.containsKey(key)) {
+          return snapshot.previousEntities.get(key);
         }
-        return null;
+        return getCurrentEntity(key);
+      }
+
+      /**
+       * Returns {@code entities}, which are the current entities of {@code kind} (or of every kind
+       * if {@code kind} is null), as they were in the snapshot that {@code liveTxn} reads from.
+       * Only the entities of this entity group can differ.
+       */
+      public Collection<VersionedEntity> getSnapshotEntities(
+          LiveTxn liveTxn, Collection<VersionedEntity> entities, @Nullable String kind) {
+        Snapshot snapshot = getSnapshot(liveTxn);
+        if (snapshot == null || snapshot.previousEntities.isEmpty()) {
+          return entities;
+        }
+        Map<Reference, VersionedEntity> previousEntities = new LinkedHashMap<>();
+        for (Map.Entry<Reference, VersionedEntity> entry : snapshot.previousEntities.entrySet()) {
+          if (kind == null || kind.equals(getKind(entry.getKey()))) {
+            previousEntities.put(entry.getKey(), entry.getValue());
+          }
+        }
+        List<VersionedEntity> result = new ArrayList<>(entities.size());
+        for (VersionedEntity entity : entities) {
+          Reference key = entity.entityProto().getKey();
+          if (previousEntities.containsKey(key)) {
+            // Null if the entity did not exist yet.
+            VersionedEntity previous = previousEntities.remove(key);
+            if (previous != null) {
+              result.add(previous);
+            }
+          } else {
+            result.add(entity);
+          }
+        }
+        // Entities that have been deleted since the snapshot.
+        for (VersionedEntity previous : previousEntities.values()) {
+          if (previous != null) {
+            result.add(previous);
+          }
+        }
+        return result;
+      }
+
+      /**
+       * Records the current state of the entity with the given key in every snapshot that does not
+       * have it yet. You must call this before modifying an entity of this entity group.
+       */
+      public void preserveEntityForSnapshots(Reference key) {
+        boolean loaded = false;
+        VersionedEntity current = null;
+        for (Snapshot snapshot : snapshots.values()) {
+          if (snapshot != null && !snapshot.previousEntities.containsKey(key)) {
+            if (!loaded) {
+              current = getCurrentEntity(key);
+              loaded = true;
+            }
+            snapshot.previousEntities.put(key, current);
+          }
+        }
+      }
+
+      private @Nullable VersionedEntity getCurrentEntity(Reference key) {
+        Extent extent = getExtents().get(getKind(key));
+        return (extent == null) ? null : extent.getEntityByKey(key);
       }
 
       public EntityGroupTracker addTransaction(LiveTxn txn) {
@@ -1962,34 +2278,28 @@ public abstract class LocalDatastoreService {
       }
 
       public void removeTransaction(LiveTxn txn) {
-        snapshots.remove(txn);
+        Lock groupLock = lockGroup(path);
+        try {
+          snapshots.remove(txn);
+        } finally {
+          groupLock.unlock();
+        }
       }
 
-      private Profile getSnapshot(@Nullable LiveTxn txn) {
-        if (txn == null) {
-          return Profile.this;
-        }
-        Profile snapshot = snapshots.get(txn);
-        if (snapshot == null) {
-          return Profile.this;
-        } else {
-          return snapshot;
-        }
+      /** Returns the snapshot that {@code txn} reads from, or null if it reads the profile. */
+      private @Nullable Snapshot getSnapshot(@Nullable LiveTxn txn) {
+        return (txn == null) ? null : snapshots.get(txn);
       }
 
-      // <internal23>
-      private Profile takeSnapshot() {
-        try {
-          ByteArrayOutputStream bos = new ByteArrayOutputStream();
-          ObjectOutputStream oos = new ObjectOutputStream(bos);
-          oos.writeObject(Profile.this);
-          oos.close();
-          ByteArrayInputStream bis = new ByteArrayInputStream(bos.toByteArray());
-          ObjectInputStream ois = new ObjectInputStream(bis);
-          return (Profile) ois.readObject();
-        } catch (IOException | ClassNotFoundException ex) {
-          throw new RuntimeException("Unable to take transaction snapshot.", ex);
-        }
+      /**
+       * The entities of an entity group as of one of its versions. Rather than copying the
+       * profile, a snapshot starts out empty and records the previous state of each entity of the
+       * group as it is modified, so taking one is O(1) and reading from one costs a map lookup.
+       * Entities that it does not contain have not been modified since it was taken.
+       */
+      private final class Snapshot {
+        // A null value means that the entity did not exist.
+        private final Map<Reference, VersionedEntity> previousEntities = new HashMap<>();
       }
 
       @Override
@@ -2059,16 +2369,20 @@ public abstract class LocalDatastoreService {
       }
     }
 
-    // synchronized to ensure a consistent view of all the entities
-    public synchronized List<VersionedEntity> getAllEntities() {
+    public List<VersionedEntity> getAllEntities() {
       List<VersionedEntity> entities = new ArrayList<>();
-      for (Extent extent : extents.values()) {
-        entities.addAll(extent.getAllEntities());
+      synchronized (extents) {
+        for (Extent extent : extents.values()) {
+          entities.addAll(extent.getAllEntities());
+        }
       }
       return entities;
     }
 
-    private long lastCommitTimestamp = MINIMUM_VERSION;
+    /** The number of locks that the entity groups of a profile are striped over. */
+    private static final int GROUP_LOCK_STRIPES = 64;
+
+    private volatile long lastCommitTimestamp = MINIMUM_VERSION;
 
     private final Map<String, Extent> extents =
         Collections.synchronizedMap(new HashMap<String, Extent>());
@@ -2082,10 +2396,13 @@ public abstract class LocalDatastoreService {
     // deserialized.
     private transient Map<Path, EntityGroup> groups;
 
-    // All access to this set must be synchronized.  We initialize it lazily
-    // because initializers for transient fields don't run when an object is
-    // deserialized.
+    // The set is synchronized, since jobs of different entity groups are added
+    // and applied concurrently.  We initialize it lazily because initializers
+    // for transient fields don't run when an object is deserialized.
     private transient Set<Path> groupsWithUnappliedJobs;
+
+    // The locks of the entity groups, initialized lazily for the same reason.
+    private transient Striped<Lock> groupLocks;
     /** The set of outstanding query results, keyed by query id (also referred to as "cursor"). */
     private transient Map<Long, LiveQuery> queries;
 
@@ -2104,7 +2421,7 @@ public abstract class LocalDatastoreService {
      * Returns a commit timestamp for a newly created Job. This increments the read timestamp of the
      * profile.
      */
-    private long incrementAndGetCommitTimestamp() {
+    private synchronized long incrementAndGetCommitTimestamp() {
       return ++lastCommitTimestamp;
     }
 
@@ -2118,6 +2435,21 @@ public abstract class LocalDatastoreService {
       return extents;
     }
 
+    /**
+     * Returns a copy of the persisted state of this profile, which can be written out without
+     * holding its lock. The copy shares the entities, which are not modified once stored.
+     */
+    synchronized Profile copyForPersistence() {
+      Profile copy = new Profile();
+      copy.lastCommitTimestamp = lastCommitTimestamp;
+      synchronized (extents) {
+        for (Map.Entry<String, Extent> entry : extents.entrySet()) {
+          copy.extents.put(entry.getKey(), entry.getValue().copyForPersistence());
+        }
+      }
+      return copy;
+    }
+
     public synchronized EntityGroup getGroup(Path path) {
       Map<Path, EntityGroup> map = getGroups();
       EntityGroup group = map.get(path);
@@ -2135,14 +2467,68 @@ public abstract class LocalDatastoreService {
      * time and instead ties it to operations that users control, which makes tests much easier to
      * write.
      */
-    private synchronized void groom() {
+    private void groom() {
       // Need to iterate over a copy because grooming manipulates the list
       // we're iterating over. Note that a consistent order is necessary to
       // get consistent grooming.
-      for (Path path : new LinkedHashSet<Path>(getGroupsWithUnappliedJobs())) {
+      Set<Path> pending = getGroupsWithUnappliedJobs();
+      List<Path> paths;
+      synchronized (pending) {
+        paths = new ArrayList<>(pending);
+      }
+      for (Path path : paths) {
         EntityGroup eg = getGroup(path);
-        eg.maybeRollForwardUnappliedJobs();
+        Lock groupLock = lockGroup(path);
+        try {
+          eg.maybeRollForwardUnappliedJobs();
+        } finally {
+          groupLock.unlock();
+        }
+      }
+    }
+
+    /**
+     * Locks the entity group with the given path and returns its lock. Writes, commits and strongly
+     * consistent reads of an entity group hold its lock, so that they do not wait for operations
+     * on the other entity groups of the profile. The lock must not be taken while holding the
+     * monitor of the profile.
+     */
+    Lock lockGroup(Path path) {
+      Lock lock = getGroupLock(path);
+      lock.lock();
+      return lock;
+    }
+
+    /** Returns the lock of the entity group with the given path, which it may share. */
+    /* @VisibleForTesting */
+    Lock getGroupLock(Path path) {
+      return getGroupLocks().get(path);
+    }
+
+    /**
+     * Locks the entity groups with the given paths, always in the same order so that callers that
+     * lock several groups cannot deadlock. Release them with {@link #unlockGroups(List)}.
+     */
+    List<Lock> lockGroups(Collection<Path> paths) {
+      List<Lock> locked = new ArrayList<>(paths.size());
+      for (Lock lock : getGroupLocks().bulkGet(paths)) {
+        lock.lock();
+        locked.add(lock);
+      }
+      return locked;
+    }
+
+    static void unlockGroups(List<Lock> locks) {
+      for (Lock lock : Lists.reverse(locks)) {
+        lock.unlock();
+      }
+    }
+
+    private synchronized Striped<Lock> getGroupLocks() {
+      if (groupLocks == null) {
+        groupLocks = Striped.lock(GROUP_LOCK_STRIPES);
       }
+      return groupLocks;
     }
 
     public synchronized LiveQuery getQuery(long cursor) {
@@ -2179,9 +2565,12 @@ public abstract class LocalDatastoreService {
       getTxns().put(handle, txn);
     }
 
+    /**
+     * Removes the transaction with the given handle. The caller must {@link LiveTxn#close() close}
+     * it once the monitor of the profile is released.
+     */
     private synchronized LiveTxn removeTxn(long handle) {
       LiveTxn txn = getTxn(handle);
-      txn.close();
       txns.remove(handle);
       return txn;
     }
@@ -2202,7 +2591,7 @@ public abstract class LocalDatastoreService {
 
     private synchronized Set<Path> getGroupsWithUnappliedJobs() {
       if (groupsWithUnappliedJobs == null) {
-        groupsWithUnappliedJobs = new LinkedHashSet<Path>();
+        groupsWithUnappliedJobs = Collections.synchronizedSet(new LinkedHashSet<Path>());
       }
       return groupsWithUnappliedJobs;
     }
@@ -2224,7 +2613,10 @@ public abstract class LocalDatastoreService {
     }
   }
 
-  /** The set of all {@link EntityProto EntityProtos} of a single kind, organized by id. */
+  /**
+   * The set of all {@link EntityProto EntityProtos} of a single kind, organized by id. Its methods
+   * are synchronized, since the entity groups that share an extent are written concurrently.
+   */
   static class Extent implements Serializable {
 
     /**
@@ -2246,6 +2638,9 @@ public abstract class LocalDatastoreService {
      */
     private Map<Reference, Long> versions = new HashMap<>();
 
+    /** Created by the first query that can use indexes, and maintained from then on. */
+    private transient @Nullable ExtentIndexes indexes;
+
     /* Default serial version from 195 SDK. */
     private static final long serialVersionUID = 1199103439874512494L;
 
@@ -2255,7 +2650,7 @@ public abstract class LocalDatastoreService {
      */
     private static final String ENTITY_VERSION_RESERVED_PROPERTY = "__entity_version__";
 
-    public Collection<VersionedEntity> getAllEntities() {
+    public synchronized Collection<VersionedEntity> getAllEntities() {
       ImmutableList.Builder<VersionedEntity> builder = ImmutableList.builder();
       for (Reference key : entities.keySet()) {
         builder.add(getEntityByKey(key));
@@ -2263,37 +2658,95 @@ public abstract class LocalDatastoreService {
       return builder.build();
     }
 
-    public Collection<EntityProto> getAllEntityProtos() {
-      return entities.values();
+    public synchronized Collection<EntityProto> getAllEntityProtos() {
+      return ImmutableList.copyOf(entities.values());
     }
 
-    public VersionedEntity getEntityByKey(Reference key) {
+    /**
+     * Returns the entities that may match a query with the given ancestor and filters. Every entity
+     * that matches is returned, but so may entities that do not, so the query filters must still
+     * be applied.
+     */
+    public synchronized Collection<VersionedEntity> getCandidateEntities(
+        @Nullable Reference ancestor, List<Filter> filters) {
+      if (ancestor == null && filters.isEmpty()) {
+        return getAllEntities();
+      }
+      if (indexes == null) {
+        indexes = new ExtentIndexes(entities);
+      }
+      Set<Reference> keys = indexes.findCandidates(ancestor, filters);
+      if (keys == null) {
+        return getAllEntities();
+      }
+      ImmutableList.Builder<VersionedEntity> builder = ImmutableList.builder();
+      for (Reference key : keys) {
+        builder.add(getEntityByKey(key));
+      }
+      return builder.build();
+    }
+
+    public synchronized VersionedEntity getEntityByKey(Reference key) {
       EntityProto entity = entities.get(key);
       Long version = versions.get(key);
 
       return (entity == null) ? null : VersionedEntity.create(entity, version);
     }
 
-    public EntityProto getEntityProtoByKey(Reference key) {
+    public synchronized EntityProto getEntityProtoByKey(Reference key) {
       return entities.get(key);
     }
 
-    public void removeEntity(Reference key) {
+    public synchronized void removeEntity(Reference key) {
       versions.remove(key);
-      entities.remove(key);
+      EntityProto removed = entities.remove(key);
+      if (indexes != null && removed != null) {
+        indexes.remove(removed);
+      }
     }
 
-    public void putEntity(VersionedEntity entity) {
+    public synchronized void putEntity(VersionedEntity entity) {
       Reference key = entity.entityProto().getKey();
-      entities.put(key, entity.entityProto());
+      EntityProto replaced = entities.put(key, entity.entityProto());
       versions.put(key, entity.version());
+      if (indexes != null) {
+        if (replaced != null) {
+          indexes.remove(replaced);
+        }
+        indexes.add(entity.entityProto());
+      }
+    }
+
+    /** Returns a copy of this extent that shares its entities. */
+    synchronized Extent copyForPersistence() {
+      Extent copy = new Extent();
+      if (entities instanceof OffHeapEntityMap) {
+        copy.entities = ((OffHeapEntityMap) entities).copy();
+      } else {
+        copy.entities.putAll(entities);
+      }
+      copy.versions.putAll(versions);
+      return copy;
+    }
+
+    /**
+     * Moves the entities of this extent out of the Java heap. They are parsed again each time they
+     * are read from then on.
+     */
+    synchronized void moveOffHeap() {
+      if (!(entities instanceof OffHeapEntityMap)) {
+        OffHeapEntityMap offHeap = new OffHeapEntityMap();
+        offHeap.putAll(entities);
+        entities = offHeap;
+        indexes = null;
+      }
     }
 
     /**
      * Serializes a given {@link VersionedEntity} to a byte array, used by the {@link Serializable}
-     * implementation of {@link Extent}.
+     * implementation of {@link Extent} and by the write-ahead log.
      */
-    private byte[] serializeEntity(VersionedEntity entity) {
+    private static byte[] serializeEntity(VersionedEntity entity) {
       EntityProto stored = new EntityProto();
       stored.copyFrom(entity.entityProto());
 
@@ -2308,7 +2761,7 @@ public abstract class LocalDatastoreService {
      * Deserializes a {@link VersionedEntity} from a byte array, as returned by {@link
      * #serializeEntity(VersionedEntity)}.
      */
-    private VersionedEntity deserializeEntity(byte[] serialized) throws IOException {
+    private static VersionedEntity deserializeEntity(byte[] serialized) throws IOException {
       EntityProto entityProto = new EntityProto();
       if (!entityProto.parseFrom(serialized)) {
         throw new IOException("Corrupt or incomplete EntityProto");
@@ -2327,15 +2780,17 @@ public abstract class LocalDatastoreService {
       return VersionedEntity.create(entityProto, version);
     }
 
-    private void writeObject(ObjectOutputStream out) throws IOException {
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
       // We must call putFields() and writeFields() to write the Extent Object header.
       // This permits us to later call readFields() to try reading the legacy format.
       out.putFields();
       out.writeFields();
       out.writeLong(CURRENT_STORAGE_VERSION);
       out.writeInt(entities.size());
-      for (VersionedEntity entity : getAllEntities()) {
-        out.writeObject(serializeEntity(entity));
+      // Entities are not collected into a list first, as they may be parsed from off-heap storage.
+      for (Map.Entry<Reference, EntityProto> entry : entities.entrySet()) {
+        long version = versions.get(entry.getKey());
+        out.writeObject(serializeEntity(VersionedEntity.create(entry.getValue(), version)));
       }
     }
 
@@ -2373,6 +2828,7 @@ public abstract class LocalDatastoreService {
   /** A {@link LocalDatastoreJob} that puts and deletes a set of entities. */
   class WriteJob extends LocalDatastoreJob {
     private final Profile profile;
+    private final Profile.EntityGroup entityGroup;
     // TODO: remove this field and rely instead on the list of unappliedJobs in EntityGroup.
     @Nullable private LocalDatastoreJob previousJob;
     private final Map<Reference, EntityProto> puts;
@@ -2402,6 +2858,7 @@ public abstract class LocalDatastoreService {
         Iterable<Reference> deletes) {
       super(jobPolicy, entityGroup.pathAsKey(), commitTimestamp);
       this.profile = checkNotNull(profile);
+      this.entityGroup = entityGroup;
       this.previousJob = entityGroup.getLastJob();
       this.deletes = ImmutableSet.copyOf(deletes);
       // The list of EntityProto to write might contain duplicate. In that case, the last one
@@ -2458,19 +2915,27 @@ public abstract class LocalDatastoreService {
       // to the previous job. Keeping the link would lead to OOM in case we have a policy that
       // always leaves a job unapplied per entity group.
       previousJob = null;
+      List<Reference> deleted = new ArrayList<>();
+      List<VersionedEntity> written = new ArrayList<>();
       for (Reference key : deletes) {
         Extent extent = profile.getExtents().get(getKind(key));
         if (extent != null) {
+          entityGroup.preserveEntityForSnapshots(key);
           extent.removeEntity(key);
+          deleted.add(key);
         }
       }
       for (Map.Entry<Reference, EntityProto> entry : puts.entrySet()) {
         if (!isNoOpWrite(entry.getKey())) {
+          entityGroup.preserveEntityForSnapshots(entry.getKey());
           Extent extent = getOrCreateExtent(profile, getKind(entry.getKey()));
-          extent.putEntity(VersionedEntity.create(entry.getValue(), timestamp));
+          VersionedEntity entity = VersionedEntity.create(entry.getValue(), timestamp);
+          extent.putEntity(entity);
+          written.add(entity);
         }
       }
       dirty = true;
+      appendToWriteAheadLog(deleted, written);
     }
 
     @Override
@@ -2575,6 +3040,8 @@ public abstract class LocalDatastoreService {
 
     private final List<EntityProto> entities;
     private final Map<Reference, Long> versions;
+    /** The index in {@link #entities} of the next entity to return. */
+    private int nextEntity = 0;
     private EntityProto lastResult = null;
     private int remainingOffset = 0;
 
@@ -2603,16 +3070,6 @@ public abstract class LocalDatastoreService {
 
       this.entities = Lists.newArrayList(entities);
 
-      ImmutableMap.Builder<Reference, Long> versionsBuilder = ImmutableMap.builder();
-      if (this.projectedProperties.isEmpty() && !this.query.isKeysOnly() && versions != null) {
-        for (EntityProto entity : this.entities) {
-          Reference key = entity.getKey();
-          checkArgument(versions.containsKey(key));
-          versionsBuilder.put(key, versions.get(key));
-        }
-      }
-      this.versions = versionsBuilder.buildOrThrow();
-
       // Apply cursors
       DecompiledCursor startCursor =
           new DecompiledCursor(query.hasCompiledCursor() ? query.getCompiledCursor() : null, true);
@@ -2637,13 +3094,24 @@ public abstract class LocalDatastoreService {
           this.entities.subList(toIndex, this.entities.size()).clear();
         }
       }
+
+      ImmutableMap.Builder<Reference, Long> versionsBuilder = ImmutableMap.builder();
+      if (this.projectedProperties.isEmpty() && !this.query.isKeysOnly() && versions != null) {
+        for (EntityProto entity : this.entities) {
+          Reference key = entity.getKey();
+          checkArgument(versions.containsKey(key));
+          versionsBuilder.put(key, versions.get(key));
+        }
+      }
+      this.versions = versionsBuilder.buildOrThrow();
     }
 
     private int offsetResults(int offset) {
-      int realOffset = Math.min(Math.min(offset, entities.size()), MAX_QUERY_RESULTS);
+      int realOffset =
+          Math.min(Math.min(offset, entities.size() - nextEntity), MAX_QUERY_RESULTS);
       if (realOffset > 0) {
-        lastResult = entities.get(realOffset - 1);
-        entities.subList(0, realOffset).clear();
+        nextEntity += realOffset;
+        lastResult = entities.get(nextEntity - 1);
         remainingOffset -= realOffset;
       }
       return realOffset;
@@ -2687,7 +3155,7 @@ public abstract class LocalDatastoreService {
           }
         }
       }
-      result.setMoreResults(!entities.isEmpty());
+      result.setMoreResults(nextEntity < entities.size());
       result.setKeysOnly(query.isKeysOnly());
       result.setIndexOnly(query.propertyNameSize() > 0);
       if (compile) {
@@ -2696,17 +3164,22 @@ public abstract class LocalDatastoreService {
       return result;
     }
 
-    /** Removes and returns the given number of entities from the result set. */
+    /**
+     * Removes and returns the given number of entities from the result set. The entities are left
+     * in place and skipped over, which avoids shifting the remaining entities on every batch.
+     */
     private List<EntityProto> removeEntities(int count) {
-      List<EntityProto> subList = entities.subList(0, Math.min(count, entities.size()));
-
-      if (!subList.isEmpty()) {
-        lastResult = subList.get(subList.size() - 1);
+      int end = Math.min(nextEntity + count, entities.size());
+      List<EntityProto> results = new ArrayList<>(entities.subList(nextEntity, end));
+      for (int i = nextEntity; i < end; i++) {
+        // Release the entities that have been returned.
+        entities.set(i, null);
       }
+      nextEntity = end;
 
-      List<EntityProto> results = new ArrayList<>(subList);
-      subList.clear();
-
+      if (!results.isEmpty()) {
+        lastResult = getLast(results);
+      }
       return results;
     }
 
@@ -2921,7 +3394,7 @@ public abstract class LocalDatastoreService {
     }
 
     synchronized Collection<EntityGroupTracker> getAllTrackers() {
-      return entityGroups.values();
+      return new ArrayList<>(entityGroups.values());
     }
 
     synchronized void addActions(Collection<TaskQueueAddRequest> newActions) {
@@ -2947,13 +3420,15 @@ public abstract class LocalDatastoreService {
       return false;
     }
 
-    synchronized void close() {
+    void close() {
       // Calling close is optional. Eventually the transaction will
       // timeout and get GC'd since EntityGroup uses a WeakHashMap.
       // Closing the transaction does prevent us from making an extra,
       // useless snapshot. In particular, the transaction should
       // be closed during commit before modifying any entities,
       // to prevent an extra snapshot during each commit.
+      // Not synchronized, as removing the transaction takes the lock of
+      // each entity group, and those are held while tracking a group.
       for (EntityGroupTracker tracker : getAllTrackers()) {
         tracker.getEntityGroup().removeTransaction(this);
       }
@@ -3189,6 +3664,15 @@ public abstract class LocalDatastoreService {
   }
 
   private void persist() {
+    WriteAheadLog log = writeAheadLog;
+    if (log != null) {
+      long threshold = Math.max(MIN_LOG_COMPACTION_BYTES, new File(backingStore).length());
+      if (log.size() >= threshold) {
+        compactWriteAheadLog();
+      }
+      return;
+    }
+
     globalLock.writeLock().lock();
     try {
       if (noStorage || !dirty) {
@@ -3196,13 +3680,7 @@ public abstract class LocalDatastoreService {
       }
 
       long start = clock.getCurrentTime();
-      try (ObjectOutputStream objectOut =
-          new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(backingStore)))) {
-        objectOut.writeLong(-CURRENT_STORAGE_VERSION);
-        objectOut.writeLong(entityIdSequential.get());
-        objectOut.writeLong(entityIdScattered.get());
-        objectOut.writeObject(profiles);
-      }
+      writeBackingStore(entityIdSequential.get(), entityIdScattered.get(), profiles);
 
       dirty = false;
       long end = clock.getCurrentTime();
@@ -3222,6 +3700,113 @@ public abstract class LocalDatastoreService {
     }
   }
 
+  /**
+   * Writes the profiles to a temporary file and then moves it over the backing store, so that a
+   * failure part way through leaves the previous backing store intact.
+   */
+  private void writeBackingStore(
+      long sequentialId, long scatteredId, Map<String, Profile> profilesToWrite)
+      throws IOException {
+    File backingStoreFile = new File(backingStore);
+    File tempFile = new File(backingStore + ".tmp");
+    try (FileOutputStream fileOut = new FileOutputStream(tempFile);
+        ObjectOutputStream objectOut = new ObjectOutputStream(new BufferedOutputStream(fileOut))) {
+      objectOut.writeLong(-CURRENT_STORAGE_VERSION);
+      objectOut.writeLong(sequentialId);
+      objectOut.writeLong(scatteredId);
+      objectOut.writeObject(profilesToWrite);
+      objectOut.flush();
+      fileOut.getFD().sync();
+    }
+    try {
+      Files.move(
+          tempFile.toPath(),
+          backingStoreFile.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(tempFile.toPath(), backingStoreFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /** Appends the entities that a write job deleted and wrote to the write-ahead log, if any. */
+  private void appendToWriteAheadLog(List<Reference> deleted, List<VersionedEntity> written) {
+    WriteAheadLog log = writeAheadLog;
+    if (log == null || (deleted.isEmpty() && written.isEmpty())) {
+      return;
+    }
+    List<byte[]> deletedKeys = new ArrayList<>(deleted.size());
+    for (Reference key : deleted) {
+      deletedKeys.add(key.toByteArray());
+    }
+    List<byte[]> writtenEntities = new ArrayList<>(written.size());
+    for (VersionedEntity entity : written) {
+      writtenEntities.add(Extent.serializeEntity(entity));
+    }
+    try {
+      log.appendWrite(
+          entityIdSequential.get(), entityIdScattered.get(), deletedKeys, writtenEntities);
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Unable to append to the datastore log", e);
+    }
+  }
+
+  private void syncWriteAheadLog() {
+    WriteAheadLog log = writeAheadLog;
+    if (log != null) {
+      try {
+        log.sync();
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, "Unable to sync the datastore log", e);
+      }
+    }
+  }
+
+  /**
+   * Writes the current data to a new backing store and discards the write-ahead log records it
+   * replaces. Writes are not blocked while that happens: each profile is copied under its own lock
+   * and the copies are written out while the writes that follow go to a new log.
+   */
+  private void compactWriteAheadLog() {
+    synchronized (compactionLock) {
+      WriteAheadLog log = writeAheadLog;
+      if (log == null || !dirty) {
+        return;
+      }
+      long start = clock.getCurrentTime();
+      try {
+        dirty = false;
+        log.startCompaction();
+        long sequentialId = entityIdSequential.get();
+        long scatteredId = entityIdScattered.get();
+        Map<String, Profile> current = new HashMap<>(profiles);
+        Map<String, Profile> copies = new HashMap<>();
+        for (Map.Entry<String, Profile> entry : current.entrySet()) {
+          copies.put(entry.getKey(), entry.getValue().copyForPersistence());
+        }
+        writeBackingStore(sequentialId, scatteredId, copies);
+        log.finishCompaction();
+        long end = clock.getCurrentTime();
+        logger.log(Level.INFO, "Time to compact datastore: " + (end - start) + " ms");
+      } catch (IOException e) {
+        dirty = true;
+        logger.log(Level.SEVERE, "Unable to save the datastore", e);
+      }
+    }
+  }
+
+  private void closeWriteAheadLog() {
+    WriteAheadLog log = writeAheadLog;
+    if (log != null) {
+      writeAheadLog = null;
+      try {
+        log.close();
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, "Unable to close the datastore log", e);
+      }
+    }
+  }
+
   /**
    * Triggers the stale query sweeper with a simulated delay sufficient to expire all active
    * queries.
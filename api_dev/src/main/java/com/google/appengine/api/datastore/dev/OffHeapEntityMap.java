@@ -0,0 +1,239 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.datastore.dev;
+
+import com.google.storage.onestore.v3.OnestoreEntity.EntityProto;
+import com.google.storage.onestore.v3.OnestoreEntity.Reference;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * A map from keys to entities that keeps the entities serialized outside of the Java heap, and
+ * parses an entity each time it is read. Only the keys stay on the heap.
+ *
+ * <p>The entities are appended to segments that are memory-mapped from temporary files, so they
+ * are backed by the page cache rather than counted against the heap or the direct memory limit.
+ * The space of replaced and removed entities is reclaimed by copying the live entities to new
+ * segments once it exceeds the space they use. Segments are unmapped when they are no longer
+ * referenced. Each map starts with a small segment and doubles the size of the next one up to a
+ * limit, so that maps holding few entities, such as the extents of rarely used kinds, only map
+ * small files.
+ *
+ * <p>The entities returned are new objects, so changing them does not change the map. Like the
+ * {@code LinkedHashMap} it replaces, the map iterates in insertion order and is not thread safe.
+ */
+final class OffHeapEntityMap extends AbstractMap<Reference, EntityProto> {
+
+  /** The size of the first segment of a map, and the least garbage worth reclaiming. */
+  private static final int MIN_SEGMENT_SIZE = 64 * 1024;
+
+  /** The size beyond which segments stop growing, unless a single entity needs more. */
+  private static final int MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+  /** Where the serialized form of an entity is stored. */
+  private static final class Slot {
+    final ByteBuffer segment;
+    final int offset;
+    final int length;
+
+    Slot(ByteBuffer segment, int offset, int length) {
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  private final Map<Reference, Slot> slots = new LinkedHashMap<>();
+
+  /** The segment that entities are appended to, or null if a new one must be started. */
+  private @Nullable ByteBuffer currentSegment;
+
+  private int currentOffset;
+  private int nextSegmentSize = MIN_SEGMENT_SIZE;
+  private long liveBytes;
+  private long garbageBytes;
+
+  @Override
+  public int size() {
+    return slots.size();
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return slots.containsKey(key);
+  }
+
+  @Override
+  public @Nullable EntityProto get(Object key) {
+    Slot slot = slots.get(key);
+    return (slot == null) ? null : decode(slot);
+  }
+
+  @Override
+  public @Nullable EntityProto put(Reference key, EntityProto entity) {
+    Slot previous = slots.put(key, append(entity.toByteArray()));
+    return (previous == null) ? null : release(previous);
+  }
+
+  @Override
+  public @Nullable EntityProto remove(Object key) {
+    Slot previous = slots.remove(key);
+    return (previous == null) ? null : release(previous);
+  }
+
+  @Override
+  public void clear() {
+    slots.clear();
+    currentSegment = null;
+    nextSegmentSize = MIN_SEGMENT_SIZE;
+    liveBytes = 0;
+    garbageBytes = 0;
+  }
+
+  @Override
+  public Set<Reference> keySet() {
+    // Unlike the inherited implementation, this does not parse the entities.
+    return Collections.unmodifiableSet(slots.keySet());
+  }
+
+  @Override
+  public Set<Map.Entry<Reference, EntityProto>> entrySet() {
+    return new AbstractSet<Map.Entry<Reference, EntityProto>>() {
+      @Override
+      public int size() {
+        return slots.size();
+      }
+
+      @Override
+      public Iterator<Map.Entry<Reference, EntityProto>> iterator() {
+        Iterator<Map.Entry<Reference, Slot>> iterator = slots.entrySet().iterator();
+        return new Iterator<Map.Entry<Reference, EntityProto>>() {
+          @Override
+          public boolean hasNext() {
+            return iterator.hasNext();
+          }
+
+          @Override
+          public Map.Entry<Reference, EntityProto> next() {
+            Map.Entry<Reference, Slot> entry = iterator.next();
+            return new SimpleImmutableEntry<>(entry.getKey(), decode(entry.getValue()));
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * Returns a copy of this map that shares the stored entities. Stored entities are never
+   * overwritten and the copy appends to segments of its own, so neither map changes the other.
+   */
+  OffHeapEntityMap copy() {
+    OffHeapEntityMap copy = new OffHeapEntityMap();
+    copy.slots.putAll(slots);
+    copy.liveBytes = liveBytes;
+    return copy;
+  }
+
+  /** Returns the number of bytes written to segments since they were last compacted. */
+  /* @VisibleForTesting */
+  long storedBytes() {
+    return liveBytes + garbageBytes;
+  }
+
+  private Slot append(byte[] bytes) {
+    ByteBuffer segment = currentSegment;
+    if (segment == null || segment.capacity() - currentOffset < bytes.length) {
+      segment = newSegment(Math.max(nextSegmentSize, bytes.length));
+      nextSegmentSize = (int) Math.min(MAX_SEGMENT_SIZE, 2L * nextSegmentSize);
+      currentSegment = segment;
+      currentOffset = 0;
+    }
+    segment.put(currentOffset, bytes);
+    Slot slot = new Slot(segment, currentOffset, bytes.length);
+    currentOffset += bytes.length;
+    liveBytes += bytes.length;
+    return slot;
+  }
+
+  /** Returns the entity in a slot that is no longer used, and reclaims space if it is worth it. */
+  private EntityProto release(Slot slot) {
+    EntityProto entity = decode(slot);
+    liveBytes -= slot.length;
+    garbageBytes += slot.length;
+    if (garbageBytes > MIN_SEGMENT_SIZE && garbageBytes > liveBytes) {
+      compact();
+    }
+    return entity;
+  }
+
+  /**
+   * Copies the live entities to new segments, so that the old segments can be unmapped. The first
+   * new segment is sized to hold all of them, up to the segment size limit.
+   */
+  private void compact() {
+    currentSegment = null;
+    nextSegmentSize = (int) Math.min(MAX_SEGMENT_SIZE, Math.max(MIN_SEGMENT_SIZE, liveBytes));
+    liveBytes = 0;
+    garbageBytes = 0;
+    for (Map.Entry<Reference, Slot> entry : slots.entrySet()) {
+      entry.setValue(append(read(entry.getValue())));
+    }
+  }
+
+  private static byte[] read(Slot slot) {
+    byte[] bytes = new byte[slot.length];
+    slot.segment.get(slot.offset, bytes);
+    return bytes;
+  }
+
+  private static EntityProto decode(Slot slot) {
+    EntityProto entity = new EntityProto();
+    if (!entity.parseFrom(read(slot))) {
+      throw new IllegalStateException("Corrupt or incomplete off-heap EntityProto");
+    }
+    return entity;
+  }
+
+  private static ByteBuffer newSegment(int size) {
+    try {
+      File file = File.createTempFile("local_db", ".segment");
+      try (FileChannel channel =
+          FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      } finally {
+        // The mapping stays valid after the file is deleted, on platforms that allow deleting it.
+        if (!file.delete()) {
+          file.deleteOnExit();
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to allocate off-heap entity storage", e);
+    }
+  }
+}
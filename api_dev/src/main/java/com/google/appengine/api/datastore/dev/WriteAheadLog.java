@@ -0,0 +1,269 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.datastore.dev;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the writes applied to a {@link LocalDatastoreService}, which lets it
+ * persist each write as it is applied instead of rewriting its whole backing store.
+ *
+ * <p>The log is kept next to the backing store, in a file with the suffix {@value #LOG_SUFFIX}.
+ * Each record is framed by its length and a CRC32 checksum, so that a record that was only partly
+ * written when the process died is detected. Replay stops there and truncates the log after the
+ * last valid record, so that the records appended later are not lost behind it. Records are
+ * handed to the operating system as they are appended, and {@link #sync()} forces them to disk, so
+ * that one fsync covers all the writes made since the previous one.
+ *
+ * <p>Compaction writes a new backing store and then discards the log. {@link #startCompaction()}
+ * moves the current log aside and starts a new one, so writes can go on while the backing store is
+ * written, and {@link #finishCompaction()} deletes the old log once the backing store is safely on
+ * disk. A write may thus be both in the backing store and in a log. That is harmless because
+ * records set entities to a given state: replaying them again, in order, gives the same result.
+ *
+ * <p>This class is thread safe.
+ */
+final class WriteAheadLog {
+  private static final Logger logger = Logger.getLogger(WriteAheadLog.class.getName());
+
+  static final String LOG_SUFFIX = ".log";
+
+  static final String COMPACTING_LOG_SUFFIX = ".log.compacting";
+
+  private static final byte WRITE_RECORD = 1;
+
+  private static final byte CLEAR_RECORD = 2;
+
+  private static final int RECORD_HEADER_SIZE = 8;
+
+  /** Receives the records of the logs of a backing store as they are replayed. */
+  interface Replayer {
+    /** Called with the ID allocation counters as they were when a write was applied. */
+    void idCounters(long sequential, long scattered);
+
+    /** Called with the serialized {@code Reference} of a deleted entity. */
+    void delete(byte[] key) throws IOException;
+
+    /** Called with an entity that was written, as serialized by the backing store. */
+    void put(byte[] entity) throws IOException;
+
+    /** Called when all the data of the datastore was cleared. */
+    void clear();
+  }
+
+  private final File logFile;
+  private final File compactingLogFile;
+  private FileOutputStream fileOut;
+  private DataOutputStream out;
+  private long size;
+
+  /** Opens the log of the given backing store for appending, creating it if needed. */
+  WriteAheadLog(File backingStore) throws IOException {
+    this.logFile = new File(backingStore.getPath() + LOG_SUFFIX);
+    this.compactingLogFile = new File(backingStore.getPath() + COMPACTING_LOG_SUFFIX);
+    open();
+  }
+
+  /**
+   * Appends a record of one applied write job.
+   *
+   * @param sequentialId the sequential ID allocation counter
+   * @param scatteredId the scattered ID allocation counter
+   * @param deletedKeys the serialized keys of the entities that were deleted
+   * @param writtenEntities the entities that were written, as serialized by the backing store
+   */
+  synchronized void appendWrite(
+      long sequentialId, long scatteredId, List<byte[]> deletedKeys, List<byte[]> writtenEntities)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream record = new DataOutputStream(bytes);
+    record.writeByte(WRITE_RECORD);
+    record.writeLong(sequentialId);
+    record.writeLong(scatteredId);
+    writeAll(record, deletedKeys);
+    writeAll(record, writtenEntities);
+    record.flush();
+    writeRecord(bytes.toByteArray());
+  }
+
+  /** Appends a record that all the data of the datastore was cleared. */
+  synchronized void appendClear() throws IOException {
+    writeRecord(new byte[] {CLEAR_RECORD});
+  }
+
+  /** Forces the records appended so far to disk. */
+  synchronized void sync() throws IOException {
+    out.flush();
+    fileOut.getFD().sync();
+  }
+
+  /** Returns the number of bytes in the current log. */
+  synchronized long size() {
+    return size;
+  }
+
+  /**
+   * Moves the current log aside and starts a new one. Records appended from now on are not needed
+   * once a backing store that is written after this call is on disk.
+   */
+  synchronized void startCompaction() throws IOException {
+    sync();
+    out.close();
+    if (compactingLogFile.exists()) {
+      // A previous compaction failed, so the records in its log are still needed.
+      try (FileOutputStream append = new FileOutputStream(compactingLogFile, true)) {
+        Files.copy(logFile.toPath(), append);
+        append.getFD().sync();
+      }
+      Files.delete(logFile.toPath());
+    } else {
+      Files.move(logFile.toPath(), compactingLogFile.toPath());
+    }
+    open();
+  }
+
+  /** Deletes the log that was moved aside, once the new backing store is on disk. */
+  synchronized void finishCompaction() throws IOException {
+    Files.deleteIfExists(compactingLogFile.toPath());
+  }
+
+  synchronized void close() throws IOException {
+    sync();
+    out.close();
+  }
+
+  /**
+   * Replays the logs of the given backing store, oldest record first.
+   *
+   * @return the number of records replayed
+   */
+  static int replay(File backingStore, Replayer replayer) throws IOException {
+    return replay(new File(backingStore.getPath() + COMPACTING_LOG_SUFFIX), replayer)
+        + replay(new File(backingStore.getPath() + LOG_SUFFIX), replayer);
+  }
+
+  private void open() throws IOException {
+    fileOut = new FileOutputStream(logFile, true);
+    out = new DataOutputStream(new BufferedOutputStream(fileOut));
+    size = logFile.length();
+  }
+
+  private void writeRecord(byte[] record) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(record);
+    out.writeInt(record.length);
+    out.writeInt((int) crc.getValue());
+    out.write(record);
+    out.flush();
+    size += RECORD_HEADER_SIZE + record.length;
+  }
+
+  private static void writeAll(DataOutputStream record, List<byte[]> values) throws IOException {
+    record.writeInt(values.size());
+    for (byte[] value : values) {
+      record.writeInt(value.length);
+      record.write(value);
+    }
+  }
+
+  /**
+   * Replays the records of one log, and truncates it after the last valid record if it ends with
+   * a record that was only partly written or is corrupt.
+   */
+  private static int replay(File log, Replayer replayer) throws IOException {
+    if (!log.exists()) {
+      return 0;
+    }
+    long fileLength = log.length();
+    long validLength = 0;
+    int count = 0;
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(log)))) {
+      while (fileLength - validLength >= RECORD_HEADER_SIZE) {
+        int length = in.readInt();
+        int checksum = in.readInt();
+        if (length <= 0 || length > fileLength - validLength - RECORD_HEADER_SIZE) {
+          break;
+        }
+        byte[] record = new byte[length];
+        in.readFully(record);
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        if ((int) crc.getValue() != checksum) {
+          break;
+        }
+        replayRecord(new DataInputStream(new ByteArrayInputStream(record)), replayer);
+        validLength += RECORD_HEADER_SIZE + length;
+        count++;
+      }
+    }
+    if (validLength < fileLength) {
+      logger.warning(
+          "Ignoring an incomplete or corrupt record at the end of "
+              + log
+              + ", and truncating the log to its "
+              + count
+              + " valid records");
+      try (FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.WRITE)) {
+        channel.truncate(validLength);
+        channel.force(true);
+      }
+    }
+    return count;
+  }
+
+  private static void replayRecord(DataInputStream record, Replayer replayer) throws IOException {
+    byte type = record.readByte();
+    switch (type) {
+      case WRITE_RECORD:
+        replayer.idCounters(record.readLong(), record.readLong());
+        for (int i = record.readInt(); i > 0; i--) {
+          replayer.delete(readValue(record));
+        }
+        for (int i = record.readInt(); i > 0; i--) {
+          replayer.put(readValue(record));
+        }
+        break;
+      case CLEAR_RECORD:
+        replayer.clear();
+        break;
+      default:
+        throw new IOException("Unknown datastore log record type " + type);
+    }
+  }
+
+  private static byte[] readValue(DataInputStream record) throws IOException {
+    byte[] value = new byte[record.readInt()];
+    record.readFully(value);
+    return value;
+  }
+}
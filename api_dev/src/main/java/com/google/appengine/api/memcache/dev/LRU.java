@@ -18,6 +18,8 @@ package com.google.appengine.api.memcache.dev;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.util.Comparator;
+
 /**
  * Implements a simple LRU cache by intrusive chaining on elements.
  *
@@ -138,6 +140,30 @@ class LRU<C extends LRU.Chainable<C>> {
     if (oldest == null) oldest = element;
   }
 
+  /**
+   * Insert or move an element to its place in a chain that is ordered from oldest to newest. The
+   * place is searched from the newest end of the chain, so this is fast for elements that belong
+   * near it.
+   *
+   * @param element the element being updated. May not be {@code null}.
+   * @param order the order of the chain, in which older elements come first.
+   */
+  public void updateInOrder(C element, Comparator<? super C> order) {
+    checkNotNull(element, "element cannot be null");
+    remove(element);
+    C older = newest;
+    while (older != null && order.compare(older, element) > 0) {
+      older = older.getOlder();
+    }
+    C newer = (older == null) ? oldest : older.getNewer();
+    element.setOlder(older);
+    element.setNewer(newer);
+    if (older != null) older.setNewer(element);
+    if (newer != null) newer.setOlder(element);
+    if (older == newest) newest = element;
+    if (older == null) oldest = element;
+  }
+
   /**
    * Remove an element from the chain.
    *
@@ -46,14 +46,23 @@ import com.google.appengine.tools.development.LocalRpcService;
 import com.google.appengine.tools.development.LocalServiceContext;
 import com.google.apphosting.api.ApiProxy;
 import com.google.auto.service.AutoService;
+import com.google.common.math.IntMath;
 import com.google.protobuf.ByteString;
+import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Java bindings for the local Memcache service. The local cache will by default hold up to 100Mb of
@@ -61,6 +70,17 @@ import java.util.concurrent.atomic.AtomicLong;
  * memcache.maxsize}, set in megabytes ("100M"), in kilobytes ("102400K"), or in bytes
  * ("104857600").
  *
+ * <p>The cache is split into shards, each with its own entries, LRU chain and byte count, so that
+ * calls for different keys do not wait for each other, and reads do not take any lock. There are
+ * twice as many shards as processors by default, rounded up to a power of two, and the init
+ * property {@code memcache.shards} sets another number. The size limit applies to the whole cache:
+ * when it is exceeded, the least recently used entries are discarded, whatever their shard.
+ *
+ * <p>The entries can be persisted to a file named by the init property {@code
+ * memcache.backing_store}, so that the cache outlives the process. {@link #snapshot} and {@link
+ * #restore} save and load the contents of the cache, for example to start load tests from the same
+ * warm cache every time.
+ *
  */
 @AutoService(LocalRpcService.class)
 public final class LocalMemcacheService extends AbstractLocalRpcService {
@@ -69,62 +89,95 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
   public static final String PACKAGE = "memcache";
 
   public static final String SIZE_PROPERTY = "memcache.maxsize";
+
+  /** The init property that sets the number of shards, which is rounded up to a power of two. */
+  public static final String SHARDS_PROPERTY = "memcache.shards";
+
+  /**
+   * The init property that names a file in which the entries of the cache are persisted, with
+   * their expirations and CAS IDs. The cache is loaded from the file when the service starts. By
+   * default the cache is only kept in memory.
+   */
+  public static final String BACKING_STORE_PROPERTY = "memcache.backing_store";
+
+  private static final Logger logger = Logger.getLogger(LocalMemcacheService.class.getName());
+
   private static final String DEFAULT_MAX_SIZE = "100M";
   private static final String UTF8 = "UTF-8";
   private static final BigInteger UINT64_MIN_VALUE = BigInteger.ZERO;
   private static final BigInteger UINT64_MAX_VALUE = new BigInteger("FFFFFFFFFFFFFFFF", 16);
 
+  /** Orders the LRU chain of a shard, from the least to the most recently used entry. */
+  private static final Comparator<CacheEntry> USE_ORDER =
+      Comparator.comparingLong(entry -> entry.chainedUse);
+
   // global unique counter for compare-and-swap operations.
   // This will be globally incremented each time a new CAS ID is assigned, eventually wrapping
   // around.  See //depot/google3/cacheserving/memcacheg/server/item.cc.
   private final AtomicLong globalNextCasId;
 
+  // global counter of the uses of entries, which orders them for the LRU policy.
+  private final AtomicLong useCounter = new AtomicLong();
+
   /**
-   * A single entry in the cache.
+   * A single entry in the cache. Entries are replaced rather than changed when their value
+   * changes, so that they can be read without holding any lock.
    *
    */
-  private class CacheEntry extends LRU.AbstractChainable<CacheEntry>
-      implements Comparable<CacheEntry> {
-    public final String namespace;
+  private class CacheEntry extends LRU.AbstractChainable<CacheEntry> {
     public final Key key;
-    public byte[] value;
-    int flags;
+    public final byte[] value;
+    final int flags;
 
     /** Expiration in milliseconds-since-epoch */
-    public long expires;
+    public final long expires;
 
     /** Access time in milliseconds-since-epoch */
-    public long access;
+    public volatile long access;
+
+    public final long bytes;
 
-    public long bytes;
+    /** The count of uses of the cache when this entry was last used. */
+    volatile long lastUse;
+
+    /**
+     * The value of {@link #lastUse} when this entry was last placed in the LRU chain of its shard.
+     * Guarded by the shard.
+     */
+    long chainedUse;
 
     /** "compare-and-swap" ID. See comments in <internal9>. */
-    public Long casId; // null ==> entry does not have a CAS ID.
+    private volatile Long casId; // null ==> entry does not have a CAS ID.
 
     /**
      * Creates a new entry
      *
-     * @param namespace the containing namespace
      * @param key the key
      * @param value the value
      * @param flags value-interpretation flags
      * @param expiration expiration in milliseconds-since-epoch
      */
-    public CacheEntry(String namespace, Key key, byte[] value, int flags, long expiration) {
-      this.namespace = namespace;
+    public CacheEntry(Key key, byte[] value, int flags, long expiration) {
       this.key = key;
       this.value = value;
       this.flags = flags;
       this.expires = expiration;
-      this.access = clock.getCurrentTime();
       this.bytes = key.getBytes().length + value.length;
       this.casId = null;
+      touch();
     }
 
-    /** Sort cache entries by descending access times. */
-    @Override
-    public int compareTo(CacheEntry entry) {
-      return Long.compare(access, entry.access);
+    /** Records a use of this entry, which makes it the most recently used entry of the cache. */
+    void touch() {
+      access = clock.getCurrentTime();
+      lastUse = useCounter.incrementAndGet();
+    }
+
+    /** Returns a new entry with another value, and the same flags, expiration and CAS ID. */
+    CacheEntry withValue(byte[] newValue) {
+      CacheEntry entry = new CacheEntry(key, newValue, flags, expires);
+      entry.casId = casId;
+      return entry;
     }
 
     /**
@@ -150,75 +203,171 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
     }
   }
 
-  private class LocalStats {
-    private long hits;
-    private long misses;
-    private long hitBytes;
+  /**
+   * A part of the cache, holding the entries whose keys hash to it. Entries are looked up without
+   * any lock, and changed while holding the monitor of the shard.
+   *
+   * <p>Reads do not move entries in the LRU chain, they only record their use in the entry. The
+   * chain is kept in the order of {@link CacheEntry#chainedUse}, and an entry found at its old end
+   * that was used since it was placed in the chain is moved to the place of its last use. Once no
+   * such entry is left at the old end, the oldest entry is the least recently used one.
+   */
+  private final class Shard {
+    private final Map<Key, CacheEntry> entries = new ConcurrentHashMap<>();
+    private final Map<Key, Long> deleteHold = new HashMap<>();
+    private final LRU<CacheEntry> lru = new LRU<>();
     private long itemCount;
-    private long totalBytes;
+    private long bytes;
 
-    private LocalStats(long hits, long misses, long hitBytes, long itemCount, long totalBytes) {
-      this.hits = hits;
-      this.misses = misses;
-      this.hitBytes = hitBytes;
-      this.itemCount = itemCount;
-      this.totalBytes = totalBytes;
+    /** Returns the unexpired entry for a key, after recording its use, or null if there is none. */
+    CacheEntry get(Key key) {
+      CacheEntry entry = entries.get(key);
+      if (entry != null) {
+        if (entry.expires == 0 || clock.getCurrentTime() < entry.expires) {
+          entry.touch();
+          return entry;
+        }
+        // Clean up expired item.
+        remove(entry);
+      }
+      return null;
     }
 
+    /** Adds an entry, in place of any entry for the same key. */
+    synchronized void put(CacheEntry entry) {
+      CacheEntry old = entries.put(entry.key, entry);
+      if (old != null) {
+        // The old entry is no longer valid so remove it from the LRU. The new entry will take its
+        // place when we add it below.
+        unlink(old);
+      }
+      entry.touch();
+      entry.chainedUse = entry.lastUse;
+      lru.update(entry);
+      itemCount++;
+      bytes += entry.bytes;
+      totalBytes.addAndGet(entry.bytes);
+      persistPut(entry);
+    }
+
+    /** Removes the entry for a key, and returns it, or null if there was none. */
+    synchronized CacheEntry remove(Key key) {
+      CacheEntry entry = entries.remove(key);
+      if (entry != null) {
+        unlink(entry);
+        persistDelete(key);
+      }
+      return entry;
+    }
+
+    /** Removes an entry, unless it was already replaced or removed. */
+    synchronized void remove(CacheEntry entry) {
+      if (entries.remove(entry.key, entry)) {
+        unlink(entry);
+        persistDelete(entry.key);
+      }
+    }
+
+    /** Assigns a CAS ID to an entry that does not have one yet. */
+    synchronized void markWithCasId(CacheEntry entry) {
+      if (!entry.hasCasId()) {
+        entry.markWithCasId();
+        if (entries.get(entry.key) == entry) {
+          persistPut(entry);
+        }
+      }
+    }
+
+    private void unlink(CacheEntry entry) {
+      lru.remove(entry);
+      itemCount--;
+      bytes -= entry.bytes;
+      totalBytes.addAndGet(-entry.bytes);
+    }
+
+    /** Returns the least recently used entry of the shard, or null if the shard is empty. */
+    synchronized CacheEntry getLeastRecentlyUsed() {
+      CacheEntry oldest = lru.getOldest();
+      while (oldest != null && oldest.chainedUse != oldest.lastUse) {
+        oldest.chainedUse = oldest.lastUse;
+        lru.updateInOrder(oldest, USE_ORDER);
+        oldest = lru.getOldest();
+      }
+      return oldest;
+    }
+
+    synchronized void clear() {
+      entries.clear();
+      deleteHold.clear();
+      lru.clear();
+      totalBytes.addAndGet(-bytes);
+      itemCount = 0;
+      bytes = 0;
+    }
+  }
+
+  private class LocalStats {
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder hitBytes = new LongAdder();
+
     public MergedNamespaceStats getAsMergedNamespaceStats() {
+      long itemCount = 0;
+      long bytes = 0;
+      for (Shard shard : shards) {
+        synchronized (shard) {
+          itemCount += shard.itemCount;
+          bytes += shard.bytes;
+        }
+      }
       return MergedNamespaceStats.newBuilder()
-          .setHits(hits)
-          .setMisses(misses)
-          .setByteHits(hitBytes)
-          .setBytes(totalBytes)
+          .setHits(hits.sum())
+          .setMisses(misses.sum())
+          .setByteHits(hitBytes.sum())
+          .setBytes(bytes)
           .setItems(itemCount)
           .setOldestItemAge(getMaxSecondsWithoutAccess())
           .build();
     }
 
     public int getMaxSecondsWithoutAccess() {
-      if (lru.isEmpty()) {
+      CacheEntry entry = getLeastRecentlyUsed();
+      if (entry == null) {
         return 0; // no entries
       }
-      CacheEntry entry = lru.getOldest();
       return (int) ((clock.getCurrentTime() - entry.access) / 1000);
     }
 
     public void recordHit(CacheEntry ce) {
-      hits++;
-      hitBytes += ce.bytes;
+      hits.increment();
+      hitBytes.add(ce.bytes);
     }
 
     public void recordMiss() {
-      misses++;
+      misses.increment();
     }
 
-    public void recordAdd(CacheEntry ce) {
-      itemCount++;
-      totalBytes += ce.bytes;
-      while (totalBytes > maxSize) {
-        CacheEntry oldest = lru.getOldest();
-        internalDelete(oldest.namespace, oldest.key);
-        itemCount--;
-        totalBytes -= oldest.bytes;
-      }
-    }
-
-    public void recordDelete(CacheEntry ce) {
-      itemCount--;
-      totalBytes -= ce.bytes;
+    public void reset() {
+      hits.reset();
+      misses.reset();
+      hitBytes.reset();
     }
   }
 
   /**
-   * Our keys will be byte[], which by default doesn't do hashCode() and equals() correctly. This
-   * wraps it to do so, using java.util.Arrays.
+   * The key of an entry: its namespace, and its key in the namespace. Our keys will be byte[],
+   * which by default doesn't do hashCode() and equals() correctly. This wraps it to do so, using
+   * java.util.Arrays.
    */
-  private class Key {
-    private byte[] keyval;
+  private static final class Key {
+    private final String namespace;
+    private final byte[] keyval;
+    private final int hash;
 
-    public Key(byte[] bytes) {
+    public Key(String namespace, byte[] bytes) {
+      this.namespace = namespace;
       keyval = bytes;
+      hash = 31 * namespace.hashCode() + Arrays.hashCode(bytes);
     }
 
     public byte[] getBytes() {
@@ -228,7 +377,8 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
     @Override
     public boolean equals(Object other) {
       if (other instanceof Key) {
-        return Arrays.equals(keyval, ((Key) other).keyval);
+        Key otherKey = (Key) other;
+        return namespace.equals(otherKey.namespace) && Arrays.equals(keyval, otherKey.keyval);
       } else {
         return false;
       }
@@ -236,77 +386,184 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
 
     @Override
     public int hashCode() {
-      return Arrays.hashCode(keyval);
+      return hash;
     }
   }
 
-  private LRU<CacheEntry> lru;
-  private final Map<String, Map<Key, CacheEntry>> mockCache;
-  private final Map<String, Map<Key, Long>> deleteHold;
+  private Shard[] shards;
+  private final AtomicLong totalBytes = new AtomicLong();
+  private final Object evictionLock = new Object();
   private long maxSize;
-  private LocalStats stats;
+  private final LocalStats stats;
   private Clock clock;
+  private File backingStoreFile;
+  private volatile MemcacheBackingStore backingStore;
 
   public LocalMemcacheService() {
-    lru = new LRU<CacheEntry>();
-    mockCache = new HashMap<String, Map<Key, CacheEntry>>();
-    deleteHold = new HashMap<String, Map<Key, Long>>();
-    stats = new LocalStats(0, 0, 0, 0, 0);
+    shards = newShards(2 * Runtime.getRuntime().availableProcessors());
+    stats = new LocalStats();
     globalNextCasId = new AtomicLong(1);
   }
 
-  private <K1, K2, V> Map<K2, V> getOrMakeSubMap(Map<K1, Map<K2, V>> map, K1 key) {
-    Map<K2, V> subMap = map.get(key);
-    if (subMap == null) {
-      subMap = new HashMap<K2, V>();
-      map.put(key, subMap);
+  private Shard[] newShards(int count) {
+    Shard[] newShards = new Shard[IntMath.ceilingPowerOfTwo(count)];
+    for (int i = 0; i < newShards.length; i++) {
+      newShards[i] = new Shard();
     }
-    return subMap;
+    return newShards;
   }
 
-  private CacheEntry getWithExpiration(String namespace, Key key) {
-    CacheEntry entry;
-    synchronized (mockCache) {
-      entry = getOrMakeSubMap(mockCache, namespace).get(key);
-      if (entry != null) {
-        if (entry.expires == 0 || clock.getCurrentTime() < entry.expires) {
-          entry.access = clock.getCurrentTime();
-          lru.update(entry);
-          return entry;
+  private Shard shardFor(Key key) {
+    int hash = key.hashCode();
+    return shards[(hash ^ (hash >>> 16)) & (shards.length - 1)];
+  }
+
+  /** Returns the least recently used entry of the whole cache, or null if it is empty. */
+  private CacheEntry getLeastRecentlyUsed() {
+    CacheEntry oldest = null;
+    for (Shard shard : shards) {
+      CacheEntry entry = shard.getLeastRecentlyUsed();
+      if (entry != null && (oldest == null || entry.lastUse < oldest.lastUse)) {
+        oldest = entry;
+      }
+    }
+    return oldest;
+  }
+
+  private void clear() {
+    for (Shard shard : shards) {
+      shard.clear();
+    }
+  }
+
+  /** Loads the entries of a backing store or snapshot into the cache. */
+  private int load(File file) throws IOException {
+    int records = MemcacheBackingStore.load(file, new Restorer());
+    evictToSizeLimit();
+    return records;
+  }
+
+  /** Adds the entries of a backing store or snapshot to the cache as it is loaded. */
+  private class Restorer implements MemcacheBackingStore.Loader {
+    private final long now = clock.getCurrentTime();
+
+    @Override
+    public void put(
+        String namespace, byte[] keyBytes, byte[] value, int flags, long expires, long casId) {
+      Key key = new Key(namespace, keyBytes);
+      if (expires != 0 && expires <= now) {
+        // The entry expired since it was written, but it still replaces any earlier entry.
+        shardFor(key).remove(key);
+        return;
+      }
+      CacheEntry entry = new CacheEntry(key, value, flags, expires);
+      if (casId != 0) {
+        entry.casId = casId;
+        globalNextCasId.accumulateAndGet(casId + 1, Math::max);
+      }
+      shardFor(key).put(entry);
+    }
+
+    @Override
+    public void delete(String namespace, byte[] keyBytes) {
+      Key key = new Key(namespace, keyBytes);
+      shardFor(key).remove(key);
+    }
+  }
+
+  /** Writes the unexpired entries of the cache to a backing store, least recently used first. */
+  private void writeEntries(MemcacheBackingStore.Writer writer) throws IOException {
+    SortedMap<Long, CacheEntry> entriesByUse = new TreeMap<>();
+    long now = clock.getCurrentTime();
+    for (Shard shard : shards) {
+      for (CacheEntry entry : shard.entries.values()) {
+        if (entry.expires == 0 || now < entry.expires) {
+          entriesByUse.put(entry.lastUse, entry);
         }
-        // Clean up expired item.
-        getOrMakeSubMap(mockCache, namespace).remove(key);
-        lru.remove(entry);
-        stats.recordDelete(entry);
       }
     }
-    return null;
+    for (CacheEntry entry : entriesByUse.values()) {
+      writer.put(
+          entry.key.namespace,
+          entry.key.getBytes(),
+          entry.value,
+          entry.flags,
+          entry.expires,
+          entry.hasCasId() ? entry.getCasId() : 0);
+    }
   }
 
-  private CacheEntry internalDelete(String namespace, Key key) {
-    CacheEntry ce;
-    synchronized (mockCache) {
-      ce = getOrMakeSubMap(mockCache, namespace).remove(key);
-      if (ce != null) {
-        lru.remove(ce);
+  private void persistPut(CacheEntry entry) {
+    MemcacheBackingStore store = backingStore;
+    if (store != null) {
+      try {
+        store.appendPut(
+            entry.key.namespace,
+            entry.key.getBytes(),
+            entry.value,
+            entry.flags,
+            entry.expires,
+            entry.hasCasId() ? entry.getCasId() : 0);
+      } catch (IOException e) {
+        backingStoreFailed(store, e);
       }
     }
-    return ce;
   }
 
-  private void internalSet(String namespace, Key key, CacheEntry entry) {
-    synchronized (mockCache) {
-      Map<Key, CacheEntry> namespaceMap = getOrMakeSubMap(mockCache, namespace);
-      CacheEntry old = namespaceMap.get(key);
-      if (old != null) {
-        // The old entry is no longer valid so remove it from the LRU. The new entry will take its
-        // place when we add it below.
-        lru.remove(old);
-        stats.recordDelete(old);
+  private void persistDelete(Key key) {
+    MemcacheBackingStore store = backingStore;
+    if (store != null) {
+      try {
+        store.appendDelete(key.namespace, key.getBytes());
+      } catch (IOException e) {
+        backingStoreFailed(store, e);
+      }
+    }
+  }
+
+  /** Rewrites the backing store, if there is one, once it has grown enough. */
+  private void compactBackingStoreIfNeeded() {
+    MemcacheBackingStore store = backingStore;
+    if (store != null) {
+      try {
+        store.compactIfNeeded(this::writeEntries);
+      } catch (IOException e) {
+        backingStoreFailed(store, e);
+      }
+    }
+  }
+
+  /** Stops persisting the cache after the backing store could not be written. */
+  private void backingStoreFailed(MemcacheBackingStore store, IOException e) {
+    logger.log(
+        Level.SEVERE,
+        "Failed to write the memcache backing store, " + backingStoreFile + ". It is no longer "
+            + "written to.",
+        e);
+    backingStore = null;
+    try {
+      store.close();
+    } catch (IOException closeException) {
+      // The store is already known to be broken.
+    }
+  }
+
+  /**
+   * Discards the least recently used entries until the cache fits in its size limit. This must be
+   * called without holding the monitor of any shard.
+   */
+  private void evictToSizeLimit() {
+    if (totalBytes.get() <= maxSize) {
+      return;
+    }
+    synchronized (evictionLock) {
+      while (totalBytes.get() > maxSize) {
+        CacheEntry oldest = getLeastRecentlyUsed();
+        if (oldest == null) {
+          return;
+        }
+        shardFor(oldest.key).remove(oldest);
       }
-      namespaceMap.put(key, entry);
-      lru.update(entry);
-      stats.recordAdd(entry);
     }
   }
 
@@ -339,6 +596,23 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
       throw new MemcacheServiceException(
           "Can't parse cache size limit '" + properties.get(SIZE_PROPERTY) + "'", ex);
     }
+    String shardsValue = properties.get(SHARDS_PROPERTY);
+    if (shardsValue != null) {
+      int shardCount;
+      try {
+        shardCount = Integer.parseInt(shardsValue.trim());
+      } catch (NumberFormatException ex) {
+        throw new MemcacheServiceException("Can't parse shard count '" + shardsValue + "'", ex);
+      }
+      if (shardCount <= 0) {
+        throw new MemcacheServiceException("Shard count must be positive: " + shardCount);
+      }
+      shards = newShards(shardCount);
+    }
+    String backingStorePath = properties.get(BACKING_STORE_PROPERTY);
+    if (backingStorePath != null) {
+      backingStoreFile = new File(backingStorePath);
+    }
   }
 
   /**
@@ -351,18 +625,85 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
   }
 
   @Override
-  public void start() {}
+  public synchronized void start() {
+    if (backingStoreFile == null) {
+      return;
+    }
+    String path = backingStoreFile.getAbsolutePath();
+    long start = System.currentTimeMillis();
+    try {
+      backingStoreFile.getAbsoluteFile().getParentFile().mkdirs();
+      int records = load(backingStoreFile);
+      backingStore = new MemcacheBackingStore(backingStoreFile);
+      logger.log(
+          Level.INFO,
+          "Loaded "
+              + records
+              + " memcache records from "
+              + path
+              + " in "
+              + (System.currentTimeMillis() - start)
+              + " ms");
+    } catch (IOException e) {
+      logger.log(
+          Level.SEVERE,
+          "Failed to load the memcache backing store, " + path + ". It will not be written to.",
+          e);
+    }
+  }
 
   @Override
-  public void stop() {}
+  public synchronized void stop() {
+    MemcacheBackingStore store = backingStore;
+    if (store != null) {
+      backingStore = null;
+      try {
+        store.close();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to close the memcache backing store", e);
+      }
+    }
+  }
+
+  /**
+   * Writes the unexpired entries of the cache to a file, with their flags, expirations and CAS IDs.
+   * {@link #restore} loads them back.
+   *
+   * @param file the file to write, which is replaced if it exists
+   */
+  public void snapshot(File file) throws IOException {
+    MemcacheBackingStore.write(file, this::writeEntries);
+  }
+
+  /**
+   * Replaces the contents of the cache with a snapshot written by {@link #snapshot}, or with the
+   * contents of a backing store. Entries that expired since the file was written are left out, and
+   * if the entries do not fit in the size limit of the cache, the least recently used ones are
+   * discarded. Changes made to the cache while it is restored may not be persisted.
+   *
+   * @param file the file to load
+   */
+  public synchronized void restore(File file) throws IOException {
+    MemcacheBackingStore store = backingStore;
+    backingStore = null;
+    try {
+      clear();
+      load(file);
+    } finally {
+      backingStore = store;
+    }
+    if (store != null) {
+      store.compact(this::writeEntries);
+    }
+  }
 
   public MemcacheGetResponse get(Status status, MemcacheGetRequest req) {
     MemcacheGetResponse.Builder result = MemcacheGetResponse.newBuilder();
 
     for (int i = 0; i < req.getKeyCount(); i++) {
       // our key is always a SHA1 hashcode
-      Key key = new Key(req.getKey(i).toByteArray());
-      CacheEntry entry = getWithExpiration(req.getNameSpace(), key);
+      Key key = new Key(req.getNameSpace(), req.getKey(i).toByteArray());
+      CacheEntry entry = shardFor(key).get(key);
       if (entry == null) {
         stats.recordMiss();
       } else {
@@ -374,7 +715,9 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
             .setValue(ByteString.copyFrom(entry.value));
 
         if (req.hasForCas() && req.getForCas()) {
-          entry.markWithCasId();
+          if (!entry.hasCasId()) {
+            shardFor(key).markWithCasId(entry);
+          }
           item.setCasId(entry.getCasId());
         }
 
@@ -391,25 +734,26 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
 
     for (int i = 0; i < req.getItemCount(); i++) {
       MemcacheSetRequest.Item item = req.getItem(i);
-      Key key = new Key(item.getKey().toByteArray());
+      Key key = new Key(namespace, item.getKey().toByteArray());
       SetPolicy policy = item.getSetPolicy();
-      Map<Key, Long> timeoutMap = getOrMakeSubMap(deleteHold, namespace);
-      Long timeout = timeoutMap.get(key);
+      Shard shard = shardFor(key);
 
-      if (timeout != null && policy == SetPolicy.SET) {
-        // A SET operation overrides and clears any timeout that may exist
-        timeout = null;
-        timeoutMap.remove(key);
-      }
+      synchronized (shard) {
+        Long timeout = shard.deleteHold.get(key);
 
-      if ((timeout != null && clock.getCurrentTime() < timeout)
-          || (policy == SetPolicy.CAS && !item.hasCasId())) {
-        result.addSetStatus(SetStatusCode.NOT_STORED);
-        continue;
-      }
+        if (timeout != null && policy == SetPolicy.SET) {
+          // A SET operation overrides and clears any timeout that may exist
+          timeout = null;
+          shard.deleteHold.remove(key);
+        }
+
+        if ((timeout != null && clock.getCurrentTime() < timeout)
+            || (policy == SetPolicy.CAS && !item.hasCasId())) {
+          result.addSetStatus(SetStatusCode.NOT_STORED);
+          continue;
+        }
 
-      synchronized (mockCache) {
-        CacheEntry existingEntry = getWithExpiration(namespace, key);
+        CacheEntry existingEntry = shard.get(key);
         if ((policy == SetPolicy.REPLACE && existingEntry == null)
             || (policy == SetPolicy.ADD && existingEntry != null)
             || (policy == SetPolicy.CAS && existingEntry == null)) {
@@ -425,11 +769,12 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
           // We create a new cacheEntry every time (rather than updating existing ones) to
           // avoid having to synchronize on reads. (Otherwise a reader on another thread
           // could be exposed to a partially modified entry).
-          CacheEntry newEntry = new CacheEntry(namespace, key, value, flags, expiry * 1000);
-          internalSet(namespace, key, newEntry);
+          shard.put(new CacheEntry(key, value, flags, expiry * 1000));
           result.addSetStatus(SetStatusCode.STORED);
         }
       }
+      evictToSizeLimit();
+      compactBackingStoreIfNeeded();
     }
     status.setSuccessful(true);
     return result.build();
@@ -442,18 +787,19 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
 
     for (int i = 0; i < req.getItemCount(); i++) {
       MemcacheDeleteRequest.Item item = req.getItem(i);
-      Key key = new Key(item.getKey().toByteArray());
-      CacheEntry ce = internalDelete(namespace, key);
-      result.addDeleteStatus(ce == null ? DeleteStatusCode.NOT_FOUND : DeleteStatusCode.DELETED);
-      if (ce != null) {
-        stats.recordDelete(ce);
-      }
-      // open spec whether this happens if there was no deletion
-      if (item.hasDeleteTime()) {
-        int millisNoReAdd = item.getDeleteTime() * 1000;
-        getOrMakeSubMap(deleteHold, namespace).put(key, clock.getCurrentTime() + millisNoReAdd);
+      Key key = new Key(namespace, item.getKey().toByteArray());
+      Shard shard = shardFor(key);
+      synchronized (shard) {
+        CacheEntry ce = shard.remove(key);
+        result.addDeleteStatus(ce == null ? DeleteStatusCode.NOT_FOUND : DeleteStatusCode.DELETED);
+        // open spec whether this happens if there was no deletion
+        if (item.hasDeleteTime()) {
+          int millisNoReAdd = item.getDeleteTime() * 1000;
+          shard.deleteHold.put(key, clock.getCurrentTime() + millisNoReAdd);
+        }
       }
     }
+    compactBackingStoreIfNeeded();
     status.setSuccessful(true);
     return result.build();
   }
@@ -461,11 +807,12 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
   public MemcacheIncrementResponse increment(Status status, MemcacheIncrementRequest req) {
     MemcacheIncrementResponse.Builder result = MemcacheIncrementResponse.newBuilder();
     final String namespace = req.getNameSpace();
-    final Key key = new Key(req.getKey().toByteArray());
+    final Key key = new Key(namespace, req.getKey().toByteArray());
     final long delta = req.getDirection() == Direction.DECREMENT ? -req.getDelta() : req.getDelta();
+    final Shard shard = shardFor(key);
 
-    synchronized (mockCache) { // only increment offers atomicity
-      CacheEntry ce = getWithExpiration(namespace, key);
+    synchronized (shard) { // only increment offers atomicity
+      CacheEntry ce = shard.get(key);
       if (ce == null) {
         if (req.hasInitialValue()) {
           // initial value is considered as uint64 and therefore can never be negative
@@ -474,8 +821,7 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
               req.hasInitialFlags()
                   ? req.getInitialFlags()
                   : MemcacheSerialization.Flag.LONG.ordinal();
-          ce = new CacheEntry(namespace, key, value.toString().getBytes(), flags, 0);
-          internalSet(namespace, key, ce);
+          ce = new CacheEntry(key, value.toString().getBytes(), flags, 0);
         } else {
           stats.recordMiss();
           return result.build(); // with hasNewValue() == false
@@ -505,20 +851,16 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
       } else if (value.compareTo(UINT64_MAX_VALUE) > 0) {
         value = value.and(UINT64_MAX_VALUE);
       }
-      stats.recordDelete(ce);
       try {
-        ce.value = value.toString().getBytes(UTF8);
+        // don't change the flags; it keeps its original size/type
+        shard.put(ce.withValue(value.toString().getBytes(UTF8)));
       } catch (UnsupportedEncodingException e) {
         throw new ApiProxy.UnknownException(UTF8 + " encoding was not found.");
       }
-      // don't change the flags; it keeps its original size/type
-      ce.bytes = key.getBytes().length + ce.value.length;
-      Map<Key, CacheEntry> namespaceMap = getOrMakeSubMap(mockCache, namespace);
-      namespaceMap.remove(key);
-      namespaceMap.put(key, ce);
-      stats.recordAdd(ce);
       result.setNewValue(value.longValue());
     }
+    evictToSizeLimit();
+    compactBackingStoreIfNeeded();
     status.setSuccessful(true);
     return result.build();
   }
@@ -528,17 +870,18 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
     MemcacheBatchIncrementResponse.Builder result = MemcacheBatchIncrementResponse.newBuilder();
     String namespace = batchReq.getNameSpace();
 
-    synchronized (mockCache) { // only increment offers atomicity
-      for (MemcacheIncrementRequest req : batchReq.getItemList()) {
-        MemcacheIncrementResponse.Builder resp = MemcacheIncrementResponse.newBuilder();
+    for (MemcacheIncrementRequest req : batchReq.getItemList()) {
+      MemcacheIncrementResponse.Builder resp = MemcacheIncrementResponse.newBuilder();
 
-        Key key = new Key(req.getKey().toByteArray());
-        long delta = req.getDelta();
-        if (req.getDirection() == Direction.DECREMENT) {
-          delta = -delta;
-        }
+      Key key = new Key(namespace, req.getKey().toByteArray());
+      long delta = req.getDelta();
+      if (req.getDirection() == Direction.DECREMENT) {
+        delta = -delta;
+      }
 
-        CacheEntry ce = getWithExpiration(namespace, key);
+      Shard shard = shardFor(key);
+      synchronized (shard) { // each increment is atomic, but not the batch as a whole
+        CacheEntry ce = shard.get(key);
         long newvalue;
         if (ce == null) {
           if (req.hasInitialValue()) {
@@ -548,7 +891,7 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
             } catch (IOException e) {
               throw new ApiProxy.UnknownException("Serialzation error: " + e);
             }
-            ce = new CacheEntry(namespace, key, value.value, value.flags.ordinal(), 0);
+            ce = new CacheEntry(key, value.value, value.flags.ordinal(), 0);
           } else {
             stats.recordMiss();
             resp.setIncrementStatus(IncrementStatusCode.NOT_CHANGED);
@@ -580,25 +923,20 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
         if (delta < 0 && newvalue < 0) {
           newvalue = 0;
         }
-        stats.recordDelete(ce);
         try {
-          ce.value = Long.toString(newvalue).getBytes(UTF8);
+          // don't change the flags; it keeps its original size/type
+          shard.put(ce.withValue(Long.toString(newvalue).getBytes(UTF8)));
         } catch (UnsupportedEncodingException e) {
           // Shouldn't happen.
           throw new ApiProxy.UnknownException(UTF8 + " encoding was not found.");
         }
 
-        // don't change the flags; it keeps its original size/type
-        ce.bytes = key.getBytes().length + ce.value.length;
-        Map<Key, CacheEntry> namespaceMap = getOrMakeSubMap(mockCache, namespace);
-        namespaceMap.remove(key);
-        namespaceMap.put(key, ce);
-        stats.recordAdd(ce);
-
         resp.setIncrementStatus(IncrementStatusCode.OK);
         resp.setNewValue(newvalue);
         result.addItem(resp);
       }
+      evictToSizeLimit();
+      compactBackingStoreIfNeeded();
     }
     status.setSuccessful(true);
     return result.build();
@@ -606,11 +944,15 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
 
   public MemcacheFlushResponse flushAll(Status status, MemcacheFlushRequest req) {
     MemcacheFlushResponse.Builder result = MemcacheFlushResponse.newBuilder();
-    synchronized (mockCache) {
-      mockCache.clear();
-      deleteHold.clear();
-      lru.clear();
-      stats = new LocalStats(0, 0, 0, 0, 0);
+    clear();
+    stats.reset();
+    MemcacheBackingStore store = backingStore;
+    if (store != null) {
+      try {
+        store.compact(this::writeEntries);
+      } catch (IOException e) {
+        backingStoreFailed(store, e);
+      }
     }
 
     status.setSuccessful(true);
@@ -634,8 +976,15 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
     return 32 << 20; // 32 MB
   }
 
+  /** Returns the total length of the LRU chains of the shards. */
   /* @VisibleForTesting */
-  LRU<?> getLRU() {
-    return lru;
+  long getLruChainLength() {
+    long length = 0;
+    for (Shard shard : shards) {
+      synchronized (shard) {
+        length += shard.lru.getChainLength();
+      }
+    }
+    return length;
   }
 }
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.memcache.dev;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only file that persists the entries of a {@link LocalMemcacheService}, so that the
+ * cache outlives the process. Snapshots of the cache are written in the same format.
+ *
+ * <p>The file starts with a magic number, followed by records that each set or delete an entry.
+ * Each record is framed by its length and a CRC32 checksum, so that a record that was only partly
+ * written when the process died is detected. Loading stops there and truncates the file after the
+ * last valid record, so that the records appended next are not lost behind it. Records are handed
+ * to the operating system as they are appended, but not forced to disk: a cache can afford to lose
+ * its last writes if the machine goes down.
+ *
+ * <p>Files are loaded through memory mappings and parsed in place, so loading is bound by the speed
+ * of the disk rather than by the parsing. Once the file has grown to twice its size after the
+ * previous compaction, {@link #compactIfNeeded} rewrites it with only the live entries. Appends
+ * wait while the file is rewritten.
+ *
+ * <p>This class is thread safe.
+ */
+final class MemcacheBackingStore {
+  private static final Logger logger = Logger.getLogger(MemcacheBackingStore.class.getName());
+
+  static final String COMPACTING_SUFFIX = ".compacting";
+
+  /** The file size under which the file is not compacted. */
+  static final long MIN_COMPACTION_SIZE = 64L << 20;
+
+  private static final int MAGIC = 0x4d434231; // "MCB1"
+
+  private static final int HEADER_SIZE = 4;
+
+  private static final int RECORD_HEADER_SIZE = 8;
+
+  /** The largest part of a file that is mapped at once. */
+  private static final long MAX_MAPPING_SIZE = 1L << 30;
+
+  private static final byte PUT_RECORD = 1;
+
+  private static final byte DELETE_RECORD = 2;
+
+  /** Receives the records of a file as it is loaded. */
+  interface Loader {
+    /**
+     * Called with an entry that was set.
+     *
+     * @param expires expiration in milliseconds-since-epoch, or 0 if the entry does not expire
+     * @param casId the compare-and-swap ID of the entry, or 0 if it does not have one
+     */
+    void put(String namespace, byte[] key, byte[] value, int flags, long expires, long casId);
+
+    /** Called with the key of an entry that was deleted. */
+    void delete(String namespace, byte[] key);
+  }
+
+  /** Writes the live entries of a cache when a file is rewritten, least recently used first. */
+  interface Contents {
+    void writeTo(Writer writer) throws IOException;
+  }
+
+  /** Writes records to a file. */
+  static final class Writer implements Closeable {
+    private final FileOutputStream fileOut;
+    private final DataOutputStream out;
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+    private long size;
+
+    private Writer(File file, boolean append) throws IOException {
+      boolean hasHeader = append && file.length() > 0;
+      fileOut = new FileOutputStream(file, append);
+      out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+      if (hasHeader) {
+        size = file.length();
+      } else {
+        out.writeInt(MAGIC);
+        size = HEADER_SIZE;
+      }
+    }
+
+    /** Writes a record that sets an entry. See {@link Loader#put} for the arguments. */
+    void put(String namespace, byte[] key, byte[] value, int flags, long expires, long casId)
+        throws IOException {
+      record.writeByte(PUT_RECORD);
+      writeBytes(namespace.getBytes(UTF_8));
+      writeBytes(key);
+      writeBytes(value);
+      record.writeInt(flags);
+      record.writeLong(expires);
+      record.writeLong(casId);
+      finishRecord();
+    }
+
+    /** Writes a record that deletes an entry. */
+    void delete(String namespace, byte[] key) throws IOException {
+      record.writeByte(DELETE_RECORD);
+      writeBytes(namespace.getBytes(UTF_8));
+      writeBytes(key);
+      finishRecord();
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+      record.writeInt(bytes.length);
+      record.write(bytes);
+    }
+
+    private void finishRecord() throws IOException {
+      byte[] bytes = recordBytes.toByteArray();
+      recordBytes.reset();
+      CRC32 crc = new CRC32();
+      crc.update(bytes);
+      out.writeInt(bytes.length);
+      out.writeInt((int) crc.getValue());
+      out.write(bytes);
+      size += RECORD_HEADER_SIZE + bytes.length;
+    }
+
+    /** Hands the records written so far to the operating system. */
+    void flush() throws IOException {
+      out.flush();
+    }
+
+    /** Forces the records written so far to disk. */
+    void sync() throws IOException {
+      out.flush();
+      fileOut.getFD().sync();
+    }
+
+    long size() {
+      return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+  private final File file;
+  private final File compactingFile;
+  private Writer writer;
+  private long compactedSize;
+
+  /**
+   * Opens a file for appending, creating it if needed. An existing file must have been {@link
+   * #load loaded} first, so that it does not end with an invalid record.
+   */
+  MemcacheBackingStore(File file) throws IOException {
+    this.file = file;
+    this.compactingFile = new File(file.getPath() + COMPACTING_SUFFIX);
+    writer = new Writer(file, true);
+    compactedSize = writer.size();
+  }
+
+  /** Appends a record that sets an entry. See {@link Loader#put} for the arguments. */
+  synchronized void appendPut(
+      String namespace, byte[] key, byte[] value, int flags, long expires, long casId)
+      throws IOException {
+    writer.put(namespace, key, value, flags, expires, casId);
+    writer.flush();
+  }
+
+  /** Appends a record that deletes an entry. */
+  synchronized void appendDelete(String namespace, byte[] key) throws IOException {
+    writer.delete(namespace, key);
+    writer.flush();
+  }
+
+  /**
+   * Rewrites the file with the given contents if it has grown to twice its size after the previous
+   * compaction.
+   *
+   * @return whether the file was rewritten
+   */
+  synchronized boolean compactIfNeeded(Contents contents) throws IOException {
+    if (writer.size() <= Math.max(MIN_COMPACTION_SIZE, 2 * compactedSize)) {
+      return false;
+    }
+    compact(contents);
+    return true;
+  }
+
+  /**
+   * Rewrites the file with the given contents. Changes made to the cache while it is rewritten
+   * are appended to the new file once it is in place.
+   */
+  synchronized void compact(Contents contents) throws IOException {
+    long start = System.currentTimeMillis();
+    long oldSize = writer.size();
+    write(compactingFile, contents);
+    writer.close();
+    Files.move(compactingFile.toPath(), file.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+    writer = new Writer(file, true);
+    compactedSize = writer.size();
+    logger.info(
+        "Compacted the memcache backing store from "
+            + oldSize
+            + " to "
+            + compactedSize
+            + " bytes in "
+            + (System.currentTimeMillis() - start)
+            + " ms");
+  }
+
+  synchronized void close() throws IOException {
+    writer.sync();
+    writer.close();
+  }
+
+  /** Writes a file with the given contents, in place of any existing file. */
+  static void write(File file, Contents contents) throws IOException {
+    try (Writer out = new Writer(file, false)) {
+      contents.writeTo(out);
+      out.sync();
+    }
+  }
+
+  /**
+   * Loads the records of a file, oldest first. If the file ends with a record that was only partly
+   * written or is corrupt, it is truncated after the last valid record.
+   *
+   * @return the number of records loaded
+   * @throws IOException if the file cannot be read or was not written by this class
+   */
+  static int load(File file, Loader loader) throws IOException {
+    if (!file.exists()) {
+      return 0;
+    }
+    int count = 0;
+    long size;
+    long validSize = HEADER_SIZE;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      size = channel.size();
+      long position = 0;
+      reading:
+      while (position < size) {
+        long windowSize = Math.min(size - position, MAX_MAPPING_SIZE);
+        ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+        if (position == 0 && (window.remaining() < HEADER_SIZE || window.getInt() != MAGIC)) {
+          throw new IOException(file + " is not a memcache backing store");
+        }
+        while (window.remaining() >= RECORD_HEADER_SIZE) {
+          int length = window.getInt(window.position());
+          if (length < 0 || length > window.remaining() - RECORD_HEADER_SIZE) {
+            // A record that goes on in the next window, or was only partly written.
+            break;
+          }
+          int checksum = window.getInt(window.position() + 4);
+          ByteBuffer record = window.slice(window.position() + RECORD_HEADER_SIZE, length);
+          CRC32 crc = new CRC32();
+          crc.update(record.duplicate());
+          if ((int) crc.getValue() != checksum) {
+            logger.warning("Ignoring a corrupt record, and the records after it, in " + file);
+            break reading;
+          }
+          loadRecord(record, loader);
+          window.position(window.position() + RECORD_HEADER_SIZE + length);
+          validSize = position + window.position();
+          count++;
+        }
+        if (position + windowSize == size) {
+          if (window.hasRemaining()) {
+            logger.warning("Ignoring an incomplete record at the end of " + file);
+          }
+          break;
+        }
+        if (window.position() == 0) {
+          throw new IOException("A record of " + file + " is too large to be loaded");
+        }
+        position += window.position();
+      }
+    }
+    if (validSize < size) {
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+        channel.truncate(validSize);
+      }
+    }
+    return count;
+  }
+
+  private static void loadRecord(ByteBuffer record, Loader loader) throws IOException {
+    byte type = record.get();
+    switch (type) {
+      case PUT_RECORD:
+        {
+          String namespace = new String(readBytes(record), UTF_8);
+          byte[] key = readBytes(record);
+          byte[] value = readBytes(record);
+          loader.put(namespace, key, value, record.getInt(), record.getLong(), record.getLong());
+          break;
+        }
+      case DELETE_RECORD:
+        {
+          String namespace = new String(readBytes(record), UTF_8);
+          loader.delete(namespace, readBytes(record));
+          break;
+        }
+      default:
+        throw new IOException("Unknown memcache record type " + type);
+    }
+  }
+
+  private static byte[] readBytes(ByteBuffer record) {
+    byte[] bytes = new byte[record.getInt()];
+    record.get(bytes);
+    return bytes;
+  }
+}
@@ -42,6 +42,7 @@ public class LocalMemcacheServiceTestConfig implements LocalServiceTestConfig {
   }
   private Long maxSize;
   private SizeUnit maxSizeUnits = SizeUnit.BYTES;
+  private String backingStore;
 
   @Override
   public void setUp() {
@@ -51,10 +52,17 @@ public class LocalMemcacheServiceTestConfig implements LocalServiceTestConfig {
           LocalMemcacheService.SIZE_PROPERTY,
           String.format("%d%s", maxSize, maxSizeUnits.abbreviation));
     }
+    if (backingStore != null) {
+      proxy.setProperty(LocalMemcacheService.BACKING_STORE_PROPERTY, backingStore);
+    }
   }
 
   @Override
   public void tearDown() {
+    if (backingStore != null) {
+      // Keep the contents of the cache for the next test.
+      return;
+    }
     MemcacheServicePb.MemcacheFlushRequest request =
         MemcacheServicePb.MemcacheFlushRequest.newBuilder().build();
     LocalRpcService.Status status = new LocalRpcService.Status();
@@ -81,6 +89,22 @@ public class LocalMemcacheServiceTestConfig implements LocalServiceTestConfig {
     return this;
   }
 
+  public String getBackingStore() {
+    return backingStore;
+  }
+
+  /**
+   * Sets a file in which the contents of the cache are persisted. The cache is loaded from it when
+   * the service starts, and it is not cleared on tear down, so that later tests, and later test
+   * runs, start with the same cache.
+   * @param backingStore the path of the file
+   * @return {@code this} (for chaining)
+   */
+  public LocalMemcacheServiceTestConfig setBackingStore(String backingStore) {
+    this.backingStore = backingStore;
+    return this;
+  }
+
   public static LocalMemcacheService getLocalMemcacheService() {
     return (LocalMemcacheService) LocalServiceTestHelper.getLocalService(
         LocalMemcacheService.PACKAGE);
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.datastore;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.datastore.v1.Key.PathElement;
+import com.google.datastore.v1.LookupRequest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class BatcherTest {
+
+  /** Batches numeric ids into lookup requests, without a size limit. */
+  private static class IdBatcher
+      extends Batcher<LookupRequest.Builder, Integer, com.google.datastore.v1.Key> {
+    private final int maxConcurrency;
+    private final int maxGroups;
+    boolean limitsOutstandingBatches = true;
+
+    IdBatcher(int maxConcurrency, int maxGroups) {
+      this.maxConcurrency = maxConcurrency;
+      this.maxGroups = maxGroups;
+    }
+
+    @Override
+    Object getGroup(Integer value) {
+      return value;
+    }
+
+    @Override
+    void addToBatch(com.google.datastore.v1.Key pb, LookupRequest.Builder batch) {
+      batch.addKeys(pb);
+    }
+
+    @Override
+    LookupRequest.Builder newBatch(LookupRequest.Builder baseBatch) {
+      return baseBatch.clone();
+    }
+
+    @Override
+    int getMaxSize() {
+      return Integer.MAX_VALUE;
+    }
+
+    @Override
+    int getMaxCount() {
+      return 500;
+    }
+
+    @Override
+    int getMaxGroups() {
+      return maxGroups;
+    }
+
+    @Override
+    int getMaxConcurrency() {
+      return maxConcurrency;
+    }
+
+    @Override
+    boolean limitsOutstandingBatches() {
+      return limitsOutstandingBatches;
+    }
+
+    @Override
+    com.google.datastore.v1.Key toPb(Integer value) {
+      return com.google.datastore.v1.Key.newBuilder()
+          .addPath(PathElement.newBuilder().setKind("Foo").setId(value))
+          .build();
+    }
+
+    List<Integer> getBatchSizes(int valueCount) {
+      List<Integer> values = new ArrayList<>();
+      for (int i = 1; i <= valueCount; i++) {
+        values.add(i);
+      }
+      List<Integer> sizes = new ArrayList<>();
+      Iterator<LookupRequest.Builder> batches =
+          getBatches(values, LookupRequest.newBuilder(), 0, /* group= */ false);
+      while (batches.hasNext()) {
+        sizes.add(batches.next().getKeysCount());
+      }
+      return sizes;
+    }
+  }
+
+  /** A future that only completes when something waits for it. */
+  private static class CompletesOnGet implements Future<Integer> {
+    private final int value;
+    private final List<Integer> waits;
+    private boolean done;
+
+    CompletesOnGet(int value, List<Integer> waits) {
+      this.value = value;
+      this.waits = waits;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public boolean isDone() {
+      return done;
+    }
+
+    @Override
+    public Integer get() {
+      if (!done) {
+        waits.add(value);
+        done = true;
+      }
+      return value;
+    }
+
+    @Override
+    public Integer get(long timeout, TimeUnit unit) {
+      return get();
+    }
+  }
+
+  @Test
+  public void testValuesAreSpreadEvenlyOverBatches() {
+    IdBatcher batcher = new IdBatcher(32, Integer.MAX_VALUE);
+    assertThat(batcher.getBatchSizes(500)).containsExactly(500);
+    assertThat(batcher.getBatchSizes(501)).containsExactly(251, 250).inOrder();
+    assertThat(batcher.getBatchSizes(1100)).containsExactly(367, 367, 366).inOrder();
+  }
+
+  @Test
+  public void testLatencyModelTargetSize() {
+    Batcher.LatencyModel model = new Batcher.LatencyModel();
+    // 1ms per batch plus 10ns per byte: batches of 100KB spend as long on size as on overhead.
+    for (int i = 0; i < Batcher.LatencyModel.MIN_SAMPLES - 1; i++) {
+      int size = 20_000 * (i + 1);
+      model.record(size, size / 1000, 1_000_000 + 10L * size);
+    }
+    assertThat(model.getTargetSize(Integer.MAX_VALUE)).isEqualTo(0);
+
+    model.record(300_000, 300, 4_000_000);
+    assertThat(model.getTargetSize(Integer.MAX_VALUE)).isEqualTo(100_000);
+    assertThat(model.getTargetSize(50_000)).isEqualTo(50_000);
+    assertThat(model.getMeanValueSize()).isWithin(1).of(1000);
+  }
+
+  @Test
+  public void testLatencyModelIgnoresBatchesOfOneSize() {
+    Batcher.LatencyModel model = new Batcher.LatencyModel();
+    for (int i = 0; i < 2 * Batcher.LatencyModel.MIN_SAMPLES; i++) {
+      model.record(100_000, 100, 1_000_000 + i);
+    }
+    assertThat(model.getTargetSize(Integer.MAX_VALUE)).isEqualTo(0);
+  }
+
+  @Test
+  public void testOperationsAreSplitForParallelism() {
+    IdBatcher batcher = new IdBatcher(8, Integer.MAX_VALUE);
+    for (int i = 0; i < Batcher.LatencyModel.MIN_SAMPLES; i++) {
+      int size = 20_000 * (i + 1);
+      batcher.latencyModel.record(size, size / 1000, 1_000_000 + 10L * size);
+    }
+    // 400 values of about 1KB are best sent as 4 batches of 100KB.
+    assertThat(batcher.getBatchSizes(400)).containsExactly(100, 100, 100, 100);
+    // 10 batches would be best for 1000 values, but only 8 can be sent in parallel.
+    assertThat(batcher.getBatchSizes(1000)).containsExactly(125, 125, 125, 125, 125, 125, 125, 125);
+    // Splitting 50 values would only add calls.
+    assertThat(batcher.getBatchSizes(50)).containsExactly(50);
+  }
+
+  @Test
+  public void testSendBatchesLimitsOutstandingBatches() throws Exception {
+    // Every value is in a group of its own and every batch holds one group.
+    IdBatcher batcher = new IdBatcher(2, 1);
+    List<Integer> values = ImmutableList.of(0, 1, 2, 3, 4);
+    List<Integer> waits = new ArrayList<>();
+    List<Long> sent = new ArrayList<>();
+    List<Future<Integer>> futures =
+        batcher.sendBatches(
+            batcher.getBatches(values, LookupRequest.newBuilder(), 0, /* group= */ true),
+            batch -> {
+              sent.add(batch.getKeys(0).getPath(0).getId());
+              return new CompletesOnGet(sent.size() - 1, waits);
+            });
+
+    assertThat(sent).containsExactly(0L, 1L, 2L, 3L, 4L).inOrder();
+    // Each of the last three batches was only sent once the oldest outstanding one completed.
+    assertThat(waits).containsExactly(0, 1, 2).inOrder();
+    for (int i = 0; i < futures.size(); i++) {
+      assertThat(futures.get(i).get()).isEqualTo(i);
+    }
+    assertThat(waits).containsExactly(0, 1, 2, 3, 4).inOrder();
+  }
+
+  @Test
+  public void testSendBatchesWithoutLimitNeverWaits() throws Exception {
+    IdBatcher batcher = new IdBatcher(2, 1);
+    batcher.limitsOutstandingBatches = false;
+    List<Integer> values = ImmutableList.of(0, 1, 2, 3, 4);
+    List<Integer> waits = new ArrayList<>();
+    List<Long> sent = new ArrayList<>();
+    List<Future<Integer>> futures =
+        batcher.sendBatches(
+            batcher.getBatches(values, LookupRequest.newBuilder(), 0, /* group= */ true),
+            batch -> {
+              sent.add(batch.getKeys(0).getPath(0).getId());
+              return new CompletesOnGet(sent.size() - 1, waits);
+            });
+
+    // All the batches were sent without waiting for any of them, as an asynchronous operation must
+    // not block.
+    assertThat(sent).containsExactly(0L, 1L, 2L, 3L, 4L).inOrder();
+    assertThat(waits).isEmpty();
+    for (int i = 0; i < futures.size(); i++) {
+      assertThat(futures.get(i).get()).isEqualTo(i);
+    }
+  }
+}
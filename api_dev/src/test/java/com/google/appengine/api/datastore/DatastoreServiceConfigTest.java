@@ -19,6 +19,7 @@ package com.google.appengine.api.datastore;
 import static com.google.appengine.api.datastore.DatastoreServiceConfig.Builder.withDeadline;
 import static com.google.appengine.api.datastore.DatastoreServiceConfig.Builder.withDefaults;
 import static com.google.appengine.api.datastore.DatastoreServiceConfig.Builder.withImplicitTransactionManagementPolicy;
+import static com.google.appengine.api.datastore.DatastoreServiceConfig.Builder.withMaxConcurrentBatchRpcs;
 import static com.google.appengine.api.datastore.DatastoreServiceConfig.Builder.withMaxEntityGroupsPerRpc;
 import static com.google.appengine.api.datastore.DatastoreServiceConfig.Builder.withReadPolicy;
 import static com.google.appengine.api.datastore.DatastoreServiceConfig.DEFAULT_MAX_ENTITY_GROUPS_PER_RPC_SYS_PROP;
@@ -110,6 +111,20 @@ public class DatastoreServiceConfigTest {
     assertThat(config2.getMaxEntityGroupsPerRpc().intValue()).isEqualTo(2);
   }
 
+  @Test
+  public void testMaxConcurrentBatchRpcs() {
+    assertThrows(IllegalArgumentException.class, () -> withMaxConcurrentBatchRpcs(0));
+    DatastoreServiceConfig config1 = withMaxConcurrentBatchRpcs(4);
+    assertThat(config1.getMaxConcurrentBatchRpcs()).isEqualTo(4);
+    assertThat(new DatastoreServiceConfig(config1).getMaxConcurrentBatchRpcs()).isEqualTo(4);
+
+    DatastoreServiceConfig config2 = withDefaults();
+    assertThat(config2.getMaxConcurrentBatchRpcs()).isEqualTo(32);
+    assertThrows(IllegalArgumentException.class, () -> config2.maxConcurrentBatchRpcs(-1));
+    config2.maxConcurrentBatchRpcs(1);
+    assertThat(config2.getMaxConcurrentBatchRpcs()).isEqualTo(1);
+  }
+
   @Test
   public void testGetDefaultMaxEntityGroupsPerRpc() {
     assertThat(DatastoreServiceConfig.getDefaultMaxEntityGroupsPerRpc()).isEqualTo(10);
@@ -0,0 +1,572 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.datastore.dev;
+
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withLimit;
+import static com.google.appengine.api.datastore.Query.CompositeFilterOperator.and;
+import static com.google.appengine.api.datastore.Query.FilterOperator.EQUAL;
+import static com.google.appengine.api.datastore.Query.FilterOperator.GREATER_THAN;
+import static com.google.appengine.api.datastore.Query.FilterOperator.GREATER_THAN_OR_EQUAL;
+import static com.google.appengine.api.datastore.Query.FilterOperator.LESS_THAN;
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertThrows;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import com.google.storage.onestore.v3.OnestoreEntity.Path;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
+import org.jspecify.annotations.Nullable;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class LocalDatastoreServiceTest {
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private LocalServiceTestHelper helper;
+  private DatastoreService datastore;
+
+  /** Sets a property of the local services before they start. */
+  private static final class PropertyConfig implements LocalServiceTestConfig {
+    private final String name;
+    private final String value;
+
+    PropertyConfig(String name, String value) {
+      this.name = name;
+      this.value = value;
+    }
+
+    @Override
+    public void setUp() {
+      LocalServiceTestHelper.getApiProxyLocal().setProperty(name, value);
+    }
+
+    @Override
+    public void tearDown() {}
+  }
+
+  @After
+  public void tearDown() {
+    if (helper != null) {
+      stopDatastore();
+    }
+  }
+
+  private void startDatastore(File backingStore, boolean writeAheadLog) {
+    startDatastore(
+        new PropertyConfig(
+            LocalDatastoreService.WRITE_AHEAD_LOG_PROPERTY, Boolean.toString(writeAheadLog)),
+        new LocalDatastoreServiceTestConfig()
+            .setNoStorage(false)
+            .setBackingStoreLocation(backingStore.getPath())
+            .setApplyAllHighRepJobPolicy());
+  }
+
+  private void startDatastore(LocalServiceTestConfig... configs) {
+    helper = new LocalServiceTestHelper(configs);
+    helper.setUp();
+    datastore = DatastoreServiceFactory.getDatastoreService();
+  }
+
+  private void stopDatastore() {
+    helper.tearDown();
+    helper = null;
+  }
+
+  private File newBackingStore() throws IOException {
+    return new File(temporaryFolder.newFolder(), "local_db.bin");
+  }
+
+  private static File logFile(File backingStore) {
+    return new File(backingStore.getPath() + WriteAheadLog.LOG_SUFFIX);
+  }
+
+  private static File compactingLogFile(File backingStore) {
+    return new File(backingStore.getPath() + WriteAheadLog.COMPACTING_LOG_SUFFIX);
+  }
+
+  /** Copies the files of a running datastore, as a crash of the process would leave them. */
+  private File copyAsCrashed(File backingStore) throws IOException {
+    File directory = temporaryFolder.newFolder();
+    for (File file : backingStore.getParentFile().listFiles()) {
+      if (file.getName().startsWith(backingStore.getName())) {
+        Files.copy(file.toPath(), new File(directory, file.getName()).toPath());
+      }
+    }
+    return new File(directory, backingStore.getName());
+  }
+
+  private Key put(String name, long value) {
+    Entity entity = new Entity("Foo", name);
+    entity.setProperty("value", value);
+    return datastore.put(entity);
+  }
+
+  private Object getValue(Key key) throws EntityNotFoundException {
+    return datastore.get(key).getProperty("value");
+  }
+
+  private Key putValue(String name, @Nullable Object value) {
+    Entity entity = new Entity("Foo", name);
+    entity.setProperty("value", value);
+    return datastore.put(entity);
+  }
+
+  /** Returns the names of the entities that a query returns. */
+  private List<String> names(Query query) {
+    List<String> names = new ArrayList<>();
+    for (Entity entity : datastore.prepare(query).asIterable()) {
+      names.add(entity.getKey().getName());
+    }
+    return names;
+  }
+
+  /** Returns the names of the entities that a query returns with the given fetch options. */
+  private List<String> names(Query query, FetchOptions options) {
+    List<String> names = new ArrayList<>();
+    for (Entity entity : datastore.prepare(query).asList(options)) {
+      names.add(entity.getKey().getName());
+    }
+    return names;
+  }
+
+  /**
+   * Puts 20 entities whose values each repeat five times, in an order that follows neither their
+   * names nor their values.
+   */
+  private void putEntitiesWithTiedValues() {
+    for (int i = 0; i < 20; i++) {
+      int n = (i * 7) % 20;
+      put(String.format("e%02d", n), n % 4);
+    }
+  }
+
+  private Key putChild(Key parent, String name, long value) {
+    Entity entity = new Entity("Foo", name, parent);
+    entity.setProperty("value", value);
+    return datastore.put(entity);
+  }
+
+  /** Returns the values of the entities that an ancestor query returns, keyed by name. */
+  private Map<String, Object> values(@Nullable Transaction txn, Key ancestor) {
+    Map<String, Object> values = new LinkedHashMap<>();
+    for (Entity entity : datastore.prepare(txn, new Query("Foo", ancestor)).asIterable()) {
+      values.put(entity.getKey().getName(), entity.getProperty("value"));
+    }
+    return values;
+  }
+
+  /** Returns the path of the entity group of a root entity. */
+  private static Path groupPath(Key key) {
+    Path path = new Path();
+    path.addElement().setType(key.getKind()).setName(key.getName());
+    return path;
+  }
+
+  private static Query query(Filter filter) {
+    return new Query("Foo").setFilter(filter);
+  }
+
+  private static Filter value(FilterOperator operator, @Nullable Object value) {
+    return new FilterPredicate("value", operator, value);
+  }
+
+  @Test
+  public void testWriteAheadLogIsReplayedAfterCrash() throws Exception {
+    File backingStore = newBackingStore();
+    startDatastore(backingStore, true);
+    Key updated = put("updated", 1);
+    Key deleted = put("deleted", 1);
+    put("updated", 2);
+    datastore.delete(deleted);
+    Key allocated = datastore.put(new Entity("Foo"));
+    File crashed = copyAsCrashed(backingStore);
+    stopDatastore();
+
+    startDatastore(crashed, true);
+    assertThat(getValue(updated)).isEqualTo(2L);
+    assertThrows(EntityNotFoundException.class, () -> datastore.get(deleted));
+    datastore.get(allocated);
+    // The ID counters were replayed too.
+    assertThat(datastore.put(new Entity("Foo")).getId()).isGreaterThan(allocated.getId());
+  }
+
+  @Test
+  public void testWritesAfterTornRecordAreReplayed() throws Exception {
+    File backingStore = newBackingStore();
+    startDatastore(backingStore, true);
+    Key first = put("first", 1);
+    Key torn = put("torn", 1);
+    File crashed = copyAsCrashed(backingStore);
+    stopDatastore();
+    try (RandomAccessFile log = new RandomAccessFile(logFile(crashed), "rw")) {
+      log.setLength(log.length() - 3);
+    }
+
+    startDatastore(crashed, true);
+    assertThat(getValue(first)).isEqualTo(1L);
+    assertThrows(EntityNotFoundException.class, () -> datastore.get(torn));
+    Key later = put("later", 1);
+    datastore.delete(first);
+    File crashedAgain = copyAsCrashed(crashed);
+    stopDatastore();
+
+    startDatastore(crashedAgain, true);
+    assertThat(getValue(later)).isEqualTo(1L);
+    assertThrows(EntityNotFoundException.class, () -> datastore.get(first));
+  }
+
+  @Test
+  public void testCrashBetweenBackingStoreWriteAndLogDeletion() throws Exception {
+    File backingStore = newBackingStore();
+    startDatastore(backingStore, true);
+    Key updated = put("updated", 1);
+    Key deleted = put("deleted", 1);
+    stopDatastore();
+    startDatastore(backingStore, true);
+    put("updated", 2);
+    datastore.delete(deleted);
+    Key added = put("added", 1);
+    File crashed = copyAsCrashed(backingStore);
+    stopDatastore();
+
+    // Leave the files as a crash after the new backing store was written, but before the log it
+    // replaces was deleted, would: the log was moved aside, and its records are in the store.
+    Files.copy(backingStore.toPath(), crashed.toPath(), REPLACE_EXISTING);
+    Files.move(logFile(crashed).toPath(), compactingLogFile(crashed).toPath());
+
+    startDatastore(crashed, true);
+    assertThat(getValue(updated)).isEqualTo(2L);
+    assertThrows(EntityNotFoundException.class, () -> datastore.get(deleted));
+    assertThat(getValue(added)).isEqualTo(1L);
+    stopDatastore();
+    assertThat(compactingLogFile(crashed).exists()).isFalse();
+
+    startDatastore(crashed, true);
+    assertThat(getValue(updated)).isEqualTo(2L);
+    assertThat(getValue(added)).isEqualTo(1L);
+  }
+
+  @Test
+  public void testWithoutWriteAheadLog() throws Exception {
+    File backingStore = newBackingStore();
+    startDatastore(backingStore, false);
+    Key key = put("key", 1);
+    assertThat(logFile(backingStore).exists()).isFalse();
+    stopDatastore();
+    assertThat(backingStore.exists()).isTrue();
+
+    startDatastore(backingStore, false);
+    assertThat(getValue(key)).isEqualTo(1L);
+    assertThat(logFile(backingStore).exists()).isFalse();
+  }
+
+  @Test
+  public void testQueryIndexesFollowReplacedAndRemovedEntities() {
+    startDatastore(new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy());
+    putValue("a", 1L);
+    Key b = putValue("b", 2L);
+    Key c = putValue("c", 2L);
+    // The first queries build the index of the property.
+    assertThat(names(query(value(EQUAL, 2L)))).containsExactly("b", "c");
+    assertThat(names(query(value(GREATER_THAN_OR_EQUAL, 2L)))).containsExactly("b", "c");
+
+    putValue("b", 3L);
+    datastore.delete(c);
+    putValue("d", 2L);
+    assertThat(names(query(value(EQUAL, 2L)))).containsExactly("d");
+    assertThat(names(query(value(EQUAL, 3L)))).containsExactly("b");
+    assertThat(names(query(value(GREATER_THAN_OR_EQUAL, 2L)))).containsExactly("b", "d");
+    assertThat(names(query(value(LESS_THAN, 2L)))).containsExactly("a");
+
+    datastore.put(new Entity("Foo", "a"));
+    putValue("c", 2L);
+    datastore.delete(b);
+    assertThat(names(query(value(LESS_THAN, 2L)))).isEmpty();
+    assertThat(names(query(value(EQUAL, 2L)))).containsExactly("c", "d");
+    assertThat(names(query(value(EQUAL, 3L)))).isEmpty();
+    assertThat(names(query(value(GREATER_THAN, 2L)))).isEmpty();
+  }
+
+  @Test
+  public void testQueryIndexesFindAllMatchesOfMixedValues() {
+    startDatastore(new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy());
+    putValue("one", 1L);
+    putValue("five", 5L);
+    putValue("string", "x");
+    putValue("double", 2.5);
+    putValue("boolean", true);
+    putValue("null", null);
+    Key multi = putValue("multi", Arrays.asList(0L, 7L));
+    putValue("mixed", Arrays.asList("a", 2L));
+    datastore.put(new Entity("Foo", "missing"));
+
+    // Values of different types are ordered by type: null, integers, booleans, strings, doubles.
+    assertThat(names(query(value(EQUAL, null)))).containsExactly("null");
+    assertThat(names(query(value(GREATER_THAN, 3L))))
+        .containsExactly("five", "string", "double", "boolean", "multi", "mixed");
+    assertThat(names(query(value(LESS_THAN, 3L)))).containsExactly("one", "null", "multi", "mixed");
+    assertThat(names(query(and(value(GREATER_THAN_OR_EQUAL, 1L), value(LESS_THAN, 2L)))))
+        .containsExactly("one");
+    assertThat(names(query(value(GREATER_THAN, "a")))).containsExactly("string", "double");
+    assertThat(names(query(value(EQUAL, "a")))).containsExactly("mixed");
+    assertThat(names(query(and(value(GREATER_THAN, 3L), value(LESS_THAN, 1L))))).isEmpty();
+    // Equality filters must all match a value, and an inequality filter only needs to match one.
+    assertThat(names(query(and(value(EQUAL, 0L), value(EQUAL, 7L))))).containsExactly("multi");
+    assertThat(names(query(and(value(EQUAL, 7L), value(LESS_THAN, 1L)))))
+        .containsExactly("multi");
+    assertThat(names(query(and(value(EQUAL, 5L), value(LESS_THAN, 1L))))).isEmpty();
+
+    putValue("multi", Arrays.asList(8L));
+    putValue("string", null);
+    assertThat(names(query(value(EQUAL, 7L)))).isEmpty();
+    assertThat(names(query(value(EQUAL, 8L)))).containsExactly("multi");
+    assertThat(names(query(value(EQUAL, null)))).containsExactly("null", "string");
+    assertThat(names(query(value(GREATER_THAN, 3L))))
+        .containsExactly("five", "double", "boolean", "multi", "mixed");
+    datastore.delete(multi);
+    assertThat(names(query(value(EQUAL, 8L)))).isEmpty();
+  }
+
+  @Test
+  public void testQueryIndexesFindAllMatchesOfAncestorQueries() {
+    startDatastore(new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy());
+    Key root = datastore.put(new Entity("Foo", "root"));
+    Key otherRoot = datastore.put(new Entity("Foo", "otherRoot"));
+    Entity child = new Entity("Foo", "child", root);
+    child.setProperty("value", 1L);
+    Key childKey = datastore.put(child);
+    Entity grandchild = new Entity("Foo", "grandchild", childKey);
+    grandchild.setProperty("value", 1L);
+    Key grandchildKey = datastore.put(grandchild);
+    Entity otherChild = new Entity("Foo", "otherChild", otherRoot);
+    otherChild.setProperty("value", 1L);
+    datastore.put(otherChild);
+
+    assertThat(names(new Query("Foo", root))).containsExactly("root", "child", "grandchild");
+    assertThat(names(new Query("Foo", childKey))).containsExactly("child", "grandchild");
+    assertThat(names(new Query("Foo", childKey).setFilter(value(EQUAL, 1L))))
+        .containsExactly("child", "grandchild");
+    assertThat(names(new Query("Foo", otherRoot).setFilter(value(GREATER_THAN, 0L))))
+        .containsExactly("otherChild");
+    assertThat(names(new Query("Foo", new Entity("Foo", "absent").getKey()))).isEmpty();
+
+    datastore.delete(grandchildKey);
+    Entity newChild = new Entity("Foo", "newChild", otherRoot);
+    newChild.setProperty("value", 1L);
+    datastore.put(newChild);
+    assertThat(names(new Query("Foo", root))).containsExactly("root", "child");
+    assertThat(names(new Query("Foo", otherRoot).setFilter(value(EQUAL, 1L))))
+        .containsExactly("otherChild", "newChild");
+    datastore.delete(root, childKey);
+    assertThat(names(new Query("Foo", root))).isEmpty();
+    assertThat(names(query(value(EQUAL, 1L)))).containsExactly("otherChild", "newChild");
+  }
+
+  @Test
+  public void testLimitedQueryReturnsSortedPrefixWithTies() {
+    startDatastore(new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy());
+    putEntitiesWithTiedValues();
+    Query query = new Query("Foo").addSort("value");
+    List<String> sorted = names(query);
+    assertThat(sorted).hasSize(20);
+
+    // Entities with equal values are ordered by key, so the limit cuts through a run of ties.
+    assertThat(names(query, withLimit(7))).isEqualTo(sorted.subList(0, 7));
+    assertThat(names(query, withLimit(6).offset(3))).isEqualTo(sorted.subList(3, 9));
+    assertThat(names(query, withLimit(1).offset(18))).isEqualTo(sorted.subList(18, 19));
+  }
+
+  @Test
+  public void testLimitedDescendingQueryReturnsSortedPrefix() {
+    startDatastore(new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy());
+    putEntitiesWithTiedValues();
+    Query query = new Query("Foo").addSort("value", SortDirection.DESCENDING);
+    List<String> sorted = names(query);
+    assertThat(sorted).hasSize(20);
+
+    assertThat(names(query, withLimit(7))).isEqualTo(sorted.subList(0, 7));
+    assertThat(names(query, withLimit(6).offset(3))).isEqualTo(sorted.subList(3, 9));
+
+    Query filtered =
+        new Query("Foo").setFilter(value(LESS_THAN, 3L)).addSort("value", SortDirection.DESCENDING);
+    List<String> sortedMatches = names(filtered);
+    assertThat(sortedMatches).hasSize(15);
+    assertThat(names(filtered, withLimit(4).offset(2))).isEqualTo(sortedMatches.subList(2, 6));
+  }
+
+  @Test
+  public void testLimitedQueryWithEndCursorReturnsSortedPrefix() {
+    startDatastore(new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy());
+    putEntitiesWithTiedValues();
+    Query query = new Query("Foo").addSort("value");
+    List<String> sorted = names(query);
+    Cursor afterSix = datastore.prepare(query).asQueryResultList(withLimit(6)).getCursor();
+    Cursor afterTwelve = datastore.prepare(query).asQueryResultList(withLimit(12)).getCursor();
+
+    // The end cursor comes before offset + limit and cuts the results short.
+    assertThat(names(query, withLimit(8).offset(2).endCursor(afterSix)))
+        .isEqualTo(sorted.subList(2, 6));
+    // The limit comes before the end cursor.
+    assertThat(names(query, withLimit(8).offset(2).endCursor(afterTwelve)))
+        .isEqualTo(sorted.subList(2, 10));
+  }
+
+  @Test
+  public void testTransactionReadsItsSnapshotAfterConcurrentCommit() throws Exception {
+    startDatastore(new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy());
+    Key root = datastore.put(new Entity("Foo", "root"));
+    Key updated = putChild(root, "updated", 1);
+    Key deleted = putChild(root, "deleted", 1);
+    Transaction txn = datastore.beginTransaction();
+    assertThat(datastore.get(txn, updated).getProperty("value")).isEqualTo(1L);
+
+    putChild(root, "updated", 2);
+    datastore.delete(deleted);
+    Key added = putChild(root, "added", 3);
+
+    assertThat(datastore.get(txn, updated).getProperty("value")).isEqualTo(1L);
+    assertThat(datastore.get(txn, deleted).getProperty("value")).isEqualTo(1L);
+    assertThrows(EntityNotFoundException.class, () -> datastore.get(txn, added));
+    assertThat(values(txn, root)).containsExactly("root", null, "updated", 1L, "deleted", 1L);
+    assertThat(values(txn, updated)).containsExactly("updated", 1L);
+    assertThat(values(null, root)).containsExactly("root", null, "updated", 2L, "added", 3L);
+    txn.rollback();
+  }
+
+  @Test
+  public void testTransactionalAncestorQueryWithUnappliedJobs() throws Exception {
+    startDatastore(
+        new LocalDatastoreServiceTestConfig()
+            .setDefaultHighRepJobPolicyUnappliedJobPercentage(100));
+    Key root = datastore.put(new Entity("Foo", "root"));
+    Key child = putChild(root, "child", 1);
+    putChild(root, "child", 2);
+    Transaction txn = datastore.beginTransaction();
+    // The query applies the jobs committed before it, and they are part of its snapshot.
+    assertThat(values(txn, root)).containsExactly("root", null, "child", 2L);
+
+    putChild(root, "child", 3);
+    Key added = putChild(root, "added", 4);
+
+    assertThat(values(txn, root)).containsExactly("root", null, "child", 2L);
+    assertThat(datastore.get(txn, child).getProperty("value")).isEqualTo(2L);
+    assertThrows(EntityNotFoundException.class, () -> datastore.get(txn, added));
+    assertThat(getValue(child)).isEqualTo(3L);
+    assertThat(values(null, root)).containsExactly("root", null, "child", 3L, "added", 4L);
+    assertThat(values(txn, root)).containsExactly("root", null, "child", 2L);
+    txn.rollback();
+  }
+
+  @Test
+  public void testTransactionSnapshotAfterDeleteAndReput() throws Exception {
+    startDatastore(new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy());
+    Key root = datastore.put(new Entity("Foo", "root"));
+    Key child = putChild(root, "child", 1);
+    Transaction txn = datastore.beginTransaction();
+    assertThat(values(txn, root)).containsExactly("root", null, "child", 1L);
+
+    datastore.delete(child);
+    putChild(root, "child", 2);
+    Key added = putChild(root, "added", 3);
+    datastore.delete(added);
+    putChild(root, "added", 4);
+
+    assertThat(datastore.get(txn, child).getProperty("value")).isEqualTo(1L);
+    assertThrows(EntityNotFoundException.class, () -> datastore.get(txn, added));
+    assertThat(values(txn, root)).containsExactly("root", null, "child", 1L);
+    assertThat(values(null, root)).containsExactly("root", null, "child", 2L, "added", 4L);
+    txn.rollback();
+
+    Transaction next = datastore.beginTransaction();
+    assertThat(values(next, root)).containsExactly("root", null, "child", 2L, "added", 4L);
+    next.rollback();
+  }
+
+  @Test
+  public void testWritesOnlyWaitForTheirOwnEntityGroup() throws Exception {
+    startDatastore(new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy());
+    Key locked = put("locked", 1);
+    LocalDatastoreService.Profile profile =
+        LocalDatastoreServiceTestConfig.getLocalDatastoreService()
+            .getOrCreateProfile(locked.getAppId());
+    Lock lock = profile.getGroupLock(groupPath(locked));
+    String other = null;
+    for (int i = 0; other == null; i++) {
+      if (profile.getGroupLock(groupPath(KeyFactory.createKey("Foo", "other" + i))) != lock) {
+        other = "other" + i;
+      }
+    }
+    String otherName = other;
+    ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      executor.submit(() -> ApiProxy.setEnvironmentForCurrentThread(environment)).get();
+      Future<Key> blocked;
+      lock.lock();
+      try {
+        // Another entity group of the app can be written while this one is locked.
+        Key written = executor.submit(() -> put(otherName, 1)).get(10, SECONDS);
+        assertThat(written.getName()).isEqualTo(otherName);
+        blocked = executor.submit(() -> put("locked", 2));
+        assertThrows(TimeoutException.class, () -> blocked.get(100, MILLISECONDS));
+      } finally {
+        lock.unlock();
+      }
+      blocked.get(10, SECONDS);
+      assertThat(getValue(locked)).isEqualTo(2L);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.datastore.dev;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Strings;
+import com.google.storage.onestore.v3.OnestoreEntity.EntityProto;
+import com.google.storage.onestore.v3.OnestoreEntity.Path;
+import com.google.storage.onestore.v3.OnestoreEntity.Reference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class OffHeapEntityMapTest {
+
+  @Test
+  public void testPutAndGet() {
+    OffHeapEntityMap map = new OffHeapEntityMap();
+    assertThat(map.put(key(1), entity(1, "one"))).isNull();
+    assertThat(map.put(key(2), entity(2, "two"))).isNull();
+
+    assertThat(map).hasSize(2);
+    assertThat(map.containsKey(key(1))).isTrue();
+    assertThat(map.containsKey(key(3))).isFalse();
+    assertThat(value(map.get(key(1)))).isEqualTo("one");
+    assertThat(value(map.get(key(2)))).isEqualTo("two");
+    assertThat(map.get(key(3))).isNull();
+  }
+
+  @Test
+  public void testReturnedEntitiesAreCopies() {
+    OffHeapEntityMap map = new OffHeapEntityMap();
+    EntityProto entity = entity(1, "one");
+    map.put(key(1), entity);
+
+    entity.getMutableProperty(0).getMutableValue().setStringValue("changed");
+    map.get(key(1)).getMutableProperty(0).getMutableValue().setStringValue("changed");
+
+    assertThat(value(map.get(key(1)))).isEqualTo("one");
+  }
+
+  @Test
+  public void testReplace() {
+    OffHeapEntityMap map = new OffHeapEntityMap();
+    map.put(key(1), entity(1, "one"));
+    map.put(key(2), entity(2, "two"));
+
+    assertThat(value(map.put(key(1), entity(1, "uno")))).isEqualTo("one");
+
+    assertThat(map).hasSize(2);
+    assertThat(value(map.get(key(1)))).isEqualTo("uno");
+    // Replacing an entity keeps its place in the iteration order.
+    assertThat(map.keySet()).containsExactly(key(1), key(2)).inOrder();
+  }
+
+  @Test
+  public void testRemove() {
+    OffHeapEntityMap map = new OffHeapEntityMap();
+    map.put(key(1), entity(1, "one"));
+    map.put(key(2), entity(2, "two"));
+
+    assertThat(value(map.remove(key(1)))).isEqualTo("one");
+    assertThat(map.remove(key(1))).isNull();
+
+    assertThat(map).hasSize(1);
+    assertThat(map.get(key(1))).isNull();
+    assertThat(value(map.get(key(2)))).isEqualTo("two");
+
+    map.clear();
+    assertThat(map).isEmpty();
+    map.put(key(1), entity(1, "again"));
+    assertThat(value(map.get(key(1)))).isEqualTo("again");
+  }
+
+  @Test
+  public void testEntrySetDecodesEntities() {
+    OffHeapEntityMap map = new OffHeapEntityMap();
+    map.put(key(2), entity(2, "two"));
+    map.put(key(1), entity(1, "one"));
+
+    List<String> values = new ArrayList<>();
+    for (Map.Entry<Reference, EntityProto> entry : map.entrySet()) {
+      assertThat(entry.getValue().getKey()).isEqualTo(entry.getKey());
+      values.add(value(entry.getValue()));
+    }
+    assertThat(values).containsExactly("two", "one").inOrder();
+  }
+
+  @Test
+  public void testEntitiesLargerThanASegment() {
+    OffHeapEntityMap map = new OffHeapEntityMap();
+    String large = Strings.repeat("x", 1024 * 1024);
+    map.put(key(1), entity(1, "small"));
+    map.put(key(2), entity(2, large));
+    map.put(key(3), entity(3, "after"));
+
+    assertThat(value(map.get(key(1)))).isEqualTo("small");
+    assertThat(value(map.get(key(2)))).isEqualTo(large);
+    assertThat(value(map.get(key(3)))).isEqualTo("after");
+  }
+
+  @Test
+  public void testReplacedEntitiesAreCompacted() {
+    OffHeapEntityMap map = new OffHeapEntityMap();
+    String padding = Strings.repeat("x", 1024);
+    long written = 0;
+    for (int i = 0; i < 1000; i++) {
+      EntityProto entity = entity(i % 10, padding + i);
+      written += entity.toByteArray().length;
+      map.put(key(i % 10), entity);
+    }
+
+    // Only the last ten entities are live, so most of what was written has been reclaimed.
+    assertThat(map.storedBytes()).isLessThan(written / 4);
+    assertThat(map).hasSize(10);
+    for (int i = 0; i < 10; i++) {
+      assertThat(value(map.get(key(i)))).isEqualTo(padding + (990 + i));
+    }
+    assertThat(map.keySet()).containsExactlyElementsIn(keys(10)).inOrder();
+  }
+
+  @Test
+  public void testCopyIsIndependent() {
+    OffHeapEntityMap map = new OffHeapEntityMap();
+    map.put(key(1), entity(1, "one"));
+    map.put(key(2), entity(2, "two"));
+
+    OffHeapEntityMap copy = map.copy();
+    map.put(key(1), entity(1, "uno"));
+    map.remove(key(2));
+    map.put(key(3), entity(3, "three"));
+    copy.put(key(4), entity(4, "four"));
+
+    assertThat(map.keySet()).containsExactly(key(1), key(3));
+    assertThat(value(map.get(key(1)))).isEqualTo("uno");
+    assertThat(map.get(key(4))).isNull();
+    assertThat(copy.keySet()).containsExactly(key(1), key(2), key(4));
+    assertThat(value(copy.get(key(1)))).isEqualTo("one");
+    assertThat(value(copy.get(key(2)))).isEqualTo("two");
+    assertThat(value(copy.get(key(4)))).isEqualTo("four");
+  }
+
+  @Test
+  public void testCopyKeepsEntitiesAfterOriginalIsCompacted() {
+    OffHeapEntityMap map = new OffHeapEntityMap();
+    for (int i = 0; i < 10; i++) {
+      map.put(key(i), entity(i, "original" + i));
+    }
+    OffHeapEntityMap copy = map.copy();
+
+    String padding = Strings.repeat("x", 1024);
+    for (int i = 0; i < 1000; i++) {
+      map.put(key(i % 10), entity(i % 10, padding + i));
+    }
+
+    for (int i = 0; i < 10; i++) {
+      assertThat(value(copy.get(key(i)))).isEqualTo("original" + i);
+      assertThat(value(map.get(key(i)))).isEqualTo(padding + (990 + i));
+    }
+  }
+
+  private static List<Reference> keys(int count) {
+    List<Reference> keys = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      keys.add(key(i));
+    }
+    return keys;
+  }
+
+  private static Reference key(long id) {
+    Reference key = new Reference().setApp("app");
+    key.getMutablePath().addElement().setType("Foo").setId(id + 1);
+    return key;
+  }
+
+  private static EntityProto entity(long id, String value) {
+    EntityProto entity = new EntityProto();
+    entity.getMutableKey().copyFrom(key(id));
+    Path group = entity.getMutableEntityGroup();
+    group.addElement().setType("Foo").setId(id + 1);
+    entity
+        .addProperty()
+        .setName("value")
+        .setMultiple(false)
+        .getMutableValue()
+        .setStringValue(value);
+    return entity;
+  }
+
+  private static String value(EntityProto entity) {
+    return entity.getProperty(0).getValue().getStringValue();
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.datastore.dev;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class WriteAheadLogTest {
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  /** Records the replayed records as strings. */
+  private static class RecordingReplayer implements WriteAheadLog.Replayer {
+    final List<String> records = new ArrayList<>();
+
+    @Override
+    public void idCounters(long sequential, long scattered) {
+      records.add("ids " + sequential + " " + scattered);
+    }
+
+    @Override
+    public void delete(byte[] key) {
+      records.add("delete " + new String(key, UTF_8));
+    }
+
+    @Override
+    public void put(byte[] entity) {
+      records.add("put " + new String(entity, UTF_8));
+    }
+
+    @Override
+    public void clear() {
+      records.add("clear");
+    }
+  }
+
+  private static List<String> replay(File backingStore) throws IOException {
+    RecordingReplayer replayer = new RecordingReplayer();
+    WriteAheadLog.replay(backingStore, replayer);
+    return replayer.records;
+  }
+
+  private static void appendPut(WriteAheadLog log, long id, String entity) throws IOException {
+    log.appendWrite(id, 0, ImmutableList.of(), ImmutableList.of(entity.getBytes(UTF_8)));
+  }
+
+  private File logFile(File backingStore) {
+    return new File(backingStore.getPath() + WriteAheadLog.LOG_SUFFIX);
+  }
+
+  @Test
+  public void testAppendAndReplay() throws Exception {
+    File backingStore = new File(temporaryFolder.getRoot(), "local_db.bin");
+    WriteAheadLog log = new WriteAheadLog(backingStore);
+    log.appendWrite(
+        1, 2, ImmutableList.of("k1".getBytes(UTF_8)), ImmutableList.of("e1".getBytes(UTF_8)));
+    log.appendClear();
+    log.close();
+
+    assertThat(replay(backingStore))
+        .containsExactly("ids 1 2", "delete k1", "put e1", "clear")
+        .inOrder();
+  }
+
+  @Test
+  public void testTornTailIsTruncatedBeforeAppending() throws Exception {
+    File backingStore = new File(temporaryFolder.getRoot(), "local_db.bin");
+    WriteAheadLog log = new WriteAheadLog(backingStore);
+    appendPut(log, 1, "e1");
+    appendPut(log, 2, "e2");
+    log.close();
+    try (RandomAccessFile raf = new RandomAccessFile(logFile(backingStore), "rw")) {
+      raf.setLength(raf.length() - 3);
+    }
+
+    assertThat(replay(backingStore)).containsExactly("ids 1 0", "put e1").inOrder();
+
+    // A write made after the restart follows the last valid record, so it is replayed too.
+    log = new WriteAheadLog(backingStore);
+    appendPut(log, 3, "e3");
+    log.close();
+    assertThat(replay(backingStore))
+        .containsExactly("ids 1 0", "put e1", "ids 3 0", "put e3")
+        .inOrder();
+  }
+
+  @Test
+  public void testGarbageLengthIsNotAllocated() throws Exception {
+    File backingStore = new File(temporaryFolder.getRoot(), "local_db.bin");
+    WriteAheadLog log = new WriteAheadLog(backingStore);
+    appendPut(log, 1, "e1");
+    log.close();
+    long validLength = logFile(backingStore).length();
+    try (DataOutputStream out =
+        new DataOutputStream(new FileOutputStream(logFile(backingStore), true))) {
+      out.writeInt(Integer.MAX_VALUE);
+      out.writeInt(0);
+      out.writeLong(0);
+    }
+
+    assertThat(replay(backingStore)).containsExactly("ids 1 0", "put e1").inOrder();
+    assertThat(logFile(backingStore).length()).isEqualTo(validLength);
+  }
+
+  @Test
+  public void testCompactionKeepsRecordsUntilFinished() throws Exception {
+    File backingStore = new File(temporaryFolder.getRoot(), "local_db.bin");
+    WriteAheadLog log = new WriteAheadLog(backingStore);
+    appendPut(log, 1, "e1");
+    log.startCompaction();
+    appendPut(log, 2, "e2");
+    // A crash before finishCompaction() keeps both logs, the older one first.
+    assertThat(replay(backingStore))
+        .containsExactly("ids 1 0", "put e1", "ids 2 0", "put e2")
+        .inOrder();
+
+    // A failed compaction keeps the log it moved aside, and the next one adds to it.
+    log.startCompaction();
+    appendPut(log, 3, "e3");
+    assertThat(replay(backingStore)).hasSize(6);
+
+    log.finishCompaction();
+    log.close();
+    assertThat(replay(backingStore)).containsExactly("ids 3 0", "put e3").inOrder();
+  }
+}
@@ -21,17 +21,26 @@ import static com.google.common.truth.Truth.assertWithMessage;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertThrows;
 
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Text;
 import com.google.appengine.api.memcache.MemcacheSerialization.Flag;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheGetRequest;
 import com.google.appengine.api.testing.SerializationTestBase;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.protobuf.ByteString;
 import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -274,6 +283,242 @@ public class MemcacheSerializationTest extends SerializationTestBase {
         () -> MemcacheSerialization.serialize(new NotSerializable()));
   }
 
+  @Test
+  public void testCodecs() throws Exception {
+    List<Object> list = new ArrayList<>();
+    list.add(31415);
+    list.add("pi");
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("list", list);
+    map.put("bytes", new byte[] {1, 2, 3});
+    map.put("null", null);
+    Entity entity = new Entity("Kind", "name");
+    entity.setProperty("p", 23L);
+    entity.setUnindexedProperty("u", "yar");
+    MemcacheGetRequest message =
+        MemcacheGetRequest.newBuilder().setNameSpace("ns").addKey(ByteString.copyFromUtf8("k"))
+            .build();
+    byte[] listKey = MemcacheSerialization.makePbKey(list);
+
+    System.setProperty(MemcacheSerialization.FAST_SERIALIZATION_PROPERTY, "true");
+    try {
+      for (Object value : Arrays.asList(list, entity, message)) {
+        MemcacheSerialization.ValueAndFlags vaf = MemcacheSerialization.serialize(value);
+        assertThat(vaf.flags).isEqualTo(Flag.CODEC);
+        assertThat(MemcacheSerialization.deserialize(vaf.value, vaf.flags.ordinal()))
+            .isEqualTo(value);
+      }
+      MemcacheSerialization.ValueAndFlags vaf = MemcacheSerialization.serialize(map);
+      assertThat(vaf.flags).isEqualTo(Flag.CODEC);
+      @SuppressWarnings("unchecked")
+      Map<String, Object> deserialized =
+          (Map<String, Object>) MemcacheSerialization.deserialize(vaf.value, vaf.flags.ordinal());
+      assertThat(deserialized).isInstanceOf(LinkedHashMap.class);
+      assertThat(deserialized.keySet()).containsExactly("list", "bytes", "null").inOrder();
+      assertThat(deserialized.get("list")).isEqualTo(list);
+      assertThat((byte[]) deserialized.get("bytes")).isEqualTo(new byte[] {1, 2, 3});
+
+      // Collections of other types still use Java serialization.
+      List<Object> dates = new ArrayList<>();
+      dates.add(new Date(0));
+      assertThat(MemcacheSerialization.serialize(dates).flags).isEqualTo(Flag.OBJECT);
+
+      // Keys do not depend on the codecs.
+      assertThat(MemcacheSerialization.makePbKey(list)).isEqualTo(listKey);
+    } finally {
+      System.clearProperty(MemcacheSerialization.FAST_SERIALIZATION_PROPERTY);
+    }
+  }
+
+  @Test
+  public void testEntityPropertyClassesArePreserved() throws Exception {
+    Entity entity = new Entity("Kind", "name");
+    entity.setProperty("integer", 7);
+    entity.setProperty("float", 1.5f);
+    entity.setProperty("short", (short) 3);
+    entity.setProperty("byte", (byte) 4);
+    entity.setProperty("long", 5L);
+    entity.setProperty("double", 2.5);
+    entity.setProperty("list", Arrays.asList(1, 2));
+    Entity protoOnly = new Entity("Kind", "name");
+    protoOnly.setProperty("long", 5L);
+    protoOnly.setProperty("double", 2.5);
+    protoOnly.setProperty("date", new Date(1234));
+    protoOnly.setUnindexedProperty("list", new ArrayList<>(Arrays.asList(1L, 2L)));
+
+    System.setProperty(MemcacheSerialization.FAST_SERIALIZATION_PROPERTY, "true");
+    try {
+      for (Entity value : Arrays.asList(entity, protoOnly)) {
+        MemcacheSerialization.ValueAndFlags vaf = MemcacheSerialization.serialize(value);
+        Entity deserialized =
+            (Entity) MemcacheSerialization.deserialize(vaf.value, vaf.flags.ordinal());
+        assertThat(deserialized.getProperties()).isEqualTo(value.getProperties());
+        for (Map.Entry<String, Object> property : value.getProperties().entrySet()) {
+          assertWithMessage(property.getKey())
+              .that(deserialized.getProperty(property.getKey()).getClass())
+              .isEqualTo(property.getValue().getClass());
+        }
+      }
+      // Only entities whose values come back with the same classes use the entity codec.
+      assertThat(MemcacheSerialization.serialize(entity).flags).isEqualTo(Flag.OBJECT);
+      assertThat(MemcacheSerialization.serialize(protoOnly).flags).isEqualTo(Flag.CODEC);
+    } finally {
+      System.clearProperty(MemcacheSerialization.FAST_SERIALIZATION_PROPERTY);
+    }
+  }
+
+  @Test
+  public void testStringsWithUnpairedSurrogatesArePreserved() throws Exception {
+    String unpaired = "a\uD800b";
+    List<Object> list = new ArrayList<>();
+    list.add("ok");
+    list.add(unpaired);
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("\uDC00", 1);
+    Entity entity = new Entity("Kind", "name");
+    entity.setProperty("p", unpaired);
+    Entity textEntity = new Entity("Kind", "name");
+    textEntity.setProperty("t", new Text("\uD800"));
+
+    System.setProperty(MemcacheSerialization.FAST_SERIALIZATION_PROPERTY, "true");
+    try {
+      for (Object value : Arrays.asList(list, map, entity, textEntity)) {
+        MemcacheSerialization.ValueAndFlags vaf = MemcacheSerialization.serialize(value);
+        // Java serialization keeps the strings intact, where UTF-8 would replace them.
+        assertThat(vaf.flags).isEqualTo(Flag.OBJECT);
+        assertThat(MemcacheSerialization.deserialize(vaf.value, vaf.flags.ordinal()))
+            .isEqualTo(value);
+      }
+      // Surrogate pairs are fine.
+      List<Object> paired = new ArrayList<>();
+      paired.add("\uD83D\uDE00");
+      MemcacheSerialization.ValueAndFlags vaf = MemcacheSerialization.serialize(paired);
+      assertThat(vaf.flags).isEqualTo(Flag.CODEC);
+      assertThat(MemcacheSerialization.deserialize(vaf.value, vaf.flags.ordinal()))
+          .isEqualTo(paired);
+    } finally {
+      System.clearProperty(MemcacheSerialization.FAST_SERIALIZATION_PROPERTY);
+    }
+  }
+
+  @Test
+  public void testProtocolMessagesAreOnlyReadWhenEnabled() throws Exception {
+    MemcacheGetRequest message = MemcacheGetRequest.newBuilder().setNameSpace("ns").build();
+    ByteArrayOutputStream notMessage = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(notMessage)) {
+      out.writeUTF(String.class.getName());
+    }
+    byte[] notMessageValue = MemcacheCodecs.frame(1, notMessage.toByteArray(), 0);
+
+    MemcacheSerialization.ValueAndFlags vaf;
+    System.setProperty(MemcacheSerialization.FAST_SERIALIZATION_PROPERTY, "true");
+    try {
+      vaf = MemcacheSerialization.serialize(message);
+      assertThat(vaf.flags).isEqualTo(Flag.CODEC);
+      assertThat(MemcacheSerialization.deserialize(vaf.value, vaf.flags.ordinal()))
+          .isEqualTo(message);
+      // Classes that are not protocol messages are rejected before they are initialized.
+      assertThrows(
+          IOException.class,
+          () -> MemcacheSerialization.deserialize(notMessageValue, Flag.CODEC.ordinal()));
+    } finally {
+      System.clearProperty(MemcacheSerialization.FAST_SERIALIZATION_PROPERTY);
+    }
+
+    byte[] value = vaf.value;
+    assertThrows(
+        IOException.class, () -> MemcacheSerialization.deserialize(value, Flag.CODEC.ordinal()));
+  }
+
+  @Test
+  public void testCompression() throws Exception {
+    List<String> list = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      list.add("a compressible string");
+    }
+    MemcacheSerialization.ValueAndFlags uncompressed = MemcacheSerialization.serialize(list);
+    assertThat(uncompressed.flags).isEqualTo(Flag.OBJECT);
+
+    System.setProperty(MemcacheSerialization.COMPRESSION_THRESHOLD_PROPERTY, "1024");
+    try {
+      MemcacheSerialization.ValueAndFlags vaf = MemcacheSerialization.serialize(list);
+      assertThat(vaf.flags).isEqualTo(Flag.CODEC);
+      assertThat(vaf.value.length).isLessThan(uncompressed.value.length / 10);
+      assertThat(MemcacheSerialization.deserialize(vaf.value, vaf.flags.ordinal()))
+          .isEqualTo(list);
+
+      // Small values and strings are left alone.
+      assertThat(MemcacheSerialization.serialize(new ArrayList<>(list.subList(0, 1))).flags)
+          .isEqualTo(Flag.OBJECT);
+      assertThat(MemcacheSerialization.serialize(Strings.repeat("x", 2000)).flags)
+          .isEqualTo(Flag.UTF8);
+    } finally {
+      System.clearProperty(MemcacheSerialization.COMPRESSION_THRESHOLD_PROPERTY);
+    }
+  }
+
+  @Test
+  public void testRegisterCodec() throws Exception {
+    MemcacheSerialization.Codec upperCase =
+        new MemcacheSerialization.Codec() {
+          @Override
+          public int id() {
+            return 100;
+          }
+
+          @Override
+          public byte[] encode(Object value) {
+            return (value instanceof StringBuilder)
+                ? value.toString().toUpperCase(Locale.ROOT).getBytes(UTF_8)
+                : null;
+          }
+
+          @Override
+          public Object decode(byte[] bytes) {
+            return new StringBuilder(new String(bytes, UTF_8));
+          }
+        };
+    MemcacheSerialization.registerCodec(upperCase);
+    assertThrows(IllegalStateException.class, () -> MemcacheSerialization.registerCodec(upperCase));
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            MemcacheSerialization.registerCodec(
+                new MemcacheSerialization.Codec() {
+                  @Override
+                  public int id() {
+                    return 1;
+                  }
+
+                  @Override
+                  public byte[] encode(Object value) {
+                    return null;
+                  }
+
+                  @Override
+                  public Object decode(byte[] bytes) {
+                    return null;
+                  }
+                }));
+
+    System.setProperty(MemcacheSerialization.FAST_SERIALIZATION_PROPERTY, "true");
+    try {
+      MemcacheSerialization.ValueAndFlags vaf =
+          MemcacheSerialization.serialize(new StringBuilder("yar"));
+      assertThat(vaf.flags).isEqualTo(Flag.CODEC);
+      assertThat(
+              MemcacheSerialization.deserialize(vaf.value, vaf.flags.ordinal()).toString())
+          .isEqualTo("YAR");
+    } finally {
+      System.clearProperty(MemcacheSerialization.FAST_SERIALIZATION_PROPERTY);
+    }
+
+    byte[] unknownCodec = {101, 1, 2, 3};
+    assertThrows(
+        IOException.class,
+        () -> MemcacheSerialization.deserialize(unknownCodec, Flag.CODEC.ordinal()));
+  }
+
   @Override
   protected List<Serializable> getCanonicalObjects() {
     return Lists.newArrayList(
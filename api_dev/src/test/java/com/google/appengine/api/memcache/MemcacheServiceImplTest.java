@@ -29,6 +29,7 @@ import static org.junit.Assert.fail;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.same;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -66,6 +67,7 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.testing.EqualsTester;
 import com.google.common.testing.TestLogHandler;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.Message;
 import java.io.IOException;
@@ -325,6 +327,154 @@ public class MemcacheServiceImplTest {
     oneGetTest(memcache, "ns2");
   }
 
+  @Test
+  public void testCoalescedGets() throws Exception {
+    System.setProperty(MemcacheGetCoalescer.COALESCE_GETS_PROPERTY, "true");
+    try {
+      AsyncMemcacheService memcache = new AsyncMemcacheServiceImpl("coalesce");
+      ByteString oneKey = ByteString.copyFrom(makePbKey(ONE));
+      ByteString twoKey = ByteString.copyFrom(makePbKey(TWO));
+      MemcacheGetRequest oneRequest =
+          MemcacheGetRequest.newBuilder().setNameSpace("coalesce").addKey(oneKey).build();
+      MemcacheGetRequest twoRequest =
+          MemcacheGetRequest.newBuilder().setNameSpace("coalesce").addKey(twoKey).build();
+      MemcacheGetResponse oneResponse =
+          MemcacheGetResponse.newBuilder()
+              .addItem(
+                  MemcacheGetResponse.Item.newBuilder()
+                      .setKey(oneKey)
+                      .setFlags(Flag.UTF8.ordinal())
+                      .setValue(ByteString.copyFrom(serialize(ONE).value)))
+              .build();
+      MemcacheGetResponse twoResponse =
+          MemcacheGetResponse.newBuilder()
+              .addItem(
+                  MemcacheGetResponse.Item.newBuilder()
+                      .setKey(twoKey)
+                      .setFlags(Flag.INTEGER.ordinal())
+                      .setValue(ByteString.copyFrom(serialize(123).value)))
+              .build();
+      SettableFuture<byte[]> pendingOne = SettableFuture.create();
+      expectAsyncCall("Get", oneRequest, pendingOne);
+      expectAsyncCallWithoutReset("Get", twoRequest, twoResponse);
+
+      Future<Object> first = memcache.get(ONE);
+      Future<Object> second = memcache.get(ONE);
+      Future<Map<String, Object>> all = memcache.getAll(Arrays.asList(ONE, TWO));
+      pendingOne.set(oneResponse.toByteArray());
+
+      assertThat(first.get()).isEqualTo(ONE);
+      assertThat(second.get()).isEqualTo(ONE);
+      assertThat(all.get()).containsExactly(ONE, ONE, TWO, 123);
+      verify(delegate, times(1))
+          .makeAsyncCall(
+              same(environment),
+              eq(MemcacheServiceApiHelper.PACKAGE),
+              eq("Get"),
+              eq(oneRequest.toByteArray()),
+              eq(apiConfig));
+
+      // Once the RPC has completed, a new get makes a new RPC rather than reusing the old value.
+      expectAsyncCall("Get", oneRequest, oneResponse);
+      assertThat(memcache.get(ONE).get()).isEqualTo(ONE);
+      verifyAsyncCall("Get", oneRequest);
+    } finally {
+      System.clearProperty(MemcacheGetCoalescer.COALESCE_GETS_PROPERTY);
+    }
+  }
+
+  @Test
+  public void testCoalescedGetsWithCancelledLeader() throws Exception {
+    System.setProperty(MemcacheGetCoalescer.COALESCE_GETS_PROPERTY, "true");
+    try {
+      AsyncMemcacheService memcache = new AsyncMemcacheServiceImpl("cancelled");
+      ByteString oneKey = ByteString.copyFrom(makePbKey(ONE));
+      MemcacheGetRequest oneRequest =
+          MemcacheGetRequest.newBuilder().setNameSpace("cancelled").addKey(oneKey).build();
+      SettableFuture<byte[]> pendingOne = SettableFuture.create();
+      expectAsyncCall("Get", oneRequest, pendingOne);
+
+      memcache.get(ONE);
+      Future<Object> joined = memcache.get(ONE);
+      Future<Map<String, Object>> all = memcache.getAll(Arrays.asList(ONE));
+      // As when the request that made the RPC reaches its deadline.
+      pendingOne.cancel(false);
+
+      assertThat(joined.get()).isNull();
+      assertThat(all.get()).isEmpty();
+
+      // A failed shared get is a miss too, even when every key of a getAll is shared.
+      SettableFuture<byte[]> failingOne = SettableFuture.create();
+      expectAsyncCall("Get", oneRequest, failingOne);
+      memcache.get(ONE);
+      all = memcache.getAll(Arrays.asList(ONE));
+      failingOne.setException(new ApiProxy.ApplicationException(1, "Error"));
+      assertThat(all.get()).isEmpty();
+    } finally {
+      System.clearProperty(MemcacheGetCoalescer.COALESCE_GETS_PROPERTY);
+    }
+  }
+
+  @Test
+  public void testNearCache() throws Exception {
+    System.setProperty(MemcacheNearCache.MAX_BYTES_PROPERTY, "100000");
+    System.setProperty(MemcacheNearCache.TTL_MILLIS_PROPERTY, "60000");
+    MemcacheNearCache.resetInstance();
+    try {
+      MemcacheService memcache = new MemcacheServiceImpl("near");
+      ByteString oneKey = ByteString.copyFrom(makePbKey(ONE));
+      MemcacheGetRequest oneRequest =
+          MemcacheGetRequest.newBuilder().setNameSpace("near").addKey(oneKey).build();
+      MemcacheGetResponse oneResponse =
+          MemcacheGetResponse.newBuilder()
+              .addItem(
+                  MemcacheGetResponse.Item.newBuilder()
+                      .setKey(oneKey)
+                      .setFlags(Flag.UTF8.ordinal())
+                      .setValue(ByteString.copyFrom(serialize(ONE).value)))
+              .build();
+      expectAsyncCall("Get", oneRequest, oneResponse);
+      assertThat(memcache.get(ONE)).isEqualTo(ONE);
+      assertThat(memcache.get(ONE)).isEqualTo(ONE);
+      assertThat(memcache.contains(ONE)).isTrue();
+      verifyAsyncCall("Get", oneRequest);
+
+      // A delete from this instance invalidates the cached value.
+      MemcacheDeleteRequest deleteRequest =
+          MemcacheDeleteRequest.newBuilder()
+              .setNameSpace("near")
+              .addItem(MemcacheDeleteRequest.Item.newBuilder().setKey(oneKey).setDeleteTime(0))
+              .build();
+      expectAsyncCall(
+          "Delete",
+          deleteRequest,
+          MemcacheDeleteResponse.newBuilder()
+              .addDeleteStatus(MemcacheDeleteResponse.DeleteStatusCode.DELETED)
+              .build());
+      assertThat(memcache.delete(ONE)).isTrue();
+      expectAsyncCall("Get", oneRequest, MemcacheGetResponse.getDefaultInstance());
+      assertThat(memcache.get(ONE)).isNull();
+      verifyAsyncCall("Get", oneRequest);
+
+      // Identifiable gets always go to the service.
+      expectAsyncCall("Get", oneRequest.toBuilder().setForCas(true).build(), oneResponse);
+      assertThat(memcache.getIdentifiable(ONE).getValue()).isEqualTo(ONE);
+
+      expectAsyncCall(
+          "Stats",
+          MemcacheStatsRequest.getDefaultInstance(),
+          MemcacheStatsResponse.getDefaultInstance());
+      Stats stats = memcache.getStatistics();
+      assertThat(stats.getNearCacheHitCount()).isEqualTo(2);
+      assertThat(stats.getNearCacheMissCount()).isEqualTo(2);
+      assertThat(stats.getNearCacheEvictionCount()).isEqualTo(0);
+    } finally {
+      System.clearProperty(MemcacheNearCache.MAX_BYTES_PROPERTY);
+      System.clearProperty(MemcacheNearCache.TTL_MILLIS_PROPERTY);
+      MemcacheNearCache.resetInstance();
+    }
+  }
+
   private void multiGetTest(MemcacheService memcache, String namespace) {
     byte[] oneKey = makePbKey(ONE);
     byte[] twoKey = makePbKey(TWO);
@@ -18,6 +18,8 @@ package com.google.appengine.api.memcache.dev;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import java.util.Arrays;
+import java.util.Comparator;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -123,6 +125,22 @@ public class LRUTest {
     verifyChain(lru, e3, e1, e2);
   }
 
+  @Test
+  public void testUpdateInOrder() {
+    // Orders e3 before e2 before e1, from oldest to newest.
+    Comparator<EmptyChainable> order = Comparator.comparingInt(Arrays.asList(e3, e2, e1)::indexOf);
+    lru.updateInOrder(e1, order);
+    verifyChain(lru, e1);
+    lru.updateInOrder(e3, order);
+    verifyChain(lru, e1, e3);
+    lru.updateInOrder(e2, order);
+    verifyChain(lru, e1, e2, e3);
+    assertThat(lru.getChainLength()).isEqualTo(3);
+    lru.updateInOrder(e1, order);
+    verifyChain(lru, e1, e2, e3);
+    assertThat(lru.getChainLength()).isEqualTo(3);
+  }
+
   @Test
   public void testRemove() {
     updateAndVerifyLength(e3, 1);
@@ -28,11 +28,18 @@ import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
 import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheGetRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheSetRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheStatsRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MergedNamespaceStats;
 import com.google.appengine.api.memcache.Stats;
 import com.google.appengine.tools.development.ApiProxyLocal;
 import com.google.appengine.tools.development.Clock;
+import com.google.appengine.tools.development.LocalRpcService.Status;
 import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.protobuf.ByteString;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
@@ -41,10 +48,15 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.annotation.concurrent.NotThreadSafe;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
@@ -66,6 +78,8 @@ public class LocalMemcacheServiceTest {
   // 7 == MemcacheSerialization.makePbKey(THREE).length, but it's not visible
   static final int SIZE_THREE = 7 + VAL_THREE.length();
 
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   // Used to control the clock during time-dependent tests.
   private JavaMockClock clock;
 
@@ -697,13 +711,13 @@ public class LocalMemcacheServiceTest {
   @Test
   public void testSettingSameObjectDoesNotLeak() {
     // Verify that the LRU starts out empty
-    assertThat(getLocalMemcacheService().getLRU().getChainLength()).isEqualTo(0);
+    assertThat(getLocalMemcacheService().getLruChainLength()).isEqualTo(0);
 
     for (int i = 0; i < 10; i++) {
       memcache.put("this", "that");
     }
     // There is only 1 key in the cache so the LRU should only have 1 entry.
-    assertThat(getLocalMemcacheService().getLRU().getChainLength()).isEqualTo(1);
+    assertThat(getLocalMemcacheService().getLruChainLength()).isEqualTo(1);
 
     // Now repeat the test but with different values, expiration values, and set policies.
     for (int i = 0; i < 10; i++) {
@@ -712,22 +726,117 @@ public class LocalMemcacheServiceTest {
       }
     }
     // It's all the same key so the LRU should still only have 1 entry.
-    assertThat(getLocalMemcacheService().getLRU().getChainLength()).isEqualTo(1);
+    assertThat(getLocalMemcacheService().getLruChainLength()).isEqualTo(1);
   }
 
   @Test
   public void testIncrementDoesNotLeak() {
     // Verify that the LRU starts out empty
-    assertThat(getLocalMemcacheService().getLRU().getChainLength()).isEqualTo(0);
+    assertThat(getLocalMemcacheService().getLruChainLength()).isEqualTo(0);
 
     memcache.put("this", 1);
     // There is only 1 key in the cache so the LRU should only have 1 entry.
-    assertThat(getLocalMemcacheService().getLRU().getChainLength()).isEqualTo(1);
+    assertThat(getLocalMemcacheService().getLruChainLength()).isEqualTo(1);
     for (int i = 0; i < 10; i++) {
       memcache.increment("this", 1);
     }
     // There is still only 1 key in the cache so the LRU should only have 1 entry.
-    assertThat(getLocalMemcacheService().getLRU().getChainLength()).isEqualTo(1);
+    assertThat(getLocalMemcacheService().getLruChainLength()).isEqualTo(1);
+  }
+
+  @Test
+  public void testConcurrentSetsKeepSizeLimit() throws Exception {
+    LocalMemcacheService service = getLocalMemcacheService();
+    service.setLimits(10_000);
+    int threads = 8;
+    int keysPerThread = 500;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        int thread = t;
+        futures.add(
+            executor.submit(
+                () -> {
+                  for (int i = 0; i < keysPerThread; i++) {
+                    ByteString key = ByteString.copyFromUtf8("key-" + thread + "-" + i);
+                    MemcacheSetRequest request =
+                        MemcacheSetRequest.newBuilder()
+                            .addItem(
+                                MemcacheSetRequest.Item.newBuilder()
+                                    .setKey(key)
+                                    .setValue(ByteString.copyFrom(new byte[90]))
+                                    .setSetPolicy(MemcacheSetRequest.SetPolicy.SET))
+                            .build();
+                    service.set(new Status(), request);
+                    service.get(new Status(), MemcacheGetRequest.newBuilder().addKey(key).build());
+                  }
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    MergedNamespaceStats stats =
+        service.stats(new Status(), MemcacheStatsRequest.getDefaultInstance()).getStats();
+    // Each entry is about 100 bytes, so the cache is within one entry of its limit.
+    assertThat(stats.getBytes()).isAtMost(10_000L);
+    assertThat(stats.getBytes()).isGreaterThan(9_900L);
+    assertThat(stats.getItems()).isEqualTo(service.getLruChainLength());
+    assertThat(stats.getHits() + stats.getMisses()).isEqualTo(threads * keysPerThread);
+  }
+
+  @Test
+  public void testSnapshotAndRestore() throws Exception {
+    memcache.put(ONE, VAL_ONE);
+    memcache.put(TWO, VAL_TWO, Expiration.byDeltaSeconds(10));
+    IdentifiableValue identifiable = memcache.getIdentifiable(ONE);
+    File snapshot = temporaryFolder.newFile();
+    getLocalMemcacheService().snapshot(snapshot);
+
+    memcache.clearAll();
+    memcache.put(THREE, VAL_THREE);
+    getLocalMemcacheService().restore(snapshot);
+    assertThat(memcache.get(ONE)).isEqualTo(VAL_ONE);
+    assertThat(memcache.get(TWO)).isEqualTo(VAL_TWO);
+    assertThat(memcache.contains(THREE)).isFalse();
+    // The entry kept its CAS ID.
+    assertThat(memcache.putIfUntouched(ONE, identifiable, "updated")).isTrue();
+
+    // Entries that expired since the snapshot was written are not restored.
+    sleep(20_000);
+    getLocalMemcacheService().restore(snapshot);
+    assertThat(memcache.get(ONE)).isEqualTo(VAL_ONE);
+    assertThat(memcache.contains(TWO)).isFalse();
+  }
+
+  @Test
+  public void testBackingStoreOutlivesRestarts() throws Exception {
+    String backingStore = new File(temporaryFolder.getRoot(), "memcache.bin").getPath();
+    helper.tearDown();
+    LocalMemcacheServiceTestConfig config =
+        new LocalMemcacheServiceTestConfig().setBackingStore(backingStore);
+    helper = new LocalServiceTestHelper(config);
+    helper.setClock(clock);
+    helper.setUp();
+    memcache = MemcacheServiceFactory.getMemcacheService();
+    memcache.put(ONE, VAL_ONE);
+    memcache.put(TWO, VAL_TWO, Expiration.byDeltaSeconds(60));
+    memcache.put(THREE, VAL_THREE);
+    memcache.delete(THREE);
+    IdentifiableValue identifiable = memcache.getIdentifiable(ONE);
+
+    // Restart the service, which loads the cache back from its backing store.
+    helper.tearDown();
+    helper.setUp();
+    memcache = MemcacheServiceFactory.getMemcacheService();
+    assertThat(memcache.get(ONE)).isEqualTo(VAL_ONE);
+    assertThat(memcache.get(TWO)).isEqualTo(VAL_TWO);
+    assertThat(memcache.contains(THREE)).isFalse();
+    assertThat(memcache.putIfUntouched(ONE, identifiable, "updated")).isTrue();
   }
 
   @Test
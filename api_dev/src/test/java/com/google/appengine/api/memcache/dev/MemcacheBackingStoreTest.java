@@ -0,0 +1,159 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.memcache.dev;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertThrows;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class MemcacheBackingStoreTest {
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  /** Records the loaded records as strings. */
+  private static class RecordingLoader implements MemcacheBackingStore.Loader {
+    final List<String> records = new ArrayList<>();
+
+    @Override
+    public void put(
+        String namespace, byte[] key, byte[] value, int flags, long expires, long casId) {
+      records.add(
+          String.format(
+              "put %s/%s=%s %d %d %d",
+              namespace, new String(key, UTF_8), new String(value, UTF_8), flags, expires, casId));
+    }
+
+    @Override
+    public void delete(String namespace, byte[] key) {
+      records.add(String.format("delete %s/%s", namespace, new String(key, UTF_8)));
+    }
+  }
+
+  private static List<String> load(File file) throws IOException {
+    RecordingLoader loader = new RecordingLoader();
+    int count = MemcacheBackingStore.load(file, loader);
+    assertThat(count).isEqualTo(loader.records.size());
+    return loader.records;
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(UTF_8);
+  }
+
+  @Test
+  public void testAppendAndLoad() throws Exception {
+    File file = new File(temporaryFolder.getRoot(), "memcache.bin");
+    MemcacheBackingStore store = new MemcacheBackingStore(file);
+    store.appendPut("", bytes("a"), bytes("1"), 0, 0, 0);
+    store.appendPut("ns", bytes("b"), bytes("2"), 3, 1234, 7);
+    store.appendDelete("", bytes("a"));
+    store.close();
+
+    assertThat(load(file))
+        .containsExactly("put /a=1 0 0 0", "put ns/b=2 3 1234 7", "delete /a")
+        .inOrder();
+
+    // Reopening the file appends to it.
+    store = new MemcacheBackingStore(file);
+    store.appendPut("", bytes("c"), bytes("3"), 0, 0, 0);
+    store.close();
+    assertThat(load(file)).hasSize(4);
+  }
+
+  @Test
+  public void testIncompleteRecordIsIgnored() throws Exception {
+    File file = new File(temporaryFolder.getRoot(), "memcache.bin");
+    MemcacheBackingStore store = new MemcacheBackingStore(file);
+    store.appendPut("", bytes("a"), bytes("1"), 0, 0, 0);
+    store.appendPut("", bytes("b"), bytes("2"), 0, 0, 0);
+    store.close();
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(raf.length() - 3);
+    }
+
+    assertThat(load(file)).containsExactly("put /a=1 0 0 0");
+
+    // Records appended after loading are not lost behind the incomplete one.
+    store = new MemcacheBackingStore(file);
+    store.appendDelete("", bytes("a"));
+    store.close();
+    assertThat(load(file)).containsExactly("put /a=1 0 0 0", "delete /a").inOrder();
+  }
+
+  @Test
+  public void testCorruptRecordIsTruncated() throws Exception {
+    File file = new File(temporaryFolder.getRoot(), "memcache.bin");
+    MemcacheBackingStore store = new MemcacheBackingStore(file);
+    store.appendPut("", bytes("a"), bytes("1"), 0, 0, 0);
+    store.close();
+    long validLength = file.length();
+    store = new MemcacheBackingStore(file);
+    store.appendPut("", bytes("a"), bytes("2"), 0, 0, 0);
+    store.close();
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.seek(raf.length() - 1);
+      int last = raf.read();
+      raf.seek(raf.length() - 1);
+      raf.write(last ^ 0xff);
+    }
+
+    assertThat(load(file)).containsExactly("put /a=1 0 0 0");
+    assertThat(file.length()).isEqualTo(validLength);
+    store = new MemcacheBackingStore(file);
+    store.appendDelete("", bytes("a"));
+    store.close();
+    assertThat(load(file)).containsExactly("put /a=1 0 0 0", "delete /a").inOrder();
+  }
+
+  @Test
+  public void testCompaction() throws Exception {
+    File file = new File(temporaryFolder.getRoot(), "memcache.bin");
+    MemcacheBackingStore store = new MemcacheBackingStore(file);
+    store.appendPut("", bytes("a"), bytes("1"), 0, 0, 0);
+    store.appendPut("", bytes("a"), bytes("2"), 0, 0, 0);
+    store.appendDelete("", bytes("b"));
+
+    // The file is far too small to be worth compacting.
+    assertThat(store.compactIfNeeded(writer -> {})).isFalse();
+
+    store.compact(writer -> writer.put("", bytes("a"), bytes("2"), 0, 0, 0));
+    store.appendPut("", bytes("c"), bytes("3"), 0, 0, 0);
+    store.close();
+    assertThat(load(file)).containsExactly("put /a=2 0 0 0", "put /c=3 0 0 0").inOrder();
+    assertThat(new File(file.getPath() + MemcacheBackingStore.COMPACTING_SUFFIX).exists())
+        .isFalse();
+  }
+
+  @Test
+  public void testLoadRejectsOtherFiles() throws Exception {
+    File file = temporaryFolder.newFile();
+    Files.write(file.toPath(), bytes("not a memcache backing store"));
+    assertThrows(IOException.class, () -> load(file));
+  }
+}
@@ -954,11 +954,13 @@ public class DatastoreApiUsage {
       config = config.deadline(23.5d);
       config = config.implicitTransactionManagementPolicy(ImplicitTransactionManagementPolicy.AUTO);
       config = config.maxEntityGroupsPerRpc(4);
+      config = config.maxConcurrentBatchRpcs(8);
       config = config.readPolicy(new ReadPolicy(ReadPolicy.Consistency.EVENTUAL));
       Double doubleVal = config.getDeadline();
       ImplicitTransactionManagementPolicy txnPolicy =
           config.getImplicitTransactionManagementPolicy();
       Integer integerVal = config.getMaxEntityGroupsPerRpc();
+      int intVal = config.getMaxConcurrentBatchRpcs();
       ReadPolicy readPolicy = config.getReadPolicy();
       //      config = config.entityCacheConfig(EntityCacheConfig.Builder.withDefaults());
       //      EntityCacheConfig cacheConfig = config.getEntityCacheConfig();
@@ -979,6 +981,7 @@ public class DatastoreApiUsage {
       config = DatastoreServiceConfig.Builder.withImplicitTransactionManagementPolicy(
           ImplicitTransactionManagementPolicy.AUTO);
       config = DatastoreServiceConfig.Builder.withMaxEntityGroupsPerRpc(4);
+      config = DatastoreServiceConfig.Builder.withMaxConcurrentBatchRpcs(8);
       config = DatastoreServiceConfig.Builder.withReadPolicy(
           new ReadPolicy(ReadPolicy.Consistency.EVENTUAL));
       //      config = DatastoreServiceConfig.Builder.withEntityCacheConfig(
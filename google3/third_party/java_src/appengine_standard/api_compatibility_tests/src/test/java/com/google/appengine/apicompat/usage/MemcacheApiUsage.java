@@ -133,12 +133,18 @@ public final class MemcacheApiUsage {
       extends ExhaustiveApiUsage<MemcacheSerialization> {
 
     String ___apiConstant_USE_THREAD_CONTEXT_CLASSLOADER_PROPERTY;
+    String ___apiConstant_FAST_SERIALIZATION_PROPERTY;
+    String ___apiConstant_COMPRESSION_THRESHOLD_PROPERTY;
 
     @Override
     @SuppressWarnings({"unchecked"})
     public Set<Class<?>> useApi() {
       ___apiConstant_USE_THREAD_CONTEXT_CLASSLOADER_PROPERTY =
           MemcacheSerialization.USE_THREAD_CONTEXT_CLASSLOADER_PROPERTY;
+      ___apiConstant_FAST_SERIALIZATION_PROPERTY =
+          MemcacheSerialization.FAST_SERIALIZATION_PROPERTY;
+      ___apiConstant_COMPRESSION_THRESHOLD_PROPERTY =
+          MemcacheSerialization.COMPRESSION_THRESHOLD_PROPERTY;
 
       try {
         MemcacheSerialization.deserialize(new byte[0], 0);
@@ -158,10 +164,31 @@ public final class MemcacheApiUsage {
       } catch (IOException e) {
         // fine
       }
+      try {
+        MemcacheSerialization.registerCodec(null);
+      } catch (NullPointerException e) {
+        // fine
+      }
       return Sets.<Class<?>>newHashSet(Object.class);
     }
   }
 
+  public static class CodecApiUsage
+      extends ExhaustiveApiInterfaceUsage<MemcacheSerialization.Codec> {
+
+    @Override
+    protected Set<Class<?>> useApi(MemcacheSerialization.Codec codec) {
+      int id = codec.id();
+      try {
+        byte[] bytes = codec.encode("yar");
+        Object value = codec.decode(bytes);
+      } catch (ClassNotFoundException | IOException e) {
+        // fine
+      }
+      return Sets.newHashSet();
+    }
+  }
+
   public static class CasValuesApiUsage extends ExhaustiveApiUsage<MemcacheService.CasValues> {
 
     @Override
@@ -298,6 +325,9 @@ public final class MemcacheApiUsage {
       int intVal = stats.getMaxTimeWithoutAccess();
       longVal = stats.getMissCount();
       longVal = stats.getTotalItemBytes();
+      longVal = stats.getNearCacheHitCount();
+      longVal = stats.getNearCacheMissCount();
+      longVal = stats.getNearCacheEvictionCount();
       return Sets.newHashSet();
     }
   }
@@ -616,6 +646,7 @@ public final class MemcacheApiUsage {
       flag = MemcacheSerialization.Flag.BOOLEAN;
       flag = MemcacheSerialization.Flag.BYTE;
       flag = MemcacheSerialization.Flag.BYTES;
+      flag = MemcacheSerialization.Flag.CODEC;
       flag = MemcacheSerialization.Flag.INTEGER;
       flag = MemcacheSerialization.Flag.LONG;
       flag = MemcacheSerialization.Flag.OBJECT;
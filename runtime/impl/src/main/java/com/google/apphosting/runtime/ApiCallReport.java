@@ -0,0 +1,148 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiStats;
+import com.google.apphosting.api.ApiStats.ApiCall;
+import com.google.common.flogger.GoogleLogger;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reports the API calls recorded in a request's {@link ApiStats} when the request finishes. Both
+ * reports are off by default:
+ *
+ * <ul>
+ *   <li>If the system property {@value #LOG_THRESHOLD_PROPERTY} is set, every API call of a request
+ *       that took at least that many milliseconds is logged.
+ *   <li>If the system property {@value #SERVER_TIMING_PROPERTY} is true, the API calls are
+ *       summarized per method in a {@code Server-Timing} response header, if the response has not
+ *       already been sent.
+ * </ul>
+ */
+final class ApiCallReport {
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  static final String LOG_THRESHOLD_PROPERTY = "com.google.appengine.api.calls.log.threshold.ms";
+
+  static final String SERVER_TIMING_PROPERTY = "com.google.appengine.api.calls.server.timing";
+
+  static final String SERVER_TIMING_HEADER = "Server-Timing";
+
+  /** The most methods listed in the {@code Server-Timing} header, slowest first. */
+  private static final int MAX_SERVER_TIMING_METRICS = 10;
+
+  private ApiCallReport() {}
+
+  /**
+   * Logs the API calls of the request in {@code environment} and adds them to its response, as
+   * configured by the system properties.
+   *
+   * @param requestMillis how long the request took, or a negative number if that is not known
+   */
+  static void report(
+      ApiProxy.Environment environment, ResponseAPIData response, long requestMillis) {
+    ApiStats stats = (environment == null) ? null : ApiStats.get(environment);
+    if (stats == null) {
+      return;
+    }
+    long threshold = Long.getLong(LOG_THRESHOLD_PROPERTY, -1);
+    boolean serverTiming = Boolean.getBoolean(SERVER_TIMING_PROPERTY);
+    if ((threshold < 0 || requestMillis < threshold) && !serverTiming) {
+      return;
+    }
+    List<ApiCall> calls = stats.getApiCalls();
+    if (calls.isEmpty()) {
+      return;
+    }
+    if (threshold >= 0 && requestMillis >= threshold) {
+      logger.atInfo().log("%s", describe(calls, requestMillis));
+    }
+    if (serverTiming) {
+      response.addHttpOutputHeader(SERVER_TIMING_HEADER, serverTiming(calls));
+    }
+  }
+
+  /** Returns a multi-line description of every call, in the order they completed. */
+  static String describe(List<ApiCall> calls, long requestMillis) {
+    StringBuilder builder = new StringBuilder();
+    builder
+        .append("Request took ")
+        .append(requestMillis)
+        .append("ms and made ")
+        .append(calls.size())
+        .append(" API calls:");
+    for (ApiCall call : calls) {
+      builder.append("\n  ").append(call);
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Returns the value of a {@code Server-Timing} header with one metric per API method, giving the
+   * total latency of its calls and how many there were, plus the total time spent waiting for API
+   * slots if there was any.
+   */
+  static String serverTiming(List<ApiCall> calls) {
+    Map<String, MethodTotal> totals = new LinkedHashMap<>();
+    long slotWaitMillis = 0;
+    for (ApiCall call : calls) {
+      String name = call.getPackageName() + "." + call.getMethodName();
+      MethodTotal total = totals.computeIfAbsent(name, MethodTotal::new);
+      total.count++;
+      total.latencyNanos += call.getLatencyNanos();
+      slotWaitMillis += call.getSlotWaitMillis();
+    }
+    List<MethodTotal> sorted = new ArrayList<>(totals.values());
+    sorted.sort(Comparator.comparingLong((MethodTotal total) -> total.latencyNanos).reversed());
+    if (sorted.size() > MAX_SERVER_TIMING_METRICS) {
+      sorted = sorted.subList(0, MAX_SERVER_TIMING_METRICS);
+    }
+    StringBuilder builder = new StringBuilder();
+    for (MethodTotal total : sorted) {
+      if (builder.length() > 0) {
+        builder.append(", ");
+      }
+      builder.append(
+          String.format(
+              Locale.ROOT,
+              "%s;dur=%.3f;desc=\"%d\"",
+              total.name,
+              total.latencyNanos / 1e6,
+              total.count));
+    }
+    if (slotWaitMillis > 0) {
+      builder.append(", api-slot-wait;dur=").append(slotWaitMillis);
+    }
+    return builder.toString();
+  }
+
+  private static final class MethodTotal {
+    final String name;
+    int count;
+    long latencyNanos;
+
+    MethodTotal(String name) {
+      this.name = name;
+    }
+  }
+}
@@ -46,10 +46,11 @@ import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.errorprone.annotations.CanIgnoreReturnValue;
-import com.google.protobuf.ByteString;
 import com.google.protobuf.ExtensionRegistry;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -164,6 +165,7 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
   private final boolean disableApiCallLogging;
   private final AtomicBoolean enabled = new AtomicBoolean(true);
   private final boolean logToLogservice;
+  private final ApiRpcLimiter apiRpcLimiter = new ApiRpcLimiter();
 
   public static Builder builder() {
     return new AutoBuilder_ApiProxyImpl_Builder()
@@ -424,12 +426,15 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
         deadlineOracle.getDeadline(
             packageName, environment.isOfflineRequest(), requestDeadlineInSeconds);
 
+    // The request bytes are handed over to us by ApiProxy and are not modified after the call is
+    // made, so wrap them instead of copying. The payload is serialized exactly once, into the
+    // transport's request body.
     APIRequest.Builder apiRequest =
         APIRequest.newBuilder()
             .setApiPackage(packageName)
             .setCall(methodName)
             .setSecurityTicket(environment.getSecurityTicket())
-            .setPb(ByteString.copyFrom(requestBytes));
+            .setPb(UnsafeByteOperations.unsafeWrap(requestBytes));
     if (currentContext != null) {
       apiRequest.setTraceContext(TraceContextHelper.toProto2(currentContext));
     }
@@ -439,7 +444,7 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
     try {
       // Get an API slot, waiting if there are already too many threads doing API calls.
       // If we do wait for t milliseconds then our deadline is decreased by t.
-      apiSlotWaitTime = environment.apiRpcStarting(deadlineInSeconds);
+      apiSlotWaitTime = environment.apiRpcStarting(packageName, deadlineInSeconds);
       deadlineInSeconds -= apiSlotWaitTime / 1000.0;
       if (deadlineInSeconds < 0) {
         throw new InterruptedException("Deadline was used up while waiting for API RPC slot");
@@ -469,7 +474,7 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
           deadlineInSeconds,
           apiSlotWaitTime);
     } catch (RuntimeException | Error e) {
-      environment.apiRpcFinished();
+      environment.apiRpcAbandoned(packageName);
       logger.atWarning().withCause(e).log("Exception in API call setup");
       return Futures.immediateFailedFuture(e);
     }
@@ -515,11 +520,14 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
             currentContext,
             packageName,
             methodName,
+            apiRequest.getPb().size(),
+            apiSlotWaitTime,
             disableApiCallLogging);
+    long startNanos = System.nanoTime();
     apiHost.call(rpc, apiRequest, rpcCallback);
 
     settableFuture.addListener(
-        environment::apiRpcFinished,
+        () -> environment.apiRpcFinished(packageName, System.nanoTime() - startNanos),
         MoreExecutors.directExecutor());
 
     environment.addAsyncFuture(rpcCallback);
@@ -595,6 +603,9 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
     private final AtomicLong wallclockTimeInMillis;
     private final SettableFuture<byte[]> settable;
     private final Future<byte[]> delegate;
+    private final int requestSize;
+    private final long apiSlotWaitTime;
+    private final long startNanos;
     private final boolean disableApiCallLogging;
 
     AsyncApiFuture(
@@ -606,6 +617,8 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
         @Nullable CloudTraceContext currentContext,
         String packageName,
         String methodName,
+        int requestSize,
+        long apiSlotWaitTime,
         boolean disableApiCallLogging) {
       this.deadlineMillis = deadlineMillis;
       // We would like to make sure that wallclockTimeInMillis
@@ -624,6 +637,9 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
       this.context = currentContext;
       this.packageName = packageName;
       this.methodName = methodName;
+      this.requestSize = requestSize;
+      this.apiSlotWaitTime = apiSlotWaitTime;
+      this.startNanos = System.nanoTime();
       this.disableApiCallLogging = disableApiCallLogging;
     }
 
@@ -657,6 +673,23 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
       }
     }
 
+    /**
+     * Adds this call to the request's {@link ApiStats}. This is done before the result is set, so
+     * that the call has been recorded by the time the caller sees its result.
+     */
+    private void recordApiCall(int responseSize) {
+      environment.recordApiCall(
+          new ApiStats.ApiCall(
+              packageName,
+              methodName,
+              requestSize,
+              responseSize,
+              apiSlotWaitTime,
+              System.nanoTime() - startNanos,
+              deadlineMillis / 1000.0,
+              rpc.getQueueTimeNanos()));
+    }
+
     @Override
     public void success(APIResponse response) {
       APIResponse apiResponse = response;
@@ -671,6 +704,8 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
       }
 
       endApiSpan();
+      boolean ok = apiResponse.getError() == APIResponse.ERROR.OK_VALUE;
+      recordApiCall(ok ? apiResponse.getPb().size() : -1);
 
       // N.B.: Do not call settable.setException() with an
       // Error.  SettableFuture will immediately rethrow the Error "to
@@ -678,7 +713,7 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
       // Error from within a Stubby RPC callback will invoke
       // GlobalEventRegistry's error hook, which will call
       // System.exit(), which will fail.  This is bad.
-      if (apiResponse.getError() == APIResponse.ERROR.OK_VALUE) {
+      if (ok) {
         if (!disableApiCallLogging) {
           logger.atInfo().log("API call completed normally with status: %s", rpc.getStatus());
         }
@@ -699,6 +734,7 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
     public void failure() {
       wallclockTimeInMillis.set(System.currentTimeMillis() - rpc.getStartTimeMillis());
       endApiSpan();
+      recordApiCall(-1);
 
       setRpcError(
           rpc.getStatus(), rpc.getApplicationError(), rpc.getErrorDetail(), rpc.getException());
@@ -801,7 +837,7 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
         requestId,
         externalDatacenterName,
         asyncFutures,
-        outstandingApiRpcSemaphore,
+        apiRpcLimiter.newRequestSlots(outstandingApiRpcSemaphore),
         byteCountBeforeFlushing,
         maxLogLineSize,
         Ints.checkedCast(maxLogFlushTime.getSeconds()),
@@ -870,12 +906,18 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
 
   private static final class ApiStatsImpl extends ApiStats {
 
+    /** The most API calls recorded for one request. Any further calls are not recorded. */
+    private static final int MAX_RECORDED_API_CALLS = 1000;
+
     /**
      * Time spent in api cycles. This is basically an aggregate of all calls to
      * apiResponse.getCpuUsage().
      */
     private long apiTime;
 
+    // Guarded by this.
+    private final List<ApiCall> apiCalls = new ArrayList<>();
+
     private final EnvironmentImpl env;
 
     @CanIgnoreReturnValue
@@ -901,6 +943,17 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
     private void increaseApiTimeInMegacycles(long delta) {
       this.apiTime += delta;
     }
+
+    @Override
+    public synchronized List<ApiCall> getApiCalls() {
+      return Collections.unmodifiableList(new ArrayList<>(apiCalls));
+    }
+
+    private synchronized void recordApiCall(ApiCall call) {
+      if (apiCalls.size() < MAX_RECORDED_API_CALLS) {
+        apiCalls.add(call);
+      }
+    }
   }
 
   /**
@@ -941,12 +994,13 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
     private final AppLogsWriter appLogsWriter;
     @Nullable private final TraceWriter traceWriter;
     @Nullable private final TraceExceptionGenerator traceExceptionGenerator;
-    private final Semaphore outstandingApiRpcSemaphore;
+    private final ApiRpcLimiter.RequestSlots apiRpcSlots;
     private final ThreadGroup requestThreadGroup;
     private final RequestState requestState;
     private final Optional<String> traceId;
     private final Optional<String> spanId;
     @Nullable private final Long millisUntilSoftDeadline;
+    private final ApiStatsImpl apiStats;
 
     EnvironmentImpl(
         AppVersion appVersion,
@@ -957,7 +1011,7 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
         String requestId,
         String externalDatacenterName,
         List<Future<?>> asyncFutures,
-        Semaphore outstandingApiRpcSemaphore,
+        ApiRpcLimiter.RequestSlots apiRpcSlots,
         long byteCountBeforeFlushing,
         int maxLogLineSize,
         int maxLogFlushSeconds,
@@ -974,7 +1028,7 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
       this.attributes =
           createInitialAttributes(
               genericRequest, externalDatacenterName, coordinator, cloudSqlJdbcConnectivityEnabled);
-      this.outstandingApiRpcSemaphore = outstandingApiRpcSemaphore;
+      this.apiRpcSlots = apiRpcSlots;
       this.requestState = requestState;
       this.millisUntilSoftDeadline = millisUntilSoftDeadline;
 
@@ -993,7 +1047,7 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
               });
 
       // Bind an ApiStats class to this environment.
-      new ApiStatsImpl(this);
+      this.apiStats = new ApiStatsImpl(this);
 
       boolean isLongRequest = attributes.containsKey(BACKEND_ID_KEY) || isOfflineRequest();
       this.appLogsWriter =
@@ -1001,7 +1055,8 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
               upResponse,
               byteCountBeforeFlushing,
               maxLogLineSize,
-              isLongRequest ? maxLogFlushSeconds : 0);
+              isLongRequest ? maxLogFlushSeconds : 0,
+              this);
 
       this.traceWriter = traceWriter;
       if (TraceContextHelper.needsStackTrace(genericRequest.getTraceContext())) {
@@ -1050,33 +1105,29 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
     }
 
     /**
-     * Ensure that we don't already have too many API calls in progress, and wait if we do.
+     * Ensure that we don't already have too many API calls in progress, either overall or to the
+     * given API package, and wait if we do.
      *
      * @return the length of time we had to wait for an API slot.
      */
-    long apiRpcStarting(double deadlineInSeconds) throws InterruptedException {
-      if (deadlineInSeconds >= Double.MAX_VALUE) {
-        outstandingApiRpcSemaphore.acquire();
-        return 0;
-      }
-      // System.nanoTime() is guaranteed monotonic, unlike System.currentTimeMillis(). Of course
-      // there are 1,000,000 nanoseconds in a millisecond.
-      long startTime = System.nanoTime();
-      long deadlineInMillis = Math.round(deadlineInSeconds * 1000);
-      boolean acquired =
-          outstandingApiRpcSemaphore.tryAcquire(deadlineInMillis, TimeUnit.MILLISECONDS);
-      long elapsed = (System.nanoTime() - startTime) / 1_000_000;
-      if (!acquired || elapsed >= deadlineInMillis) {
-        if (acquired) {
-          outstandingApiRpcSemaphore.release();
-        }
-        throw new InterruptedException("Deadline passed while waiting for API slot");
-      }
-      return elapsed;
+    long apiRpcStarting(String packageName, double deadlineInSeconds)
+        throws InterruptedException {
+      return apiRpcSlots.acquire(packageName, deadlineInSeconds);
+    }
+
+    /** Releases the API slot of a call that completed after {@code latencyNanos}. */
+    void apiRpcFinished(String packageName, long latencyNanos) {
+      apiRpcSlots.release(packageName, latencyNanos);
+    }
+
+    /** Releases the API slot of a call that could not be started. */
+    void apiRpcAbandoned(String packageName) {
+      apiRpcSlots.release(packageName);
     }
 
-    void apiRpcFinished() {
-      outstandingApiRpcSemaphore.release();
+    /** Records a completed API call in this request's {@link ApiStats}. */
+    void recordApiCall(ApiStats.ApiCall call) {
+      apiStats.recordApiCall(call);
     }
 
     void addAsyncFuture(Future<?> future) {
@@ -1147,6 +1198,14 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
       appLogsWriter.flushAndWait();
     }
 
+    /**
+     * Waits for the logs that are being flushed in the background, and stops flushing them there.
+     * Called when the request completes, so that the remaining logs are returned in its response.
+     */
+    void stopBackgroundLogFlushes() {
+      appLogsWriter.stopBackgroundFlushes();
+    }
+
     public TraceWriter getTraceWriter() {
       return traceWriter;
     }
@@ -1372,9 +1431,44 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
 
       CloudTraceContext parentThreadContext = CloudTrace.getCurrentContext(environment);
       Runnable contextRunnable = runWithThreadContext(runnable, environment, parentThreadContext);
+      if (VirtualRequestThreads.isEnabled()) {
+        return newVirtualRequestThread(contextRunnable, requestState, environment);
+      }
       return new CurrentRequestThread(
           requestThreadGroup, contextRunnable, runnable, requestState, environment);
     }
+
+    /**
+     * Returns a virtual thread with the same behavior as a {@link CurrentRequestThread}. Since a
+     * virtual thread cannot override {@code start}, the thread is recorded now but only waited for
+     * once it is started, and it checks when it starts to run that it was started while the request
+     * was running. A thread started after the request stopped fails without running {@code
+     * runnable}, rather than running with the environment of a finished request.
+     */
+    private static Thread newVirtualRequestThread(
+        Runnable runnable, RequestState requestState, Environment environment) {
+      if (!requestState.getAllowNewRequestThreadCreation()) {
+        throw new IllegalStateException("Cannot create new threads after request thread stops.");
+      }
+      Thread thread =
+          VirtualRequestThreads.newThread(
+              /* name= */ null,
+              () -> {
+                if (!requestState.startUnstartedRequestThread(Thread.currentThread())) {
+                  requestState.forgetRequestThread(Thread.currentThread());
+                  throw new IllegalStateException(
+                      "Cannot start new threads after request thread stops.");
+                }
+                try {
+                  ApiProxy.setEnvironmentForCurrentThread(environment);
+                  runnable.run();
+                } finally {
+                  requestState.forgetRequestThread(Thread.currentThread());
+                }
+              });
+      requestState.recordUnstartedRequestThread(thread);
+      return thread;
+    }
   }
 
   private static final class BackgroundThreadFactory implements ThreadFactory {
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.flogger.GoogleLogger;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@code ApiRpcLimiter} decides how many concurrent API calls a request may have outstanding to
+ * each API package.
+ *
+ * <p>Every request has a fixed budget of outstanding API calls, represented by a {@link Semaphore}
+ * (see {@link RequestManager}). On its own that budget lets calls to one slow package, for example
+ * a burst of {@code urlfetch} calls, take all of the slots so that calls to fast packages such as
+ * {@code memcache} have to wait behind them. To avoid that, each package additionally has a limit
+ * that adapts to the latency observed for that package across all requests of the instance: while
+ * latencies stay close to the package's long-term average the limit grows back towards the full
+ * budget, and when latencies rise well above the average the limit shrinks, leaving the remaining
+ * slots to other packages.
+ *
+ * <p>The limits are shared by all requests, while the counts of outstanding calls are kept per
+ * request in a {@link RequestSlots} object.
+ */
+final class ApiRpcLimiter {
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  /** No package is ever limited to fewer than this many concurrent calls. */
+  @VisibleForTesting static final int MIN_LIMIT = 1;
+
+  /** Number of latency samples we need for a package before we start adapting its limit. */
+  @VisibleForTesting static final int WARMUP_SAMPLES = 10;
+
+  /**
+   * How much slower than its long-term average latency a package can get before we start reducing
+   * its limit.
+   */
+  private static final double TOLERANCE = 2.0;
+
+  /** Weight of each new sample in the exponentially-weighted long-term average latency. */
+  private static final double LONG_TERM_SMOOTHING = 0.01;
+
+  /** Weight of each newly computed limit in the smoothed limit. */
+  private static final double LIMIT_SMOOTHING = 0.2;
+
+  private final ConcurrentMap<String, PackageLimit> packageLimits = new ConcurrentHashMap<>();
+
+  /** The adaptive limit and the slot-wait statistics for one API package. */
+  static final class PackageLimit {
+    /**
+     * The current limit, as a fraction of the per-request budget. Starting at 1 means that a
+     * package with no latency history gets the same budget that it would have without this class.
+     */
+    private double fraction = 1.0;
+
+    private long samples;
+    private double longTermLatencyNanos;
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder slotWaitNanos = new LongAdder();
+
+    /** The maximum number of concurrent calls to this package, given a request budget. */
+    synchronized int limit(int budget) {
+      return Math.max(MIN_LIMIT, (int) Math.ceil(fraction * budget));
+    }
+
+    /**
+     * Adjusts the limit following the gradient between the long-term average latency and the
+     * latency of the call that just completed.
+     */
+    synchronized void onSample(long latencyNanos) {
+      samples++;
+      if (samples == 1) {
+        longTermLatencyNanos = latencyNanos;
+        return;
+      }
+      longTermLatencyNanos += LONG_TERM_SMOOTHING * (latencyNanos - longTermLatencyNanos);
+      if (samples < WARMUP_SAMPLES) {
+        return;
+      }
+      double ratio = TOLERANCE * longTermLatencyNanos / Math.max(1, latencyNanos);
+      double gradient = Math.max(0.5, Math.min(1.0, ratio));
+      // When latency is within tolerance the gradient is 1 and we probe upwards a little, so that
+      // a limit that was reduced during a slow period recovers once the package is healthy again.
+      double newFraction = (gradient == 1.0) ? fraction * 1.1 : fraction * gradient;
+      fraction += LIMIT_SMOOTHING * (newFraction - fraction);
+      fraction = Math.min(1.0, fraction);
+    }
+
+    void onSlotAcquired(long waitNanos) {
+      acquisitions.increment();
+      slotWaitNanos.add(waitNanos);
+    }
+
+    @VisibleForTesting
+    synchronized double fraction() {
+      return fraction;
+    }
+
+    long acquisitions() {
+      return acquisitions.sum();
+    }
+
+    long slotWaitNanos() {
+      return slotWaitNanos.sum();
+    }
+
+    @Override
+    public synchronized String toString() {
+      return String.format(
+          "limit=%.0f%% calls=%d totalSlotWait=%dms",
+          fraction * 100, acquisitions(), NANOSECONDS.toMillis(slotWaitNanos()));
+    }
+  }
+
+  PackageLimit forPackage(String packageName) {
+    return packageLimits.computeIfAbsent(packageName, unused -> new PackageLimit());
+  }
+
+  /** A snapshot of the per-package limits and slot-wait statistics, keyed by package name. */
+  Map<String, PackageLimit> packageLimits() {
+    return ImmutableSortedMap.copyOf(packageLimits);
+  }
+
+  @Override
+  public String toString() {
+    return packageLimits().toString();
+  }
+
+  /** Creates the slot accounting for a new request, whose overall budget is {@code semaphore}. */
+  RequestSlots newRequestSlots(Semaphore semaphore) {
+    return new RequestSlots(semaphore);
+  }
+
+  /**
+   * The API slots of a single request. A call first waits until its package is below its limit,
+   * then takes one of the request's slots from the semaphore. Waiters for a package are served in
+   * arrival order.
+   */
+  final class RequestSlots {
+    private final Semaphore semaphore;
+    private final int budget;
+    private final ReentrantLock lock = new ReentrantLock(/* fair= */ true);
+    private final Condition released = lock.newCondition();
+    private final Map<String, Integer> outstanding = new HashMap<>();
+
+    private RequestSlots(Semaphore semaphore) {
+      this.semaphore = semaphore;
+      this.budget = semaphore.availablePermits();
+    }
+
+    /**
+     * Ensures that we don't already have too many API calls in progress, and waits if we do.
+     *
+     * @return the length of time in milliseconds that we had to wait for an API slot.
+     * @throws InterruptedException if the thread is interrupted or if the deadline passes before
+     *     a slot becomes available.
+     */
+    long acquire(String packageName, double deadlineInSeconds) throws InterruptedException {
+      PackageLimit packageLimit = forPackage(packageName);
+      // System.nanoTime() is guaranteed monotonic, unlike System.currentTimeMillis().
+      long startTime = System.nanoTime();
+      boolean unbounded = deadlineInSeconds >= Double.MAX_VALUE;
+      long deadlineNanos = unbounded ? Long.MAX_VALUE : Math.round(deadlineInSeconds * 1e9);
+      lock.lockInterruptibly();
+      try {
+        while (outstanding.getOrDefault(packageName, 0) >= packageLimit.limit(budget)) {
+          if (unbounded) {
+            released.await();
+          } else {
+            long remaining = deadlineNanos - (System.nanoTime() - startTime);
+            if (remaining <= 0) {
+              throw new InterruptedException("Deadline passed while waiting for API slot");
+            }
+            released.awaitNanos(remaining);
+          }
+        }
+        outstanding.merge(packageName, 1, Integer::sum);
+      } finally {
+        lock.unlock();
+      }
+      boolean acquired = false;
+      try {
+        if (unbounded) {
+          semaphore.acquire();
+          acquired = true;
+        } else {
+          long remaining = deadlineNanos - (System.nanoTime() - startTime);
+          acquired = remaining > 0 && semaphore.tryAcquire(remaining, NANOSECONDS);
+        }
+      } finally {
+        if (!acquired) {
+          releasePackageSlot(packageName);
+        }
+      }
+      long elapsed = System.nanoTime() - startTime;
+      if (!acquired || elapsed >= deadlineNanos) {
+        if (acquired) {
+          release(packageName);
+        }
+        throw new InterruptedException("Deadline passed while waiting for API slot");
+      }
+      packageLimit.onSlotAcquired(elapsed);
+      return NANOSECONDS.toMillis(elapsed);
+    }
+
+    /** Releases a slot taken by {@link #acquire} without feeding back a latency sample. */
+    void release(String packageName) {
+      semaphore.release();
+      releasePackageSlot(packageName);
+    }
+
+    /**
+     * Releases a slot taken by {@link #acquire} for a call that completed, feeding the call's
+     * latency back into its package's limit.
+     */
+    void release(String packageName, long latencyNanos) {
+      forPackage(packageName).onSample(latencyNanos);
+      release(packageName);
+      logger.atFine().atMostEvery(1, MINUTES).log("API RPC limits: %s", ApiRpcLimiter.this);
+    }
+
+    private void releasePackageSlot(String packageName) {
+      lock.lock();
+      try {
+        outstanding.computeIfPresent(packageName, (unused, n) -> (n == 1) ? null : n - 1);
+        released.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+}
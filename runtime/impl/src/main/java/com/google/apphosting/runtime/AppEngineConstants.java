@@ -130,7 +130,35 @@ public final class AppEngineConstants {
 
   public static final String HTTP_CONNECTOR_MODE = "appengine.use.HttpConnector";
 
+  /**
+   * System property, normally set in appengine-web.xml, that runs requests and the threads they
+   * create with {@code ThreadManager.currentRequestThreadFactory()} on virtual threads. This is
+   * separate from {@code appengine.use.virtualthreads}, which only switches the Jetty thread pool.
+   */
+  public static final String USE_VIRTUAL_REQUEST_THREADS = "appengine.use.virtualRequestThreads";
+
   public static final String IGNORE_RESPONSE_SIZE_LIMIT = "appengine.ignore.responseSizeLimit";
 
+  /**
+   * System property, normally set in appengine-web.xml, with the maximum number of HTTP sessions
+   * that an instance keeps between requests instead of loading them from memcache or datastore.
+   * Only set it when the requests of a session are routed to the same instance.
+   */
+  public static final String SESSION_CACHE_SIZE = "appengine.session.cacheSize";
+
+  /**
+   * System property, normally set in appengine-web.xml, with the seconds after which an HTTP
+   * session that is accessed but not changed is written again to extend its expiration time.
+   */
+  public static final String SESSION_MAX_INACTIVE_WRITE_INTERVAL =
+      "appengine.session.maxInactiveWriteIntervalSec";
+
+  /**
+   * System property, normally set in appengine-web.xml, that writes the HTTP sessions saved by
+   * concurrent requests to datastore together, with batch puts. Each request still waits for the
+   * put that writes its session.
+   */
+  public static final String SESSION_BATCHED_WRITES = "appengine.session.batchedWrites";
+
   private AppEngineConstants() {}
 }
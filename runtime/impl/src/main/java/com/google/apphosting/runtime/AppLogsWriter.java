@@ -27,13 +27,24 @@ import com.google.common.base.Stopwatch;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.flogger.GoogleLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.regex.Pattern;
 import javax.annotation.concurrent.GuardedBy;
+import org.jspecify.annotations.Nullable;
 
 /**
  * {@code AppsLogWriter} is responsible for batching application logs for a single request and
@@ -47,12 +58,19 @@ import javax.annotation.concurrent.GuardedBy;
  *       to the AppServer when the request completes.
  *   <li>The code never allows more than {@code byteCountBeforeFlush} bytes of log data to
  *       accumulate in the {@link UPResponse}. If adding a new log line would exceed that limit, the
- *       current set of logs are removed from it and an asynchronous API call is started to flush
- *       the logs before buffering the new line.
- *   <li>If another flush occurs while a previous flush is still pending, the caller will block
- *       synchronously until the previous call completed.
+ *       current set of logs are removed from it and a flush is started before buffering the new
+ *       line.
+ *   <li>When the writer was created with an {@link ApiProxy.Environment} and the {@value
+ *       #BACKGROUND_FLUSH_PROPERTY} system property is true, flushes are made in the background on
+ *       behalf of that environment, one at a time and in order. Logs that have been
+ *       buffered for {@code maxFlushSeconds} are also flushed from a background timer. The logging
+ *       thread only blocks if more than {@link #MAX_PENDING_FLUSHES} flushes worth of logs are
+ *       waiting to be sent.
+ *   <li>Otherwise flushes are asynchronous API calls made from the logging thread, and if another
+ *       flush occurs while a previous flush is still pending, the caller will block synchronously
+ *       until the previous call completed.
  *   <li>When the overall request completes, the request will block until any pending flush is
- *       completed ({@link
+ *       completed ({@link #stopBackgroundFlushes()} and {@link
  *       RequestManager#waitForPendingAsyncFutures(java.util.Collection<Future<?>>)}) and then
  *       return the final set of logs in {@link UPResponse}.
  * </ul>
@@ -60,10 +78,6 @@ import javax.annotation.concurrent.GuardedBy;
  * <p>This class is also responsible for splitting large log entries into smaller fragments, which
  * is unrelated to the batching mechanism described above but is necessary to prevent the AppServer
  * from truncating individual log entries.
- *
- * <p>TODO: In the future we may wish to initiate flushes from a scheduled future which would happen
- * in a background thread. In this case, we must pass the {@link ApiProxy.Environment} in explicitly
- * so API calls can be made on behalf of the original thread.
  */
 public class AppLogsWriter {
   private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
@@ -77,6 +91,18 @@ public class AppLogsWriter {
   static final String LOG_TRUNCATED_SUFFIX = "\n<truncated>";
   static final int LOG_TRUNCATED_SUFFIX_LENGTH = LOG_TRUNCATED_SUFFIX.length();
 
+  /**
+   * Unless this system property is true, writers created with an {@link ApiProxy.Environment} make
+   * their flushes from the logging thread rather than in the background.
+   */
+  static final String BACKGROUND_FLUSH_PROPERTY = "com.google.appengine.logs.background.flush";
+
+  /**
+   * The number of flushes worth of logs that may be waiting to be sent in the background before
+   * the logging thread blocks.
+   */
+  static final int MAX_PENDING_FLUSHES = 4;
+
   // This regular expression should match a leading prefix of all
   // sensitive class names that are to be disregarded for the purposes
   // of finding the log source location.
@@ -108,6 +134,28 @@ public class AppLogsWriter {
   private static final Pattern PROTECTED_LOGS_CLASSES =
       Pattern.compile(PROTECTED_LOGS_CLASSES_REGEXP);
 
+  private final ApiProxy.@Nullable Environment environment;
+
+  // Both null unless flushes are made in the background.
+  @Nullable private final ScheduledExecutorService flushScheduler;
+  @Nullable private final Executor flushExecutor;
+
+  @GuardedBy("lock")
+  private boolean backgroundFlushes;
+  @GuardedBy("lock")
+  private final Deque<byte[]> pendingFlushes = new ArrayDeque<>();
+  @GuardedBy("lock")
+  private long pendingByteCount;
+  @GuardedBy("lock")
+  private long queuedFlushCount;
+  @GuardedBy("lock")
+  private long completedFlushCount;
+  @GuardedBy("lock")
+  private boolean draining;
+  @GuardedBy("lock")
+  @Nullable
+  private ScheduledFuture<?> timedFlush;
+
   public AppLogsWriter(
       MutableUpResponse upResponse,
       long maxBytesToFlush,
@@ -116,6 +164,18 @@ public class AppLogsWriter {
     this(new UpResponseAPIData(upResponse), maxBytesToFlush, maxLogMessageLength, maxFlushSeconds);
   }
 
+  /**
+   * Construct an AppLogsWriter instance that flushes from the logging thread. See {@link
+   * #AppLogsWriter(ResponseAPIData, long, int, int, ApiProxy.Environment)} for the parameters.
+   */
+  public AppLogsWriter(
+      ResponseAPIData genericResponse,
+      long maxBytesToFlush,
+      int maxLogMessageLength,
+      int maxFlushSeconds) {
+    this(genericResponse, maxBytesToFlush, maxLogMessageLength, maxFlushSeconds, null, null, null);
+  }
+
   /**
    * Construct an AppLogsWriter instance.
    *
@@ -134,15 +194,43 @@ public class AppLogsWriter {
    *     the time on a log call, it is possible for a log to stay cached long after the specified
    *     time has been reached. Consider this example (assume maxFlushSeconds=60): the app logs a
    *     message when the handler starts but then does not log another message for 10 minutes. The
-   *     initial log will stay cached until the second message is logged.
+   *     initial log will stay cached until the second message is logged, unless flushes are made
+   *     in the background.
+   * @param environment The environment of the request whose logs these are. Flushes are made on
+   *     its behalf in the background if the {@value #BACKGROUND_FLUSH_PROPERTY} system property
+   *     is true.
    */
   public AppLogsWriter(
       ResponseAPIData genericResponse,
       long maxBytesToFlush,
       int maxLogMessageLength,
-      int maxFlushSeconds) {
+      int maxFlushSeconds,
+      ApiProxy.Environment environment) {
+    this(
+        genericResponse,
+        maxBytesToFlush,
+        maxLogMessageLength,
+        maxFlushSeconds,
+        environment,
+        useBackgroundFlushes() ? BackgroundFlushThreads.SCHEDULER : null,
+        useBackgroundFlushes() ? BackgroundFlushThreads.EXECUTOR : null);
+  }
+
+  @VisibleForTesting
+  AppLogsWriter(
+      ResponseAPIData genericResponse,
+      long maxBytesToFlush,
+      int maxLogMessageLength,
+      int maxFlushSeconds,
+      ApiProxy.@Nullable Environment environment,
+      @Nullable ScheduledExecutorService flushScheduler,
+      @Nullable Executor flushExecutor) {
     this.genericResponse = genericResponse;
     this.maxSecondsBetweenFlush = maxFlushSeconds;
+    this.environment = environment;
+    this.flushScheduler = flushScheduler;
+    this.flushExecutor = flushExecutor;
+    this.backgroundFlushes = flushScheduler != null && flushExecutor != null;
 
     if (maxLogMessageLength < MIN_MAX_LOG_MESSAGE_LENGTH) {
       String message =
@@ -178,9 +266,9 @@ public class AppLogsWriter {
 
   /**
    * Add the specified LogRecord for the current request.  If
-   * enough space (or in the future, time) has accumulated, an
-   * asynchronous flush may be started.  If flushes are backed up,
-   * this method may block.
+   * enough space or time has accumulated, an asynchronous flush
+   * may be started.  If flushes are backed up, this method may
+   * block.
    */
   public void addLogRecordAndMaybeFlush(ApiProxy.LogRecord fullRecord) {
     List<AppLogLine> appLogLines = new ArrayList<>();
@@ -215,7 +303,7 @@ public class AppLogsWriter {
 
       if (maxBytesToFlush > 0 && (currentByteCount + serializedSize) > maxBytesToFlush) {
         logger.atInfo().log("%d bytes of app logs pending, starting flush...", currentByteCount);
-        waitForCurrentFlushAndStartNewFlush();
+        startFlush();
       }
       if (!stopwatch.isRunning()) {
         // We only want to flush once a log message has been around for
@@ -223,12 +311,23 @@ public class AppLogsWriter {
         // when we add the first message so we don't include time when
         // the queue is empty.
         stopwatch.start();
+        scheduleTimedFlush();
       }
       genericResponse.addAppLog(logLine);
       currentByteCount += serializedSize;
     }
 
     if (maxSecondsBetweenFlush > 0 && stopwatch.elapsed().getSeconds() >= maxSecondsBetweenFlush) {
+      startFlush();
+    }
+  }
+
+  @GuardedBy("lock")
+  private void startFlush() {
+    if (backgroundFlushes) {
+      waitForPendingFlushSpace();
+      queueBackgroundFlush();
+    } else {
       waitForCurrentFlushAndStartNewFlush();
     }
   }
@@ -253,6 +352,12 @@ public class AppLogsWriter {
     Future<byte[]> flush = null;
 
     synchronized (lock) {
+      if (backgroundFlushes) {
+        queueBackgroundFlush();
+        // Waiting releases the lock, so addLogRecordAndMaybeFlush() calls are not blocked.
+        waitForBackgroundFlushes(queuedFlushCount);
+        return;
+      }
       waitForCurrentFlush();
       if (genericResponse.getAppLogCount() > 0) {
         flush = currentFlush = doFlush();
@@ -266,6 +371,23 @@ public class AppLogsWriter {
     }
   }
 
+  /**
+   * Stops flushing in the background and blocks until every flush that was already started has
+   * completed. Logs that are still buffered are left in the response, and any later flushes are
+   * made from the logging thread. This is called when the request completes, so that no background
+   * flush can remove logs from a response that is being returned.
+   */
+  public void stopBackgroundFlushes() {
+    synchronized (lock) {
+      if (!backgroundFlushes) {
+        return;
+      }
+      backgroundFlushes = false;
+      cancelTimedFlush();
+      waitForBackgroundFlushes(queuedFlushCount);
+    }
+  }
+
   /**
    * This method blocks until any outstanding flush is completed. This method
    * should be called prior to {@link #doFlush()} so that it is impossible for
@@ -296,16 +418,197 @@ public class AppLogsWriter {
 
   @GuardedBy("lock")
   private Future<byte[]> doFlush() {
+    return makeFlushCall(takeFlushRequest());
+  }
+
+  /** Removes the buffered logs from the response and returns a Flush request that sends them. */
+  @GuardedBy("lock")
+  private byte[] takeFlushRequest() {
     AppLogGroup.Builder group = AppLogGroup.newBuilder();
     for (AppLogLine logLine : genericResponse.getAndClearAppLogList()) {
       group.addLogLine(logLine);
     }
     currentByteCount = 0;
     stopwatch.reset();
+    cancelTimedFlush();
     FlushRequest request = FlushRequest.newBuilder().setLogs(group.build().toByteString()).build();
-    // This assumes that we are always doing a flush from the request
-    // thread.  See the TODO above.
-    return ApiProxy.makeAsyncCall("logservice", "Flush", request.toByteArray());
+    return request.toByteArray();
+  }
+
+  @SuppressWarnings("unchecked")
+  private Future<byte[]> makeFlushCall(byte[] request) {
+    ApiProxy.Delegate<ApiProxy.Environment> delegate = ApiProxy.getDelegate();
+    if (environment == null || delegate == null) {
+      // Without an environment we can only flush on behalf of the current thread.
+      return ApiProxy.makeAsyncCall("logservice", "Flush", request);
+    }
+    return delegate.makeAsyncCall(
+        environment, "logservice", "Flush", request, new ApiProxy.ApiConfig());
+  }
+
+  /**
+   * Blocks while too many bytes of logs are waiting to be flushed in the background, so that a
+   * request that logs faster than its logs can be sent does not buffer them without limit.
+   */
+  @GuardedBy("lock")
+  private void waitForPendingFlushSpace() {
+    long maxPendingBytes = MAX_PENDING_FLUSHES * maxBytesToFlush;
+    while (backgroundFlushes && pendingByteCount >= maxPendingBytes) {
+      logger.atInfo().log("%d bytes of app logs not yet flushed, blocking.", pendingByteCount);
+      try {
+        lock.wait();
+      } catch (InterruptedException ex) {
+        // Buffer the logs anyway rather than lose them.
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /** Moves the buffered logs to the queue of background flushes, and starts draining it. */
+  @GuardedBy("lock")
+  private void queueBackgroundFlush() {
+    if (genericResponse.getAppLogCount() == 0) {
+      return;
+    }
+    byte[] request = takeFlushRequest();
+    pendingFlushes.add(request);
+    pendingByteCount += request.length;
+    queuedFlushCount++;
+    if (!draining) {
+      draining = true;
+      flushExecutor.execute(this::drainBackgroundFlushes);
+    }
+  }
+
+  /**
+   * Sends the queued flushes one at a time, each only once the previous one has completed, so that
+   * the appserver sees the logs in order.
+   */
+  private void drainBackgroundFlushes() {
+    boolean drained = false;
+    try {
+      while (true) {
+        byte[] request;
+        synchronized (lock) {
+          request = pendingFlushes.poll();
+          if (request == null) {
+            draining = false;
+            drained = true;
+            return;
+          }
+        }
+        try {
+          waitForFlush(makeFlushCall(request));
+        } catch (RuntimeException ex) {
+          logger.atWarning().withCause(ex).log(
+              "A log flush request failed.  Log messages may have been lost!");
+        } finally {
+          synchronized (lock) {
+            pendingByteCount -= request.length;
+            completedFlushCount++;
+            lock.notifyAll();
+          }
+        }
+      }
+    } finally {
+      if (!drained) {
+        // An Error escaped a flush. Drop the flushes still queued, so that nothing waits for them
+        // forever, and let the next queued flush start draining again.
+        synchronized (lock) {
+          logger.atWarning().log(
+              "Dropping %d queued log flushes.  Log messages have been lost!",
+              pendingFlushes.size());
+          for (byte[] request : pendingFlushes) {
+            pendingByteCount -= request.length;
+            completedFlushCount++;
+          }
+          pendingFlushes.clear();
+          draining = false;
+          lock.notifyAll();
+        }
+      }
+    }
+  }
+
+  @GuardedBy("lock")
+  private void waitForBackgroundFlushes(long flushCount) {
+    while (completedFlushCount < flushCount) {
+      try {
+        lock.wait();
+      } catch (InterruptedException ex) {
+        logger.atWarning().log(
+            "Interrupted while blocking on a log flush, setting interrupt bit and continuing.");
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  @GuardedBy("lock")
+  private void scheduleTimedFlush() {
+    if (backgroundFlushes && maxSecondsBetweenFlush > 0 && timedFlush == null) {
+      timedFlush =
+          flushScheduler.schedule(this::flushOnTimer, maxSecondsBetweenFlush, TimeUnit.SECONDS);
+    }
+  }
+
+  @GuardedBy("lock")
+  private void cancelTimedFlush() {
+    if (timedFlush != null) {
+      timedFlush.cancel(false);
+      timedFlush = null;
+    }
+  }
+
+  private void flushOnTimer() {
+    synchronized (lock) {
+      timedFlush = null;
+      // This runs on a shared scheduler thread, so it does not wait for space in the queue: the
+      // queue can exceed its limit by the logs of one timed flush.
+      if (backgroundFlushes) {
+        queueBackgroundFlush();
+      }
+    }
+  }
+
+  private static boolean useBackgroundFlushes() {
+    return Boolean.parseBoolean(System.getProperty(BACKGROUND_FLUSH_PROPERTY, "false"));
+  }
+
+  /** The threads that make background flushes, shared by all requests. */
+  private static final class BackgroundFlushThreads {
+    static final ScheduledExecutorService SCHEDULER = newScheduler();
+
+    // Each writer drains its flushes in a single task that waits for each flush to complete, so
+    // this pool grows with the number of requests that are flushing at the same time.
+    static final Executor EXECUTOR =
+        Executors.newCachedThreadPool(threadFactory("AppLogsWriter-flush-%d"));
+
+    private static ScheduledExecutorService newScheduler() {
+      ScheduledThreadPoolExecutor scheduler =
+          new ScheduledThreadPoolExecutor(1, threadFactory("AppLogsWriter-timer-%d"));
+      scheduler.setRemoveOnCancelPolicy(true);
+      return scheduler;
+    }
+
+    private static ThreadFactory threadFactory(String nameFormat) {
+      // These threads outlive the request that happens to create them, so they must not keep a
+      // reference to its application class loader.
+      ClassLoader classLoader = AppLogsWriter.class.getClassLoader();
+      return new ThreadFactoryBuilder()
+          .setNameFormat(nameFormat)
+          .setDaemon(true)
+          .setThreadFactory(
+              runnable -> {
+                Thread thread = new Thread(runnable);
+                thread.setContextClassLoader(classLoader);
+                return thread;
+              })
+          .build();
+    }
+
+    private BackgroundFlushThreads() {}
   }
 
   /**
@@ -248,12 +248,17 @@ public class AppVersionFactory {
             appEngineWebXml.getAsyncSessionPersistenceQueueName());
     UncaughtExceptionHandler uncaughtExceptionHandler =
         (thread, ex) -> logger.atWarning().withCause(ex).log("Uncaught exception from %s", thread);
+    boolean useVirtualThreads = VirtualRequestThreads.isEnabled(sysProps);
+    if (useVirtualThreads) {
+      logger.atInfo().log("Running requests on virtual threads.");
+    }
     ThreadGroupPool threadGroupPool =
         ThreadGroupPool.builder()
             .setParentThreadGroup(rootThreadGroup)
             .setThreadGroupNamePrefix("Request #")
             .setUncaughtExceptionHandler(uncaughtExceptionHandler)
             .setIgnoreDaemonThreads(ignoreDaemonThreads)
+            .setUseVirtualThreads(useVirtualThreads)
             .build();
     setApplicationDirectory(rootDirectory.getAbsolutePath());
     return AppVersion.builder()
@@ -353,6 +353,12 @@ public class RequestManager implements RequestThreadManager {
     // Now wait for any async API calls and all request threads to complete.
     waitForUserCodeToComplete(requestToken);
 
+    // No more logs will be flushed, so any that remain are returned with the response.
+    ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    if (environment instanceof ApiProxyImpl.EnvironmentImpl) {
+      ((ApiProxyImpl.EnvironmentImpl) environment).stopBackgroundLogFlushes();
+    }
+
     // There is no more user code left, stop the timers and tear down the state.
     requests.remove(requestToken.getSecurityTicket());
     requestToken.setFinished();
@@ -365,6 +371,13 @@ public class RequestManager implements RequestThreadManager {
     logger.atInfo().log("Stopped timer for request %s %s", requestToken.getRequestId(), timer);
     requestToken.getUpResponse().setUserMcycles(timer.getCycleCount() / 1000000L);
 
+    // User code and its API calls have finished, so the record of those calls is complete.
+    long startTimeMillis = requestToken.getStartTimeMillis();
+    ApiCallReport.report(
+        environment,
+        requestToken.getUpResponse(),
+        startTimeMillis > 0 ? System.currentTimeMillis() - startTimeMillis : -1);
+
     if (requestToken.getTraceWriter() != null) {
       requestToken.getTraceWriter().endRequestSpan();
       requestToken.getTraceWriter().flushTrace();
@@ -16,6 +16,7 @@
 
 package com.google.apphosting.runtime;
 
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Set;
 
@@ -27,6 +28,7 @@ public class RequestState {
   private boolean softDeadlinePassed = false;
   private boolean hardDeadlinePassed = false;
   private final Set<Thread> requestThreads = new LinkedHashSet<>();
+  private final Set<Thread> unstartedRequestThreads = new LinkedHashSet<>();
 
   public synchronized boolean getAllowNewRequestThreadCreation() {
     return allowNewRequestThreadCreation;
@@ -66,6 +68,33 @@ public class RequestState {
    */
   public synchronized void forgetRequestThread(Thread thread) {
     requestThreads.remove(thread);
+    unstartedRequestThreads.remove(thread);
+  }
+
+  /**
+   * Records a thread that has been created for this request but not yet started. It only counts
+   * as belonging to the request once it has been started. This is used for virtual threads, whose
+   * {@code start} method cannot be overridden to call {@link #recordRequestThread}.
+   */
+  public synchronized void recordUnstartedRequestThread(Thread thread) {
+    unstartedRequestThreads.add(thread);
+  }
+
+  /**
+   * Called by a thread recorded with {@link #recordUnstartedRequestThread} when it starts to run.
+   * Returns true if it counts as belonging to this request, either because the request is still
+   * running or because the request has already seen it started and waits for it. Otherwise the
+   * thread was started after the request stopped, nothing waits for it, and it must not run.
+   */
+  public synchronized boolean startUnstartedRequestThread(Thread thread) {
+    if (requestThreads.contains(thread)) {
+      return true;
+    }
+    if (!allowNewRequestThreadCreation || !unstartedRequestThreads.remove(thread)) {
+      return false;
+    }
+    requestThreads.add(thread);
+    return true;
   }
 
   /**
@@ -73,6 +102,14 @@ public class RequestState {
    * when the request terminates.
    */
   public synchronized Set<Thread> requestThreads() {
+    for (Iterator<Thread> it = unstartedRequestThreads.iterator(); it.hasNext(); ) {
+      Thread thread = it.next();
+      if (thread.getState() != Thread.State.NEW) {
+        // Started, so it belongs to the request from now on even if it has not run yet.
+        it.remove();
+        requestThreads.add(thread);
+      }
+    }
     return new LinkedHashSet<>(requestThreads);
   }
 }
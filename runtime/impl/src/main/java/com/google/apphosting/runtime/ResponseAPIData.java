@@ -46,6 +46,12 @@ public interface ResponseAPIData {
 
   void error(int error, String errorMessage);
 
+  /**
+   * Adds a header to the HTTP response, if it has not already been sent. Used for headers that
+   * are only known once the application has finished handling the request.
+   */
+  void addHttpOutputHeader(String name, String value);
+
   void finishWithResponse(AnyRpcServerContext rpc);
 
   void complete();
@@ -42,12 +42,16 @@ import java.util.concurrent.atomic.AtomicInteger;
  * appended.  The name of the main thread for each thread pool is
  * determined when {@link #start} is called.
  *
+ * <p>If the pool is built to use virtual threads, {@link #start} instead runs each
+ * {@code Runnable} in a new virtual thread, and there is nothing to pool. See
+ * {@link VirtualRequestThreads}.
+ *
  */
 public class ThreadGroupPool {
   private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
 
   public static Builder builder() {
-    return new AutoBuilder_ThreadGroupPool_Builder();
+    return new AutoBuilder_ThreadGroupPool_Builder().setUseVirtualThreads(false);
   }
 
   /** Builder for ThreadGroupPool. */
@@ -62,6 +66,8 @@ public class ThreadGroupPool {
 
     public abstract Builder setIgnoreDaemonThreads(boolean ignoreDaemonThreads);
 
+    public abstract Builder setUseVirtualThreads(boolean useVirtualThreads);
+
     public abstract ThreadGroupPool build();
   }
 
@@ -71,18 +77,21 @@ public class ThreadGroupPool {
   private final Queue<PoolEntry> waitingThreads;
   private final UncaughtExceptionHandler uncaughtExceptionHandler;
   private final boolean ignoreDaemonThreads;
+  private final boolean useVirtualThreads;
 
   public ThreadGroupPool(
       ThreadGroup parentThreadGroup,
       String threadGroupNamePrefix,
       UncaughtExceptionHandler uncaughtExceptionHandler,
-      boolean ignoreDaemonThreads) {
+      boolean ignoreDaemonThreads,
+      boolean useVirtualThreads) {
     this.parentThreadGroup = parentThreadGroup;
     this.threadGroupNamePrefix = threadGroupNamePrefix;
     this.threadGroupCounter = new AtomicInteger(0);
     this.waitingThreads = new ConcurrentLinkedQueue<>();
     this.uncaughtExceptionHandler = uncaughtExceptionHandler;
     this.ignoreDaemonThreads = ignoreDaemonThreads;
+    this.useVirtualThreads = useVirtualThreads;
   }
 
   /**
@@ -102,6 +111,10 @@ public class ThreadGroupPool {
    * returned to the thread pool.
    */
   public void start(String threadName, Runnable runnable) throws InterruptedException {
+    if (useVirtualThreads) {
+      startVirtualThread(threadName, runnable);
+      return;
+    }
     PoolEntry entry = waitingThreads.poll();
     if (entry == null) {
       entry = buildPoolEntry();
@@ -110,6 +123,22 @@ public class ThreadGroupPool {
     entry.runInMainThread(runnable);
   }
 
+  private void startVirtualThread(String threadName, Runnable runnable) {
+    Thread thread =
+        VirtualRequestThreads.newThread(
+            threadName,
+            () -> {
+              try {
+                runnable.run();
+              } catch (Throwable th) {
+                JavaRuntime.killCloneIfSeriousException(th);
+                throw th;
+              }
+            });
+    thread.setUncaughtExceptionHandler(uncaughtExceptionHandler);
+    thread.start();
+  }
+
   private void removeThread(PoolEntry entry) {
     waitingThreads.remove(entry);
   }
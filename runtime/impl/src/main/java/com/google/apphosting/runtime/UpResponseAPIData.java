@@ -17,6 +17,7 @@
 package com.google.apphosting.runtime;
 
 import com.google.apphosting.base.protos.AppLogsPb;
+import com.google.apphosting.base.protos.HttpPb;
 import com.google.apphosting.base.protos.RuntimePb;
 import com.google.apphosting.runtime.anyrpc.AnyRpcServerContext;
 import com.google.common.collect.ImmutableList;
@@ -91,6 +92,12 @@ public class UpResponseAPIData implements ResponseAPIData {
     response.setHttpResponseCodeAndResponse(200, "OK");
   }
 
+  @Override
+  public void addHttpOutputHeader(String name, String value) {
+    response.addHttpOutputHeaders(
+        HttpPb.ParsedHttpHeader.newBuilder().setKey(name).setValue(value));
+  }
+
   @Override
   public int getError() {
     return response.getError();
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime;
+
+import static com.google.apphosting.runtime.AppEngineConstants.GAE_RUNTIME;
+import static com.google.apphosting.runtime.AppEngineConstants.USE_VIRTUAL_REQUEST_THREADS;
+
+import com.google.common.flogger.GoogleLogger;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Map;
+
+/**
+ * Creates the virtual threads used to run requests when an application opts in by setting the
+ * system property {@value AppEngineConstants#USE_VIRTUAL_REQUEST_THREADS} to {@code true} in
+ * appengine-web.xml. Virtual threads are only used by the java21 and later runtimes; everywhere
+ * else requests keep running on the platform threads of the {@link ThreadGroupPool}.
+ *
+ * <p>The runtime is compiled for Java 17, so the virtual thread API is reached reflectively.
+ */
+final class VirtualRequestThreads {
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  /** {@code Thread.ofVirtual()}, or null if virtual threads are not available. */
+  private static final MethodHandle OF_VIRTUAL;
+
+  /** {@code Thread.Builder.name(String)}. */
+  private static final MethodHandle BUILDER_NAME;
+
+  /** {@code Thread.Builder.unstarted(Runnable)}. */
+  private static final MethodHandle BUILDER_UNSTARTED;
+
+  static {
+    MethodHandle ofVirtual = null;
+    MethodHandle builderName = null;
+    MethodHandle builderUnstarted = null;
+    if (Runtime.version().feature() >= 21) {
+      try {
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+        Class<?> ofVirtualClass = Class.forName("java.lang.Thread$Builder$OfVirtual");
+        ofVirtual =
+            lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(ofVirtualClass));
+        builderName =
+            lookup.findVirtual(
+                builderClass, "name", MethodType.methodType(builderClass, String.class));
+        builderUnstarted =
+            lookup.findVirtual(
+                builderClass, "unstarted", MethodType.methodType(Thread.class, Runnable.class));
+      } catch (ReflectiveOperationException e) {
+        logger.atWarning().withCause(e).log("Virtual threads are not available");
+        ofVirtual = null;
+      }
+    }
+    OF_VIRTUAL = ofVirtual;
+    BUILDER_NAME = builderName;
+    BUILDER_UNSTARTED = builderUnstarted;
+  }
+
+  private VirtualRequestThreads() {}
+
+  /** Returns true if virtual threads can be used by this runtime. */
+  static boolean isSupported() {
+    return OF_VIRTUAL != null && ("java21".equals(GAE_RUNTIME) || "java25".equals(GAE_RUNTIME));
+  }
+
+  /**
+   * Returns true if requests should run on virtual threads, according to the given application
+   * system properties or, if the property is not among them, the JVM's system properties.
+   */
+  static boolean isEnabled(Map<String, String> systemProperties) {
+    String value = systemProperties.get(USE_VIRTUAL_REQUEST_THREADS);
+    if (value == null) {
+      value = System.getProperty(USE_VIRTUAL_REQUEST_THREADS);
+    }
+    return Boolean.parseBoolean(value) && isSupported();
+  }
+
+  /**
+   * Returns true if threads created for the current request should be virtual threads. The
+   * application's system properties have been copied into the JVM's by the time it serves requests.
+   */
+  static boolean isEnabled() {
+    return Boolean.getBoolean(USE_VIRTUAL_REQUEST_THREADS) && isSupported();
+  }
+
+  /**
+   * Returns a new, unstarted virtual thread that will run {@code runnable}.
+   *
+   * @param name the name of the thread, or null to leave it unnamed
+   * @throws UnsupportedOperationException if virtual threads are not available
+   */
+  static Thread newThread(String name, Runnable runnable) {
+    if (OF_VIRTUAL == null) {
+      throw new UnsupportedOperationException("Virtual threads need Java 21 or later");
+    }
+    try {
+      Object builder = OF_VIRTUAL.invoke();
+      if (name != null) {
+        builder = BUILDER_NAME.invoke(builder, name);
+      }
+      return (Thread) BUILDER_UNSTARTED.invoke(builder, runnable);
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable t) {
+      throw new IllegalStateException(t);
+    }
+  }
+}
@@ -32,6 +32,14 @@ public interface AnyRpcClientContext {
 
   Throwable getException();
 
+  /**
+   * Returns how long the call waited inside the client, for example for a free connection, before
+   * it was sent. Clients that never queue calls return 0.
+   */
+  default long getQueueTimeNanos() {
+    return 0;
+  }
+
   /**
    * Set the deadline that will be applied to the RPC call made using this context. If this method
    * is never called, there is no deadline.
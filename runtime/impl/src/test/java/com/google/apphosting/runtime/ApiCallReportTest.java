@@ -0,0 +1,60 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.apphosting.api.ApiStats.ApiCall;
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link ApiCallReport}. */
+@RunWith(JUnit4.class)
+public class ApiCallReportTest {
+  private static final long MILLIS = 1_000_000L;
+
+  private static ApiCall call(String method, long latencyMillis, long slotWaitMillis) {
+    return new ApiCall("datastore_v3", method, 10, 20, slotWaitMillis, latencyMillis * MILLIS, 5.0);
+  }
+
+  @Test
+  public void testServerTiming_groupsByMethodSlowestFirst() {
+    String header =
+        ApiCallReport.serverTiming(
+            ImmutableList.of(call("Get", 2, 0), call("RunQuery", 5, 0), call("Get", 4, 0)));
+    assertThat(header)
+        .isEqualTo(
+            "datastore_v3.Get;dur=6.000;desc=\"2\", datastore_v3.RunQuery;dur=5.000;desc=\"1\"");
+  }
+
+  @Test
+  public void testServerTiming_includesSlotWait() {
+    String header = ApiCallReport.serverTiming(ImmutableList.of(call("Get", 1, 3)));
+    assertThat(header).isEqualTo("datastore_v3.Get;dur=1.000;desc=\"1\", api-slot-wait;dur=3");
+  }
+
+  @Test
+  public void testDescribe_listsEveryCall() {
+    String description =
+        ApiCallReport.describe(ImmutableList.of(call("Get", 2, 0), call("Put", 3, 0)), 150);
+    assertThat(description).startsWith("Request took 150ms and made 2 API calls:");
+    assertThat(description).contains("datastore_v3.Get: 2.000ms");
+    assertThat(description).contains("datastore_v3.Put: 3.000ms");
+  }
+}
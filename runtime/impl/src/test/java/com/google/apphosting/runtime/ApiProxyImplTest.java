@@ -658,6 +658,24 @@ public class ApiProxyImplTest {
     assertThat(ApiStats.get(environment).getCpuTimeInMegaCycles()).isEqualTo(23L);
   }
 
+  @Test
+  public void testApiCallsRecorded() throws InvalidProtocolBufferException {
+    assertThat(ApiStats.get(environment).getApiCalls()).isEmpty();
+    byte[] request = StringProto.newBuilder().setValue("pi").build().toByteArray();
+
+    byte[] response = delegate.makeSyncCall(environment, "google.math", "LookupSymbol", request);
+
+    assertThat(ApiStats.get(environment).getApiCalls()).hasSize(1);
+    ApiStats.ApiCall call = ApiStats.get(environment).getApiCalls().get(0);
+    assertThat(call.getPackageName()).isEqualTo("google.math");
+    assertThat(call.getMethodName()).isEqualTo("LookupSymbol");
+    assertThat(call.getRequestSize()).isEqualTo(request.length);
+    assertThat(call.getResponseSize()).isEqualTo(response.length);
+    assertThat(call.getLatencyNanos()).isAtLeast(0L);
+    assertThat(call.getDeadlineSeconds()).isGreaterThan(0.0);
+    assertThat(call.getQueueTimeNanos()).isEqualTo(0L);
+  }
+
   /** How to signal that a task associated with a Future should be terminated. */
   private enum Signal {
     CANCEL, // Call cancel() on the Future.
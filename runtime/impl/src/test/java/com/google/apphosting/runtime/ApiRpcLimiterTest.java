@@ -0,0 +1,94 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import java.util.concurrent.Semaphore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link ApiRpcLimiter}. */
+@RunWith(JUnit4.class)
+public class ApiRpcLimiterTest {
+  private static final long FAST_NANOS = 1_000_000L;
+  private static final long SLOW_NANOS = 100 * FAST_NANOS;
+
+  @Test
+  public void testLimit_startsAtFullBudget() {
+    ApiRpcLimiter limiter = new ApiRpcLimiter();
+    assertThat(limiter.forPackage("memcache").limit(10)).isEqualTo(10);
+    assertThat(limiter.forPackage("memcache").limit(0)).isEqualTo(ApiRpcLimiter.MIN_LIMIT);
+  }
+
+  @Test
+  public void testLimit_shrinksWhenLatencyRisesAndRecovers() {
+    ApiRpcLimiter.PackageLimit limit = new ApiRpcLimiter().forPackage("urlfetch");
+    for (int i = 0; i < ApiRpcLimiter.WARMUP_SAMPLES; i++) {
+      limit.onSample(FAST_NANOS);
+    }
+    assertThat(limit.limit(10)).isEqualTo(10);
+
+    for (int i = 0; i < 20; i++) {
+      limit.onSample(SLOW_NANOS);
+    }
+    assertThat(limit.limit(10)).isLessThan(5);
+
+    for (int i = 0; i < 200; i++) {
+      limit.onSample(FAST_NANOS);
+    }
+    assertThat(limit.limit(10)).isEqualTo(10);
+  }
+
+  @Test
+  public void testSlots_packageLimitLeavesRoomForOtherPackages() throws Exception {
+    ApiRpcLimiter limiter = new ApiRpcLimiter();
+    ApiRpcLimiter.PackageLimit urlfetch = limiter.forPackage("urlfetch");
+    for (int i = 0; i < ApiRpcLimiter.WARMUP_SAMPLES; i++) {
+      urlfetch.onSample(FAST_NANOS);
+    }
+    for (int i = 0; i < 20; i++) {
+      urlfetch.onSample(SLOW_NANOS);
+    }
+    int urlfetchLimit = urlfetch.limit(4);
+    assertThat(urlfetchLimit).isLessThan(4);
+
+    ApiRpcLimiter.RequestSlots slots = limiter.newRequestSlots(new Semaphore(4));
+    for (int i = 0; i < urlfetchLimit; i++) {
+      slots.acquire("urlfetch", 1.0);
+    }
+    assertThrows(InterruptedException.class, () -> slots.acquire("urlfetch", 0.05));
+    assertThat(slots.acquire("memcache", 1.0)).isLessThan(1000L);
+
+    slots.release("urlfetch", FAST_NANOS);
+    slots.acquire("urlfetch", 1.0);
+  }
+
+  @Test
+  public void testSlots_requestBudgetStillApplies() throws Exception {
+    ApiRpcLimiter limiter = new ApiRpcLimiter();
+    ApiRpcLimiter.RequestSlots slots = limiter.newRequestSlots(new Semaphore(1));
+    slots.acquire("memcache", 1.0);
+    assertThrows(InterruptedException.class, () -> slots.acquire("datastore_v3", 0.05));
+    slots.release("memcache");
+    slots.acquire("datastore_v3", 1.0);
+    assertThat(limiter.packageLimits().keySet()).containsExactly("datastore_v3", "memcache");
+    assertThat(limiter.packageLimits().get("datastore_v3").acquisitions()).isEqualTo(1);
+  }
+}
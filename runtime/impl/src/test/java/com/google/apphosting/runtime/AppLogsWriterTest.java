@@ -19,10 +19,13 @@ package com.google.apphosting.runtime;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth.assertWithMessage;
 import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static java.util.concurrent.Executors.newSingleThreadExecutor;
+import static org.junit.Assert.assertThrows;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.notNull;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
@@ -40,11 +43,14 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.AbstractFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.ExtensionRegistry;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -275,6 +281,144 @@ public class AppLogsWriterTest {
     assertThat(response.getAppLogCount()).isEqualTo(0);
   }
 
+  @Test
+  public void testBackgroundFlushDueToSize() throws Exception {
+    Future<byte[]> flushResponse = immediateFuture(new byte[0]);
+    ArgumentCaptor<byte[]> flushRequestBytes = ArgumentCaptor.forClass(byte[].class);
+    when(delegate.makeAsyncCall(
+            eq(environment), eq("logservice"), eq("Flush"), flushRequestBytes.capture(), notNull()))
+        .thenReturn(flushResponse);
+    List<Runnable> flushTasks = new ArrayList<>();
+    AppLogsWriter writer =
+        new AppLogsWriter(
+            new UpResponseAPIData(response),
+            SMALL_FLUSH,
+            DEFAULT_MAX_LOG_LINE,
+            0,
+            environment,
+            mock(ScheduledExecutorService.class),
+            flushTasks::add);
+    writer.addLogRecordAndMaybeFlush(new LogRecord(LogRecord.Level.info, 0, LOG_BLOCK + "1"));
+    writer.addLogRecordAndMaybeFlush(new LogRecord(LogRecord.Level.info, 0, LOG_BLOCK + "2"));
+    writer.addLogRecordAndMaybeFlush(new LogRecord(LogRecord.Level.info, 0, LOG_BLOCK + "3"));
+    // The logging thread queued two flushes without making any API call.
+    verifyNoMoreInteractions(delegate);
+    assertThat(flushTasks).hasSize(1);
+    assertThat(response.getAppLogCount()).isEqualTo(1);
+    assertThat(response.getAppLog(0)).isEqualTo(createLogLine("3"));
+
+    flushTasks.get(0).run();
+    List<byte[]> flushes = flushRequestBytes.getAllValues();
+    assertThat(flushes).hasSize(2);
+    assertThat(parseFlush(flushes.get(0)).getLogLineList()).containsExactly(createLogLine("1"));
+    assertThat(parseFlush(flushes.get(1)).getLogLineList()).containsExactly(createLogLine("2"));
+
+    // Once background flushes stop, the remaining logs are left for the response.
+    writer.stopBackgroundFlushes();
+    assertThat(flushRequestBytes.getAllValues()).hasSize(2);
+    assertThat(response.getAppLogCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testBackgroundFlushDueToTime() throws Exception {
+    Future<byte[]> flushResponse = immediateFuture(new byte[0]);
+    ArgumentCaptor<byte[]> flushRequestBytes = ArgumentCaptor.forClass(byte[].class);
+    when(delegate.makeAsyncCall(
+            eq(environment), eq("logservice"), eq("Flush"), flushRequestBytes.capture(), notNull()))
+        .thenReturn(flushResponse);
+    ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+    AppLogsWriter writer =
+        new AppLogsWriter(
+            new UpResponseAPIData(response),
+            STANDARD_FLUSH,
+            DEFAULT_MAX_LOG_LINE,
+            60,
+            environment,
+            scheduler,
+            directExecutor());
+    writer.addLogRecordAndMaybeFlush(new LogRecord(LogRecord.Level.info, 0, LOG_BLOCK + "1"));
+    writer.addLogRecordAndMaybeFlush(new LogRecord(LogRecord.Level.info, 0, LOG_BLOCK + "2"));
+    ArgumentCaptor<Runnable> timer = ArgumentCaptor.forClass(Runnable.class);
+    verify(scheduler).schedule(timer.capture(), eq(60L), eq(TimeUnit.SECONDS));
+    verifyNoMoreInteractions(delegate);
+
+    // The timer flushes both messages even though nothing else is logged.
+    timer.getValue().run();
+    AppLogGroup group = parseFlush(flushRequestBytes.getValue());
+    assertThat(group.getLogLineList())
+        .containsExactly(createLogLine("1"), createLogLine("2"))
+        .inOrder();
+    assertThat(response.getAppLogCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testBackgroundFlushesDrainAgainAfterError() throws Exception {
+    Future<byte[]> flushResponse = immediateFuture(new byte[0]);
+    ArgumentCaptor<byte[]> flushRequestBytes = ArgumentCaptor.forClass(byte[].class);
+    when(delegate.makeAsyncCall(
+            eq(environment), eq("logservice"), eq("Flush"), flushRequestBytes.capture(), notNull()))
+        .thenThrow(new OutOfMemoryError("Simulated"))
+        .thenReturn(flushResponse);
+    List<Runnable> flushTasks = new ArrayList<>();
+    AppLogsWriter writer =
+        new AppLogsWriter(
+            new UpResponseAPIData(response),
+            SMALL_FLUSH,
+            DEFAULT_MAX_LOG_LINE,
+            0,
+            environment,
+            mock(ScheduledExecutorService.class),
+            flushTasks::add);
+    writer.addLogRecordAndMaybeFlush(new LogRecord(LogRecord.Level.info, 0, LOG_BLOCK + "1"));
+    writer.addLogRecordAndMaybeFlush(new LogRecord(LogRecord.Level.info, 0, LOG_BLOCK + "2"));
+    writer.addLogRecordAndMaybeFlush(new LogRecord(LogRecord.Level.info, 0, LOG_BLOCK + "3"));
+    assertThat(flushTasks).hasSize(1);
+
+    // The Error drops the queued flush of message 2 along with the failed flush of message 1.
+    assertThrows(OutOfMemoryError.class, () -> flushTasks.get(0).run());
+    assertThat(flushRequestBytes.getAllValues()).hasSize(1);
+
+    // A later flush starts draining again.
+    writer.addLogRecordAndMaybeFlush(new LogRecord(LogRecord.Level.info, 0, LOG_BLOCK + "4"));
+    assertThat(flushTasks).hasSize(2);
+    flushTasks.get(1).run();
+    List<byte[]> flushes = flushRequestBytes.getAllValues();
+    assertThat(flushes).hasSize(2);
+    assertThat(parseFlush(flushes.get(1)).getLogLineList()).containsExactly(createLogLine("3"));
+
+    // Nothing is left to wait for.
+    writer.stopBackgroundFlushes();
+    assertThat(response.getAppLogCount()).isEqualTo(1);
+    assertThat(response.getAppLog(0)).isEqualTo(createLogLine("4"));
+  }
+
+  @Test
+  public void testFlushesFromLoggingThreadByDefault() throws Exception {
+    System.clearProperty(AppLogsWriter.BACKGROUND_FLUSH_PROPERTY);
+    Future<byte[]> flushResponse = immediateFuture(new byte[0]);
+    ArgumentCaptor<byte[]> flushRequestBytes = ArgumentCaptor.forClass(byte[].class);
+    when(delegate.makeAsyncCall(
+            eq(environment), eq("logservice"), eq("Flush"), flushRequestBytes.capture(), notNull()))
+        .thenReturn(flushResponse);
+    AppLogsWriter writer =
+        new AppLogsWriter(
+            new UpResponseAPIData(response), SMALL_FLUSH, DEFAULT_MAX_LOG_LINE, 0, environment);
+    writer.addLogRecordAndMaybeFlush(new LogRecord(LogRecord.Level.info, 0, LOG_BLOCK + "1"));
+    writer.addLogRecordAndMaybeFlush(new LogRecord(LogRecord.Level.info, 0, LOG_BLOCK + "2"));
+
+    // The logging thread made the flush itself.
+    assertThat(parseFlush(flushRequestBytes.getValue()).getLogLineList())
+        .containsExactly(createLogLine("1"));
+    assertThat(response.getAppLogCount()).isEqualTo(1);
+    assertThat(response.getAppLog(0)).isEqualTo(createLogLine("2"));
+  }
+
+  private static AppLogGroup parseFlush(byte[] flushRequestBytes) throws Exception {
+    FlushRequest flushRequest =
+        FlushRequest.parseFrom(flushRequestBytes, ExtensionRegistry.getEmptyRegistry());
+    return AppLogGroup.parseFrom(flushRequest.getLogs(), ExtensionRegistry.getEmptyRegistry());
+  }
+
   private AppLogLine createLogLine(String suffix) {
     return AppLogLine.newBuilder()
         .setLevel(1)
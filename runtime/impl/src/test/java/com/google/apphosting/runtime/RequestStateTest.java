@@ -0,0 +1,92 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests how {@link RequestState} tracks threads that are recorded before they are started. */
+@RunWith(JUnit4.class)
+public class RequestStateTest {
+  private final CountDownLatch release = new CountDownLatch(1);
+  private final RequestState requestState = new RequestState();
+
+  @After
+  public void tearDown() {
+    release.countDown();
+  }
+
+  private Thread newThread() {
+    return new Thread(
+        () -> {
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        });
+  }
+
+  @Test
+  public void unstartedThreadIsNotWaitedFor() {
+    Thread thread = newThread();
+    requestState.recordUnstartedRequestThread(thread);
+    assertThat(requestState.requestThreads()).isEmpty();
+  }
+
+  @Test
+  public void threadStartedDuringRequestBelongsToIt() {
+    Thread thread = newThread();
+    requestState.recordUnstartedRequestThread(thread);
+    thread.start();
+    assertThat(requestState.startUnstartedRequestThread(thread)).isTrue();
+    requestState.setAllowNewRequestThreadCreation(false);
+    assertThat(requestState.requestThreads()).containsExactly(thread);
+    requestState.forgetRequestThread(thread);
+    assertThat(requestState.requestThreads()).isEmpty();
+  }
+
+  @Test
+  public void threadSeenStartedBeforeRequestEndsMayRun() {
+    Thread thread = newThread();
+    requestState.recordUnstartedRequestThread(thread);
+    thread.start();
+    requestState.setAllowNewRequestThreadCreation(false);
+    // The end of the request sees the thread started, so it waits for it.
+    assertThat(requestState.requestThreads()).containsExactly(thread);
+    assertThat(requestState.startUnstartedRequestThread(thread)).isTrue();
+  }
+
+  @Test
+  public void threadStartedAfterRequestEndsMayNotRun() {
+    Thread thread = newThread();
+    requestState.recordUnstartedRequestThread(thread);
+    requestState.setAllowNewRequestThreadCreation(false);
+    assertThat(requestState.requestThreads()).isEmpty();
+    assertThat(requestState.startUnstartedRequestThread(thread)).isFalse();
+  }
+
+  @Test
+  public void unrecordedThreadMayNotRun() {
+    assertThat(requestState.startUnstartedRequestThread(newThread())).isFalse();
+  }
+}
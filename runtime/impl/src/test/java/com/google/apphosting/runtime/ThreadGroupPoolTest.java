@@ -19,6 +19,7 @@ package com.google.apphosting.runtime;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth.assertWithMessage;
 import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assume.assumeTrue;
 
 import com.google.common.base.Throwables;
 import java.lang.Thread.UncaughtExceptionHandler;
@@ -174,6 +175,33 @@ public class ThreadGroupPoolTest {
     assertThat(caught).hasMessageThat().isEqualTo("intentional");
   }
 
+  @Test
+  public void testStartVirtual() throws Exception {
+    assumeTrue(Runtime.version().feature() >= 21);
+    ThreadGroupPool virtualPool =
+        ThreadGroupPool.builder()
+            .setParentThreadGroup(root)
+            .setThreadGroupNamePrefix("subgroup-")
+            .setUncaughtExceptionHandler(uncaughtExceptionHandler)
+            .setIgnoreDaemonThreads(false)
+            .setUseVirtualThreads(true)
+            .build();
+    final CountDownLatch latch = new CountDownLatch(2);
+    for (String name : new String[] {"virtualThread1", "virtualThread2"}) {
+      virtualPool.start(
+          name,
+          () -> {
+            Thread thread = Thread.currentThread();
+            assertThat(thread.getName()).isEqualTo(name);
+            assertThat(thread.getThreadGroup().getParent()).isNotEqualTo(root);
+            assertThat(thread.isDaemon()).isTrue();
+            latch.countDown();
+          });
+    }
+    await(latch);
+    assertThat(virtualPool.waitingThreadCount()).isEqualTo(0);
+  }
+
   private void await(CountDownLatch latch) throws InterruptedException {
     boolean ok = latch.await(10, SECONDS);
     // If there was an exception in the thread, then we might have timed out waiting for it, and the
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime.http;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.common.collect.ImmutableSortedMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters describing the traffic of an {@link HttpApiHostClient}: how many API calls are
+ * currently occupying the connection pool, how long calls wait before the HTTP client starts
+ * sending them, and the latency of calls for each API package.
+ *
+ * <p>All of the methods are thread-safe and cheap enough to call on every API call.
+ */
+final class HttpApiHostClientMetrics {
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final LongAccumulator peakInFlight = new LongAccumulator(Math::max, 0);
+  private final LongAdder queuedCalls = new LongAdder();
+  private final LongAdder queueTimeNanos = new LongAdder();
+  private final ConcurrentMap<String, Latency> latencyByPackage = new ConcurrentHashMap<>();
+
+  /** Latency statistics for the calls to one API package. */
+  static final class Latency {
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    long calls() {
+      return calls.sum();
+    }
+
+    long failures() {
+      return failures.sum();
+    }
+
+    long totalNanos() {
+      return totalNanos.sum();
+    }
+
+    long maxNanos() {
+      return maxNanos.get();
+    }
+
+    long meanNanos() {
+      long n = calls();
+      return (n == 0) ? 0 : totalNanos() / n;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "calls=%d failures=%d mean=%dms max=%dms",
+          calls(), failures(), NANOSECONDS.toMillis(meanNanos()), NANOSECONDS.toMillis(maxNanos()));
+    }
+  }
+
+  /** Records that an API call has been handed to the HTTP client. */
+  void callStarted() {
+    peakInFlight.accumulate(inFlight.incrementAndGet());
+  }
+
+  /**
+   * Records the time a call spent queued in the HTTP client, waiting for a connection, before its
+   * request began to be sent.
+   */
+  void callDequeued(long queuedNanos) {
+    queuedCalls.increment();
+    queueTimeNanos.add(queuedNanos);
+  }
+
+  /** Records that an API call to the given package has completed, successfully or not. */
+  void callFinished(String apiPackage, long elapsedNanos, boolean failed) {
+    inFlight.decrementAndGet();
+    Latency latency = latencyByPackage.computeIfAbsent(apiPackage, unused -> new Latency());
+    latency.calls.increment();
+    if (failed) {
+      latency.failures.increment();
+    }
+    latency.totalNanos.add(elapsedNanos);
+    latency.maxNanos.accumulate(elapsedNanos);
+  }
+
+  /** The number of API calls currently in progress. */
+  int inFlight() {
+    return inFlight.get();
+  }
+
+  /** The largest number of API calls that have been in progress at the same time. */
+  long peakInFlight() {
+    return peakInFlight.get();
+  }
+
+  /** The mean time that calls spent waiting for a connection before being sent. */
+  long meanQueueTimeNanos() {
+    long n = queuedCalls.sum();
+    return (n == 0) ? 0 : queueTimeNanos.sum() / n;
+  }
+
+  /** A snapshot of the latency statistics, keyed by API package. */
+  Map<String, Latency> latencyByPackage() {
+    return ImmutableSortedMap.copyOf(latencyByPackage);
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "inFlight=%d peakInFlight=%d meanQueueTime=%dms latency=%s",
+        inFlight(),
+        peakInFlight(),
+        NANOSECONDS.toMillis(meanQueueTimeNanos()),
+        latencyByPackage());
+  }
+}
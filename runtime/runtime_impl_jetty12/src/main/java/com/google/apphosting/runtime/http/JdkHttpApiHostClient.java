@@ -87,7 +87,12 @@ class JdkHttpApiHostClient extends HttpApiHostClient {
       byte[] requestBytes,
       HttpApiHostClient.Context context,
       AnyRpcCallback<APIResponse> callback) {
-    executor.execute(() -> doSend(requestBytes, context, callback));
+    long queuedNanos = System.nanoTime();
+    executor.execute(
+        () -> {
+          callDequeued(context, System.nanoTime() - queuedNanos);
+          doSend(requestBytes, context, callback);
+        });
   }
 
   private void doSend(
@@ -254,6 +254,10 @@ class JettyHttpApiHostClient extends HttpApiHostClient {
       double fallbackDeadlineSeconds = deadlineSeconds + config().extraTimeoutSeconds();
       request.timeout((long) (fallbackDeadlineSeconds * 1e9), NANOSECONDS);
     }
+    long queuedNanos = System.nanoTime();
+    request =
+        request.onRequestBegin(
+            unused -> callDequeued(context, System.nanoTime() - queuedNanos));
     CompleteListener completeListener = new Listener(context, callback);
     request.send(completeListener);
   }
@@ -27,13 +27,14 @@ import com.google.common.base.Ascii;
 import com.google.protobuf.ByteString;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicReference;
 import org.eclipse.jetty.http.HttpFields;
 import org.eclipse.jetty.http.HttpMethod;
-import org.eclipse.jetty.io.ByteBufferAccumulator;
 import org.eclipse.jetty.io.Content;
 import org.eclipse.jetty.util.Attributes;
 import org.eclipse.jetty.util.Callback;
@@ -46,7 +47,8 @@ public class DelegateRpcExchange implements DelegateExchange {
   private final HttpPb.HttpRequest _request;
   private final AtomicReference<Content.Chunk> _content = new AtomicReference<>();
   private final MutableUpResponse _response;
-  private final ByteBufferAccumulator accumulator = new ByteBufferAccumulator();
+  // The response body, kept as the pieces that were written so that it is only copied once.
+  private final List<ByteString> _responseBody = new ArrayList<>();
   private final CompletableFuture<Void> _completion = new CompletableFuture<>();
   private final Attributes _attributes = new Attributes.Lazy();
   private final String _httpMethod;
@@ -55,7 +57,7 @@ public class DelegateRpcExchange implements DelegateExchange {
   public DelegateRpcExchange(RuntimePb.UPRequest request, MutableUpResponse response) {
     _request = request.getRequest();
     _response = response;
-    _content.set(new ContentChunk(_request.getPostdata().toByteArray()));
+    _content.set(new ContentChunk(_request.getPostdata().asReadOnlyByteBuffer(), true));
 
     String protocol = _request.getProtocol();
     HttpMethod method =
@@ -158,13 +160,15 @@ public class DelegateRpcExchange implements DelegateExchange {
 
   @Override
   public void write(boolean last, ByteBuffer content, Callback callback) {
-    if (content != null) accumulator.copyBuffer(content);
+    if (content != null && content.hasRemaining()) {
+      _responseBody.add(ByteString.copyFrom(content));
+    }
     callback.succeeded();
   }
 
   @Override
   public void succeeded() {
-    _response.setHttpResponseResponse(ByteString.copyFrom(accumulator.takeByteBuffer()));
+    _response.setHttpResponseResponse(ByteString.copyFrom(_responseBody));
     _response.setError(RuntimePb.UPResponse.ERROR.OK_VALUE);
     _completion.complete(null);
   }
@@ -16,6 +16,9 @@
 package com.google.apphosting.runtime.jetty.ee10;
 
 import static com.google.apphosting.runtime.AppEngineConstants.HTTP_CONNECTOR_MODE;
+import static com.google.apphosting.runtime.AppEngineConstants.SESSION_BATCHED_WRITES;
+import static com.google.apphosting.runtime.AppEngineConstants.SESSION_CACHE_SIZE;
+import static com.google.apphosting.runtime.AppEngineConstants.SESSION_MAX_INACTIVE_WRITE_INTERVAL;
 
 import com.google.apphosting.api.ApiProxy;
 import com.google.apphosting.runtime.AppEngineConstants;
@@ -176,6 +179,10 @@ public class EE10AppVersionHandlerFactory implements AppVersionHandlerFactory {
       builder
           .setEnableSession(sessionsConfig.isEnabled())
           .setAsyncPersistence(sessionsConfig.isAsyncPersistence())
+          .setBatchedPersistence(Boolean.getBoolean(SESSION_BATCHED_WRITES))
+          .setSessionCacheSize(Integer.getInteger(SESSION_CACHE_SIZE, 0))
+          .setMaxInactiveWriteIntervalSec(
+              Integer.getInteger(SESSION_MAX_INACTIVE_WRITE_INTERVAL, -1))
           .setServletContextHandler(context);
       EE10SessionManagerHandler.create(builder.build());
       // Pass the AppVersion on to any of our servlets (e.g. ResourceFileServlet).
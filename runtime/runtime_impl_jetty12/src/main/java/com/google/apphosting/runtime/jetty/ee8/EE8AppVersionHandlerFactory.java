@@ -17,6 +17,9 @@
 package com.google.apphosting.runtime.jetty.ee8;
 
 import static com.google.apphosting.runtime.AppEngineConstants.HTTP_CONNECTOR_MODE;
+import static com.google.apphosting.runtime.AppEngineConstants.SESSION_BATCHED_WRITES;
+import static com.google.apphosting.runtime.AppEngineConstants.SESSION_CACHE_SIZE;
+import static com.google.apphosting.runtime.AppEngineConstants.SESSION_MAX_INACTIVE_WRITE_INTERVAL;
 
 import com.google.apphosting.api.ApiProxy;
 import com.google.apphosting.runtime.AppEngineConstants;
@@ -195,6 +198,10 @@ public class EE8AppVersionHandlerFactory implements AppVersionHandlerFactory {
       builder
           .setEnableSession(sessionsConfig.isEnabled())
           .setAsyncPersistence(sessionsConfig.isAsyncPersistence())
+          .setBatchedPersistence(Boolean.getBoolean(SESSION_BATCHED_WRITES))
+          .setSessionCacheSize(Integer.getInteger(SESSION_CACHE_SIZE, 0))
+          .setMaxInactiveWriteIntervalSec(
+              Integer.getInteger(SESSION_MAX_INACTIVE_WRITE_INTERVAL, -1))
           .setServletContextHandler(context);
 
       SessionManagerHandler.create(builder.build());
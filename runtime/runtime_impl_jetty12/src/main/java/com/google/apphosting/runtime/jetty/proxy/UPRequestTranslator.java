@@ -64,21 +64,35 @@ import com.google.common.flogger.GoogleLogger;
 import com.google.common.html.HtmlEscapers;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.TextFormat;
+import com.google.protobuf.UnsafeByteOperations;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
 import org.eclipse.jetty.http.HttpField;
 import org.eclipse.jetty.http.HttpStatus;
 import org.eclipse.jetty.http.HttpURI;
 import org.eclipse.jetty.io.Content;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.util.BufferUtil;
 import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.util.IteratingCallback;
 
 /** Translates HttpServletRequest to the UPRequest proto, and vice versa for the response. */
 public class UPRequestTranslator {
   private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  /**
+   * Up to this much of a request body with a declared length is read straight into an array of
+   * that size. The rest of a larger body, and a chunked body, is read incrementally, so a declared
+   * length that is never delivered cannot make us allocate more than this up front.
+   */
+  private static final int MAX_PRESIZED_POST_DATA = 1024 * 1024;
+
   private final AppInfoFactory appInfoFactory;
   private final boolean passThroughPrivateHeaders;
   private final boolean skipPostData;
@@ -118,7 +132,50 @@ public class UPRequestTranslator {
       response.getHeaders().add(header.getKey(), header.getValue());
     }
 
-    response.write(true, rpcHttpResp.getResponse().asReadOnlyByteBuffer(), callback);
+    List<ByteBuffer> body = rpcHttpResp.getResponse().asReadOnlyByteBufferList();
+    if (body.isEmpty()) {
+      response.write(true, BufferUtil.EMPTY_BUFFER, callback);
+    } else if (body.size() == 1) {
+      response.write(true, body.get(0), callback);
+    } else {
+      new BodyWriter(response, body.iterator(), callback).iterate();
+    }
+  }
+
+  /**
+   * Writes a response body held as several buffers one buffer at a time, so that it is never
+   * flattened into a single contiguous copy.
+   */
+  private static final class BodyWriter extends IteratingCallback {
+    private final Response response;
+    private final Iterator<ByteBuffer> buffers;
+    private final Callback callback;
+
+    BodyWriter(Response response, Iterator<ByteBuffer> buffers, Callback callback) {
+      this.response = response;
+      this.buffers = buffers;
+      this.callback = callback;
+    }
+
+    @Override
+    protected Action process() {
+      if (!buffers.hasNext()) {
+        return Action.SUCCEEDED;
+      }
+      ByteBuffer buffer = buffers.next();
+      response.write(!buffers.hasNext(), buffer, this);
+      return Action.SCHEDULED;
+    }
+
+    @Override
+    protected void onCompleteSuccess() {
+      callback.succeeded();
+    }
+
+    @Override
+    protected void onCompleteFailure(Throwable cause) {
+      callback.failed(cause);
+    }
   }
 
   /**
@@ -175,8 +232,7 @@ public class UPRequestTranslator {
 
     if (!skipPostData) {
       try {
-        InputStream inputStream = Content.Source.asInputStream(jettyRequest);
-        httpRequest.setPostdata(ByteString.readFrom(inputStream));
+        httpRequest.setPostdata(readPostData(jettyRequest));
       } catch (IOException ex) {
         throw new IllegalStateException("Could not read POST content:", ex);
       }
@@ -357,6 +413,30 @@ public class UPRequestTranslator {
     return url.toString();
   }
 
+  /**
+   * Reads the whole request body. When the length of the body is known, up to {@link
+   * #MAX_PRESIZED_POST_DATA} of it is read into a single array that is then wrapped, rather than
+   * copied, by the returned {@link ByteString}.
+   */
+  private static ByteString readPostData(Request jettyRequest) throws IOException {
+    InputStream inputStream = Content.Source.asInputStream(jettyRequest);
+    long contentLength = jettyRequest.getLength();
+    if (contentLength < 0) {
+      return ByteString.readFrom(inputStream);
+    }
+    byte[] bytes = new byte[(int) Math.min(contentLength, MAX_PRESIZED_POST_DATA)];
+    int read = inputStream.readNBytes(bytes, 0, bytes.length);
+    ByteString postData = UnsafeByteOperations.unsafeWrap(bytes, 0, read);
+    if (read < bytes.length) {
+      return postData;
+    }
+    // The rest of a large body grows as it arrives. The declared length does not always match
+    // what is delivered either, for example when the body has been inflated by a GzipHandler, so
+    // pick up anything that follows.
+    ByteString rest = ByteString.readFrom(inputStream);
+    return rest.isEmpty() ? postData : postData.concat(rest);
+  }
+
   /**
    * Populates a response object from some error message.
    *
@@ -16,6 +16,8 @@
 
 package com.google.apphosting.runtime.http;
 
+import static java.util.concurrent.TimeUnit.MINUTES;
+
 import com.google.apphosting.base.protos.RuntimePb.APIRequest;
 import com.google.apphosting.base.protos.RuntimePb.APIResponse;
 import com.google.apphosting.base.protos.RuntimePb.APIResponse.ERROR;
@@ -34,6 +36,7 @@ import com.google.protobuf.ByteString;
 import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.ExtensionRegistry;
 import com.google.protobuf.UninitializedMessageException;
+import com.google.protobuf.UnsafeByteOperations;
 import java.io.IOException;
 import java.util.Optional;
 import java.util.OptionalInt;
@@ -114,6 +117,7 @@ abstract class HttpApiHostClient implements APIHostClientInterface {
   }
 
   private final Config config;
+  private final HttpApiHostClientMetrics metrics = new HttpApiHostClientMetrics();
 
   HttpApiHostClient(Config config) {
     this.config = config;
@@ -123,6 +127,20 @@ abstract class HttpApiHostClient implements APIHostClientInterface {
     return config;
   }
 
+  /** Connection occupancy, queueing and per-package latency statistics for this client. */
+  HttpApiHostClientMetrics metrics() {
+    return metrics;
+  }
+
+  /**
+   * Records that a call waited {@code queuedNanos} in this client before it was sent. The wait is
+   * reported per call through {@link Context#getQueueTimeNanos} and aggregated in {@link #metrics}.
+   */
+  void callDequeued(Context context, long queuedNanos) {
+    context.setQueueTimeNanos(queuedNanos);
+    metrics.callDequeued(queuedNanos);
+  }
+
   static HttpApiHostClient create(String url, Config config) {
     if (System.getenv("APPENGINE_API_CALLS_USING_JDK_CLIENT") != null) {
       logger.atInfo().log("Using JDK HTTP client for API calls");
@@ -140,6 +158,7 @@ abstract class HttpApiHostClient implements APIHostClientInterface {
     private StatusProto status;
     private Throwable exception;
     private Optional<Long> deadlineNanos = Optional.empty();
+    private volatile long queueTimeNanos;
 
     Context() {
       this.startTimeMillis = System.currentTimeMillis();
@@ -186,6 +205,15 @@ abstract class HttpApiHostClient implements APIHostClientInterface {
       this.status = status;
     }
 
+    @Override
+    public long getQueueTimeNanos() {
+      return queueTimeNanos;
+    }
+
+    void setQueueTimeNanos(long queueTimeNanos) {
+      this.queueTimeNanos = queueTimeNanos;
+    }
+
     @Override
     public void setDeadline(double seconds) {
       Preconditions.checkArgument(seconds >= 0);
@@ -264,7 +292,38 @@ abstract class HttpApiHostClient implements APIHostClientInterface {
             .setRequestId(req.getSecurityTicket())
             .setTraceContext(req.getTraceContext().toByteString())
             .build();
-    send(requestPb.toByteArray(), context, cb);
+    send(requestPb.toByteArray(), context, new MeteredCallback(req.getApiPackage(), cb));
+  }
+
+  /** Records the outcome of an API call in {@link #metrics} before passing it on. */
+  private class MeteredCallback implements AnyRpcCallback<APIResponse> {
+    private final String apiPackage;
+    private final AnyRpcCallback<APIResponse> delegate;
+    private final long startNanos;
+
+    MeteredCallback(String apiPackage, AnyRpcCallback<APIResponse> delegate) {
+      this.apiPackage = apiPackage;
+      this.delegate = delegate;
+      this.startNanos = System.nanoTime();
+      metrics.callStarted();
+    }
+
+    @Override
+    public void success(APIResponse response) {
+      finished(response.getError() != ERROR.OK_VALUE);
+      delegate.success(response);
+    }
+
+    @Override
+    public void failure() {
+      finished(true);
+      delegate.failure();
+    }
+
+    private void finished(boolean failed) {
+      metrics.callFinished(apiPackage, System.nanoTime() - startNanos, failed);
+      logger.atFine().atMostEvery(1, MINUTES).log("API client metrics: %s", metrics);
+    }
   }
 
   static void receivedResponse(
@@ -273,7 +332,11 @@ abstract class HttpApiHostClient implements APIHostClientInterface {
       Context context,
       AnyRpcCallback<APIResponse> callback) {
     logger.atFine().log("Response size %d", responseLength);
-    CodedInputStream input = CodedInputStream.newInstance(responseBytes, 0, responseLength);
+    // The buffer belongs to this response alone and is never written again, so we can let the
+    // parsed payload alias it rather than copying the (possibly large) response bytes again.
+    CodedInputStream input =
+        UnsafeByteOperations.unsafeWrap(responseBytes, 0, responseLength).newCodedInput();
+    input.enableAliasing(true);
     RemoteApiPb.Response responsePb;
     try {
       responsePb = RemoteApiPb.Response.parseFrom(input, ExtensionRegistry.getEmptyRegistry());
@@ -27,6 +27,8 @@ import com.google.common.base.Ascii;
 import com.google.protobuf.ByteString;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
@@ -34,7 +36,6 @@ import java.util.concurrent.atomic.AtomicReference;
 import org.eclipse.jetty.http.HttpFields;
 import org.eclipse.jetty.http.HttpMethod;
 import org.eclipse.jetty.io.Content;
-import org.eclipse.jetty.io.RetainableByteBuffer;
 import org.eclipse.jetty.util.Attributes;
 import org.eclipse.jetty.util.Callback;
 
@@ -47,8 +48,8 @@ public class DelegateRpcExchange implements DelegateExchange {
   private final HttpPb.HttpRequest _request;
   private final AtomicReference<Content.Chunk> _content = new AtomicReference<>();
   private final MutableUpResponse _response;
-  private final RetainableByteBuffer.DynamicCapacity accumulator =
-      new RetainableByteBuffer.DynamicCapacity();
+  // The response body, kept as the pieces that were written so that it is only copied once.
+  private final List<ByteString> _responseBody = new ArrayList<>();
   private final CompletableFuture<Void> _completion = new CompletableFuture<>();
   private final Attributes _attributes = new Attributes.Lazy();
   private final String _httpMethod;
@@ -57,7 +58,7 @@ public class DelegateRpcExchange implements DelegateExchange {
   public DelegateRpcExchange(RuntimePb.UPRequest request, MutableUpResponse response) {
     _request = request.getRequest();
     _response = response;
-    _content.set(new ContentChunk(_request.getPostdata().toByteArray()));
+    _content.set(new ContentChunk(_request.getPostdata().asReadOnlyByteBuffer(), true));
 
     String protocol = _request.getProtocol();
     HttpMethod method =
@@ -159,15 +160,15 @@ public class DelegateRpcExchange implements DelegateExchange {
 
   @Override
   public void write(boolean last, ByteBuffer content, Callback callback) {
-    if (content != null) {
-      accumulator.append(content);
+    if (content != null && content.hasRemaining()) {
+      _responseBody.add(ByteString.copyFrom(content));
     }
     callback.succeeded();
   }
 
   @Override
   public void succeeded() {
-    _response.setHttpResponseResponse(ByteString.copyFrom(accumulator.takeByteArray()));
+    _response.setHttpResponseResponse(ByteString.copyFrom(_responseBody));
     _response.setError(RuntimePb.UPResponse.ERROR.OK_VALUE);
     _completion.complete(null);
   }
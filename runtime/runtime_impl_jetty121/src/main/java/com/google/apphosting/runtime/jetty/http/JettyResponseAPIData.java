@@ -75,6 +75,13 @@ public class JettyResponseAPIData implements ResponseAPIData {
   @Override
   public void complete() {}
 
+  @Override
+  public void addHttpOutputHeader(String name, String value) {
+    if (!response.isCommitted()) {
+      response.getHeaders().add(name, value);
+    }
+  }
+
   @Override
   public int getError() {
     return 0;
@@ -19,6 +19,7 @@ package com.google.apphosting.runtime.jetty;
 import static com.google.common.collect.ImmutableMap.toImmutableMap;
 import static com.google.common.collect.ImmutableSet.toImmutableSet;
 import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.stream.Collectors.toSet;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
@@ -36,6 +37,7 @@ import com.google.apphosting.runtime.jetty.proxy.UPRequestTranslator;
 import com.google.common.base.Ascii;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.ExtensionRegistry;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -44,7 +46,10 @@ import java.net.SocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import javax.servlet.ReadListener;
 import javax.servlet.ServletInputStream;
@@ -431,6 +436,88 @@ public final class UPRequestTranslatorTest {
     assertThat(contextProto.getTraceMask()).isEqualTo(1L);
   }
 
+  @Test
+  public void translateResponseWritesEachPieceOfBody() throws Exception {
+    byte[] first = new byte[1000];
+    byte[] second = new byte[2000];
+    Arrays.fill(first, (byte) 'a');
+    Arrays.fill(second, (byte) 'b');
+    ByteString body = ByteString.copyFrom(first).concat(ByteString.copyFrom(second));
+    RuntimePb.UPResponse upResponse =
+        RuntimePb.UPResponse.newBuilder()
+            .setError(RuntimePb.UPResponse.ERROR.OK_VALUE)
+            .setHttpResponse(
+                HttpPb.HttpResponse.newBuilder().setResponsecode(200).setResponse(body))
+            .build();
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    List<Boolean> lasts = new ArrayList<>();
+    Response httpResponse = mock(Response.class);
+    when(httpResponse.getHeaders()).thenReturn(mock(HttpFields.Mutable.class));
+    Mockito.doAnswer(
+            (Answer<Void>)
+                invocation -> {
+                  lasts.add(invocation.getArgument(0));
+                  BufferUtil.writeTo(invocation.getArgument(1), out);
+                  invocation.<Callback>getArgument(2).succeeded();
+                  return null;
+                })
+        .when(httpResponse)
+        .write(anyBoolean(), any(), any());
+    Callback callback = mock(Callback.class);
+
+    translator.translateResponse(httpResponse, upResponse, callback);
+
+    verify(httpResponse).setStatus(200);
+    verify(callback).succeeded();
+    assertThat(lasts).containsExactly(false, true).inOrder();
+    assertThat(ByteString.copyFrom(out.toByteArray())).isEqualTo(body);
+  }
+
+  @Test
+  public void translatePostDataWithContentLength() throws Exception {
+    byte[] content = "some posted content".getBytes(UTF_8);
+    Request httpRequest =
+        mockServletRequest("http://myapp.appspot.com/foo/bar", "127.0.0.1", ImmutableMap.of());
+    when(httpRequest.getLength()).thenReturn((long) content.length);
+    when(httpRequest.read())
+        .thenReturn(Content.Chunk.from(ByteBuffer.wrap(content), true), Content.Chunk.EOF);
+
+    RuntimePb.UPRequest translatedUpRequest = translator.translateRequest(httpRequest);
+
+    assertThat(translatedUpRequest.getRequest().getPostdata().toByteArray()).isEqualTo(content);
+  }
+
+  @Test
+  public void translatePostDataLargerThanPresizedArray() throws Exception {
+    byte[] content = new byte[1024 * 1024 + 100];
+    Arrays.fill(content, (byte) 'x');
+    Request httpRequest =
+        mockServletRequest("http://myapp.appspot.com/foo/bar", "127.0.0.1", ImmutableMap.of());
+    when(httpRequest.getLength()).thenReturn((long) content.length);
+    when(httpRequest.read())
+        .thenReturn(Content.Chunk.from(ByteBuffer.wrap(content), true), Content.Chunk.EOF);
+
+    RuntimePb.UPRequest translatedUpRequest = translator.translateRequest(httpRequest);
+
+    assertThat(translatedUpRequest.getRequest().getPostdata().toByteArray()).isEqualTo(content);
+  }
+
+  @Test
+  public void translatePostDataShorterThanDeclaredLength() throws Exception {
+    byte[] content = "some posted content".getBytes(UTF_8);
+    Request httpRequest =
+        mockServletRequest("http://myapp.appspot.com/foo/bar", "127.0.0.1", ImmutableMap.of());
+    // A declared length that is never delivered must not be allocated up front.
+    when(httpRequest.getLength()).thenReturn((long) Integer.MAX_VALUE);
+    when(httpRequest.read())
+        .thenReturn(Content.Chunk.from(ByteBuffer.wrap(content), true), Content.Chunk.EOF);
+
+    RuntimePb.UPRequest translatedUpRequest = translator.translateRequest(httpRequest);
+
+    assertThat(translatedUpRequest.getRequest().getPostdata().toByteArray()).isEqualTo(content);
+  }
+
   private static Request mockServletRequest(
       String url, String remoteAddr, ImmutableMap<String, String> userHeaders) {
     URI uri;
@@ -82,6 +82,13 @@ public class JettyResponseAPIData implements ResponseAPIData {
   @Override
   public void complete() {}
 
+  @Override
+  public void addHttpOutputHeader(String name, String value) {
+    if (!httpServletResponse.isCommitted()) {
+      httpServletResponse.addHeader(name, value);
+    }
+  }
+
   @Override
   public int getError() {
     return 0;
@@ -24,12 +24,14 @@ import static org.junit.Assert.assertThrows;
 import static org.junit.Assume.assumeTrue;
 
 import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiStats;
 import com.google.apphosting.runtime.ApiProxyImpl;
 import com.google.apphosting.runtime.MutableUpResponse;
 import com.google.apphosting.runtime.TraceWriter;
 import com.google.apphosting.runtime.grpc.FakeApiProxyImplFactory;
 import com.google.apphosting.testing.PortPicker;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import org.junit.Test;
@@ -49,6 +51,41 @@ public class HttpApiProxyImplTest extends HttpApiProxyImplTestBase {
     assertThat(responsePayload).isEqualTo(requestPayload);
   }
 
+  @Test
+  public void apiCallMetrics() {
+    HttpApiHostClient apiHostClient =
+        HttpApiHostClient.create(fakeHttpApiHost.getUrl().toString(), config);
+    ApiProxyImpl apiProxyImpl = FakeApiProxyImplFactory.newApiProxyImpl(apiHostClient);
+    ApiProxyImpl.EnvironmentImpl environment = newEnvironmentImpl(apiProxyImpl);
+    byte[] requestPayload = {1, 2, 3, 4};
+    apiProxyImpl.makeSyncCall(environment, ECHO_SERVICE, ECHO_METHOD, requestPayload);
+    apiProxyImpl.makeSyncCall(environment, ECHO_SERVICE, ECHO_METHOD, requestPayload);
+    HttpApiHostClientMetrics metrics = apiHostClient.metrics();
+    assertThat(metrics.inFlight()).isEqualTo(0);
+    assertThat(metrics.peakInFlight()).isEqualTo(1);
+    assertThat(metrics.latencyByPackage().keySet()).containsExactly(ECHO_SERVICE);
+    HttpApiHostClientMetrics.Latency latency = metrics.latencyByPackage().get(ECHO_SERVICE);
+    assertThat(latency.calls()).isEqualTo(2);
+    assertThat(latency.failures()).isEqualTo(0);
+    assertThat(latency.maxNanos()).isAtLeast(latency.meanNanos());
+  }
+
+  @Test
+  public void apiCallQueueTimeInApiStats() {
+    HttpApiHostClient apiHostClient =
+        HttpApiHostClient.create(fakeHttpApiHost.getUrl().toString(), config);
+    ApiProxyImpl apiProxyImpl = FakeApiProxyImplFactory.newApiProxyImpl(apiHostClient);
+    ApiProxyImpl.EnvironmentImpl environment = newEnvironmentImpl(apiProxyImpl);
+    byte[] requestPayload = {1, 2, 3, 4};
+    apiProxyImpl.makeSyncCall(environment, ECHO_SERVICE, ECHO_METHOD, requestPayload);
+    List<ApiStats.ApiCall> calls = ApiStats.get(environment).getApiCalls();
+    assertThat(calls).hasSize(1);
+    ApiStats.ApiCall call = calls.get(0);
+    assertThat(call.getPackageName()).isEqualTo(ECHO_SERVICE);
+    assertThat(call.getQueueTimeNanos()).isAtMost(call.getLatencyNanos());
+    assertThat(call.getQueueTimeNanos()).isEqualTo(apiHostClient.metrics().meanQueueTimeNanos());
+  }
+
   @Test
   public void apiCallNoTraceWriter() {
     ApiProxyImpl apiProxyImpl = newApiProxyImpl();
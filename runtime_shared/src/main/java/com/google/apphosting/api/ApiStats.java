@@ -16,6 +16,9 @@
 
 package com.google.apphosting.api;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Represents automatic statistics collected by the ApiProxy. If present, this
  * object will be stored under the KEY-variable in an Environment's property.
@@ -48,6 +51,110 @@ public abstract class ApiStats {
    */
   public abstract long getCpuTimeInMegaCycles();
 
+  /**
+   * @return the API calls made by the current request that have completed so
+   *     far, in order of completion. Implementations that do not record
+   *     individual calls return an empty list.
+   */
+  public List<ApiCall> getApiCalls() {
+    return Collections.emptyList();
+  }
+
+  /**
+   * A record of one API call made by a request.
+   */
+  public static final class ApiCall {
+    private final String packageName;
+    private final String methodName;
+    private final int requestSize;
+    private final int responseSize;
+    private final long slotWaitMillis;
+    private final long latencyNanos;
+    private final double deadlineSeconds;
+    private final long queueTimeNanos;
+
+    public ApiCall(String packageName, String methodName, int requestSize,
+        int responseSize, long slotWaitMillis, long latencyNanos,
+        double deadlineSeconds) {
+      this(packageName, methodName, requestSize, responseSize, slotWaitMillis,
+          latencyNanos, deadlineSeconds, 0);
+    }
+
+    public ApiCall(String packageName, String methodName, int requestSize,
+        int responseSize, long slotWaitMillis, long latencyNanos,
+        double deadlineSeconds, long queueTimeNanos) {
+      this.packageName = packageName;
+      this.methodName = methodName;
+      this.requestSize = requestSize;
+      this.responseSize = responseSize;
+      this.slotWaitMillis = slotWaitMillis;
+      this.latencyNanos = latencyNanos;
+      this.deadlineSeconds = deadlineSeconds;
+      this.queueTimeNanos = queueTimeNanos;
+    }
+
+    /** @return the API package that was called, for example "datastore_v3". */
+    public String getPackageName() {
+      return packageName;
+    }
+
+    /** @return the method that was called, for example "RunQuery". */
+    public String getMethodName() {
+      return methodName;
+    }
+
+    /** @return the size of the serialized request in bytes. */
+    public int getRequestSize() {
+      return requestSize;
+    }
+
+    /**
+     * @return the size of the serialized response in bytes, or -1 if the call
+     *     failed.
+     */
+    public int getResponseSize() {
+      return responseSize;
+    }
+
+    /**
+     * @return the time the call spent waiting for a free API slot before it
+     *     was sent, in milliseconds.
+     */
+    public long getSlotWaitMillis() {
+      return slotWaitMillis;
+    }
+
+    /**
+     * @return the time from sending the call to receiving its result, in
+     *     nanoseconds.
+     */
+    public long getLatencyNanos() {
+      return latencyNanos;
+    }
+
+    /** @return the deadline the call was sent with, in seconds. */
+    public double getDeadlineSeconds() {
+      return deadlineSeconds;
+    }
+
+    /**
+     * @return the part of the latency that the call spent queued in the API
+     *     client, for example waiting for a free connection to the API host, in
+     *     nanoseconds. This is 0 if the client does not queue calls.
+     */
+    public long getQueueTimeNanos() {
+      return queueTimeNanos;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s.%s: %.3fms (waited %dms for a slot, %.3fms queued, "
+          + "deadline %.1fs), %d request bytes, %d response bytes", packageName, methodName,
+          latencyNanos / 1e6, slotWaitMillis, queueTimeNanos / 1e6, deadlineSeconds, requestSize,
+          responseSize);
+    }
+  }
+
   /**
    * Creates a new ApiStats object and binds it to a given Environment.
    * @param env the Environment object to bind this object to.
@@ -16,7 +16,6 @@
 
 package com.google.apphosting.runtime;
 
-import static com.google.apphosting.runtime.SessionManagerUtil.deserialize;
 import static com.google.apphosting.runtime.SessionManagerUtil.serialize;
 
 import com.google.appengine.api.memcache.ErrorHandlers;
@@ -46,7 +45,7 @@ public class MemcacheSessionStore implements SessionStore {
     byte[] sessionBytes = (byte[]) memcache.get(key);
     if (sessionBytes != null) {
       logger.atFinest().log("Loaded session %s from memcache.", key);
-      return (SessionData) deserialize(sessionBytes);
+      return SessionFormat.decodeSession(sessionBytes);
     }
     return null;
   }
@@ -54,7 +53,9 @@ public class MemcacheSessionStore implements SessionStore {
   @Override
   public void saveSession(String key, SessionData data) throws Retryable {
     try {
-      memcache.put(key, serialize(data));
+      memcache.put(
+          key,
+          SessionFormat.useCompactFormat() ? SessionFormat.encodeSession(data) : serialize(data));
     } catch (ApiProxy.ApiDeadlineExceededException e) {
       throw new Retryable(e);
     }
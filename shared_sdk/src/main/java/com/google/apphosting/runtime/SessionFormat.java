@@ -0,0 +1,354 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A compact binary format for the attributes of a session, written to memcache and datastore in
+ * place of a Java serialized {@link SessionData} or attribute map when the {@value
+ * #COMPACT_FORMAT_PROPERTY} system property is true.
+ *
+ * <p>Strings, boxed primitives and byte arrays are written natively. All other attribute values,
+ * and strings with unpaired surrogates, which UTF-8 cannot represent, are Java serialized together,
+ * after the native ones, so that references between them are preserved. Sessions with such
+ * attribute names are Java serialized entirely. Large sessions are compressed when that makes them
+ * smaller. The data starts with a header that Java serialization never produces, so readers tell
+ * the formats apart, and sessions written before the compact format was turned on can still be
+ * read.
+ *
+ * <p>Every runtime reads the compact format, but runtimes that predate it do not. Only turn it on
+ * once no instance of the application runs such a runtime.
+ */
+public final class SessionFormat {
+  /** System property that makes sessions be written in the compact format. */
+  public static final String COMPACT_FORMAT_PROPERTY = "appengine.session.compactFormat";
+
+  // Java serialization always starts with 0xACED.
+  private static final byte MAGIC_0 = (byte) 0xAE;
+  private static final byte MAGIC_1 = (byte) 0x53;
+  private static final byte VERSION = 1;
+  private static final int HEADER_SIZE = 4;
+
+  /** Flag set when the data after the header is deflated. */
+  private static final byte DEFLATED = 1;
+
+  /** The size from which the data after the header is compressed. */
+  static final int COMPRESSION_THRESHOLD = 1024;
+
+  private static final byte NULL = 0;
+  private static final byte STRING = 1;
+  private static final byte INTEGER = 2;
+  private static final byte LONG = 3;
+  private static final byte BOOLEAN = 4;
+  private static final byte DOUBLE = 5;
+  private static final byte FLOAT = 6;
+  private static final byte SHORT = 7;
+  private static final byte BYTE = 8;
+  private static final byte CHARACTER = 9;
+  private static final byte BYTES = 10;
+  private static final byte SERIALIZED = 11;
+
+  private SessionFormat() {}
+
+  /** Returns whether sessions are written in the compact format. */
+  public static boolean useCompactFormat() {
+    return Boolean.getBoolean(COMPACT_FORMAT_PROPERTY);
+  }
+
+  /** Returns whether the given bytes are in the compact format. */
+  public static boolean isCompact(byte[] bytes) {
+    return bytes.length >= HEADER_SIZE && bytes[0] == MAGIC_0 && bytes[1] == MAGIC_1;
+  }
+
+  /**
+   * Writes a session in the compact format, or Java serializes it if an attribute name cannot be
+   * written in UTF-8.
+   */
+  public static byte[] encodeSession(SessionData data) {
+    if (!hasWellFormedNames(data.getValueMap())) {
+      return SessionManagerUtil.serialize(data);
+    }
+    return encode(data.getExpirationTime(), data.getValueMap());
+  }
+
+  /**
+   * Reads a session written by {@link #encodeSession}, or by Java serialization. Classes are
+   * loaded with the context class loader of the current thread.
+   */
+  public static SessionData decodeSession(byte[] bytes) {
+    if (!isCompact(bytes)) {
+      return (SessionData) SessionManagerUtil.deserialize(bytes);
+    }
+    SessionData data = new SessionData();
+    data.setExpirationTime(decode(bytes, data.getValueMap()));
+    return data;
+  }
+
+  /**
+   * Writes the attributes of a session in the compact format, or Java serializes them as a {@link
+   * HashMap} if an attribute name cannot be written in UTF-8.
+   */
+  public static byte[] encodeAttributes(Map<String, Object> attributes) {
+    if (!hasWellFormedNames(attributes)) {
+      return SessionManagerUtil.serialize(new HashMap<>(attributes));
+    }
+    return encode(0, attributes);
+  }
+
+  /**
+   * Reads attributes written by {@link #encodeAttributes}, or a Java serialized attribute map, into
+   * the given map. Classes are loaded with the context class loader of the current thread.
+   */
+  public static void decodeAttributes(byte[] bytes, Map<String, Object> attributes) {
+    if (!isCompact(bytes)) {
+      @SuppressWarnings("unchecked")
+      Map<String, Object> map = (Map<String, Object>) SessionManagerUtil.deserialize(bytes);
+      attributes.putAll(map);
+      return;
+    }
+    decode(bytes, attributes);
+  }
+
+  private static boolean hasWellFormedNames(Map<String, Object> attributes) {
+    for (String name : attributes.keySet()) {
+      if (!isWellFormed(name)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns whether a string has no unpaired surrogates, so that it survives UTF-8. */
+  private static boolean isWellFormed(String string) {
+    for (int i = 0; i < string.length(); i++) {
+      char c = string.charAt(i);
+      if (Character.isHighSurrogate(c)) {
+        if (i + 1 == string.length() || !Character.isLowSurrogate(string.charAt(i + 1))) {
+          return false;
+        }
+        i++;
+      } else if (Character.isLowSurrogate(c)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static byte[] encode(long expirationTime, Map<String, Object> attributes) {
+    try {
+      ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+      DataOutputStream body = new DataOutputStream(bodyBytes);
+      writeVarLong(body, expirationTime);
+      writeVarLong(body, attributes.size());
+      List<Object> serialized = new ArrayList<>();
+      for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+        writeBytes(body, entry.getKey().getBytes(UTF_8));
+        writeValue(body, entry.getValue(), serialized);
+      }
+      if (!serialized.isEmpty()) {
+        writeBytes(body, SessionManagerUtil.serialize(serialized.toArray()));
+      }
+      body.flush();
+
+      byte[] payload = bodyBytes.toByteArray();
+      byte flags = 0;
+      if (payload.length >= COMPRESSION_THRESHOLD) {
+        byte[] deflated = deflate(payload);
+        if (deflated.length < payload.length) {
+          payload = deflated;
+          flags |= DEFLATED;
+        }
+      }
+      byte[] bytes = new byte[HEADER_SIZE + payload.length];
+      bytes[0] = MAGIC_0;
+      bytes[1] = MAGIC_1;
+      bytes[2] = VERSION;
+      bytes[3] = flags;
+      System.arraycopy(payload, 0, bytes, HEADER_SIZE, payload.length);
+      return bytes;
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  private static void writeValue(DataOutputStream out, Object value, List<Object> serialized)
+      throws IOException {
+    Class<?> type = value == null ? null : value.getClass();
+    if (type == null) {
+      out.writeByte(NULL);
+    } else if (type == String.class && isWellFormed((String) value)) {
+      out.writeByte(STRING);
+      writeBytes(out, ((String) value).getBytes(UTF_8));
+    } else if (type == Integer.class) {
+      out.writeByte(INTEGER);
+      out.writeInt((Integer) value);
+    } else if (type == Long.class) {
+      out.writeByte(LONG);
+      out.writeLong((Long) value);
+    } else if (type == Boolean.class) {
+      out.writeByte(BOOLEAN);
+      out.writeBoolean((Boolean) value);
+    } else if (type == Double.class) {
+      out.writeByte(DOUBLE);
+      out.writeDouble((Double) value);
+    } else if (type == Float.class) {
+      out.writeByte(FLOAT);
+      out.writeFloat((Float) value);
+    } else if (type == Short.class) {
+      out.writeByte(SHORT);
+      out.writeShort((Short) value);
+    } else if (type == Byte.class) {
+      out.writeByte(BYTE);
+      out.writeByte((Byte) value);
+    } else if (type == Character.class) {
+      out.writeByte(CHARACTER);
+      out.writeChar((Character) value);
+    } else if (type == byte[].class) {
+      out.writeByte(BYTES);
+      writeBytes(out, (byte[]) value);
+    } else {
+      out.writeByte(SERIALIZED);
+      serialized.add(value);
+    }
+  }
+
+  /** Reads the given bytes into the given map, and returns the expiration time. */
+  private static long decode(byte[] bytes, Map<String, Object> attributes) {
+    if (bytes[2] != VERSION) {
+      throw new IllegalArgumentException("Unsupported session format version " + bytes[2]);
+    }
+    InputStream body = new ByteArrayInputStream(bytes, HEADER_SIZE, bytes.length - HEADER_SIZE);
+    if ((bytes[3] & DEFLATED) != 0) {
+      body = new InflaterInputStream(body);
+    }
+    try (DataInputStream in = new DataInputStream(body)) {
+      long expirationTime = readVarLong(in);
+      long count = readVarLong(in);
+      List<String> serializedNames = new ArrayList<>();
+      for (long i = 0; i < count; i++) {
+        String name = new String(readBytes(in), UTF_8);
+        byte type = in.readByte();
+        if (type == SERIALIZED) {
+          serializedNames.add(name);
+        } else {
+          attributes.put(name, readValue(in, type));
+        }
+      }
+      if (!serializedNames.isEmpty()) {
+        Object[] values = (Object[]) SessionManagerUtil.deserialize(readBytes(in));
+        for (int i = 0; i < values.length; i++) {
+          attributes.put(serializedNames.get(i), values[i]);
+        }
+      }
+      return expirationTime;
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  private static Object readValue(DataInputStream in, byte type) throws IOException {
+    switch (type) {
+      case NULL:
+        return null;
+      case STRING:
+        return new String(readBytes(in), UTF_8);
+      case INTEGER:
+        return in.readInt();
+      case LONG:
+        return in.readLong();
+      case BOOLEAN:
+        return in.readBoolean();
+      case DOUBLE:
+        return in.readDouble();
+      case FLOAT:
+        return in.readFloat();
+      case SHORT:
+        return in.readShort();
+      case BYTE:
+        return in.readByte();
+      case CHARACTER:
+        return in.readChar();
+      case BYTES:
+        return readBytes(in);
+      default:
+        throw new IOException("Unknown session attribute type " + type);
+    }
+  }
+
+  private static byte[] deflate(byte[] bytes) throws IOException {
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2);
+      try (DeflaterOutputStream deflaterOut = new DeflaterOutputStream(out, deflater)) {
+        deflaterOut.write(bytes);
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    writeVarLong(out, bytes.length);
+    out.write(bytes);
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    long length = readVarLong(in);
+    if (length < 0 || length > Integer.MAX_VALUE) {
+      throw new IOException("Malformed session data");
+    }
+    byte[] bytes = new byte[(int) length];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  private static long readVarLong(DataInputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = in.readByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed session data");
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import com.google.common.base.Strings;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class SessionFormatTest {
+  @After
+  public void tearDown() {
+    System.clearProperty(SessionFormat.COMPACT_FORMAT_PROPERTY);
+  }
+
+  /** Attributes of every type that the format writes natively, and some that it serializes. */
+  private static Map<String, Object> attributesOfEveryType() {
+    Map<String, Object> attributes = new LinkedHashMap<>();
+    attributes.put("null", null);
+    attributes.put("string", "héllo 😀");
+    attributes.put("integer", 42);
+    attributes.put("long", -7L);
+    attributes.put("boolean", true);
+    attributes.put("double", 2.5);
+    attributes.put("float", 1.5f);
+    attributes.put("short", (short) 3);
+    attributes.put("byte", (byte) -4);
+    attributes.put("character", 'ç');
+    attributes.put("bytes", new byte[] {1, 2, 3});
+    attributes.put("date", new Date(1234));
+    attributes.put("list", new ArrayList<>(Arrays.asList("a", 1L)));
+    return attributes;
+  }
+
+  private static void assertSameAttributes(
+      Map<String, Object> actual, Map<String, Object> expected) {
+    assertThat(actual.keySet()).containsExactlyElementsIn(expected.keySet());
+    for (Map.Entry<String, Object> entry : expected.entrySet()) {
+      Object value = actual.get(entry.getKey());
+      if (entry.getValue() == null) {
+        assertWithMessage(entry.getKey()).that(value).isNull();
+      } else if (entry.getValue() instanceof byte[]) {
+        assertWithMessage(entry.getKey()).that((byte[]) value).isEqualTo(entry.getValue());
+      } else {
+        assertWithMessage(entry.getKey()).that(value).isEqualTo(entry.getValue());
+        assertWithMessage(entry.getKey())
+            .that(value.getClass())
+            .isEqualTo(entry.getValue().getClass());
+      }
+    }
+  }
+
+  @Test
+  public void testAttributesRoundTrip() {
+    Map<String, Object> attributes = attributesOfEveryType();
+    byte[] bytes = SessionFormat.encodeAttributes(attributes);
+    assertThat(SessionFormat.isCompact(bytes)).isTrue();
+
+    Map<String, Object> decoded = new HashMap<>();
+    SessionFormat.decodeAttributes(bytes, decoded);
+    assertSameAttributes(decoded, attributes);
+  }
+
+  @Test
+  public void testSessionRoundTrip() {
+    SessionData data = new SessionData();
+    data.setExpirationTime(123456789L);
+    data.getValueMap().putAll(attributesOfEveryType());
+    byte[] bytes = SessionFormat.encodeSession(data);
+    assertThat(SessionFormat.isCompact(bytes)).isTrue();
+
+    SessionData decoded = SessionFormat.decodeSession(bytes);
+    assertThat(decoded.getExpirationTime()).isEqualTo(123456789L);
+    assertSameAttributes(decoded.getValueMap(), data.getValueMap());
+  }
+
+  @Test
+  public void testLargeSessionsAreDeflated() {
+    Map<String, Object> attributes = attributesOfEveryType();
+    attributes.put("large", Strings.repeat("compressible ", 1000));
+    byte[] bytes = SessionFormat.encodeAttributes(attributes);
+    assertThat(bytes.length).isLessThan(1000);
+
+    Map<String, Object> decoded = new HashMap<>();
+    SessionFormat.decodeAttributes(bytes, decoded);
+    assertSameAttributes(decoded, attributes);
+  }
+
+  @Test
+  public void testReferencesBetweenSerializedValuesArePreserved() {
+    List<String> shared = new ArrayList<>();
+    Map<String, Object> attributes = new HashMap<>();
+    attributes.put("a", shared);
+    attributes.put("b", shared);
+
+    Map<String, Object> decoded = new HashMap<>();
+    SessionFormat.decodeAttributes(SessionFormat.encodeAttributes(attributes), decoded);
+    assertThat(decoded.get("a")).isSameInstanceAs(decoded.get("b"));
+  }
+
+  @Test
+  public void testUnpairedSurrogatesRoundTrip() {
+    Map<String, Object> attributes = new HashMap<>();
+    attributes.put("high", "a\ud800b");
+    attributes.put("low", "\udc00");
+    byte[] bytes = SessionFormat.encodeAttributes(attributes);
+    assertThat(SessionFormat.isCompact(bytes)).isTrue();
+    Map<String, Object> decoded = new HashMap<>();
+    SessionFormat.decodeAttributes(bytes, decoded);
+    assertSameAttributes(decoded, attributes);
+
+    // Names that UTF-8 cannot represent make the whole session Java serialized.
+    attributes.put("name\ud800", 1);
+    bytes = SessionFormat.encodeAttributes(attributes);
+    assertThat(SessionFormat.isCompact(bytes)).isFalse();
+    decoded = new HashMap<>();
+    SessionFormat.decodeAttributes(bytes, decoded);
+    assertSameAttributes(decoded, attributes);
+
+    SessionData data = new SessionData();
+    data.getValueMap().putAll(attributes);
+    assertSameAttributes(
+        SessionFormat.decodeSession(SessionFormat.encodeSession(data)).getValueMap(), attributes);
+  }
+
+  @Test
+  public void testDecodesJavaSerializedSession() {
+    SessionData data = new SessionData();
+    data.setExpirationTime(987L);
+    data.getValueMap().putAll(attributesOfEveryType());
+
+    SessionData decoded = SessionFormat.decodeSession(SessionManagerUtil.serialize(data));
+    assertThat(decoded.getExpirationTime()).isEqualTo(987L);
+    assertSameAttributes(decoded.getValueMap(), data.getValueMap());
+  }
+
+  @Test
+  public void testDecodesJavaSerializedAttributes() {
+    HashMap<String, Object> attributes = new HashMap<>(attributesOfEveryType());
+    Map<String, Object> decoded = new HashMap<>();
+    SessionFormat.decodeAttributes(SessionManagerUtil.serialize(attributes), decoded);
+    assertSameAttributes(decoded, attributes);
+  }
+
+  @Test
+  public void testUseCompactFormat() {
+    assertThat(SessionFormat.useCompactFormat()).isFalse();
+    System.setProperty(SessionFormat.COMPACT_FORMAT_PROPERTY, "true");
+    assertThat(SessionFormat.useCompactFormat()).isTrue();
+  }
+}
@@ -38,14 +38,20 @@ class AppEngineSession extends ManagedSession {
    */
   private static final double UPDATE_TIMESTAMP_RATIO = 0.75;
 
+  private final long maxInactiveWriteIntervalMs;
+
   /**
    * Create a new session object. Usually after the data has been loaded.
    *
    * @param manager the SessionManager to which the session pertains
    * @param data the info of the session
+   * @param maxInactiveWriteIntervalMs how long after it was last saved a session that has not
+   *     changed is written again to extend its expiration time, or a negative value to use {@link
+   *     #UPDATE_TIMESTAMP_RATIO}
    */
-  AppEngineSession(SessionManager manager, SessionData data) {
+  AppEngineSession(SessionManager manager, SessionData data, long maxInactiveWriteIntervalMs) {
     super(manager, data);
+    this.maxInactiveWriteIntervalMs = maxInactiveWriteIntervalMs;
   }
 
   /**
@@ -62,23 +68,32 @@ class AppEngineSession extends ManagedSession {
   }
 
   /**
-   * If the session is nearing its expiry time, we mark it as dirty whether any attributes change
-   * during this access. The default Jetty implementation does not handle the AppEngine specific
-   * dirty state.
+   * If the stored session is nearing its expiry time, we mark it as dirty whether any attributes
+   * change during this access. The default Jetty implementation does not handle the AppEngine
+   * specific dirty state. Sessions that are not dirty are not written back to memcache and
+   * datastore.
+   *
+   * <p>The expiry time of the session data is extended on every access, so the time of the last
+   * save tells how close the stored session is to expiring, also for sessions that stay in an
+   * instance cache between requests.
    */
   @Override
   public boolean access(long time) {
     try (AutoLock lock = _lock.lock()) {
-      if (isValid()) {
-        long timeRemaining = _sessionData.getExpiry() - time;
-        if (timeRemaining < (_sessionData.getMaxInactiveMs() * UPDATE_TIMESTAMP_RATIO)) {
-          _sessionData.setDirty(true);
-        }
+      if (isValid() && time - _sessionData.getLastSaved() >= getWriteIntervalMs()) {
+        _sessionData.setDirty(true);
       }
       return super.access(time);
     }
   }
 
+  private long getWriteIntervalMs() {
+    if (maxInactiveWriteIntervalMs >= 0) {
+      return maxInactiveWriteIntervalMs;
+    }
+    return (long) (_sessionData.getMaxInactiveMs() * (1 - UPDATE_TIMESTAMP_RATIO));
+  }
+
   @Override
   public Object setAttribute(String name, Object value) {
     // We want to keep the previous Jetty 9 App Engine implementation that emits a
@@ -51,4 +51,16 @@ public class AppEngineSessionData extends SessionData {
     // should eventually be added to make future changes to the session stores simpler.
     return _attributes;
   }
+
+  /**
+   * Sets the expiry time of session data read from memcache or datastore. The time the session was
+   * saved is not stored, so it is derived from the expiry time: that way a session that is read
+   * and not changed is only written again once it gets close to expiring.
+   *
+   * @param expiry the stored expiry time, or 0 if the session does not expire
+   */
+  void setStoredExpiry(long expiry) {
+    setExpiry(expiry);
+    setLastSaved(expiry > 0 ? expiry - getMaxInactiveMs() : 0);
+  }
 }
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime.jetty;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.common.flogger.GoogleLogger;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import org.eclipse.jetty.session.SessionData;
+import org.eclipse.jetty.session.UnwriteableSessionDataException;
+
+/**
+ * A {@link DatastoreSessionStore.SessionDataStoreImpl} extension that batches datastore writes.
+ * Saved sessions are queued in the instance and written with asynchronous batch puts: a session
+ * that is saved again before its previous state was sent is only written once, and the sessions
+ * saved by concurrent requests are written together.
+ *
+ * <p>API calls can only be made from request threads, so the puts are sent by the requests that
+ * save sessions, and each request waits for the put that writes its session before it completes,
+ * whichever request sent it. Batching saves datastore calls, not request latency. A session is only
+ * written by one put at a time, so that its states reach datastore in order: a request that saves
+ * a session whose previous state is still being written waits for that write first. The sessions
+ * of puts that time out, or that are cancelled because the request that sent them reached its
+ * deadline, are sent again by the next request that notices it.
+ */
+class BatchingDatastoreSessionStore extends DatastoreSessionStore.SessionDataStoreImpl {
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  /** The maximum number of sessions written by one put. */
+  static final int MAX_BATCH_SIZE = 500;
+
+  /** The size of session values after which no more sessions are added to a put. */
+  static final int MAX_BATCH_BYTES = 4 << 20;
+
+  /** The number of puts a request sends or waits for to write its session before it gives up. */
+  static final int MAX_ATTEMPTS = 3;
+
+  /** A put of a batch of sessions that has been sent. */
+  private static final class Batch {
+    final Map<String, Entity> entities;
+    final Future<List<Key>> future;
+
+    /** Why the put failed, once it is retired. Guarded by lock. */
+    Throwable failure;
+
+    Batch(Map<String, Entity> entities, Future<List<Key>> future) {
+      this.entities = entities;
+      this.future = future;
+    }
+
+    /** Waits for the put to complete, whether it succeeds or not. */
+    void await() throws InterruptedException {
+      try {
+        future.get();
+      } catch (ExecutionException | CancellationException e) {
+        // Handled by retireCompletedBatches.
+      }
+    }
+  }
+
+  private final AsyncDatastoreService asyncDatastore;
+
+  private final Object lock = new Object();
+
+  /** Session states that have not been sent yet, by session id. Guarded by {@link #lock}. */
+  private final Map<String, Entity> pending = new LinkedHashMap<>();
+
+  /** The puts that may still be in progress, by the ids of their sessions. Guarded by lock. */
+  private final Map<String, Batch> inFlight = new HashMap<>();
+
+  BatchingDatastoreSessionStore() {
+    this(
+        DatastoreServiceFactory.getDatastoreService(),
+        DatastoreServiceFactory.getAsyncDatastoreService());
+  }
+
+  BatchingDatastoreSessionStore(
+      DatastoreService datastore, AsyncDatastoreService asyncDatastore) {
+    super(datastore);
+    this.asyncDatastore = asyncDatastore;
+  }
+
+  @Override
+  public void doStore(String id, SessionData data, long lastSaveTime)
+      throws IOException, InterruptedException, UnwriteableSessionDataException {
+    Entity entity = entityFromSession(id, data);
+    synchronized (lock) {
+      pending.put(id, entity);
+    }
+    Batch written = null;
+    int attempts = 0;
+    boolean abandoned = false;
+    while (true) {
+      Batch batch;
+      synchronized (lock) {
+        boolean retried = retireCompletedBatches();
+        batch = inFlight.get(id);
+        boolean queued = pending.get(id) == entity;
+        if (queued && batch == null) {
+          if (attempts < MAX_ATTEMPTS) {
+            batch = sendPending(id);
+          } else {
+            pending.remove(id);
+            queued = false;
+            abandoned = true;
+          }
+        }
+        if (retried) {
+          // The requests that saved the other sessions to retry may have completed.
+          sendPending(null);
+        }
+        if (batch != null && batch.entities.get(id) == entity) {
+          written = batch;
+          attempts++;
+        } else if (!queued) {
+          // Written or failed, or replaced by a later state that the request saving it writes.
+          break;
+        }
+        // Otherwise the previous state of the session is still being written.
+      }
+      batch.await();
+    }
+    if (written != null
+        && written.failure != null
+        && (abandoned || !isRetryable(written.failure))) {
+      throw new UnwriteableSessionDataException(id, _context, written.failure);
+    }
+  }
+
+  private static boolean isRetryable(Throwable failure) {
+    return failure instanceof DatastoreTimeoutException
+        || failure instanceof CancellationException;
+  }
+
+  /**
+   * Sends a put of the given session, if it is not null, and of other queued sessions that are not
+   * being written, and returns it, or null if there is nothing to send. Must be called with {@link
+   * #lock} held.
+   */
+  private Batch sendPending(String id) {
+    Map<String, Entity> entities = new LinkedHashMap<>();
+    long bytes = 0;
+    if (id != null) {
+      Entity entity = pending.remove(id);
+      entities.put(id, entity);
+      bytes = valuesSize(entity);
+    }
+    for (Iterator<Map.Entry<String, Entity>> it = pending.entrySet().iterator();
+        it.hasNext() && entities.size() < MAX_BATCH_SIZE && bytes < MAX_BATCH_BYTES; ) {
+      Map.Entry<String, Entity> entry = it.next();
+      if (!inFlight.containsKey(entry.getKey())) {
+        entities.put(entry.getKey(), entry.getValue());
+        bytes += valuesSize(entry.getValue());
+        it.remove();
+      }
+    }
+    if (entities.isEmpty()) {
+      return null;
+    }
+    // Sending the put only starts the API call, so it is fine to do with the lock held.
+    Batch batch = new Batch(entities, asyncDatastore.put(entities.values()));
+    for (String sessionId : entities.keySet()) {
+      inFlight.put(sessionId, batch);
+    }
+    return batch;
+  }
+
+  /**
+   * Forgets the puts that have completed, and queues again the sessions of puts that timed out or
+   * were cancelled unless a later state of them is queued. Returns whether any session was queued
+   * again. Must be called with {@link #lock} held.
+   */
+  private boolean retireCompletedBatches() {
+    boolean retried = false;
+    for (Batch batch : new HashSet<>(inFlight.values())) {
+      if (!batch.future.isDone()) {
+        continue;
+      }
+      inFlight.keySet().removeAll(batch.entities.keySet());
+      try {
+        batch.future.get();
+      } catch (ExecutionException e) {
+        batch.failure = e.getCause();
+      } catch (CancellationException e) {
+        batch.failure = e;
+      } catch (InterruptedException e) {
+        // Cannot happen, the future is done.
+        Thread.currentThread().interrupt();
+      }
+      if (batch.failure == null) {
+        continue;
+      }
+      if (isRetryable(batch.failure)) {
+        logger.atInfo().withCause(batch.failure).log(
+            "Retrying the write of %d sessions", batch.entities.size());
+        for (Map.Entry<String, Entity> entry : batch.entities.entrySet()) {
+          retried |= pending.putIfAbsent(entry.getKey(), entry.getValue()) == null;
+        }
+      } else {
+        logger.atSevere().withCause(batch.failure).log(
+            "Failed to write %d sessions", batch.entities.size());
+      }
+    }
+    return retried;
+  }
+
+  private static int valuesSize(Entity entity) {
+    return ((Blob) entity.getProperty(DatastoreSessionStore.VALUES_PROP)).getBytes().length;
+  }
+
+  /** Loads a session that has not been written yet from the queue, and others from datastore. */
+  @Override
+  public SessionData doLoad(String id) throws Exception {
+    Entity entity;
+    synchronized (lock) {
+      entity = pending.get(id);
+      Batch batch = inFlight.get(id);
+      if (entity == null && batch != null) {
+        entity = batch.entities.get(id);
+      }
+    }
+    if (entity != null) {
+      return sessionFromEntity(entity, DatastoreSessionStore.normalizeSessionId(id));
+    }
+    return super.doLoad(id);
+  }
+
+  /**
+   * Deletes a session once its queued state is dropped and its writes in progress complete, so
+   * that neither they nor their retries write it again after the delete.
+   */
+  @Override
+  public boolean delete(String id) throws IOException {
+    while (true) {
+      Batch previous;
+      synchronized (lock) {
+        boolean retried = retireCompletedBatches();
+        pending.remove(id);
+        if (retried) {
+          sendPending(null);
+        }
+        previous = inFlight.get(id);
+      }
+      if (previous == null) {
+        return super.delete(id);
+      }
+      try {
+        previous.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      }
+    }
+  }
+
+  @Override
+  protected void doStop() throws Exception {
+    flush();
+    super.doStop();
+  }
+
+  /**
+   * Waits for the writes in progress when the store stops. Every request waits for the write of its
+   * session, so nothing is left to write unless a request was abandoned; the sessions that such
+   * requests left queued are logged and dropped, as API calls cannot be made outside of requests.
+   */
+  void flush() throws InterruptedException {
+    List<Batch> batches;
+    synchronized (lock) {
+      batches = new ArrayList<>(new HashSet<>(inFlight.values()));
+    }
+    for (Batch batch : batches) {
+      batch.await();
+    }
+    synchronized (lock) {
+      retireCompletedBatches();
+      if (!pending.isEmpty()) {
+        logger.atWarning().log("Dropping the unwritten state of %d sessions", pending.size());
+        pending.clear();
+      }
+    }
+  }
+}
@@ -25,12 +25,14 @@ import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.apphosting.runtime.SessionFormat;
 import com.google.apphosting.runtime.SessionStore;
 import com.google.common.flogger.GoogleLogger;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
@@ -53,13 +55,19 @@ class DatastoreSessionStore implements SessionStore {
 
   static final String SESSION_ENTITY_TYPE = "_ah_SESSION";
   private static final String EXPIRES_PROP = "_expires";
-  private static final String VALUES_PROP = "_values";
+  static final String VALUES_PROP = "_values";
   private static final String SESSION_PREFIX = "_ahs";
 
   private final SessionDataStoreImpl impl;
 
-  DatastoreSessionStore(boolean useTaskqueue, Optional<String> queueName) {
-    impl = useTaskqueue ? new DeferredDatastoreSessionStore(queueName) : new SessionDataStoreImpl();
+  DatastoreSessionStore(boolean useTaskqueue, Optional<String> queueName, boolean batchWrites) {
+    if (useTaskqueue) {
+      impl = new DeferredDatastoreSessionStore(queueName);
+    } else if (batchWrites) {
+      impl = new BatchingDatastoreSessionStore();
+    } else {
+      impl = new SessionDataStoreImpl();
+    }
   }
 
   static String keyForSessionId(String id) {
@@ -100,7 +108,18 @@ class DatastoreSessionStore implements SessionStore {
   static class SessionDataStoreImpl extends AbstractSessionDataStore {
     private static final int MAX_RETRIES = 10;
     private static final int INITIAL_BACKOFF_MS = 50;
-    private final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    private final DatastoreService datastore;
+
+    SessionDataStoreImpl() {
+      this(DatastoreServiceFactory.getDatastoreService());
+    }
+
+    SessionDataStoreImpl(DatastoreService datastore) {
+      this.datastore = datastore;
+      // Only write sessions that are dirty. AppEngineSession marks sessions that were accessed as
+      // dirty once their stored expiry time needs to be extended.
+      setSavePeriodSec(Integer.MAX_VALUE);
+    }
 
     /**
      * Scavenging is not performed by the Jetty session setup, so this method will never be called.
@@ -224,15 +243,22 @@ class DatastoreSessionStore implements SessionStore {
       String originalNamespace = NamespaceManager.get();
 
       try {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(baos);
-        oos.writeObject(((AppEngineSessionData) data).getMutableAttributes());
-        oos.flush();
+        Map<String, Object> attributes = ((AppEngineSessionData) data).getMutableAttributes();
+        byte[] values;
+        if (SessionFormat.useCompactFormat()) {
+          values = SessionFormat.encodeAttributes(attributes);
+        } else {
+          ByteArrayOutputStream baos = new ByteArrayOutputStream();
+          ObjectOutputStream oos = new ObjectOutputStream(baos);
+          oos.writeObject(attributes);
+          oos.flush();
+          values = baos.toByteArray();
+        }
 
         NamespaceManager.set("");
         Entity entity = new Entity(SESSION_ENTITY_TYPE, SESSION_PREFIX + id);
         entity.setProperty(EXPIRES_PROP, data.getExpiry());
-        entity.setProperty(VALUES_PROP, new Blob(baos.toByteArray()));
+        entity.setProperty(VALUES_PROP, new Blob(values));
         return entity;
       } finally {
         NamespaceManager.set(originalNamespace);
@@ -296,26 +322,38 @@ class DatastoreSessionStore implements SessionStore {
 
       // As the max inactive interval of the session is not stored, it must
       // be defaulted to whatever is set on the session handler from web.xml.
-      SessionData session =
-          newSessionData(
-              id,
-              time,
-              time,
-              time,
-              (1000L * _context.getSessionManager().getMaxInactiveInterval()));
-      session.setExpiry(expiry);
-
-      try (ClassLoadingObjectInputStream ois =
-          new ClassLoadingObjectInputStream(new ByteArrayInputStream(blob.getBytes()))) {
-        @SuppressWarnings("unchecked")
-        Map<String, Object> map = (Map<String, Object>) ois.readObject();
+      AppEngineSessionData session =
+          (AppEngineSessionData)
+              newSessionData(
+                  id,
+                  time,
+                  time,
+                  time,
+                  (1000L * _context.getSessionManager().getMaxInactiveInterval()));
+      session.setStoredExpiry(expiry);
 
+      try {
         // TODO: avoid this data copy
-        session.putAllAttributes(map);
+        session.putAllAttributes(readAttributes(blob.getBytes()));
       } catch (Exception ex) {
         throw new UnreadableSessionDataException(id, _context, ex);
       }
       return session;
     }
+
+    /** Reads attributes in the compact session format, or Java serialized. */
+    private static Map<String, Object> readAttributes(byte[] values) throws Exception {
+      if (SessionFormat.isCompact(values)) {
+        Map<String, Object> attributes = new HashMap<>();
+        SessionFormat.decodeAttributes(values, attributes);
+        return attributes;
+      }
+      try (ClassLoadingObjectInputStream ois =
+          new ClassLoadingObjectInputStream(new ByteArrayInputStream(values))) {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> map = (Map<String, Object>) ois.readObject();
+        return map;
+      }
+    }
   }
 }
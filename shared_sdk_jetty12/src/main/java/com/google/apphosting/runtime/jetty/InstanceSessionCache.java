@@ -0,0 +1,177 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime.jetty;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import org.eclipse.jetty.session.DefaultSessionCache;
+import org.eclipse.jetty.session.ManagedSession;
+import org.eclipse.jetty.session.SessionData;
+import org.eclipse.jetty.session.SessionManager;
+import org.eclipse.jetty.util.thread.AutoLock;
+
+/**
+ * A session cache that keeps up to a given number of sessions in the instance between requests,
+ * so that a request for a cached session does not load it from memcache or datastore. Changed
+ * sessions are still written through to memcache and datastore when a request completes, so other
+ * instances and later instances load the latest data.
+ *
+ * <p>A cached session is not reloaded when another instance changes it, so this cache must only be
+ * used when the requests of a session are routed to the same instance (session affinity). When
+ * the cache is full, the least recently accessed session that is not used by a request is evicted.
+ */
+class InstanceSessionCache extends DefaultSessionCache {
+  /** The number of least recently used sessions that are considered for eviction. */
+  private static final int EVICTION_CANDIDATES = 8;
+
+  private final ConcurrentMap<String, ManagedSession> sessions;
+
+  /**
+   * The ids of the cached sessions, least recently used first. Guarded by itself; no other lock is
+   * taken while it is held.
+   */
+  private final LinkedHashMap<String, Boolean> recentlyUsed = new LinkedHashMap<>(16, 0.75f, true);
+  private final int maxSize;
+  private final long maxInactiveWriteIntervalMs;
+
+  /**
+   * Create a new cache.
+   *
+   * @param manager the SessionManager to which this cache pertains
+   * @param maxSize the maximum number of sessions kept in the cache
+   * @param maxInactiveWriteIntervalMs see {@link AppEngineSession}
+   */
+  InstanceSessionCache(SessionManager manager, int maxSize, long maxInactiveWriteIntervalMs) {
+    this(manager, new ConcurrentHashMap<>(), maxSize, maxInactiveWriteIntervalMs);
+  }
+
+  private InstanceSessionCache(
+      SessionManager manager,
+      ConcurrentMap<String, ManagedSession> sessions,
+      int maxSize,
+      long maxInactiveWriteIntervalMs) {
+    super(manager, sessions);
+    this.sessions = sessions;
+    this.maxSize = maxSize;
+    this.maxInactiveWriteIntervalMs = maxInactiveWriteIntervalMs;
+    setSaveOnCreate(true);
+    setFlushOnResponseCommit(true);
+  }
+
+  @Override
+  public ManagedSession newSession(SessionData data) {
+    return new AppEngineSession(getSessionManager(), data, maxInactiveWriteIntervalMs);
+  }
+
+  @Override
+  public ManagedSession doGet(String id) {
+    ManagedSession session = super.doGet(id);
+    if (session != null) {
+      synchronized (recentlyUsed) {
+        recentlyUsed.get(id);
+      }
+    }
+    return session;
+  }
+
+  @Override
+  public ManagedSession doPutIfAbsent(String id, ManagedSession session) {
+    ManagedSession previous = super.doPutIfAbsent(id, session);
+    used(id);
+    evictIfFull(id);
+    return previous;
+  }
+
+  @Override
+  protected ManagedSession doComputeIfAbsent(
+      String id, Function<String, ManagedSession> mappingFunction) {
+    ManagedSession session = super.doComputeIfAbsent(id, mappingFunction);
+    if (session != null) {
+      used(id);
+      evictIfFull(id);
+    }
+    return session;
+  }
+
+  @Override
+  public ManagedSession doDelete(String id) {
+    ManagedSession session = super.doDelete(id);
+    synchronized (recentlyUsed) {
+      recentlyUsed.remove(id);
+    }
+    return session;
+  }
+
+  private void used(String id) {
+    synchronized (recentlyUsed) {
+      recentlyUsed.put(id, Boolean.TRUE);
+    }
+  }
+
+  /**
+   * Evicts idle sessions, other than the one with the given id, until the cache fits. Only the
+   * least recently used sessions are considered, so that an insert does not scan the whole cache.
+   */
+  private void evictIfFull(String keepId) {
+    while (sessions.size() > maxSize) {
+      List<ManagedSession> candidates = new ArrayList<>(EVICTION_CANDIDATES);
+      synchronized (recentlyUsed) {
+        for (Iterator<String> it = recentlyUsed.keySet().iterator();
+            it.hasNext() && candidates.size() < EVICTION_CANDIDATES; ) {
+          String id = it.next();
+          ManagedSession session = sessions.get(id);
+          if (session == null) {
+            // Removed from the cache without going through doDelete.
+            it.remove();
+          } else if (!id.equals(keepId)) {
+            candidates.add(session);
+          }
+        }
+      }
+      boolean evicted = false;
+      for (ManagedSession session : candidates) {
+        if (session.getRequests() <= 0 && evict(session)) {
+          evicted = true;
+          break;
+        }
+      }
+      if (!evicted) {
+        // The sessions are in use: the cache shrinks back when further sessions are added.
+        return;
+      }
+    }
+  }
+
+  private boolean evict(ManagedSession session) {
+    try (AutoLock lock = session.lock()) {
+      // A request may have started to use the session since it was chosen.
+      if (session.getRequests() <= 0 && session.isResident()) {
+        // The session was written when its last request completed, so it can simply be dropped.
+        // A request that finds it non-resident loads it again.
+        doDelete(session.getId());
+        session.setResident(false);
+        return true;
+      }
+      return false;
+    }
+  }
+}
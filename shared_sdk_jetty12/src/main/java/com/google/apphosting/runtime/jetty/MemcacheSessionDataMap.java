@@ -130,7 +130,7 @@ class MemcacheSessionDataMap extends AbstractLifeCycle implements SessionDataMap
     @SuppressWarnings("NowMillis")
     long now = System.currentTimeMillis();
     long maxInactiveMs = 1000L * this.context.getSessionManager().getMaxInactiveInterval();
-    SessionData jettySession =
+    AppEngineSessionData jettySession =
         new AppEngineSessionData(
             id,
             this.context.getCanonicalContextPath(),
@@ -139,7 +139,7 @@ class MemcacheSessionDataMap extends AbstractLifeCycle implements SessionDataMap
             /* accessed= */ now,
             /* lastAccessed= */ now,
             maxInactiveMs);
-    jettySession.setExpiry(runtimeSession.getExpirationTime());
+    jettySession.setStoredExpiry(runtimeSession.getExpirationTime());
     // TODO: avoid this data copy
     jettySession.putAllAttributes(runtimeSession.getValueMap());
     return jettySession;
@@ -22,6 +22,7 @@ import com.google.auto.value.AutoValue;
 import com.google.common.annotations.VisibleForTesting;
 import java.security.SecureRandom;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import org.eclipse.jetty.ee8.nested.SessionHandler;
 import org.eclipse.jetty.ee8.servlet.ServletContextHandler;
@@ -31,6 +32,7 @@ import org.eclipse.jetty.session.DefaultSessionIdManager;
 import org.eclipse.jetty.session.HouseKeeper;
 import org.eclipse.jetty.session.ManagedSession;
 import org.eclipse.jetty.session.NullSessionCache;
+import org.eclipse.jetty.session.SessionCache;
 import org.eclipse.jetty.session.SessionData;
 import org.eclipse.jetty.session.SessionDataStore;
 import org.eclipse.jetty.session.SessionManager;
@@ -43,12 +45,12 @@ import org.eclipse.jetty.session.SessionManager;
 // More info at go/appengine-jetty94-sessionmanagement.
 public class SessionManagerHandler {
   private final AppEngineSessionIdManager idManager;
-  private final NullSessionCache cache;
+  private final SessionCache cache;
   private final MemcacheSessionDataMap memcacheMap;
 
   private SessionManagerHandler(
       AppEngineSessionIdManager idManager,
-      NullSessionCache cache,
+      SessionCache cache,
       MemcacheSessionDataMap memcacheMap) {
     this.idManager = idManager;
     this.cache = cache;
@@ -71,9 +73,23 @@ public class SessionManagerHandler {
     idManager.setSessionHouseKeeper(houseKeeper);
 
     if (config.enableSession()) {
-      NullSessionCache cache = new AppEngineSessionCache(context.getSessionHandler());
+      long maxInactiveWriteIntervalMs =
+          config.maxInactiveWriteIntervalSec() < 0
+              ? -1
+              : TimeUnit.SECONDS.toMillis(config.maxInactiveWriteIntervalSec());
+      SessionCache cache =
+          config.sessionCacheSize() > 0
+              ? new InstanceSessionCache(
+                  context.getSessionHandler().getSessionManager(),
+                  config.sessionCacheSize(),
+                  maxInactiveWriteIntervalMs)
+              : new AppEngineSessionCache(
+                  context.getSessionHandler(), maxInactiveWriteIntervalMs);
       DatastoreSessionStore dataStore =
-          new DatastoreSessionStore(config.asyncPersistence(), config.asyncPersistenceQueueName());
+          new DatastoreSessionStore(
+              config.asyncPersistence(),
+              config.asyncPersistenceQueueName(),
+              config.batchedPersistence());
       MemcacheSessionDataMap memcacheMap = new MemcacheSessionDataMap();
       CachingSessionDataStore cachingDataStore =
           new CachingSessionDataStore(memcacheMap, dataStore.getSessionDataStoreImpl());
@@ -98,7 +114,7 @@ public class SessionManagerHandler {
   }
 
   @VisibleForTesting
-  NullSessionCache getCache() {
+  SessionCache getCache() {
     return cache;
   }
 
@@ -110,6 +126,12 @@ public class SessionManagerHandler {
   /**
    * Options to configure an App Engine Datastore/Task Queue based Session Manager on a Jetty Web
    * App context.
+   *
+   * <p>Whatever the options, a session is only written to memcache and datastore at the end of a
+   * request if it is dirty: if one of its attributes was set or removed, or if its expiration time
+   * needs to be extended (see {@link #maxInactiveWriteIntervalSec}). A change that an application
+   * makes to an attribute value in place, without setting the attribute again, is only persisted
+   * with the next write of the session.
    */
   @AutoValue
   public abstract static class Config {
@@ -125,6 +147,28 @@ public class SessionManagerHandler {
      */
     public abstract Optional<String> asyncPersistenceQueueName();
 
+    /**
+     * Whether to write the sessions saved by concurrent requests to datastore together, with
+     * asynchronous batch puts, when task queue based async session management is not used. Each
+     * request still waits for the put of its session. False by default.
+     */
+    public abstract boolean batchedPersistence();
+
+    /**
+     * Maximum number of sessions kept in the instance between requests, or 0 to load the session
+     * from memcache or datastore on every request. A cached session is not reloaded when another
+     * instance changes it, so only use this when the requests of a session are routed to the same
+     * instance. 0 by default.
+     */
+    public abstract int sessionCacheSize();
+
+    /**
+     * Seconds after which a session that is accessed but not changed is written again, to extend
+     * its expiration time. When negative, the session is written once a quarter of its maximum
+     * inactive interval has passed. -1 by default.
+     */
+    public abstract int maxInactiveWriteIntervalSec();
+
     /** Jetty web app context to use for the session management configuration. */
     public abstract ServletContextHandler servletContextHandler();
 
@@ -132,7 +176,10 @@ public class SessionManagerHandler {
     public static Builder builder() {
       return new AutoValue_SessionManagerHandler_Config.Builder()
           .setEnableSession(false)
-          .setAsyncPersistence(false);
+          .setAsyncPersistence(false)
+          .setBatchedPersistence(false)
+          .setSessionCacheSize(0)
+          .setMaxInactiveWriteIntervalSec(-1);
     }
 
     /** Builder for {@code Config} instances. */
@@ -147,6 +194,12 @@ public class SessionManagerHandler {
 
       public abstract Builder setAsyncPersistenceQueueName(String asyncPersistenceQueueName);
 
+      public abstract Builder setBatchedPersistence(boolean batchedPersistence);
+
+      public abstract Builder setSessionCacheSize(int sessionCacheSize);
+
+      public abstract Builder setMaxInactiveWriteIntervalSec(int maxInactiveWriteIntervalSec);
+
       /** Returns a configured {@code Config} instance. */
       public abstract Config build();
     }
@@ -251,26 +304,30 @@ public class SessionManagerHandler {
   }
 
   /**
-   * Sessions are not cached and shared in AppEngine so this extends the NullSessionCache. This
-   * subclass exists because SessionCaches are factories for Sessions. We subclass Session for
-   * Appengine.
+   * Unless {@link Config#sessionCacheSize} is set, sessions are not cached and shared in AppEngine
+   * so this extends the NullSessionCache. This subclass exists because SessionCaches are factories
+   * for Sessions. We subclass Session for Appengine.
    */
   private static class AppEngineSessionCache extends NullSessionCache {
 
+    private final long maxInactiveWriteIntervalMs;
+
     /**
      * Create a new cache.
      *
      * @param handler the SessionHandler to which this cache pertains
+     * @param maxInactiveWriteIntervalMs see {@link AppEngineSession}
      */
-    AppEngineSessionCache(SessionHandler handler) {
+    AppEngineSessionCache(SessionHandler handler, long maxInactiveWriteIntervalMs) {
       super(handler.getSessionManager());
+      this.maxInactiveWriteIntervalMs = maxInactiveWriteIntervalMs;
       setSaveOnCreate(true);
       setFlushOnResponseCommit(true);
     }
 
     @Override
     public ManagedSession newSession(SessionData data) {
-      return new AppEngineSession(getSessionManager(), data);
+      return new AppEngineSession(getSessionManager(), data, maxInactiveWriteIntervalMs);
     }
   }
 
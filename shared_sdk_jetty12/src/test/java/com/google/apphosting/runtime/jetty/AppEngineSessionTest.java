@@ -0,0 +1,96 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime.jetty;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+
+import org.eclipse.jetty.session.SessionManager;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class AppEngineSessionTest {
+  private static final long MAX_INACTIVE_MS = 60_000;
+
+  private final SessionManager manager = mock(SessionManager.class);
+
+  private static AppEngineSessionData newData(long lastSaved) {
+    AppEngineSessionData data =
+        new AppEngineSessionData("id", "/", "0.0.0.0", 0, 0, 0, MAX_INACTIVE_MS);
+    data.setLastSaved(lastSaved);
+    return data;
+  }
+
+  /** Returns a session as it is at the start of a request, before it is changed. */
+  private AppEngineSession newSession(AppEngineSessionData data, long writeIntervalMs) {
+    AppEngineSession session = new AppEngineSession(manager, data, writeIntervalMs);
+    session.setResident(true);
+    data.setDirty(false);
+    return session;
+  }
+
+  @Test
+  public void testAccessMarksSessionDirtyAfterDefaultWriteInterval() {
+    AppEngineSessionData data = newData(100_000);
+    AppEngineSession session = newSession(data, -1);
+
+    // A quarter of the maximum inactive interval.
+    session.access(114_999);
+    assertThat(data.isDirty()).isFalse();
+    session.access(115_000);
+    assertThat(data.isDirty()).isTrue();
+  }
+
+  @Test
+  public void testAccessMarksSessionDirtyAfterConfiguredWriteInterval() {
+    AppEngineSessionData data = newData(100_000);
+    AppEngineSession session = newSession(data, 5_000);
+
+    session.access(104_999);
+    assertThat(data.isDirty()).isFalse();
+    session.access(105_000);
+    assertThat(data.isDirty()).isTrue();
+  }
+
+  @Test
+  public void testZeroWriteIntervalWritesOnEveryAccess() {
+    AppEngineSessionData data = newData(100_000);
+    AppEngineSession session = newSession(data, 0);
+
+    session.access(100_000);
+    assertThat(data.isDirty()).isTrue();
+  }
+
+  @Test
+  public void testLastSavedTimeIsDerivedFromStoredExpiry() {
+    AppEngineSessionData data = newData(0);
+    data.setStoredExpiry(160_000);
+    assertThat(data.getExpiry()).isEqualTo(160_000);
+    assertThat(data.getLastSaved()).isEqualTo(100_000);
+
+    // A session that was just loaded is not written again when it is accessed.
+    AppEngineSession session = newSession(data, -1);
+    session.access(100_001);
+    assertThat(data.isDirty()).isFalse();
+
+    // Sessions that do not expire have no known save time.
+    data.setStoredExpiry(0);
+    assertThat(data.getLastSaved()).isEqualTo(0);
+  }
+}
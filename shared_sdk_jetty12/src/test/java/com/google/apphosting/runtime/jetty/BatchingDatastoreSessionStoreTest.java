@@ -0,0 +1,255 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime.jetty;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.SettableFuture;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.eclipse.jetty.session.SessionData;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class BatchingDatastoreSessionStoreTest {
+  /** An asynchronous put that the test completes. */
+  private static final class Put {
+    final ImmutableList<Entity> entities;
+    final SettableFuture<List<Key>> future = SettableFuture.create();
+
+    Put(Iterable<Entity> entities) {
+      this.entities = ImmutableList.copyOf(entities);
+    }
+
+    /** The written sessions, as {@code id@expiry}. */
+    List<String> sessions() {
+      return entities.stream()
+          .map(
+              entity ->
+                  DatastoreSessionStore.normalizeSessionId(entity.getKey().getName())
+                      + "@"
+                      + entity.getProperty("_expires"))
+          .collect(toImmutableList());
+    }
+
+    void succeed() {
+      future.set(entities.stream().map(Entity::getKey).collect(toImmutableList()));
+    }
+
+    void fail(Exception e) {
+      future.setException(e);
+    }
+  }
+
+  /** The body of a request thread. */
+  private interface Request {
+    void run() throws Exception;
+  }
+
+  private final DatastoreService datastore = mock(DatastoreService.class);
+  private final AsyncDatastoreService asyncDatastore = mock(AsyncDatastoreService.class);
+  private final BlockingQueue<Put> puts = new LinkedBlockingQueue<>();
+  private final List<String> operations = Collections.synchronizedList(new ArrayList<>());
+  private final List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+  private final List<Thread> requests = new ArrayList<>();
+  private BatchingDatastoreSessionStore store;
+
+  @Before
+  public void setUp() {
+    when(asyncDatastore.put(any(Iterable.class)))
+        .thenAnswer(
+            invocation -> {
+              Put put = new Put(invocation.<Iterable<Entity>>getArgument(0));
+              operations.add("put " + put.sessions());
+              puts.add(put);
+              return put.future;
+            });
+    doAnswer(
+            invocation -> {
+              Key key = invocation.getArgument(0);
+              operations.add("delete " + DatastoreSessionStore.normalizeSessionId(key.getName()));
+              return null;
+            })
+        .when(datastore)
+        .delete(any(Key.class));
+    store = new BatchingDatastoreSessionStore(datastore, asyncDatastore);
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    for (Thread request : requests) {
+      request.join(SECONDS.toMillis(10));
+      assertThat(request.isAlive()).isFalse();
+    }
+    assertThat(failures).isEmpty();
+  }
+
+  private static ApiProxy.Environment newEnvironment() {
+    ApiProxy.Environment environment = mock(ApiProxy.Environment.class);
+    when(environment.getAttributes()).thenReturn(new ConcurrentHashMap<>());
+    return environment;
+  }
+
+  /** Runs a request in a new thread that has an API environment. */
+  private Thread startRequest(Request request) {
+    ApiProxy.Environment environment = newEnvironment();
+    Thread thread =
+        new Thread(
+            () -> {
+              ApiProxy.setEnvironmentForCurrentThread(environment);
+              try {
+                request.run();
+              } catch (Throwable t) {
+                failures.add(t);
+              } finally {
+                ApiProxy.clearEnvironmentForCurrentThread();
+              }
+            });
+    thread.setDaemon(true);
+    thread.start();
+    requests.add(thread);
+    return thread;
+  }
+
+  private Thread startStore(String id, long expiry) {
+    SessionData data = new AppEngineSessionData(id, "/", "0.0.0.0", 0, 0, 0, 60_000);
+    data.setExpiry(expiry);
+    return startRequest(() -> store.doStore(id, data, 0));
+  }
+
+  /** Waits until a request waits for a put to complete, or has completed. */
+  private static void awaitWaiting(Thread request) throws InterruptedException {
+    while (request.isAlive() && request.getState() != Thread.State.WAITING) {
+      Thread.sleep(1);
+    }
+  }
+
+  private Put nextPut() throws InterruptedException {
+    Put put = puts.poll(10, SECONDS);
+    assertThat(put).isNotNull();
+    return put;
+  }
+
+  @Test
+  public void testRequestWaitsForItsPut() throws Exception {
+    Thread request = startStore("s1", 1);
+    Put put = nextPut();
+    assertThat(put.sessions()).containsExactly("s1@1");
+    awaitWaiting(request);
+    assertThat(request.isAlive()).isTrue();
+
+    put.succeed();
+    request.join(SECONDS.toMillis(10));
+    assertThat(request.isAlive()).isFalse();
+  }
+
+  @Test
+  public void testSavesOfASessionAreCoalescedAndWrittenInOrder() throws Exception {
+    Thread first = startStore("s1", 1);
+    Put firstPut = nextPut();
+    awaitWaiting(first);
+    Thread second = startStore("s1", 2);
+    awaitWaiting(second);
+    Thread third = startStore("s1", 3);
+    awaitWaiting(third);
+    // No later state is written while the first one is.
+    assertThat(puts).isEmpty();
+
+    firstPut.succeed();
+    Put lastPut = nextPut();
+    assertThat(lastPut.sessions()).containsExactly("s1@3");
+    // The second state was replaced by the third one, which its request waits for.
+    second.join(SECONDS.toMillis(10));
+    assertThat(second.isAlive()).isFalse();
+    awaitWaiting(third);
+    assertThat(third.isAlive()).isTrue();
+
+    lastPut.succeed();
+    third.join(SECONDS.toMillis(10));
+    assertThat(operations).containsExactly("put [s1@1]", "put [s1@3]").inOrder();
+  }
+
+  @Test
+  public void testTimedOutPutIsRetriedByTheRequest() throws Exception {
+    Thread request = startStore("s1", 1);
+    nextPut().fail(new DatastoreTimeoutException("timeout"));
+    Put retry = nextPut();
+    assertThat(retry.sessions()).containsExactly("s1@1");
+    awaitWaiting(request);
+    assertThat(request.isAlive()).isTrue();
+
+    retry.succeed();
+  }
+
+  @Test
+  public void testCancelledPutDoesNotFailOtherRequests() throws Exception {
+    Thread first = startStore("s1", 1);
+    Put cancelled = nextPut();
+    awaitWaiting(first);
+    Thread second = startStore("s1", 2);
+    awaitWaiting(second);
+
+    // As when the request that sent the put reaches its deadline.
+    cancelled.future.cancel(false);
+    Put next = nextPut();
+    assertThat(next.sessions()).containsExactly("s1@2");
+    next.succeed();
+  }
+
+  @Test
+  public void testDeleteDuringWriteIsNotUndoneByRetries() throws Exception {
+    startStore("s1", 1);
+    Put put = nextPut();
+    Thread deletion = startRequest(() -> store.delete("s1"));
+    awaitWaiting(deletion);
+    assertThat(operations).containsExactly("put [s1@1]");
+
+    put.fail(new DatastoreTimeoutException("timeout"));
+    // Either request may notice the timeout first; the delete waits for a retry it sends.
+    while (deletion.isAlive()) {
+      Put retry = puts.poll(10, MILLISECONDS);
+      if (retry != null) {
+        retry.succeed();
+      }
+    }
+    assertThat(Iterables.getLast(operations)).isEqualTo("delete s1");
+    assertThat(puts).isEmpty();
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime.jetty;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreService;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class DatastoreSessionStoreTest {
+  @Test
+  public void testOnlyDirtySessionsAreWritten() {
+    // Jetty writes a session that is not dirty once this period has passed since it was saved.
+    assertThat(
+            new DatastoreSessionStore.SessionDataStoreImpl(mock(DatastoreService.class))
+                .getSavePeriodSec())
+        .isEqualTo(Integer.MAX_VALUE);
+    assertThat(
+            new BatchingDatastoreSessionStore(
+                    mock(DatastoreService.class), mock(AsyncDatastoreService.class))
+                .getSavePeriodSec())
+        .isEqualTo(Integer.MAX_VALUE);
+  }
+}
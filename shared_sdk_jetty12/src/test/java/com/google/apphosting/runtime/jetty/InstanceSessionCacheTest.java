@@ -0,0 +1,91 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime.jetty;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+
+import org.eclipse.jetty.session.ManagedSession;
+import org.eclipse.jetty.session.SessionManager;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class InstanceSessionCacheTest {
+  private final InstanceSessionCache cache =
+      new InstanceSessionCache(mock(SessionManager.class), 2, -1);
+
+  private ManagedSession add(String id) {
+    ManagedSession session =
+        cache.newSession(new AppEngineSessionData(id, "/", "0.0.0.0", 0, 0, 0, 60_000));
+    session.setResident(true);
+    cache.doPutIfAbsent(id, session);
+    return session;
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsedSession() {
+    ManagedSession a = add("a");
+    ManagedSession b = add("b");
+    assertThat(cache.doGet("a")).isSameInstanceAs(a);
+
+    add("c");
+    assertThat(cache.doGet("b")).isNull();
+    assertThat(b.isResident()).isFalse();
+    assertThat(cache.doGet("a")).isSameInstanceAs(a);
+    assertThat(cache.doGet("c")).isNotNull();
+  }
+
+  @Test
+  public void testDoesNotEvictSessionsInUse() {
+    ManagedSession a = add("a");
+    assertThat(a.access(1)).isTrue();
+    add("b");
+
+    add("c");
+    assertThat(cache.doGet("b")).isNull();
+    add("d");
+    assertThat(cache.doGet("c")).isNull();
+    assertThat(cache.doGet("a")).isSameInstanceAs(a);
+    assertThat(a.isResident()).isTrue();
+  }
+
+  @Test
+  public void testGrowsWhileAllSessionsAreInUse() {
+    ManagedSession a = add("a");
+    ManagedSession b = add("b");
+    assertThat(a.access(1)).isTrue();
+    assertThat(b.access(1)).isTrue();
+
+    add("c");
+    assertThat(cache.doGet("a")).isSameInstanceAs(a);
+    assertThat(cache.doGet("b")).isSameInstanceAs(b);
+    assertThat(cache.doGet("c")).isNotNull();
+  }
+
+  @Test
+  public void testDeletedSessionsAreNotEvicted() {
+    add("a");
+    ManagedSession b = add("b");
+    cache.doDelete("a");
+
+    add("c");
+    assertThat(cache.doGet("b")).isSameInstanceAs(b);
+    assertThat(cache.doGet("c")).isNotNull();
+  }
+}
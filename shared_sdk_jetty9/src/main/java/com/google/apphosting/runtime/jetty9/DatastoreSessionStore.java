@@ -25,6 +25,7 @@ import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.apphosting.runtime.SessionFormat;
 import com.google.apphosting.runtime.SessionStore;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.flogger.GoogleLogger;
@@ -33,6 +34,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
@@ -214,15 +216,22 @@ public class DatastoreSessionStore implements SessionStore {
       String originalNamespace = NamespaceManager.get();
 
       try {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(baos);
-        oos.writeObject(((AppEngineSessionData) data).getMutableAttributes());
-        oos.flush();
+        Map<String, Object> attributes = ((AppEngineSessionData) data).getMutableAttributes();
+        byte[] values;
+        if (SessionFormat.useCompactFormat()) {
+          values = SessionFormat.encodeAttributes(attributes);
+        } else {
+          ByteArrayOutputStream baos = new ByteArrayOutputStream();
+          ObjectOutputStream oos = new ObjectOutputStream(baos);
+          oos.writeObject(attributes);
+          oos.flush();
+          values = baos.toByteArray();
+        }
 
         NamespaceManager.set("");
         Entity entity = new Entity(SESSION_ENTITY_TYPE, SESSION_PREFIX + id);
         entity.setProperty(EXPIRES_PROP, data.getExpiry());
-        entity.setProperty(VALUES_PROP, new Blob(baos.toByteArray()));
+        entity.setProperty(VALUES_PROP, new Blob(values));
         return entity;
       } finally {
         NamespaceManager.set(originalNamespace);
@@ -295,17 +304,28 @@ public class DatastoreSessionStore implements SessionStore {
               (1000L * _context.getSessionHandler().getMaxInactiveInterval()));
       session.setExpiry(expiry);
 
-      try (ClassLoadingObjectInputStream ois =
-          new ClassLoadingObjectInputStream(new ByteArrayInputStream(blob.getBytes()))) {
-        @SuppressWarnings("unchecked")
-        Map<String, Object> map = (Map<String, Object>) ois.readObject();
-
+      try {
         // TODO: avoid this data copy
-        session.putAllAttributes(map);
+        session.putAllAttributes(readAttributes(blob.getBytes()));
       } catch (Exception ex) {
         throw new UnreadableSessionDataException(id, _context, ex);
       }
       return session;
     }
+
+    /** Reads attributes in the compact session format, or Java serialized. */
+    private static Map<String, Object> readAttributes(byte[] values) throws Exception {
+      if (SessionFormat.isCompact(values)) {
+        Map<String, Object> attributes = new HashMap<>();
+        SessionFormat.decodeAttributes(values, attributes);
+        return attributes;
+      }
+      try (ClassLoadingObjectInputStream ois =
+          new ClassLoadingObjectInputStream(new ByteArrayInputStream(values))) {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> map = (Map<String, Object>) ois.readObject();
+        return map;
+      }
+    }
   }
 }